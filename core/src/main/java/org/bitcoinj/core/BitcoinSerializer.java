@@ -70,6 +70,7 @@ public class BitcoinSerializer extends MessageSerializer {
         names.put(GetAddrMessage.class, "getaddr");
         names.put(HeadersMessage.class, "headers");
         names.put(BloomFilter.class, "filterload");
+        names.put(FilterAddMessage.class, "filteradd");
         names.put(FilteredBlock.class, "merkleblock");
         names.put(NotFoundMessage.class, "notfound");
         names.put(MemoryPoolMessage.class, "mempool");
@@ -244,6 +245,8 @@ public class BitcoinSerializer extends MessageSerializer {
             return makeAlertMessage(payloadBytes);
         } else if (command.equals("filterload")) {
             return makeBloomFilter(payloadBytes);
+        } else if (command.equals("filteradd")) {
+            return new FilterAddMessage(params, payloadBytes);
         } else if (command.equals("notfound")) {
             return new NotFoundMessage(params, payloadBytes);
         } else if (command.equals("mempool")) {
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static java.lang.Math.*;
 
 /**
@@ -57,6 +58,8 @@ public class BloomFilter extends Message {
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
+    // Not part of the wire format: set for filters that are only ever queried locally, see createLocal.
+    private boolean doubleHashing;
 
     // Same value as Bitcoin Core
     // A filter of 20,000 items and a false positive rate of 0.1% or one of 10,000 items and 0.0001% is just under 36,000 bytes
@@ -120,6 +123,26 @@ public class BloomFilter extends Message {
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    /**
+     * <p>Constructs a filter for local use only, which derives all of its bit positions from two MurmurHash3 values
+     * computed in a single pass over each element (Kirsch-Mitzenmacher double hashing), rather than hashing the
+     * element once per hash function. For the filters typical of a wallet that is several times faster to insert into
+     * and query, at practically the same false positive rate.</p>
+     *
+     * <p>Remote peers use the classic scheme, so such a filter can't be sent over the network nor merged with a
+     * classic one. Use it for things like checking many transactions or outputs against a set of keys or scripts.</p>
+     */
+    public static BloomFilter createLocal(int elements, double falsePositiveRate, long randomNonce) {
+        BloomFilter filter = new BloomFilter(elements, falsePositiveRate, randomNonce, BloomUpdate.UPDATE_NONE);
+        filter.doubleHashing = true;
+        return filter;
+    }
+
+    /** Returns true if this filter was made by {@link #createLocal(int, double, long)} and can't be sent to peers. */
+    public boolean isLocalOnly() {
+        return doubleHashing;
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
@@ -127,6 +150,32 @@ public class BloomFilter extends Message {
         return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
     }
 
+    /**
+     * Estimates the current false positive rate from the fraction of bits that are set, which unlike
+     * {@link #getFalsePositiveRate(int)} doesn't require knowing how many elements were inserted and also accounts for
+     * elements the remote peer may have added. Costs one pass over the filter, at most 36,000 bytes.
+     */
+    public synchronized double getEstimatedFalsePositiveRate() {
+        int setBits = 0;
+        for (byte b : data)
+            setBits += Integer.bitCount(b & 0xFF);
+        return pow((double) setBits / (data.length * 8), hashFuncs);
+    }
+
+    /** Returns a copy of this filter that can be modified without affecting this one. */
+    public synchronized BloomFilter copy() {
+        BloomFilter copy = new BloomFilter();
+        copy.data = Arrays.copyOf(data, data.length);
+        copy.hashFuncs = hashFuncs;
+        copy.nTweak = nTweak;
+        copy.nFlags = nFlags;
+        copy.doubleHashing = doubleHashing;
+        return copy;
+    }
+
+    private BloomFilter() {
+    }
+
     @Override
     public String toString() {
         return "Bloom Filter of size " + data.length + " with " + hashFuncs + " hash functions.";
@@ -150,6 +199,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        checkState(!doubleHashing, "Local only Bloom filters can't be serialized");
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -166,6 +216,10 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return (int)((murmurHash3(nTweak, hashNum, object) & 0xFFFFFFFFL) % (data.length * 8));
+    }
+
+    private static int murmurHash3(long nTweak, int hashNum, byte[] object) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
@@ -212,8 +266,73 @@ public class BloomFilter extends Message {
         h1 ^= h1 >>> 13;
         h1 *= 0xc2b2ae35;
         h1 ^= h1 >>> 16;
-        
-        return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
+        return h1;
+    }
+
+    /**
+     * Computes the hashes for hash numbers 0 and 1 in a single pass over the object, returned as the high and low
+     * halves of a long. The results are the same as two calls to {@link #murmurHash3(long, int, byte[])}.
+     */
+    private static long murmurHash3Pair(long nTweak, byte[] object) {
+        int ha = (int) nTweak;
+        int hb = (int)(0xFBA4C795L + nTweak);
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+
+        int numBlocks = (object.length / 4) * 4;
+        for (int i = 0; i < numBlocks; i += 4) {
+            int k1 = (object[i] & 0xFF) |
+                  ((object[i+1] & 0xFF) << 8) |
+                  ((object[i+2] & 0xFF) << 16) |
+                  ((object[i+3] & 0xFF) << 24);
+            // The block mixing doesn't depend on the seed, so it's shared by both hashes.
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+
+            ha ^= k1;
+            ha = rotateLeft32(ha, 13);
+            ha = ha*5+0xe6546b64;
+            hb ^= k1;
+            hb = rotateLeft32(hb, 13);
+            hb = hb*5+0xe6546b64;
+        }
+
+        int k1 = 0;
+        switch(object.length & 3)
+        {
+            case 3:
+                k1 ^= (object[numBlocks + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[numBlocks + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[numBlocks] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2; ha ^= k1; hb ^= k1;
+                // Fall through.
+            default:
+                // Do nothing.
+                break;
+        }
+
+        return ((long) fmix32(ha ^ object.length) << 32) | (fmix32(hb ^ object.length) & 0xFFFFFFFFL);
+    }
+
+    private static int fmix32(int h1) {
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    // Bit i of a double hashed filter is (h1 + i * h2) mod m, with both hashes taken as unsigned.
+    private static int doubleHashBit(long hashes, int i, int bits) {
+        long h1 = hashes >>> 32;
+        long h2 = hashes & 0xFFFFFFFFL;
+        return (int)((h1 + i * h2) % bits);
     }
     
     /**
@@ -221,6 +340,15 @@ public class BloomFilter extends Message {
      * false-positive.
      */
     public synchronized boolean contains(byte[] object) {
+        if (doubleHashing) {
+            final long hashes = murmurHash3Pair(nTweak, object);
+            final int bits = data.length * 8;
+            for (int i = 0; i < hashFuncs; i++) {
+                if (!Utils.checkBitLE(data, doubleHashBit(hashes, i, bits)))
+                    return false;
+            }
+            return true;
+        }
         for (int i = 0; i < hashFuncs; i++) {
             if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
                 return false;
@@ -230,10 +358,60 @@ public class BloomFilter extends Message {
     
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
+        if (doubleHashing) {
+            final long hashes = murmurHash3Pair(nTweak, object);
+            final int bits = data.length * 8;
+            for (int i = 0; i < hashFuncs; i++)
+                Utils.setBitLE(data, doubleHashBit(hashes, i, bits));
+            return;
+        }
         for (int i = 0; i < hashFuncs; i++)
             Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
     }
 
+    /** Inserts all of the given objects, taking the filter's lock only once. */
+    public synchronized void insertAll(byte[][] objects) {
+        for (byte[] object : objects)
+            insert(object);
+    }
+
+    /**
+     * Returns true if the transaction hash, any pushdata of an output or input script, or any spent outpoint matches
+     * the filter. Unlike {@link #applyAndUpdate(Transaction)} this never modifies the filter, and it reads the
+     * pushdata straight out of the parsed script chunks without copying it.
+     */
+    public synchronized boolean containsAny(Transaction tx) {
+        if (contains(tx.getHash().getBytes()))
+            return true;
+        for (TransactionOutput output : tx.getOutputs())
+            if (containsAnyPushData(output.getScriptPubKey()))
+                return true;
+        byte[] outpoint = null;
+        for (TransactionInput input : tx.getInputs()) {
+            if (outpoint == null)
+                outpoint = new byte[36];
+            serializeOutPoint(input.getOutpoint(), outpoint);
+            if (contains(outpoint) || containsAnyPushData(input.getScriptSig()))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean containsAnyPushData(Script script) {
+        for (ScriptChunk chunk : script.getChunks())
+            if (chunk.isPushData() && chunk.data != null && contains(chunk.data))
+                return true;
+        return false;
+    }
+
+    // Same bytes as TransactionOutPoint.unsafeBitcoinSerialize(), written into a reusable buffer.
+    private static void serializeOutPoint(TransactionOutPoint outpoint, byte[] buf) {
+        byte[] hash = outpoint.getHash().getBytes();
+        for (int i = 0; i < 32; i++)
+            buf[i] = hash[31 - i];
+        Utils.uint32ToByteArrayLE(outpoint.getIndex(), buf, 32);
+    }
+
     /** Inserts the given key and equivalent hashed form (for the address). */
     public synchronized void insert(ECKey key) {
         insert(key.getPubKey());
@@ -259,7 +437,8 @@ public class BloomFilter extends Message {
         if (!this.matchesAll() && !filter.matchesAll()) {
             checkArgument(filter.data.length == this.data.length &&
                           filter.hashFuncs == this.hashFuncs &&
-                          filter.nTweak == this.nTweak);
+                          filter.nTweak == this.nTweak &&
+                          filter.doubleHashing == this.doubleHashing);
             for (int i = 0; i < data.length; i++)
                 this.data[i] |= filter.data[i];
         } else {
@@ -355,7 +534,8 @@ public class BloomFilter extends Message {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && doubleHashing == other.doubleHashing &&
+                Arrays.equals(data, other.data);
     }
 
     @Override
@@ -1,7 +1,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
-import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.MaintenanceScheduler;
 import org.bitcoinj.utils.Threading;
 import org.darkcoinj.DarkSendEntry;
 import org.slf4j.Logger;
@@ -9,6 +9,9 @@ import org.slf4j.LoggerFactory;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.bitcoinj.core.MasternodeManager.MASTERNODES_DUMP_SECONDS;
@@ -150,99 +153,124 @@ public class DarkSendPool {
         std::srand(seed);*/
     }
     static boolean oneThread = false;
-    class ThreadCheckDarkSendPool implements Runnable {
-        public volatile boolean exit = false;
 
-        public void stop() { exit = true; }
-        @Override
-        public void run() {
-            if(context.isLiteMode() && !context.allowInstantXinLiteMode()) return; //disable all Darksend/Masternode related functionality
+    // Runs the periodic masternode, governance and InstantSend work, a slow task does not hold up the others.
+    MaintenanceScheduler scheduler;
 
-            if(oneThread)
-                return;
-            oneThread = true;
-            // Make this thread recognisable as the wallet flushing thread
-
-            log.info("--------------------------------------\nstarting axe-darksend thread");
-            int tick = 0;
-            try {
-
-                while (true && !exit) {
-                    Thread.sleep(1000);
-
-                    // try to sync from all available nodes, one step at a time
-                    context.masternodeSync.processTick();
-
-
-                    if (context.masternodeSync.isBlockchainSynced()) {
-
-                        tick++;
-
-                        // check if we should activate or ping every few minutes,
-                        // start right after sync is considered to be done
-                        if (tick % Masternode.MASTERNODE_MIN_MNP_SECONDS == 15)
-                            context.activeMasternode.manageState();
-
-                        if (tick % 60 == 0) {
-                            context.masternodeManager.processMasternodeConnections();
-                            context.masternodeManager.checkAndRemove();
-                            context.masternodePayments.checkAndRemove();
-                            context.governanceManager.checkAndRemove();
-                            context.instantSend.checkAndRemove();
-                        }
-                        //hashengineering added this
-                        if(tick % 30 == 0) {
-                            log.info(context.masternodeManager.toString());
-                            log.info(context.governanceManager.toString());
-                        }
-
-                        if(tick % (60 * 5) == 0) {
-                            context.governanceManager.doMaintenance();
-                        }
-
-                        if(tick % MASTERNODES_DUMP_SECONDS == 0) {
-                            context.masternodeSync.queueOnSyncStatusChanged(MasternodeSync.MASTERNODE_SYNC_FINISHED, 1.0f);
-                        }
+    // Runs the given work only once the blockchain is synced, like all maintenance but the sync itself.
+    private Runnable whenSynced(final Runnable runnable) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (context.masternodeSync.isBlockchainSynced())
+                    runnable.run();
+            }
+        };
+    }
 
-                        // check whether the outgoing simple transactions were auto locked
-                        // within the specific time frame
-                        if (tick % 2 == 0) {
-                            context.instantSend.notifyLockStatus();
-                        }
+    private void scheduleMaintenance() {
+        log.info("--------------------------------------\nstarting axe-darksend maintenance");
 
-                    }
-                }
+        // try to sync from all available nodes, one step at a time
+        scheduler.schedule("masternode sync", 1, 1, 0, TimeUnit.SECONDS, new Runnable() {
+            @Override
+            public void run() {
+                context.masternodeSync.processTick();
             }
-            catch(InterruptedException x)
-            {
-                x.printStackTrace();
+        });
+        // check if we should activate or ping every few minutes,
+        // start right after sync is considered to be done
+        scheduler.schedule("active masternode", 15, Masternode.MASTERNODE_MIN_MNP_SECONDS, 1, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.activeMasternode.manageState();
             }
-        }
-    };
+        }));
+        scheduler.schedule("masternode manager", 60, 60, 5, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.masternodeManager.processMasternodeConnections();
+                context.masternodeManager.checkAndRemove();
+            }
+        }));
+        // ask the masternodes picked by checkAndRemove for the broadcasts that may need recovering
+        scheduler.schedule("mnb recovery", 61, 1, 0, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.masternodeManager.processPendingMnbRequests();
+            }
+        }));
+        scheduler.schedule("masternode payments", 60, 60, 5, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.masternodePayments.checkAndRemove();
+            }
+        }));
+        scheduler.schedule("governance cleanup", 60, 60, 5, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.governanceManager.checkAndRemove();
+            }
+        }));
+        scheduler.schedule("instantsend cleanup", 60, 60, 5, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.instantSend.checkAndRemove();
+            }
+        }));
+        //hashengineering added this
+        scheduler.schedule("status", 30, 30, 0, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                log.info(context.masternodeManager.toString());
+                log.info(context.governanceManager.toString());
+                for (MaintenanceScheduler.Task task : scheduler.getTasks())
+                    log.info(task.toString());
+            }
+        }));
+        scheduler.schedule("governance maintenance", 60 * 5, 60 * 5, 10, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.governanceManager.doMaintenance();
+            }
+        }));
+        scheduler.schedule("sync status", MASTERNODES_DUMP_SECONDS, MASTERNODES_DUMP_SECONDS, 0, TimeUnit.SECONDS, whenSynced(new Runnable() {
+            @Override
+            public void run() {
+                context.masternodeSync.queueOnSyncStatusChanged(MasternodeSync.MASTERNODE_SYNC_FINISHED, 1.0f);
+            }
+        }));
+    }
 
-    Thread backgroundThread;
-    ThreadCheckDarkSendPool threadCheckDarkSendPool = null;
     //axe
     public boolean startBackgroundProcessing()
     {
-        if(backgroundThread == null)
+        if(context.isLiteMode() && !context.allowInstantXinLiteMode()) return false; //disable all Darksend/Masternode related functionality
+
+        if(scheduler == null || scheduler.isShutdown())
         {
-            threadCheckDarkSendPool = new ThreadCheckDarkSendPool();
-            backgroundThread = new ContextPropagatingThreadFactory("axe-privatesend").newThread(threadCheckDarkSendPool);
-            backgroundThread.start();
-            return true;
-        }
-        else if(backgroundThread.getState() == Thread.State.TERMINATED) {
-            //if the thread was stopped, start it again
-            backgroundThread = new ContextPropagatingThreadFactory("axe-privatesend").newThread(threadCheckDarkSendPool);
-            backgroundThread.start();
+            if(oneThread && scheduler == null)
+                return false;
+            oneThread = true;
+            boolean first = scheduler == null;
+            scheduler = new MaintenanceScheduler("axe-privatesend", 3);
+            scheduleMaintenance();
+            return first;
         }
         return false;
     }
-    public boolean isBackgroundRunning() { return backgroundThread == null ? false : backgroundThread.getState() != Thread.State.TERMINATED; }
+
+    /** Returns the periodic maintenance tasks with their execution time metrics, empty if they were not started. */
+    public List<MaintenanceScheduler.Task> getMaintenanceTasks()
+    {
+        return scheduler == null ? Collections.<MaintenanceScheduler.Task>emptyList() : scheduler.getTasks();
+    }
+
+    public boolean isBackgroundRunning() { return scheduler != null && !scheduler.isShutdown(); }
 
     public void close()
     {
-        threadCheckDarkSendPool.stop();
+        if(scheduler != null)
+            scheduler.shutdown();
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The "filteradd" message inserts a single element into the {@link BloomFilter} previously loaded on the connection,
+ * so that a handful of new keys can be watched without resending the whole filter.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class FilterAddMessage extends Message {
+    /** The largest element a remote peer will accept, the same as the maximum script element size. */
+    public static final int MAX_ELEMENT_SIZE = 520;
+
+    private byte[] data;
+
+    public FilterAddMessage(NetworkParameters params, byte[] payloadBytes) throws ProtocolException {
+        super(params, payloadBytes, 0);
+    }
+
+    public FilterAddMessage(byte[] data) {
+        checkArgument(data.length <= MAX_ELEMENT_SIZE, "Bloom filter element too large: %s bytes", data.length);
+        this.data = data;
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        data = readByteArray();
+        if (data.length > MAX_ELEMENT_SIZE)
+            throw new ProtocolException("Bloom filter element out of size range.");
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(data.length).encode());
+        stream.write(data);
+    }
+
+    /** Returns the element to be inserted into the remote filter. */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "filteradd of " + data.length + " bytes";
+    }
+}
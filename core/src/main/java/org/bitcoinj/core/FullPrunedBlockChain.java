@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -145,32 +146,39 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
+    /**
+     * Shared by all chains, as script checks are CPU bound and more threads than cores wouldn't help. It is never shut
+     * down: when a block fails, the checks still queued for it are cancelled instead.
+     */
+    private static final ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
             Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * A job submitted to the executor which verifies the signature of one input, so the inputs of a large transaction
+     * are spread over all cores.
      */
     private static class Verifier implements Callable<VerificationException> {
+        final Context context;
         final Transaction tx;
-        final List<Script> prevOutScripts;
+        final int index;
+        final Script prevOutScript;
         final Set<VerifyFlag> verifyFlags;
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
+        public Verifier(final Context context, final Transaction tx, final int index, final Script prevOutScript,
+                        final Set<VerifyFlag> verifyFlags) {
+            this.context = context;
             this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
             this.verifyFlags = verifyFlags;
         }
 
         @Nullable
         @Override
         public VerificationException call() throws Exception {
+            Context.propagate(context);
             try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
+                tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutScript, verifyFlags);
             } catch (VerificationException e) {
                 return e;
             }
@@ -178,6 +186,56 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    /**
+     * Queues a check of every input of the given transaction, which must not be modified until the checks are done.
+     */
+    private void verifyScripts(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags,
+                               List<FutureTask<VerificationException>> scriptChecks) {
+        // Signature hashing serializes the transaction from all threads at once, so make sure any lazily cached
+        // serialization is done here rather than racing in the workers.
+        tx.unsafeBitcoinSerialize();
+        Context context = Context.get();
+        ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
+        for (int index = 0; index < tx.getInputs().size(); index++) {
+            FutureTask<VerificationException> future = new FutureTask<VerificationException>(
+                    new Verifier(context, tx, index, prevOutIt.next(), verifyFlags));
+            scriptVerificationExecutor.execute(future);
+            scriptChecks.add(future);
+        }
+    }
+
+    /**
+     * Waits for the given checks and throws the first failure. Instead of just blocking, this thread runs checks that
+     * no worker has picked up yet, taking them from the back of the list while the workers take from the front.
+     */
+    private static void awaitScriptChecks(List<FutureTask<VerificationException>> scriptChecks)
+            throws VerificationException {
+        for (ListIterator<FutureTask<VerificationException>> it = scriptChecks.listIterator(scriptChecks.size());
+             it.hasPrevious(); ) {
+            FutureTask<VerificationException> future = it.previous();
+            if (!future.isDone())
+                future.run(); // Does nothing if a worker already started it.
+        }
+        for (Future<VerificationException> future : scriptChecks) {
+            VerificationException e;
+            try {
+                e = future.get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+            }
+            if (e != null)
+                throw e;
+        }
+    }
+
+    private static void cancelScriptChecks(List<FutureTask<VerificationException>> scriptChecks) {
+        for (FutureTask<VerificationException> future : scriptChecks)
+            future.cancel(false);
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -206,6 +264,24 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return address;
     }
 
+    /**
+     * Lets the store load all outputs spent by the given transactions in one go, rather than one lookup per input.
+     * Outputs created by earlier transactions of the same block aren't in the store yet, so they're left out.
+     */
+    private void prefetchSpentOutputs(List<Transaction> transactions) throws BlockStoreException {
+        Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase())
+                for (TransactionInput in : tx.getInputs())
+                    if (!created.contains(in.getOutpoint().getHash()))
+                        outPoints.add(in.getOutpoint());
+            created.add(tx.getHash());
+        }
+        if (!outPoints.isEmpty())
+            blockStore.prefetchOutputs(outPoints);
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block, StoredBlock storedPrev)
             throws VerificationException, BlockStoreException {
@@ -221,11 +297,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        List<FutureTask<VerificationException>> scriptChecks = new ArrayList<FutureTask<VerificationException>>();
         try {
+            prefetchSpentOutputs(block.transactions);
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
                 // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
@@ -308,32 +382,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    verifyScripts(tx, prevOutScripts, verifyFlags, scriptChecks);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height, storedPrev.getHeader().getDifficultyTarget(), false).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            awaitScriptChecks(scriptChecks);
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(scriptChecks);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(scriptChecks);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -358,6 +418,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        List<FutureTask<VerificationException>> scriptChecks = new ArrayList<FutureTask<VerificationException>>();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -365,6 +426,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
                 long sigOps = 0;
 
+                prefetchSpentOutputs(transactions);
                 if (!params.isCheckpoint(newBlock.getHeight())) {
                     for (Transaction tx : transactions) {
                         Sha256Hash hash = tx.getHash();
@@ -375,9 +437,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -439,28 +498,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        verifyScripts(tx, prevOutScripts, verifyFlags, scriptChecks);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight(), storedPrev.getHeader().getDifficultyTarget(), false).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                awaitScriptChecks(scriptChecks);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -475,11 +520,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(scriptChecks);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            cancelScriptChecks(scriptChecks);
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
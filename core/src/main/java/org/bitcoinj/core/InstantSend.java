@@ -1,11 +1,15 @@
 package org.bitcoinj.core;
 
 import com.google.common.collect.Lists;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.LatencyHistogram;
 import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,6 +44,12 @@ public class InstantSend {
     public HashMap<TransactionOutPoint, Sha256Hash> mapLockedOutpoints;
     public HashMap<TransactionOutPoint, Long> mapMasternodeOrphanVotes; //track votes with no tx for DOS
 
+    // Index of mapTxLockVotesOrphan: tx hash -> outpoint -> number of orphan votes, kept up to date by
+    // addOrphanVote and removeOrphanVoteFromIndex so that checking a lock request doesn't scan all orphans.
+    HashMap<Sha256Hash, HashMap<TransactionOutPoint, Integer>> mapOrphanVoteCounts;
+    // Sum of the values in mapMasternodeOrphanVotes, for getAverageMasternodeOrphanVoteTime.
+    long nMasternodeOrphanVoteTimeTotal;
+
     public static int nInstantSendKeepLock = 24;
     int nCompleteTXLocks;
 
@@ -61,6 +71,21 @@ public class InstantSend {
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
 
+    // Latencies of the stages of a lock, measured from the arrival of the lock request.
+    private final LatencyHistogram requestToFirstVote = new LatencyHistogram("request to first vote");
+    private final LatencyHistogram requestToQuorum = new LatencyHistogram("request to quorum");
+    private final LatencyHistogram requestToConfidence = new LatencyHistogram("request to confidence update");
+
+    // Runs the lock timeout checks, created when the first one is scheduled.
+    private ScheduledExecutorService timeoutExecutor;
+
+    /** Time from the arrival of a lock request to the first vote counted for it. */
+    public LatencyHistogram getRequestToFirstVoteLatency() { return requestToFirstVote; }
+    /** Time from the arrival of a lock request to all of its inputs having enough votes. */
+    public LatencyHistogram getRequestToQuorumLatency() { return requestToQuorum; }
+    /** Time from the arrival of a lock request to its transaction's confidence becoming IX_LOCKED. */
+    public LatencyHistogram getRequestToConfidenceLatency() { return requestToConfidence; }
+
     public InstantSend(Context context)
     {
         this.context = context;
@@ -75,6 +100,7 @@ public class InstantSend {
         mapTxLockCandidates = new HashMap<Sha256Hash, TransactionLockCandidate>();
         mapTxLockVotesOrphan = new HashMap<Sha256Hash, TransactionLockVote>();
         mapVotedOutpoints = new HashMap<TransactionOutPoint, Set<Sha256Hash>>();
+        mapOrphanVoteCounts = new HashMap<Sha256Hash, HashMap<TransactionOutPoint, Integer>>();
     }
 
     //check if we need to vote on this transaction
@@ -241,15 +267,45 @@ public class InstantSend {
 
     public long getAverageVoteTime()
     {
-        long total = 0;
-        long count = 0;
+        return getAverageMasternodeOrphanVoteTime();
+    }
 
-        for(Map.Entry<TransactionOutPoint, Long> it : mapMasternodeOrphanVotes.entrySet()) {
-            total += it.getValue();
-            count++;
+    void addOrphanVote(TransactionLockVote vote)
+    {
+        mapTxLockVotesOrphan.put(vote.getHash(), vote);
+        HashMap<TransactionOutPoint, Integer> counts = mapOrphanVoteCounts.get(vote.getTxHash());
+        if(counts == null) {
+            counts = new HashMap<TransactionOutPoint, Integer>();
+            mapOrphanVoteCounts.put(vote.getTxHash(), counts);
         }
+        Integer count = counts.get(vote.getOutpoint());
+        counts.put(vote.getOutpoint(), count == null ? 1 : count + 1);
+    }
 
-        return total / count;
+    // Updates the index for an orphan vote that was taken out of mapTxLockVotesOrphan.
+    void removeOrphanVoteFromIndex(TransactionLockVote vote)
+    {
+        HashMap<TransactionOutPoint, Integer> counts = mapOrphanVoteCounts.get(vote.getTxHash());
+        if(counts == null)
+            return;
+        Integer count = counts.get(vote.getOutpoint());
+        if(count == null)
+            return;
+        if(count > 1) {
+            counts.put(vote.getOutpoint(), count - 1);
+        } else {
+            counts.remove(vote.getOutpoint());
+            if(counts.isEmpty())
+                mapOrphanVoteCounts.remove(vote.getTxHash());
+        }
+    }
+
+    void putMasternodeOrphanVote(TransactionOutPoint outpointMasternode, long nExpireTime)
+    {
+        Long nPrevious = mapMasternodeOrphanVotes.put(outpointMasternode, nExpireTime);
+        if(nPrevious != null)
+            nMasternodeOrphanVoteTimeTotal -= nPrevious;
+        nMasternodeOrphanVoteTimeTotal += nExpireTime;
     }
 
     //received a consensus vote
@@ -279,7 +335,7 @@ public class InstantSend {
                     // start timeout countdown after the very first vote
                     createEmptyTxLockCandidate(txHash);
 
-                    mapTxLockVotesOrphan.put(vote.getHash(), vote);
+                    addOrphanVote(vote);
                     log.info("instantsend--CInstantSend::ProcessTxLockVote -- Orphan vote: txid="+txHash.toString()+"  masternode="+vote.getOutpointMasternode().toString()+" new\n");
                     boolean fReprocess = true;
 
@@ -306,17 +362,17 @@ public class InstantSend {
                 // TODO: make sure this works good enough for multi-quorum
 
                 long nMasternodeOrphanExpireTime = Utils.currentTimeSeconds() + 60*10; // keep time data for 10 minutes
-                if(!mapMasternodeOrphanVotes.containsKey(vote.getOutpointMasternode())) {
-                    mapMasternodeOrphanVotes.put(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime);
+                Long nPrevOrphanVote = mapMasternodeOrphanVotes.get(vote.getOutpointMasternode());
+                if(nPrevOrphanVote == null) {
+                    putMasternodeOrphanVote(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime);
                 } else {
-                    long nPrevOrphanVote = mapMasternodeOrphanVotes.get(vote.getOutpointMasternode());
                     if(nPrevOrphanVote > Utils.currentTimeSeconds() && nPrevOrphanVote > getAverageMasternodeOrphanVoteTime()) {
                         log.info("instantsend--CInstantSend::ProcessTxLockVote -- masternode is spamming orphan Transaction Lock Votes: txid="+txHash+"  masternode=", vote.getOutpointMasternode().toStringShort());
                         // Misbehaving(pfrom->id, 1);
                         return false;
                     }
                     // not spamming, refresh
-                    mapMasternodeOrphanVotes.put(vote.getOutpointMasternode(),nMasternodeOrphanExpireTime);
+                    putMasternodeOrphanVote(vote.getOutpointMasternode(), nMasternodeOrphanExpireTime);
                 }
 
                 return true;
@@ -380,6 +436,10 @@ public class InstantSend {
                 // this should never happen
                 return false;
             }
+            if(txLockCandidate.timeFirstVoteMillis == 0) {
+                txLockCandidate.timeFirstVoteMillis = Utils.currentTimeMillis();
+                requestToFirstVote.record(txLockCandidate.timeFirstVoteMillis - txLockCandidate.timeRequestMillis);
+            }
 
             int nSignatures = txLockCandidate.countVotes();
             int nSignaturesMax = TransactionLockRequest.getMaxSignatures(txLockCandidate.txLockRequest.getInputs().size());
@@ -401,6 +461,7 @@ public class InstantSend {
             lock.lock();
 
             mapLockRequestAccepted.put(txLockRequest.getHash(), txLockRequest);
+            scheduleLockTimeout(txLockRequest);
         }
         finally {
             lock.unlock();
@@ -450,6 +511,10 @@ public class InstantSend {
             }
             log.info("CInstantSend::ProcessTxLockRequest -- accepted, txid="+ txHash.toString());
 
+            // our own transactions should fail visibly if they are not locked in time
+            if(txLockRequest.getConfidence().getSource() == TransactionConfidence.Source.SELF)
+                scheduleLockTimeout(txLockRequest);
+
             TransactionLockCandidate txLockCandidate = mapTxLockCandidates.get(txHash);
             vote(txLockCandidate);
             processOrphanTxLockVotes();
@@ -520,6 +585,7 @@ public class InstantSend {
             else if (lockCandidate.txLockRequest == null)
             {
                 lockCandidate.txLockRequest = txLockRequest;
+                lockCandidate.timeRequestMillis = Utils.currentTimeMillis();
                 if(lockCandidate.isTimedOut())
                 {
                     log.info("CInstantSend::CreateTxLockCandidate -- timed out, txid="+ txHash.toString());
@@ -568,7 +634,12 @@ public class InstantSend {
             lock.lock();
 
             Sha256Hash txHash = txLockCandidate.txLockRequest.getHash();
-            if (txLockCandidate.isAllOutPointsReady() && !isLockedInstantSendTransaction(txHash)) {
+            boolean fReady = txLockCandidate.isAllOutPointsReady();
+            if (fReady && !txLockCandidate.quorumReached) {
+                txLockCandidate.quorumReached = true;
+                requestToQuorum.record(Utils.currentTimeMillis() - txLockCandidate.timeRequestMillis);
+            }
+            if (fReady && !isLockedInstantSendTransaction(txHash)) {
                 // we have enough votes now
                 log.info("instantsend--CInstantSend::TryToFinalizeLockCandidate -- Transaction Lock is ready to complete, txid="+ txHash);
                 if (resolveConflicts(txLockCandidate)) {
@@ -646,26 +717,15 @@ public class InstantSend {
     }
     boolean isEnoughOrphanVotesForTxAndOutPoint(Sha256Hash txHash, TransactionOutPoint outpoint)
     {
-        // Scan orphan votes to check if this outpoint has enough orphan votes to be locked in some tx.
+        // Check if this outpoint has enough orphan votes to be locked in some tx.
         try {
             lock.lock();
 
-            int nCountVotes = 0;
-            Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> it = mapTxLockVotesOrphan.entrySet().iterator();
-
-
-
-            while(it.hasNext()) {
-                Map.Entry<Sha256Hash, TransactionLockVote> tl = it.next();
-
-                if (tl.getValue().getTxHash().equals(txHash) && tl.getValue().getOutpoint() == outpoint) {
-                    nCountVotes++;
-                    if (nCountVotes >= TransactionOutPointLock.SIGNATURES_REQUIRED) {
-                        return true;
-                    }
-                }
-            }
-            return false;
+            HashMap<TransactionOutPoint, Integer> counts = mapOrphanVoteCounts.get(txHash);
+            if(counts == null)
+                return false;
+            Integer nCountVotes = counts.get(outpoint);
+            return nCountVotes != null && nCountVotes >= TransactionOutPointLock.SIGNATURES_REQUIRED;
         }
         finally {
             lock.unlock();
@@ -680,16 +740,7 @@ public class InstantSend {
             // NOTE: should never actually call this function when mapMasternodeOrphanVotes is empty
             if (mapMasternodeOrphanVotes.size() == 0) return 0;
 
-            Iterator<Map.Entry<TransactionOutPoint, Long>> it = mapMasternodeOrphanVotes.entrySet().iterator();
-
-
-            long total = 0;
-            while(it.hasNext()) {
-                Map.Entry<TransactionOutPoint, Long> tl = it.next();
-                total += tl.getValue();
-            }
-
-            return total / mapMasternodeOrphanVotes.size();
+            return nMasternodeOrphanVoteTimeTotal / mapMasternodeOrphanVotes.size();
         }
         finally {
             lock.unlock();
@@ -809,6 +860,7 @@ public class InstantSend {
                     log.info("instantsend--CInstantSend::CheckAndRemove -- Removing timed out orphan vote: txid="+vote.getValue().getTxHash()+"  masternode="+ vote.getValue().getOutpointMasternode().toStringShort());
                     mapTxLockVotes.remove(vote.getKey());
                     itOrphanVote.remove();
+                    removeOrphanVoteFromIndex(vote.getValue());
                 } else {
                     ;
                 }
@@ -822,6 +874,7 @@ public class InstantSend {
                     log.info("instantsend--CInstantSend::CheckAndRemove -- Removing expired orphan masternode vote: masternode="+
                             masterNodeOrphan.getKey().toString());
                     itMasternodeOrphan.remove();
+                    nMasternodeOrphanVoteTimeTotal -= masterNodeOrphan.getValue();
                 } else {
                     ;
                 }
@@ -836,24 +889,65 @@ public class InstantSend {
 
     /**
      * Check whether the outgoing simple transactions were auto locked
-     * within the specific time frame, if not set the IXType to TransactionConfidence.IXType.IX_LOCK_FAILED
+     * within the specific time frame, if not set the IXType to TransactionConfidence.IXType.IX_LOCK_FAILED.
+     * This happens by itself INSTANTSEND_LOCK_TIMEOUT_MILLIS after each lock request, calling this only
+     * checks all accepted lock requests at once.
      */
     public void notifyLockStatus()
     {
-        for(Map.Entry<Sha256Hash, Transaction> entry : mapLockRequestAccepted.entrySet()) {
-            Transaction transaction = entry.getValue();
-            TransactionConfidence confidence = transaction.getConfidence();
-            TransactionConfidence.IXType confidenceType = confidence.getIXType();
-            if (confidenceType == TransactionConfidence.IXType.IX_REQUEST) {
-                long sentAt = confidence.getSentAt().getTime();
-                long now = System.currentTimeMillis();
-                long txSentMillisAgo = now - sentAt;
-                if (txSentMillisAgo > INSTANTSEND_LOCK_TIMEOUT_MILLIS) {
-                    confidence.setIXType(TransactionConfidence.IXType.IX_LOCK_FAILED);
-                    confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.IX_TYPE);
+        try {
+            lock.lock();
+            for(Transaction transaction : mapLockRequestAccepted.values())
+                checkLockTimeout(transaction);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Checks the lock status of the transaction once it timed out, instead of having notifyLockStatus polled.
+    void scheduleLockTimeout(final Transaction tx)
+    {
+        if(timeoutExecutor == null)
+            timeoutExecutor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("InstantSend timeouts"));
+        long delay = INSTANTSEND_LOCK_TIMEOUT_MILLIS + 1;
+        Date sentAt = tx.getConfidence().getSentAt();
+        if(sentAt != null)
+            delay = Math.max(sentAt.getTime() + delay - Utils.currentTimeMillis(), 0);
+        timeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lock.lock();
+                    // sent later than expected, check again when it times out
+                    if(checkLockTimeout(tx))
+                        scheduleLockTimeout(tx);
+                }
+                finally {
+                    lock.unlock();
                 }
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns true if the transaction was sent but didn't time out yet.
+    boolean checkLockTimeout(Transaction transaction)
+    {
+        TransactionConfidence confidence = transaction.getConfidence();
+        TransactionConfidence.IXType confidenceType = confidence.getIXType();
+        if (confidenceType == TransactionConfidence.IXType.IX_REQUEST) {
+            Date sentAt = confidence.getSentAt();
+            if (sentAt == null)
+                return false;
+            long txSentMillisAgo = Utils.currentTimeMillis() - sentAt.getTime();
+            if (txSentMillisAgo > INSTANTSEND_LOCK_TIMEOUT_MILLIS) {
+                confidence.setIXType(TransactionConfidence.IXType.IX_LOCK_FAILED);
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.IX_TYPE);
+                return false;
+            }
+            return true;
         }
+        return false;
     }
 
     public void updatedChainHead(StoredBlock chainHead)
@@ -903,9 +997,9 @@ public class InstantSend {
                 }
             }
 
-            // check orphan votes
+            // check orphan votes, if there are any for this tx
             Iterator<Map.Entry<Sha256Hash, TransactionLockVote>> itOrphanVote = mapTxLockVotesOrphan.entrySet().iterator();
-            while (itOrphanVote.hasNext()) {
+            while (mapOrphanVoteCounts.containsKey(txHash) && itOrphanVote.hasNext()) {
                 Map.Entry<Sha256Hash, TransactionLockVote> orphanVote = itOrphanVote.next();
                 if (orphanVote.getValue().getTxHash().equals(txHash)) {
                     log.info("instantsend--CInstantSend::SyncTransaction -- txid="+txHash+" nHeightNew="+nHeightNew+" vote "+orphanVote.getKey()+" updated");
@@ -1124,6 +1218,7 @@ public class InstantSend {
             Transaction tx = txLockCandidate.txLockRequest;
             tx.getConfidence().setIXType(TransactionConfidence.IXType.IX_LOCKED);
             tx.getConfidence().queueListeners(TransactionConfidence.Listener.ChangeReason.IX_TYPE);
+            requestToConfidence.record(Utils.currentTimeMillis() - txLockCandidate.timeRequestMillis);
 
             log.info("instantsend--CInstantSend::UpdateLockedTransaction -- done, txid="+ txHash);
 
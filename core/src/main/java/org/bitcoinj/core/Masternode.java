@@ -27,7 +27,7 @@ import static org.bitcoinj.core.MasternodeInfo.State.*;
 public class Masternode extends Message {
     private static final Logger log = LoggerFactory.getLogger(Masternode.class);
     ReentrantLock lock = Threading.lock("Masternode");
-    long lastTimeChecked;
+    volatile long lastTimeChecked;
 
 
     public enum CollateralStatus {
@@ -433,6 +433,8 @@ public class Masternode extends Message {
 
     public void check(boolean forceCheck)
     {
+        // Most calls come too soon after the last check, answer those without waiting for the lock
+        if (!forceCheck && (Utils.currentTimeSeconds() - lastTimeChecked < MASTERNODE_CHECK_SECONDS)) return;
 
         lock.lock();
         try {
@@ -712,10 +714,15 @@ public class Masternode extends Message {
 
     public MasternodeInfo getInfo()
     {
-        MasternodeInfo info = new MasternodeInfo(this.info);
-        info.nTimeLastPing = lastPing.sigTime;
-        info.fInfoValid = true;
-        return info;
+        lock.lock();
+        try {
+            MasternodeInfo info = new MasternodeInfo(this.info);
+            info.nTimeLastPing = lastPing.sigTime;
+            info.fInfoValid = true;
+            return info;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isValidNetAddr()
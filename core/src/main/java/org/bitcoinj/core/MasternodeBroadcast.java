@@ -27,6 +27,10 @@ public class MasternodeBroadcast extends Masternode {
 
     boolean fRecovery = false;
 
+    // The result of checkSignature, so that a broadcast checked ahead of time by a batch isn't checked again.
+    // Null if it wasn't checked yet.
+    private volatile Boolean fSignatureValid;
+
     public MasternodeBroadcast(NetworkParameters params, byte [] payloadBytes)
     {
         super(params, payloadBytes, 0);
@@ -352,6 +356,7 @@ public class MasternodeBroadcast extends Masternode {
         StringBuilder strError = new StringBuilder();
 
         info.sigTime = Utils.currentTimeSeconds();
+        fSignatureValid = null;
 
         strMessage = info.address.toString() + info.sigTime +
                 Utils.HEX.encode(Utils.reverseBytes(info.pubKeyCollateralAddress.getId())) + Utils.HEX.encode(Utils.reverseBytes(info.pubKeyMasternode.getId())) +
@@ -371,6 +376,23 @@ public class MasternodeBroadcast extends Masternode {
     }
 
     boolean checkSignature(Dos nDos)
+    {
+        Boolean fValid = fSignatureValid;
+        if(fValid != null) {
+            nDos.set(fValid ? 0 : 100);
+            return fValid;
+        }
+        fValid = verifySignature(nDos);
+        fSignatureValid = fValid;
+        return fValid;
+    }
+
+    /** Returns true if the result of {@link #checkSignature} is known, so that it won't be checked again. */
+    boolean isSignatureChecked() {
+        return fSignatureValid != null;
+    }
+
+    private boolean verifySignature(Dos nDos)
     {
         String strMessage;
         StringBuilder strError = new StringBuilder();
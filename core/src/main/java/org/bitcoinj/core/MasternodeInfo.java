@@ -41,7 +41,8 @@ public class MasternodeInfo {
         }
     }
 
-    public State activeState = State.MASTERNODE_PRE_ENABLED;
+    // volatile, as it's read without holding the lock of the masternode
+    public volatile State activeState = State.MASTERNODE_PRE_ENABLED;
     public int nProtocolVersion = 0;
     public long sigTime = 0; //mnb message time
 
@@ -69,6 +70,11 @@ public class MasternodeInfo {
         this.address = other.address;
         this.pubKeyCollateralAddress = other.pubKeyCollateralAddress;
         this.pubKeyMasternode = other.pubKeyMasternode;
+        this.nLastDsq = other.nLastDsq;
+        this.nTimeLastChecked = other.nTimeLastChecked;
+        this.nTimeLastPaid = other.nTimeLastPaid;
+        this.nTimeLastPing = other.nTimeLastPing;
+        this.fInfoValid = other.fInfoValid;
     }
 
     MasternodeInfo(State activeState, int protoVer, long sTime)
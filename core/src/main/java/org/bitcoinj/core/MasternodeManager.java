@@ -1,10 +1,16 @@
 package org.bitcoinj.core;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
 import org.bitcoinj.net.Dos;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Pair;
 import org.bitcoinj.utils.Threading;
@@ -15,8 +21,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executor;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.bitcoinj.core.Masternode.*;
@@ -47,6 +54,18 @@ public class MasternodeManager extends AbstractManager {
     static final int MNB_RECOVERY_MAX_ASK_ENTRIES   = 10;
     static final int MNB_RECOVERY_WAIT_SECONDS      = 60;
     static final int MNB_RECOVERY_RETRY_SECONDS     = 3 * 60 * 60;
+    static final int MNB_RECOVERY_MAX_CONNECTIONS   = 8;
+
+    // Broadcasts are collected for up to MNB_BATCH_MILLIS or until there are MNB_BATCH_SIZE of them. Then their
+    // signatures are checked in parallel and they are applied to the list with a single acquisition of the lock.
+    static final long MNB_BATCH_MILLIS              = 100;
+    static final int MNB_BATCH_SIZE                 = 500;
+
+    /**
+     * Shared by all managers, as signature checks are CPU bound. It is never shut down, the threads are daemons.
+     */
+    private static final ExecutorService mnbVerificationExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Masternode broadcast verification"));
 
     // Keep track of current block height
     int nCachedBlockHeight;
@@ -57,8 +76,9 @@ public class MasternodeManager extends AbstractManager {
     // critical section to protect the inner data structures specifically on messaging
     ReentrantLock lock_messages = Threading.lock("MasternodeManager-Messages");
 
-    // map to hold all MNs
-    HashMap<TransactionOutPoint, Masternode> mapMasternodes;
+    // map to hold all MNs. Changes are made with the lock held, but lookups and iterations that only read it don't
+    // take the lock, so that they aren't held up by the processing of mnb and mnp messages.
+    ConcurrentHashMap<TransactionOutPoint, Masternode> mapMasternodes;
     // who's asked for the Masternode list and the last time
     HashMap<NetAddress, Long> mAskedUsForMasternodeList;
     // who we asked for the Masternode list and the last time
@@ -72,6 +92,16 @@ public class MasternodeManager extends AbstractManager {
     HashMap<Sha256Hash, Pair< Long, Set<MasternodeAddress> > > mMnbRecoveryRequests;
     HashMap<Sha256Hash, ArrayList<MasternodeBroadcast> > mMnbRecoveryGoodReplies;
     ArrayList< Pair<MasternodeAddress, Sha256Hash> > listScheduledMnbRequestConnections;
+    // the recovery connections that are open now
+    private final AtomicInteger nMnbRecoveryConnections = new AtomicInteger();
+
+    // broadcasts waiting for the current batch to be processed
+    private final ReentrantLock mnbBatchLock = Threading.lock("MasternodeManager-MnbBatch");
+    private ArrayList<Pair<Peer, MasternodeBroadcast>> vecPendingMnbs = new ArrayList<Pair<Peer, MasternodeBroadcast>>();
+    private boolean fMnbBatchScheduled;
+    private boolean fBatchMnbs = true;
+    // processes the batches and closes recovery connections, created on first use
+    private ScheduledExecutorService mnbExecutor;
 
     /// Set when masternodes are added, cleared when CGovernanceManager is notified
     boolean fMasternodesAdded;
@@ -81,7 +111,7 @@ public class MasternodeManager extends AbstractManager {
 
     ArrayList<Sha256Hash> vecDirtyGovernanceObjectHashes;
 
-    long nLastSentinelPingTime;
+    volatile long nLastSentinelPingTime;
 
     // Keep track of all broadcasts I've seen
     public HashMap<Sha256Hash, Pair<Long, MasternodeBroadcast>> mapSeenMasternodeBroadcast;// = new HashMap<Sha256Hash, MasternodeBroadcast>();
@@ -105,7 +135,7 @@ public class MasternodeManager extends AbstractManager {
     public MasternodeManager(Context context)
     {
         super(context);
-        mapMasternodes = new HashMap<TransactionOutPoint, Masternode>();
+        mapMasternodes = new ConcurrentHashMap<TransactionOutPoint, Masternode>();
         mAskedUsForMasternodeList = new HashMap<NetAddress, Long>();
         mWeAskedForMasternodeList = new HashMap<NetAddress, Long>();
         mWeAskedForMasternodeListEntry = new HashMap<TransactionOutPoint, HashMap<MasternodeAddress, Long>>();
@@ -157,7 +187,7 @@ public class MasternodeManager extends AbstractManager {
         String version = readStr();
         int size = (int)readVarInt();
 
-        mapMasternodes = new HashMap<TransactionOutPoint, Masternode>(size);
+        mapMasternodes = new ConcurrentHashMap<TransactionOutPoint, Masternode>(size);
         for (int i = 0; i < size; ++i)
         {
             TransactionOutPoint outPoint = new TransactionOutPoint(params, payload, cursor);
@@ -443,10 +473,12 @@ public class MasternodeManager extends AbstractManager {
                     // did we ask this node for it?
                     if (pfrom != null && isMnbRecoveryRequested(hash) && Utils.currentTimeSeconds() < mMnbRecoveryRequests.get(hash).getFirst()) {
                         log.info("masternode--CMasternodeMan::CheckMnbAndUpdateMasternodeList -- mnb={} seen request", hash);
-                        if (mMnbRecoveryRequests.get(hash).getSecond().contains(pfrom.getAddress())) {
+                        // the requests hold masternode addresses, which are never equal to peer addresses
+                        MasternodeAddress addrFrom = new MasternodeAddress(pfrom.getAddress().getAddr(), pfrom.getAddress().getPort());
+                        if (mMnbRecoveryRequests.get(hash).getSecond().contains(addrFrom)) {
                             log.info("masternode--CMasternodeMan::CheckMnbAndUpdateMasternodeList -- mnb={} seen request, addr={}", hash, pfrom.getAddress());
                             // do not allow node to send same mnb multiple times in recovery mode
-                            mMnbRecoveryRequests.get(hash).getSecond().remove(pfrom.getAddress());
+                            mMnbRecoveryRequests.get(hash).getSecond().remove(addrFrom);
                             // does it have newer lastPing?
                             if (mnb.lastPing.sigTime > mapSeenMasternodeBroadcast.get(hash).getSecond().lastPing.sigTime) {
                                 // simulate Check
@@ -497,6 +529,7 @@ public class MasternodeManager extends AbstractManager {
         if(mnb.checkOutpoint(nDos)) {
             add(mnb);
             context.masternodeSync.BumpAssetLastTime("CMasternodeMan::CheckMnbAndUpdateMasternodeList - new");
+            context.masternodeSync.addedAssetItem(MasternodeSync.Asset.MASTERNODE_LIST);
             // if it matches our Masternode privkey...
             if(context.fMasterNode && mnb.info.pubKeyMasternode == context.activeMasternode.pubKeyMasternode) {
                 mnb.nPoSeBanScore = -MASTERNODE_POSE_BAN_MAX_SCORE;
@@ -531,6 +564,11 @@ public class MasternodeManager extends AbstractManager {
             return;
         log.info("masternode--MNANNOUNCE -- Masternode announce, masternode="+ mnb.info.outpoint.toStringShort());
 
+        if(fBatchMnbs) {
+            queueMasternodeBroadcast(from, mnb);
+            return;
+        }
+
         Dos nDos = new Dos();
         if(checkMnbAndUpdateMasternodeList(from, mnb, nDos))
         {
@@ -542,6 +580,130 @@ public class MasternodeManager extends AbstractManager {
         }
     }
 
+    /**
+     * Sets whether incoming broadcasts are processed in batches, which is the default, or one by one as they arrive.
+     */
+    public void setMnbBatchingEnabled(boolean enabled) {
+        fBatchMnbs = enabled;
+    }
+
+    private ScheduledExecutorService getMnbExecutor() {
+        mnbBatchLock.lock();
+        try {
+            if (mnbExecutor == null)
+                mnbExecutor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Masternode broadcast batches"));
+            return mnbExecutor;
+        } finally {
+            mnbBatchLock.unlock();
+        }
+    }
+
+    private final Runnable processMnbBatch = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Pair<Peer, MasternodeBroadcast>> batch;
+            mnbBatchLock.lock();
+            try {
+                batch = vecPendingMnbs;
+                vecPendingMnbs = new ArrayList<Pair<Peer, MasternodeBroadcast>>();
+                fMnbBatchScheduled = false;
+            } finally {
+                mnbBatchLock.unlock();
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    processMasternodeBroadcasts(batch);
+                } catch (RuntimeException x) {
+                    log.error("Failed to process a batch of " + batch.size() + " masternode broadcasts", x);
+                }
+            }
+        }
+    };
+
+    // Adds the broadcast to the current batch, which is processed when it's full or when the batch window closes.
+    private void queueMasternodeBroadcast(Peer from, MasternodeBroadcast mnb) {
+        boolean fFull;
+        boolean fSchedule = false;
+        mnbBatchLock.lock();
+        try {
+            vecPendingMnbs.add(new Pair<Peer, MasternodeBroadcast>(from, mnb));
+            fFull = vecPendingMnbs.size() >= MNB_BATCH_SIZE;
+            if (!fFull && !fMnbBatchScheduled) {
+                fMnbBatchScheduled = true;
+                fSchedule = true;
+            }
+        } finally {
+            mnbBatchLock.unlock();
+        }
+        if (fFull)
+            getMnbExecutor().execute(processMnbBatch);
+        else if (fSchedule)
+            getMnbExecutor().schedule(processMnbBatch, MNB_BATCH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks and applies a batch of broadcasts. The signatures of the broadcasts that weren't seen yet are checked in
+     * parallel first, then all broadcasts are run through {@link #checkMnbAndUpdateMasternodeList} in order while
+     * the locks are held once for the whole batch.
+     */
+    void processMasternodeBroadcasts(List<Pair<Peer, MasternodeBroadcast>> batch) {
+        // the same broadcast often comes from several peers during the initial sync, check it once
+        LinkedHashMap<Sha256Hash, MasternodeBroadcast> mapToVerify = new LinkedHashMap<Sha256Hash, MasternodeBroadcast>();
+        for (Pair<Peer, MasternodeBroadcast> pair : batch) {
+            MasternodeBroadcast mnb = pair.getSecond();
+            Sha256Hash hash = mnb.getHash();
+            if (!mapToVerify.containsKey(hash))
+                mapToVerify.put(hash, mnb);
+        }
+        lock.lock();
+        try {
+            mapToVerify.keySet().removeAll(mapSeenMasternodeBroadcast.keySet());
+        } finally {
+            lock.unlock();
+        }
+
+        if (mapToVerify.size() > 1) {
+            final Context context = this.context;
+            List<Callable<Boolean>> checks = new ArrayList<Callable<Boolean>>(mapToVerify.size());
+            for (final MasternodeBroadcast mnb : mapToVerify.values()) {
+                checks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        Context.propagate(context);
+                        return mnb.checkSignature(new Dos());
+                    }
+                });
+            }
+            try {
+                mnbVerificationExecutor.invokeAll(checks);
+            } catch (InterruptedException x) {
+                // the signatures that weren't checked will be checked below
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        ReentrantLock pglock = context.peerGroup.getLock();
+        pglock.lock();
+        try {
+            lock.lock();
+            try {
+                for (Pair<Peer, MasternodeBroadcast> pair : batch) {
+                    checkMnbAndUpdateMasternodeList(pair.getFirst(), pair.getSecond(), new Dos());
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            pglock.unlock();
+        }
+        log.info("masternode--CMasternodeMan::ProcessMasternodeBroadcasts -- processed {} broadcasts, checked {} signatures, {}",
+                batch.size(), mapToVerify.size(), this);
+
+        if(fMasternodesAdded) {
+            notifyMasternodeUpdates();
+        }
+    }
+
     void processMasternodePing(Peer peer, MasternodePing mnp)
     {
         Sha256Hash hash = mnp.getHash();
@@ -848,36 +1010,26 @@ public class MasternodeManager extends AbstractManager {
     @Deprecated
     Masternode find(Script payee)
     {
-        lock.lock();
-        try {
-            Script payee2;
+        Script payee2;
 
-            for (Map.Entry<TransactionOutPoint, Masternode> mn : mapMasternodes.entrySet()) {
-                payee2 = ScriptBuilder.createOutputScript(mn.getValue().info.pubKeyCollateralAddress.getECKey());
+        for (Map.Entry<TransactionOutPoint, Masternode> mn : mapMasternodes.entrySet()) {
+            payee2 = ScriptBuilder.createOutputScript(mn.getValue().info.pubKeyCollateralAddress.getECKey());
 
-                if (payee2 == payee)
-                    return mn.getValue();
-            }
-            return null;
-        } finally {
-            lock.unlock();
+            if (payee2 == payee)
+                return mn.getValue();
         }
+        return null;
     }
 
     @Deprecated
     Masternode find(PublicKey pubKeyMasternode)
     {
-        lock.lock();
-        try {
-            for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet())
-            {
-                if (mne.getValue().info.pubKeyMasternode.equals(pubKeyMasternode))
-                    return mne.getValue();
-            }
-            return null;
-        } finally {
-            lock.unlock();
+        for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet())
+        {
+            if (mne.getValue().info.pubKeyMasternode.equals(pubKeyMasternode))
+                return mne.getValue();
         }
+        return null;
     }
 
     public boolean has(TransactionOutPoint outpoint)
@@ -891,15 +1043,10 @@ public class MasternodeManager extends AbstractManager {
         int count = 0;
         protocolVersion = protocolVersion == -1 ? context.masternodePayments.getMinMasternodePaymentsProto() : protocolVersion;
 
-        lock.lock();
-        try {
-            for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet()) {
-                mne.getValue().check();
-                if (mne.getValue().protocolVersion < protocolVersion || !mne.getValue().isEnabled()) continue;
-                count++;
-            }
-        } finally {
-            lock.unlock();
+        for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet()) {
+            mne.getValue().check();
+            if (mne.getValue().protocolVersion < protocolVersion || !mne.getValue().isEnabled()) continue;
+            count++;
         }
 
         return count;
@@ -910,15 +1057,10 @@ public class MasternodeManager extends AbstractManager {
         int count = 0;
         protocolVersion = protocolVersion == -1 ? context.masternodePayments.getMinMasternodePaymentsProto() : protocolVersion;
 
-        lock.lock();
-        try {
-            for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet()) {
-                mne.getValue().check();
-                if (mne.getValue().protocolVersion < protocolVersion) continue;
-                count++;
-            }
-        } finally {
-            lock.unlock();
+        for (Map.Entry<TransactionOutPoint, Masternode> mne : mapMasternodes.entrySet()) {
+            mne.getValue().check();
+            if (mne.getValue().protocolVersion < protocolVersion) continue;
+            count++;
         }
 
         return count;
@@ -1092,24 +1234,18 @@ public class MasternodeManager extends AbstractManager {
             return -2;
         }
 
-        lock.lock();
-        try {
-
-            ArrayList<Pair<Sha256Hash, Masternode>> vecMasternodeScores = new ArrayList<Pair<Sha256Hash, Masternode>>(mapMasternodes.size());
-            if (!getMasternodeScores(nBlockHash, vecMasternodeScores, minProtocol))
-                return -1;
+        ArrayList<Pair<Sha256Hash, Masternode>> vecMasternodeScores = new ArrayList<Pair<Sha256Hash, Masternode>>(mapMasternodes.size());
+        if (!getMasternodeScores(nBlockHash, vecMasternodeScores, minProtocol))
+            return -1;
 
-            rank = 0;
-            for (Pair<Sha256Hash, Masternode> scorePair : vecMasternodeScores) {
-                rank++;
-                if (scorePair.getSecond().info.outpoint == outpoint) {
-                    return rank;
-                }
+        rank = 0;
+        for (Pair<Sha256Hash, Masternode> scorePair : vecMasternodeScores) {
+            rank++;
+            if (scorePair.getSecond().info.outpoint == outpoint) {
+                return rank;
             }
-            return -1;
-        } finally {
-            lock.unlock();
         }
+        return -1;
     }
 
     public boolean getMasternodeRanks(ArrayList<Pair<Integer, Masternode>> vecMasternodeScoresRet, int nBlockHeight, int minProtocol)
@@ -1135,38 +1271,28 @@ public class MasternodeManager extends AbstractManager {
             return false;
         }
 
-        lock.lock();
-        try {
-
-            ArrayList<Pair<Sha256Hash, Masternode>> vecMasternodeScores = new ArrayList<Pair<Sha256Hash, Masternode>>(mapMasternodes.size());
-            if (!getMasternodeScores(nBlockHash, vecMasternodeScores, minProtocol))
-                return false;
+        ArrayList<Pair<Sha256Hash, Masternode>> vecMasternodeScores = new ArrayList<Pair<Sha256Hash, Masternode>>(mapMasternodes.size());
+        if (!getMasternodeScores(nBlockHash, vecMasternodeScores, minProtocol))
+            return false;
 
-            int rank = 0;
-            for (Pair<Sha256Hash, Masternode> scorePair : vecMasternodeScores) {
-                rank++;
-                vecMasternodeScoresRet.add(new Pair<Integer, Masternode>(rank, scorePair.getSecond()));
+        int rank = 0;
+        for (Pair<Sha256Hash, Masternode> scorePair : vecMasternodeScores) {
+            rank++;
+            vecMasternodeScoresRet.add(new Pair<Integer, Masternode>(rank, scorePair.getSecond()));
 
-            }
-        } finally {
-            lock.unlock();
         }
         return true;
     }
 
     void check()
     {
-        lock.lock();
-        try {
-            log.info("masternode--CMasternodeMan::Check -- nLastSentinelPingTime={}, IsWatchdogActive()={}", nLastSentinelPingTime, isSentinelPingActive());
+        log.info("masternode--CMasternodeMan::Check -- nLastSentinelPingTime={}, IsWatchdogActive()={}", nLastSentinelPingTime, isSentinelPingActive());
 
-            for (Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
-                Masternode mn = entry.getValue();
-                if(!mn.lock.isLocked()) // prevent deadlocks
-                    mn.check();
-            }
-        } finally {
-            lock.unlock();
+        // Masternode.check doesn't need our lock, so this doesn't hold up other threads
+        for (Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
+            Masternode mn = entry.getValue();
+            if(!mn.lock.isLocked()) // checked by another thread right now
+                mn.check();
         }
     }
     boolean isMnbRecoveryRequested(Sha256Hash hash) { return mMnbRecoveryRequests.containsKey(hash); }
@@ -1479,13 +1605,8 @@ public class MasternodeManager extends AbstractManager {
 
     public MasternodeInfo getMasternodeInfo(TransactionOutPoint outpoint)
     {
-        lock.lock();
-        try {
-            Masternode mn = find(outpoint);
-            return mn != null ? mn.getInfo() : null;
-        } finally {
-            lock.unlock();
-        }
+        Masternode mn = find(outpoint);
+        return mn != null ? mn.getInfo() : null;
     }
 
 
@@ -1496,31 +1617,19 @@ public class MasternodeManager extends AbstractManager {
 
     public MasternodeInfo getMasternodeInfo(PublicKey pubKeyMasternode)
     {
-        lock.lock();
-        try {
-
-            Masternode pMN = find(pubKeyMasternode);
-            return pMN != null ? pMN.getInfo() : null;
-        } finally {
-            lock.unlock();
-        }
+        Masternode pMN = find(pubKeyMasternode);
+        return pMN != null ? pMN.getInfo() : null;
     }
 
     public MasternodeInfo getMasternodeInfo(Script payee)
     {
-        lock.lock();
-        try {
-
-            for(Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
-                Script scriptCollateralAddress = ScriptBuilder.createOutputScript(new Address(params, entry.getValue().info.pubKeyCollateralAddress.getId()));
-                if (scriptCollateralAddress == payee) {
-                    return entry.getValue().getInfo();
-                }
+        for(Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
+            Script scriptCollateralAddress = ScriptBuilder.createOutputScript(new Address(params, entry.getValue().info.pubKeyCollateralAddress.getId()));
+            if (scriptCollateralAddress == payee) {
+                return entry.getValue().getInfo();
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
+        return null;
     }
 
     public boolean poSeBan(TransactionOutPoint outPoint)
@@ -1544,38 +1653,21 @@ public class MasternodeManager extends AbstractManager {
 
     public Masternode find(TransactionOutPoint outPoint)
     {
-        lock.lock();
-        try {
-            Masternode mn = mapMasternodes.get(outPoint);
-            return mn;
-        } finally {
-            lock.unlock();
-        }
+        return mapMasternodes.get(outPoint);
     }
 
     public Masternode find(MasternodeAddress address)
     {
-        lock.lock();
-        try {
-            for(Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
-                if(entry.getValue().info.address.equals(address))
-                    return entry.getValue();
-            }
-        } finally {
-            lock.unlock();
+        for(Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
+            if(entry.getValue().info.address.equals(address))
+                return entry.getValue();
         }
         return null;
     }
 
     public Masternode get(TransactionOutPoint outPoint)
     {
-        lock.lock();
-        try {
-            Masternode mn = mapMasternodes.get(outPoint);
-            return mn;
-        } finally {
-            lock.unlock();
-        }
+        return mapMasternodes.get(outPoint);
     }
 
 
@@ -1718,39 +1810,28 @@ public class MasternodeManager extends AbstractManager {
         if (!context.masternodeSync.isMasternodeListSynced())
             return false;
 
-        //AssertLockHeld(cs);
-        lock.lock();
-        try {
-
-
-            if (mapMasternodes.isEmpty())
-                return false;
-
-            // calculate scores
-            for (Map.Entry<TransactionOutPoint, Masternode> mnpair :mapMasternodes.entrySet()){
-                if (mnpair.getValue().protocolVersion >= nMinProtocol) {
-                    vecMasternodeScoresRet.add(new Pair<Sha256Hash, Masternode>(mnpair.getValue().calculateScore(nBlockHash), mnpair.getValue()));
-                }
+        // calculate scores
+        for (Map.Entry<TransactionOutPoint, Masternode> mnpair :mapMasternodes.entrySet()){
+            if (mnpair.getValue().protocolVersion >= nMinProtocol) {
+                vecMasternodeScoresRet.add(new Pair<Sha256Hash, Masternode>(mnpair.getValue().calculateScore(nBlockHash), mnpair.getValue()));
             }
+        }
 
-            //sort(vecMasternodeScoresRet.rbegin(), vecMasternodeScoresRet.rend(), CompareScoreMN());
-            Collections.sort(vecMasternodeScoresRet, Collections.reverseOrder(new CompareScoreMN()));
+        //sort(vecMasternodeScoresRet.rbegin(), vecMasternodeScoresRet.rend(), CompareScoreMN());
+        Collections.sort(vecMasternodeScoresRet, Collections.reverseOrder(new CompareScoreMN()));
 
-            return !vecMasternodeScoresRet.isEmpty();
-        } finally {
-            lock.unlock();
-        }
+        return !vecMasternodeScoresRet.isEmpty();
     }
 
-    class CompareConnections<T> implements Comparator<T>
+    // Orders the scheduled connections by address and port, so that the requests for one masternode are next to each other
+    static class CompareConnections implements Comparator<Pair<MasternodeAddress, Sha256Hash>>
     {
         @Override
-        public int compare(T o1, T o2) {
-            Pair<NetAddress, Sha256Hash> a = (Pair<NetAddress, Sha256Hash>)o1;
-            Pair<NetAddress, Sha256Hash> b = (Pair<NetAddress, Sha256Hash>)o2;
-            return a.getFirst().getAddr().hashCode() - b.getFirst().getAddr().hashCode();
+        public int compare(Pair<MasternodeAddress, Sha256Hash> a, Pair<MasternodeAddress, Sha256Hash> b) {
+            int result = UnsignedBytes.lexicographicalComparator().compare(a.getFirst().getAddr().getAddress(),
+                    b.getFirst().getAddr().getAddress());
+            return result != 0 ? result : Ints.compare(a.getFirst().getPort(), b.getFirst().getPort());
         }
-
     }
 
     Pair<MasternodeAddress, HashSet<Sha256Hash>> popScheduledMnbRequestConnection()
@@ -1766,14 +1847,14 @@ public class MasternodeManager extends AbstractManager {
 
             HashSet<Sha256Hash> setResult = new HashSet<Sha256Hash>();
 
-            Collections.sort(listScheduledMnbRequestConnections, new CompareConnections<Pair<MasternodeAddress, Sha256Hash>>());
+            Collections.sort(listScheduledMnbRequestConnections, new CompareConnections());
             Pair<MasternodeAddress, Sha256Hash> pairFront = listScheduledMnbRequestConnections.get(0);
 
             // squash hashes from requests with the same CService as the first one into setResult
             Iterator<Pair<MasternodeAddress, Sha256Hash>> it = listScheduledMnbRequestConnections.iterator();
             while (it.hasNext()) {
                 Pair<MasternodeAddress, Sha256Hash> entry = it.next();
-                if (pairFront.getFirst() == entry.getFirst()) {
+                if (pairFront.getFirst().equals(entry.getFirst())) {
                     setResult.add(entry.getSecond());
                     it.remove();
                 } else {
@@ -1788,6 +1869,76 @@ public class MasternodeManager extends AbstractManager {
         }
     }
 
+    /**
+     * Connects to the masternodes that {@link #checkAndRemove()} picked to ask for the broadcasts of masternodes that
+     * may need recovering, with up to {@link #MNB_RECOVERY_MAX_CONNECTIONS} connections open at the same time. Each
+     * connection is closed after {@link #MNB_RECOVERY_WAIT_SECONDS}, when the replies are counted.
+     */
+    public void processPendingMnbRequests()
+    {
+        while (nMnbRecoveryConnections.get() < MNB_RECOVERY_MAX_CONNECTIONS) {
+            Pair<MasternodeAddress, HashSet<Sha256Hash>> p = popScheduledMnbRequestConnection();
+            if (p.getSecond().isEmpty())
+                return;
+            connectForMnbRecovery(p.getFirst(), p.getSecond());
+        }
+    }
+
+    private void connectForMnbRecovery(final MasternodeAddress addr, final HashSet<Sha256Hash> setHashes)
+    {
+        // a connection of its own, so that the masternode doesn't end up downloading the chain or taking our filter
+        Peer peer = context.peerGroup.connectToTransient(new PeerAddress(params, addr.getSocketAddress()), MNB_RECOVERY_WAIT_SECONDS * 1000);
+        if (peer == null) {
+            log.info("masternode--CMasternodeMan::ProcessPendingMnbRequests -- can't connect to {}", addr);
+            return;
+        }
+        nMnbRecoveryConnections.incrementAndGet();
+        final AtomicBoolean fClosed = new AtomicBoolean();
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                if (fClosed.compareAndSet(false, true))
+                    nMnbRecoveryConnections.decrementAndGet();
+            }
+        });
+        Futures.addCallback(peer.getVersionHandshakeFuture(), new FutureCallback<Peer>() {
+            @Override
+            public void onSuccess(Peer peer) {
+                GetDataMessage getdata = new GetDataMessage(params);
+                lock.lock();
+                try {
+                    for (Sha256Hash hash : setHashes) {
+                        Pair<Long, MasternodeBroadcast> seen = mapSeenMasternodeBroadcast.get(hash);
+                        if (seen == null)
+                            continue;
+                        TransactionOutPoint outpoint = seen.getSecond().info.outpoint;
+                        if (!mWeAskedForMasternodeListEntry.containsKey(outpoint))
+                            mWeAskedForMasternodeListEntry.put(outpoint, new HashMap<MasternodeAddress, Long>());
+                        mWeAskedForMasternodeListEntry.get(outpoint).put(addr, Utils.currentTimeSeconds() + DSEG_UPDATE_SECONDS);
+                        getdata.addItem(new InventoryItem(InventoryItem.Type.MasternodeAnnounce, hash));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                log.info("masternode--CMasternodeMan::ProcessPendingMnbRequests -- asking {} for {} mnbs", addr, getdata.getItems().size());
+                if (!getdata.getItems().isEmpty())
+                    peer.sendMessage(getdata);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.info("masternode--CMasternodeMan::ProcessPendingMnbRequests -- failed to connect to {}: {}", addr, t.getMessage());
+            }
+        });
+        final Peer recoveryPeer = peer;
+        getMnbExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                recoveryPeer.close();
+            }
+        }, MNB_RECOVERY_WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
     /**
      * Called to notify CGovernanceManager that the masternode index has been updated.
      * Must be called while not holding the CMasternodeMan::cs mutex
@@ -2063,13 +2214,22 @@ public class MasternodeManager extends AbstractManager {
     }
 
     public List<Masternode> getMasternodes() {
+        return new ArrayList<Masternode>(mapMasternodes.values());
+    }
+
+    /**
+     * Returns a snapshot of the masternode list in a compact form, which takes a fraction of the memory of the
+     * {@link Masternode} objects. The manager itself still keeps the full objects, as it needs their pings,
+     * signatures and vote records to process messages; the table is for callers that keep or show the list.
+     */
+    public MasternodeTable getMasternodeTable() {
         lock.lock();
         try {
-            List<Masternode> masternodeList = new ArrayList<Masternode>(mapMasternodes.size());
-            for (Map.Entry<TransactionOutPoint, Masternode> entry : mapMasternodes.entrySet()) {
-                masternodeList.add(entry.getValue());
+            MasternodeTable table = new MasternodeTable(params, mapMasternodes.size());
+            for (Masternode mn : mapMasternodes.values()) {
+                table.put(mn);
             }
-            return masternodeList;
+            return table;
         } finally {
             lock.unlock();
         }
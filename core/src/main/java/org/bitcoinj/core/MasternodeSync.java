@@ -1,5 +1,6 @@
 package org.bitcoinj.core;
 
+import org.bitcoinj.evolution.SimplifiedMasternodeListManager;
 import org.bitcoinj.governance.GovernanceSyncMessage;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
@@ -7,11 +8,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static java.lang.Math.max;
@@ -45,6 +53,102 @@ public class MasternodeSync {
         SYNC_DMN_LIST;
     }
 
+    /**
+     * The data that is synced from the peers. The sporks, the deterministic masternode list and the asset of the
+     * current sync stage are requested at the same time, each from its own peers.
+     */
+    public enum Asset {
+        SPORKS,
+        MASTERNODE_LIST,
+        MASTERNODE_WINNERS,
+        GOVERNANCE_OBJECTS,
+        GOVERNANCE_VOTES,
+        DMN_LIST;
+    }
+
+    /**
+     * Progress of the sync of one {@link Asset}: how many peers were asked for it, how many of them reported that they
+     * sent all they have and how many new items arrived how fast.
+     */
+    public static class AssetProgress {
+        private final Asset asset;
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger replies = new AtomicInteger();
+        private final AtomicLong items = new AtomicLong();
+        private volatile long timeStarted;
+        private volatile long timeLastRequest;
+        private volatile long timeLastItem;
+        private volatile long timeFinished;
+
+        AssetProgress(Asset asset) {
+            this.asset = asset;
+        }
+
+        void reset() {
+            requests.set(0);
+            replies.set(0);
+            items.set(0);
+            timeStarted = 0;
+            timeLastRequest = 0;
+            timeLastItem = 0;
+            timeFinished = 0;
+        }
+
+        void start() {
+            if (timeStarted == 0)
+                timeStarted = Utils.currentTimeMillis();
+        }
+
+        void requested() {
+            start();
+            requests.incrementAndGet();
+            timeLastRequest = Utils.currentTimeMillis();
+        }
+
+        void replied() {
+            replies.incrementAndGet();
+        }
+
+        void received() {
+            start();
+            items.incrementAndGet();
+            timeLastItem = Utils.currentTimeMillis();
+        }
+
+        void finish() {
+            if (timeStarted != 0 && timeFinished == 0)
+                timeFinished = Utils.currentTimeMillis();
+        }
+
+        public Asset getAsset() { return asset; }
+        /** Returns the number of peers the asset was requested from. */
+        public int getRequests() { return requests.get(); }
+        /** Returns the number of peers that reported they sent all of the asset they have. */
+        public int getReplies() { return replies.get(); }
+        /** Returns the number of peers that were asked and did not report back yet. */
+        public int getPending() { return max(0, requests.get() - replies.get()); }
+        /** Returns the number of new items received, e.g. sporks, masternodes or votes. */
+        public long getItems() { return items.get(); }
+        public long getTimeStarted() { return timeStarted; }
+        public long getTimeLastRequest() { return timeLastRequest; }
+        public long getTimeLastItem() { return timeLastItem; }
+        public long getTimeFinished() { return timeFinished; }
+        public boolean isFinished() { return timeFinished != 0; }
+
+        /** Returns the items received per second from the start until the asset finished or the last item arrived. */
+        public double getItemsPerSecond() {
+            long end = timeFinished != 0 ? timeFinished : timeLastItem;
+            long elapsed = end - timeStarted;
+            return timeStarted != 0 && elapsed > 0 ? items.get() * 1000.0 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d items (%.1f/s) from %d of %d peers%s", asset, items.get(), getItemsPerSecond(),
+                    replies.get(), requests.get(), isFinished() ? ", finished" : "");
+        }
+    }
+
     public Set<SYNC_FLAGS> syncFlags;
     public static final EnumSet<SYNC_FLAGS> SYNC_ALL_OBJECTS = EnumSet.allOf(SYNC_FLAGS.class);
 
@@ -52,11 +156,15 @@ public class MasternodeSync {
     static final int MASTERNODE_SYNC_TIMEOUT_SECONDS = 30; // our blocks are 2.5 minutes so 30 seconds should be fine -- changed to 300 for test purposes (java)
 
     static final int MASTERNODE_SYNC_ENOUGH_PEERS    = 6;
+    // how many peers are asked for an asset at the same time, one more is added every tick while they are busy
+    static final int MASTERNODE_SYNC_PARALLEL_PEERS  = 3;
+    // an asset is complete when this many of the peers asked reported they sent it all and nothing new arrives for a while
+    static final int MASTERNODE_SYNC_ENOUGH_REPLIES  = 2;
 
     public static final int  MASTERNODE_SYNC_TIMEOUT      =    30;
 
     long nTimeAssetSyncStarted;
-    long nTimeLastBumped;
+    volatile long nTimeLastBumped;
     long nTimeLastFailure;
 
     public HashMap<Sha256Hash, Integer> mapSeenSyncMNB;
@@ -81,9 +189,17 @@ public class MasternodeSync {
     int countBudgetItemFin;
 
     // Count peers we've requested the list from
-    int RequestedMasternodeAssets;
+    volatile int RequestedMasternodeAssets;
     int RequestedMasternodeAttempt;
 
+    // Guards the sync state, the requests are sent from processTick and the replies arrive on the peer threads.
+    private final ReentrantLock lock = Threading.lock("masternodesync");
+    private final EnumMap<Asset, AssetProgress> progress;
+    // the peer asked for the deterministic masternode list, the other assets are requested from other peers
+    Peer smlPeer;
+    // whether the chain head was the best header the last time the tip moved
+    private volatile boolean fReachedBestHeader;
+
     // Time when current masternode asset sync started
     long nAssetSyncStarted;
 
@@ -104,6 +220,9 @@ public class MasternodeSync {
         this.mapSeenSyncMNB = new HashMap<Sha256Hash, Integer>();
         this.mapSeenSyncMNW = new HashMap<Sha256Hash, Integer>();
         this.eventListeners = new CopyOnWriteArrayList<ListenerRegistration<MasternodeSyncListener>>();
+        this.progress = new EnumMap<Asset, AssetProgress>(Asset.class);
+        for (Asset asset : Asset.values())
+            progress.put(asset, new AssetProgress(asset));
         if(context.isLiteMode())
             this.syncFlags = EnumSet.of(SYNC_DMN_LIST);
         else {
@@ -117,17 +236,49 @@ public class MasternodeSync {
 
     void fail()
     {
-        nTimeLastFailure = Utils.currentTimeSeconds();
-        RequestedMasternodeAssets = MASTERNODE_SYNC_FAILED;
+        lock.lock();
+        try {
+            nTimeLastFailure = Utils.currentTimeSeconds();
+            RequestedMasternodeAssets = MASTERNODE_SYNC_FAILED;
+        } finally {
+            lock.unlock();
+        }
     }
 
     void reset()
     {
-        RequestedMasternodeAssets = MASTERNODE_SYNC_INITIAL;
-        RequestedMasternodeAttempt = 0;
-        nTimeAssetSyncStarted =  Utils.currentTimeSeconds();
-        nTimeLastBumped =  Utils.currentTimeSeconds();
-        nTimeLastFailure = 0;
+        lock.lock();
+        try {
+            RequestedMasternodeAssets = MASTERNODE_SYNC_INITIAL;
+            RequestedMasternodeAttempt = 0;
+            nTimeAssetSyncStarted =  Utils.currentTimeSeconds();
+            nTimeLastBumped =  Utils.currentTimeSeconds();
+            nTimeLastFailure = 0;
+            nTimeNoObjectsLeft = 0;
+            smlPeer = null;
+            fReachedBestHeader = false;
+            sumMasternodeList = sumMasternodeWinner = 0;
+            countMasternodeList = countMasternodeWinner = 0;
+            for (AssetProgress assetProgress : progress.values())
+                assetProgress.reset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the progress of the sync of the given asset. */
+    public AssetProgress getProgress(Asset asset) {
+        return progress.get(asset);
+    }
+
+    /** Returns the progress of the sync of all assets. */
+    public Collection<AssetProgress> getProgress() {
+        return Collections.unmodifiableCollection(progress.values());
+    }
+
+    /** Counts a new item of the given asset, called when e.g. a new spork, masternode or vote was accepted. */
+    public void addedAssetItem(Asset asset) {
+        progress.get(asset).received();
     }
 
     public void BumpAssetLastTime(@Nullable String strFuncName)
@@ -202,73 +353,89 @@ public class MasternodeSync {
 
     void switchToNextAsset()
     {
-        switch(RequestedMasternodeAssets)
-        {
-            case MASTERNODE_SYNC_FAILED:
-                log.info("Can't switch to next asset from failed, should use Reset() first!");
-                break;
-            case(MASTERNODE_SYNC_INITIAL):
-                clearFulfilledRequest();
-                RequestedMasternodeAssets = MASTERNODE_SYNC_WAITING;
-                log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
-                break;
-            case(MASTERNODE_SYNC_WAITING):
-                clearFulfilledRequest();
-                log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
-                if(syncFlags.contains(SYNC_FLAGS.SYNC_MASTERNODE_LIST))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_LIST;
-                else if(syncFlags.contains(SYNC_FLAGS.SYNC_MNW))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_MNW;
-                else if(syncFlags.contains(SYNC_GOVERNANCE))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
-                else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
-
-                //If we are in lite mode and allowing InstantX, then only sync the sporks
-                if(context.isLiteMode() && context.allowInstantXinLiteMode()) {
+        lock.lock();
+        try {
+            Asset completed = getAsset(RequestedMasternodeAssets);
+            if(completed != null)
+                progress.get(completed).finish();
+            switch(RequestedMasternodeAssets)
+            {
+                case MASTERNODE_SYNC_FAILED:
+                    log.info("Can't switch to next asset from failed, should use Reset() first!");
+                    break;
+                case(MASTERNODE_SYNC_INITIAL):
+                    clearFulfilledRequest();
+                    RequestedMasternodeAssets = MASTERNODE_SYNC_WAITING;
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
+                    break;
+                case(MASTERNODE_SYNC_WAITING):
+                    clearFulfilledRequest();
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
+                    if(syncFlags.contains(SYNC_FLAGS.SYNC_MASTERNODE_LIST))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_LIST;
+                    else if(syncFlags.contains(SYNC_FLAGS.SYNC_MNW))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_MNW;
+                    else if(syncFlags.contains(SYNC_GOVERNANCE))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
+                    else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
+
+                    //If we are in lite mode and allowing InstantX, then only sync the sporks
+                    if(context.isLiteMode() && context.allowInstantXinLiteMode()) {
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
+                    }
+                    break;
+                case(MASTERNODE_SYNC_LIST):
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
+
+                    if(syncFlags.contains(SYNC_FLAGS.SYNC_MNW))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_MNW;
+                    else if(syncFlags.contains(SYNC_GOVERNANCE))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
+                    else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
+                    //RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;//MASTERNODE_SYNC_MNW;
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
+                    break;
+                case(MASTERNODE_SYNC_MNW):
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
+                    //RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
+                    if(syncFlags.contains(SYNC_GOVERNANCE))
+                        RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
+                    else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
+                    break;
+                case(MASTERNODE_SYNC_GOVERNANCE):
+                    log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
                     RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                }
-                break;
-            case(MASTERNODE_SYNC_LIST):
-                log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
-
-                if(syncFlags.contains(SYNC_FLAGS.SYNC_MNW))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_MNW;
-                else if(syncFlags.contains(SYNC_GOVERNANCE))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
-                else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                //RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;//MASTERNODE_SYNC_MNW;
-                log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
-                break;
-            case(MASTERNODE_SYNC_MNW):
-                log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
-                //RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
-                if(syncFlags.contains(SYNC_GOVERNANCE))
-                    RequestedMasternodeAssets = MASTERNODE_SYNC_GOVERNANCE;
-                else RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                log.info("CMasternodeSync::SwitchToNextAsset -- Starting "+ getAssetName());
-                break;
-            case(MASTERNODE_SYNC_GOVERNANCE):
-                log.info("CMasternodeSync::SwitchToNextAsset -- Completed "+getAssetName()+" in " + (Utils.currentTimeSeconds() - nTimeAssetSyncStarted));
-                RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                //uiInterface.NotifyAdditionalDataSyncProgressChanged(1);
-                //try to activate our masternode if possible
-                //context.activeMasternode.manageState(connman);
+                    //uiInterface.NotifyAdditionalDataSyncProgressChanged(1);
+                    //try to activate our masternode if possible
+                    //context.activeMasternode.manageState(connman);
 
-                // TODO: Find out whether we can just use LOCK instead of:
-                // TRY_LOCK(cs_vNodes, lockRecv);
-                // if(lockRecv) { ... }
+                    // TODO: Find out whether we can just use LOCK instead of:
+                    // TRY_LOCK(cs_vNodes, lockRecv);
+                    // if(lockRecv) { ... }
 
-                //connman.ForEachNode(CConnman::AllNodes, [](CNode* pnode) {
-                //netfulfilledman.AddFulfilledRequest(pnode->addr, "full-sync");
-            log.info("CMasternodeSync::SwitchToNextAsset -- Sync has finished");
+                    //connman.ForEachNode(CConnman::AllNodes, [](CNode* pnode) {
+                    //netfulfilledman.AddFulfilledRequest(pnode->addr, "full-sync");
+                log.info("CMasternodeSync::SwitchToNextAsset -- Sync has finished");
 
-            break;
+                break;
+            }
+            RequestedMasternodeAttempt = 0;
+            nTimeAssetSyncStarted = Utils.currentTimeSeconds();
+            BumpAssetLastTime("CMasternodeSync::SwitchToNextAsset");
+            queueOnSyncStatusChanged(RequestedMasternodeAssets, 1.0);
+            Asset started = getAsset(RequestedMasternodeAssets);
+            if(started != null)
+                progress.get(started).start();
+            if(isSynced()) {
+                for (AssetProgress assetProgress : progress.values())
+                    assetProgress.finish();
+                log.info("CMasternodeSync::SwitchToNextAsset -- " + toString());
+            }
+        } finally {
+            lock.unlock();
         }
-        RequestedMasternodeAttempt = 0;
-        nTimeAssetSyncStarted = Utils.currentTimeSeconds();
-        BumpAssetLastTime("CMasternodeSync::SwitchToNextAsset");
-        queueOnSyncStatusChanged(RequestedMasternodeAssets, 1.0);
     }
 
     public int getSyncStatusInt()
@@ -305,13 +472,63 @@ public class MasternodeSync {
     }
 
 
+    // Returns the asset that is synced in the given sync stage or reported by a SyncStatusCount with the given id.
+    @Nullable
+    static Asset getAsset(int nItemId)
+    {
+        switch(nItemId)
+        {
+            case MASTERNODE_SYNC_LIST:          return Asset.MASTERNODE_LIST;
+            case MASTERNODE_SYNC_MNW:           return Asset.MASTERNODE_WINNERS;
+            case MASTERNODE_SYNC_GOVERNANCE:
+            case MASTERNODE_SYNC_GOVOBJ:        return Asset.GOVERNANCE_OBJECTS;
+            case MASTERNODE_SYNC_GOVOBJ_VOTE:   return Asset.GOVERNANCE_VOTES;
+            default:                            return null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("MasternodeSync: " + getAssetName());
+        for (AssetProgress assetProgress : progress.values())
+            builder.append(", ").append(assetProgress);
+        return builder.toString();
+    }
+
     void processSyncStatusCount(Peer peer, SyncStatusCount ssc)
     {
         //do not care about stats if sync process finished or failed
         if(isSynced() || isFailed()) return;
 
-
         log.info("SYNCSTATUSCOUNT -- got inventory count: nItemID="+ssc.itemId+"  nCount="+ssc.count+"  peer="+peer);
+
+        // the peer sent all it has, the next tick moves on once enough peers did so and nothing new arrives
+        Asset asset = getAsset(ssc.itemId);
+        if(asset == null)
+            return;
+        progress.get(asset).replied();
+
+        lock.lock();
+        try {
+            if(ssc.itemId == MASTERNODE_SYNC_LIST) {
+                sumMasternodeList += ssc.count;
+                countMasternodeList++;
+            } else if(ssc.itemId == MASTERNODE_SYNC_MNW) {
+                sumMasternodeWinner += ssc.count;
+                countMasternodeWinner++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if enough of the peers asked for the asset reported they sent all they have.
+    private boolean hasEnoughReplies(Asset asset)
+    {
+        AssetProgress assetProgress = progress.get(asset);
+        return assetProgress.getRequests() > 0 &&
+                assetProgress.getReplies() >= Math.min(MASTERNODE_SYNC_ENOUGH_REPLIES, assetProgress.getRequests());
     }
 
     void clearFulfilledRequest()
@@ -343,82 +560,100 @@ public class MasternodeSync {
         }
     }
 
-    static int tick = 0;
-    static long nTimeLastProcess = Utils.currentTimeSeconds();
-    static int nLastTick = 0;
-    static int nLastVotes = 0;
-    static long nTimeNoObjectsLeft = 0;
+    int tick = 0;
+    long nTimeLastProcess = Utils.currentTimeSeconds();
+    long nTimeLastVoteCheck = 0;
+    long nLastVotes = 0;
+    long nTimeNoObjectsLeft = 0;
 
+    /**
+     * Moves the sync along, called every second. The replies of the peers are counted as they arrive, this checks
+     * whether an asset is complete or timed out and asks more peers for the assets that are needed now. The sporks,
+     * the deterministic masternode list and the asset of the current stage are requested from different peers at
+     * the same time.
+     */
     public void processTick()
     {
+        long nNow = Utils.currentTimeSeconds();
+        int nRequestedMasternodeAssets;
 
-        if(tick++ % MASTERNODE_SYNC_TICK_SECONDS != 0) return;
-
-        // reset the sync process if the last call to this function was more than 60 minutes ago (client was in sleep mode)
-
-        if(Utils.currentTimeSeconds() - nTimeLastProcess > 60*60) {
-            log.info("CMasternodeSync::HasSyncFailures -- WARNING: no actions for too long, restarting sync...");
-            reset();
-            switchToNextAsset();
-            nTimeLastProcess = Utils.currentTimeSeconds();
-            return;
-        }
-
-        nTimeLastProcess = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            tick++;
 
-        // reset sync status in case of any other sync failure
-        if(isFailed()) {
-            if(nTimeLastFailure + (1*60) < Utils.currentTimeSeconds()) { // 1 minute cooldown after failed sync
-                log.info("CMasternodeSync::HasSyncFailures -- WARNING: failed to sync, trying again...");
+            // reset the sync process if the last call to this function was more than 60 minutes ago (client was in sleep mode)
+            if(nNow - nTimeLastProcess > 60*60) {
+                log.info("CMasternodeSync::HasSyncFailures -- WARNING: no actions for too long, restarting sync...");
                 reset();
                 switchToNextAsset();
+                nTimeLastProcess = nNow;
+                return;
             }
-            return;
+
+            nTimeLastProcess = nNow;
+
+            // reset sync status in case of any other sync failure
+            if(isFailed()) {
+                if(nTimeLastFailure + (1*60) < nNow) { // 1 minute cooldown after failed sync
+                    log.info("CMasternodeSync::HasSyncFailures -- WARNING: failed to sync, trying again...");
+                    reset();
+                    switchToNextAsset();
+                }
+                return;
+            }
+
+            if(!isSynced() && context.peerGroup != null)
+                requestAssets(nNow);
+
+            nRequestedMasternodeAssets = RequestedMasternodeAssets;
+        } finally {
+            lock.unlock();
         }
 
-        // gradually request the rest of the votes after sync finished
-        if(isSynced()) {
+        // The votes are asked for object by object from all peers, without holding our lock as this takes the
+        // governance lock, which is held when the governance manager reports new objects and votes.
+        if(nRequestedMasternodeAssets == MASTERNODE_SYNC_GOVERNANCE) {
+            int nObjsLeftToAsk = context.governanceManager.requestGovernanceObjectVotes();
+            lock.lock();
+            try {
+                checkGovernanceSynced(nObjsLeftToAsk, nNow);
+            } finally {
+                lock.unlock();
+            }
+        } else if(nRequestedMasternodeAssets == MASTERNODE_SYNC_FINISHED && tick % MASTERNODE_SYNC_TICK_SECONDS == 0) {
+            // gradually request the rest of the votes after sync finished
             context.governanceManager.requestGovernanceObjectVotes();
-            return;
         }
+    }
 
-        //queueOnSyncStatusChanged(RequestedMasternodeAssets, nSyncProgress);
-
-        if(context.peerGroup == null)
-            return;
-
+    // Sends the requests of this tick, must be called with the lock held.
+    private void requestAssets(long nNow)
+    {
         ReentrantLock nodeLock = context.peerGroup.getLock();
 
         if(!nodeLock.tryLock())
             return;
 
         try {
+            requestAssets(nNow, context.peerGroup.getConnectedPeers());
+        } finally {
+            nodeLock.unlock();
+        }
+    }
 
-            //BOOST_FOREACH(CNode* pnode, vNodes)
-            for (Peer pnode : context.peerGroup.getConnectedPeers()) {
+    // Sends the requests of this tick to the given connected peers.
+    void requestAssets(long nNow, List<Peer> connectedPeers)
+    {
+        lock.lock();
+        try {
+            List<Peer> peers = new ArrayList<Peer>();
+            for (Peer pnode : connectedPeers) {
                 // Don't try to sync any data from outbound "masternode" connections -
                 // they are temporary and should be considered unreliable for a sync process.
                 // Inbound connection this early is most likely a "masternode" connection
                 // initiated from another node, so skip it too.
                 //if(pnode->fMasternode || (fMasterNode && pnode->fInbound)) continue;
 
-                // QUICK MODE (REGTEST ONLY!)
-                if (context.getParams().getId().equals(NetworkParameters.ID_REGTEST)) {
-                    if (RequestedMasternodeAttempt <= 2) {
-                        pnode.sendMessage(new GetSporksMessage(context.getParams())); //get current network sporks
-                    } else if (RequestedMasternodeAttempt < 4) {
-                        context.masternodeManager.dsegUpdate(pnode);
-                    } else if (RequestedMasternodeAttempt < 6) {
-                        int nMnCount = context.masternodeManager.countEnabled();
-                        pnode.sendMessage(new GetMasternodePaymentRequestSyncMessage(context.getParams(), nMnCount)); //sync payees
-                        sendGovernanceSyncRequest(pnode);
-                    } else {
-                        RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
-                    }
-                    RequestedMasternodeAttempt++;
-                    return;
-                }
-
                 // NORMAL NETWORK MODE - TESTNET/MAINNET
                 if (pnode.hasFulfilledRequest("full-sync")) {
                     // We already fully synced from this node recently,
@@ -427,183 +662,253 @@ public class MasternodeSync {
                     //log.info("CMasternodeSync::ProcessTick -- disconnecting from recently synced peer " + pnode.getAddress());
                     continue;
                 }
+                peers.add(pnode);
+            }
+            if (peers.isEmpty())
+                return;
 
-                // SPORK : ALWAYS ASK FOR SPORKS AS WE SYNC (we skip this mode now)
-                if (!pnode.hasFulfilledRequest("spork-sync")) {
-                    pnode.fulfilledRequest("spork-sync");
-
+            // QUICK MODE (REGTEST ONLY!)
+            if (context.getParams().getId().equals(NetworkParameters.ID_REGTEST)) {
+                Peer pnode = peers.get(0);
+                if (RequestedMasternodeAttempt <= 2) {
                     pnode.sendMessage(new GetSporksMessage(context.getParams())); //get current network sporks
+                } else if (RequestedMasternodeAttempt < 4) {
+                    context.masternodeManager.dsegUpdate(pnode);
+                } else if (RequestedMasternodeAttempt < 6) {
+                    int nMnCount = context.masternodeManager.countEnabled();
+                    pnode.sendMessage(new GetMasternodePaymentRequestSyncMessage(context.getParams(), nMnCount)); //sync payees
+                    sendGovernanceSyncRequest(pnode);
+                } else {
+                    RequestedMasternodeAssets = MASTERNODE_SYNC_FINISHED;
                 }
+                RequestedMasternodeAttempt++;
+                return;
+            }
 
-                // INITIAL TIMEOUT
-
-                if (RequestedMasternodeAssets == MASTERNODE_SYNC_WAITING) {
-                    if (Utils.currentTimeSeconds() - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
-                        // At this point we know that:
-                        // a) there are peers (because we are looping on at least one of them);
-                        // b) we waited for at least MASTERNODE_SYNC_TIMEOUT_SECONDS since we reached
-                        //    the headers tip the last time (i.e. since we switched from
-                        //     MASTERNODE_SYNC_INITIAL to MASTERNODE_SYNC_WAITING and bumped time);
-                        // c) there were no blocks (UpdatedBlockTip, NotifyHeaderTip) or headers (AcceptedBlockHeader)
-                        //    for at least MASTERNODE_SYNC_TIMEOUT_SECONDS.
-                        // We must be at the tip already, let's move to the next asset.
-                        switchToNextAsset();
-                    }
+            // SPORK : ALWAYS ASK FOR SPORKS AS WE SYNC, every peer is asked once
+            for (Peer pnode : peers) {
+                if (pnode.hasFulfilledRequest("spork-sync"))
+                    continue;
+                pnode.fulfilledRequest("spork-sync");
+                progress.get(Asset.SPORKS).requested();
+
+                pnode.sendMessage(new GetSporksMessage(context.getParams())); //get current network sporks
+            }
+
+            // INITIAL TIMEOUT
+
+            if (RequestedMasternodeAssets == MASTERNODE_SYNC_WAITING) {
+                if (nNow - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
+                    // At this point we know that:
+                    // a) there are peers (because we are looping on at least one of them);
+                    // b) we waited for at least MASTERNODE_SYNC_TIMEOUT_SECONDS since we reached
+                    //    the headers tip the last time (i.e. since we switched from
+                    //     MASTERNODE_SYNC_INITIAL to MASTERNODE_SYNC_WAITING and bumped time);
+                    // c) there were no blocks (UpdatedBlockTip, NotifyHeaderTip) or headers (AcceptedBlockHeader)
+                    //    for at least MASTERNODE_SYNC_TIMEOUT_SECONDS.
+                    // We must be at the tip already, let's move to the next asset.
+                    switchToNextAsset();
                 }
-                // MNLIST : SYNC MASTERNODE LIST FROM OTHER CONNECTED CLIENTS
-
-                if (RequestedMasternodeAssets == MASTERNODE_SYNC_LIST) {
-                    log.info("masternode--CMasternodeSync::ProcessTick -- nTick " + tick +
-                            "nRequestedMasternodeAssets " + RequestedMasternodeAssets +
-                            " nTimeLastBumped " + nTimeLastBumped +
-                            " GetTime() " + Utils.currentTimeSeconds() +
-                            " diff " + (Utils.currentTimeSeconds() - nTimeLastBumped));
-
-                    if (Utils.currentTimeSeconds() - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
-                        log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- timeout");
-                        if (RequestedMasternodeAttempt == 0) {
-                            log.info("CMasternodeSync::ProcessTick -- ERROR: failed to sync %s\n", getAssetName());
-                            // there is no way we can continue without masternode list, fail here and try later
-                            fail();
-                            return;
-                        }
-                        switchToNextAsset();
+            }
+            if (!isBlockchainSynced() || isSynced())
+                return;
+
+            // DMNLIST : SYNC THE DETERMINISTIC MASTERNODE LIST FROM A PEER OF ITS OWN
+
+            requestDeterministicList(peers);
+            if (smlPeer != null && peers.size() > 1)
+                peers.remove(smlPeer);
+
+            // MNLIST : SYNC MASTERNODE LIST FROM OTHER CONNECTED CLIENTS
+
+            if (RequestedMasternodeAssets == MASTERNODE_SYNC_LIST) {
+                log.info("masternode--CMasternodeSync::ProcessTick -- nTick " + tick +
+                        " nRequestedMasternodeAssets " + RequestedMasternodeAssets +
+                        " nTimeLastBumped " + nTimeLastBumped +
+                        " GetTime() " + nNow +
+                        " diff " + (nNow - nTimeLastBumped));
+
+                if (nNow - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
+                    log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- timeout");
+                    if (RequestedMasternodeAttempt == 0) {
+                        log.info("CMasternodeSync::ProcessTick -- ERROR: failed to sync " + getAssetName());
+                        // there is no way we can continue without masternode list, fail here and try later
+                        fail();
                         return;
                     }
-
-                    // only request once from each peer
-                    if (pnode.hasFulfilledRequest("masternode-list-sync")) continue;
-                    pnode.fulfilledRequest("masternode-list-sync");
-
-                    if (pnode.getVersionMessage().clientVersion < context.masternodePayments.getMinMasternodePaymentsProto())
-                        continue;
-
-                    RequestedMasternodeAttempt++;
-
-                    context.masternodeManager.dsegUpdate(pnode);
-
-                    return; //this will cause each peer to get one request each six seconds for the various assets we need
-
+                    switchToNextAsset();
+                } else if (hasEnoughReplies(Asset.MASTERNODE_LIST) && nNow - nTimeLastBumped > 1) {
+                    log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- got the list from enough peers");
+                    switchToNextAsset();
+                } else {
+                    for (Peer pnode : choosePeers(peers, Asset.MASTERNODE_LIST, "masternode-list-sync",
+                            context.masternodePayments.getMinMasternodePaymentsProto())) {
+                        RequestedMasternodeAttempt++;
+                        context.masternodeManager.dsegUpdate(pnode);
+                    }
                 }
+            }
 
-                // MNW : SYNC MASTERNODE WINNERS FROM OTHER CONNECTED CLIENTS
-
-                if (RequestedMasternodeAssets == MASTERNODE_SYNC_MNW) {
-                    log.info("mnpayments--CMasternodeSync::ProcessTick -- nTick " + tick +
-                            "nRequestedMasternodeAssets " + RequestedMasternodeAssets +
-                            " nTimeLastBumped " + nTimeLastBumped +
-                            " GetTime() %lld" + Utils.currentTimeSeconds() +
-                            " diff \n" + (Utils.currentTimeSeconds() - nTimeLastBumped));
-
-                    // check for timeout first
-                    // This might take a lot longer than MASTERNODE_SYNC_TIMEOUT_SECONDS due to new blocks,
-                    // but that should be OK and it should timeout eventually.
-                    if (Utils.currentTimeSeconds() - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
-                        log.info("CMasternodeSync::ProcessTick -- nTick " + tick + " nRequestedMasternodeAssets " + RequestedMasternodeAssets + " -- timeout");
-                        if (RequestedMasternodeAttempt == 0) {
-                            log.info("CMasternodeSync::ProcessTick -- ERROR: failed to sync " + getAssetName());
-                            // probably not a good idea to proceed without winner list
-                            fail();
-                            return;
-                        }
-                        switchToNextAsset();
+            // MNW : SYNC MASTERNODE WINNERS FROM OTHER CONNECTED CLIENTS
+
+            if (RequestedMasternodeAssets == MASTERNODE_SYNC_MNW) {
+                log.info("mnpayments--CMasternodeSync::ProcessTick -- nTick " + tick +
+                        " nRequestedMasternodeAssets " + RequestedMasternodeAssets +
+                        " nTimeLastBumped " + nTimeLastBumped +
+                        " GetTime() " + nNow +
+                        " diff " + (nNow - nTimeLastBumped));
+
+                // check for timeout first
+                // This might take a lot longer than MASTERNODE_SYNC_TIMEOUT_SECONDS due to new blocks,
+                // but that should be OK and it should timeout eventually.
+                if (nNow - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
+                    log.info("CMasternodeSync::ProcessTick -- nTick " + tick + " nRequestedMasternodeAssets " + RequestedMasternodeAssets + " -- timeout");
+                    if (RequestedMasternodeAttempt == 0) {
+                        log.info("CMasternodeSync::ProcessTick -- ERROR: failed to sync " + getAssetName());
+                        // probably not a good idea to proceed without winner list
+                        fail();
                         return;
                     }
-
+                    switchToNextAsset();
+                } else if (RequestedMasternodeAttempt > 1 && context.masternodePayments.isEnoughData()) {
                     // check for data
                     // if mnpayments already has enough blocks and votes, switch to the next asset
                     // try to fetch data from at least two peers though
-                    if (RequestedMasternodeAttempt > 1 && context.masternodePayments.isEnoughData()) {
-                        log.info("CMasternodeSync::ProcessTick -- nTick " + tick + " nRequestedMasternodeAssets " + RequestedMasternodeAssets + " -- found enough data");
-                        switchToNextAsset();
-                        return;
+                    log.info("CMasternodeSync::ProcessTick -- nTick " + tick + " nRequestedMasternodeAssets " + RequestedMasternodeAssets + " -- found enough data");
+                    switchToNextAsset();
+                } else {
+                    for (Peer pnode : choosePeers(peers, Asset.MASTERNODE_WINNERS, "masternode-payment-sync",
+                            context.masternodePayments.getMinMasternodePaymentsProto())) {
+                        RequestedMasternodeAttempt++;
+                        // ask node for all payment votes it has (new nodes will only return votes for future payments)
+                        pnode.sendMessage(new GetMasternodePaymentRequestSyncMessage(context.getParams()));
                     }
+                }
+            }
 
-                    // only request once from each peer
-                    if (pnode.hasFulfilledRequest("masternode-payment-sync")) continue;
-                    pnode.fulfilledRequest("masternode-payment-sync");
+            // GOVOBJ : SYNC GOVERNANCE ITEMS FROM OUR PEERS, the votes are requested by processTick
+
+            if (RequestedMasternodeAssets == MASTERNODE_SYNC_GOVERNANCE) {
+                log.info("gobject--CMasternodeSync::ProcessTick -- nTick " + tick +
+                        " nRequestedMasternodeAssets " + RequestedMasternodeAssets +
+                        " nTimeLastBumped " + nTimeLastBumped +
+                        " GetTime() " + nNow +
+                        " diff " + (nNow - nTimeLastBumped));
+
+                // check for timeout first
+                if (nNow - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
+                    log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- timeout");
+                    if (RequestedMasternodeAttempt == 0) {
+                        log.info("CMasternodeSync::ProcessTick -- WARNING: failed to sync " + getAssetName());
+                        // it's kind of ok to skip this for now, hopefully we'll catch up later?
+                    }
+                    switchToNextAsset();
+                } else {
+                    for (Peer pnode : choosePeers(peers, Asset.GOVERNANCE_OBJECTS, "governance-sync", 70208/*MIN_GOVERNANCE_PEER_PROTO_VERSION*/)) {
+                        RequestedMasternodeAttempt++;
+                        sendGovernanceSyncRequest(pnode);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                    if (pnode.getVersionMessage().clientVersion < context.masternodePayments.getMinMasternodePaymentsProto())
-                        continue;
-                    RequestedMasternodeAttempt++;
+    /**
+     * Returns the peers to ask for the given asset now, each peer is asked once. Up to
+     * {@link #MASTERNODE_SYNC_PARALLEL_PEERS} peers are asked at the same time and another one every
+     * {@link #MASTERNODE_SYNC_TICK_SECONDS} while they did not report back.
+     */
+    private List<Peer> choosePeers(List<Peer> peers, Asset asset, String strRequest, int nMinProtocolVersion)
+    {
+        AssetProgress assetProgress = progress.get(asset);
+        int nSlots = MASTERNODE_SYNC_PARALLEL_PEERS - assetProgress.getPending();
+        if (nSlots <= 0 && Utils.currentTimeMillis() - assetProgress.getTimeLastRequest() >= MASTERNODE_SYNC_TICK_SECONDS * 1000)
+            nSlots = 1;
+
+        List<Peer> chosen = new ArrayList<Peer>();
+        for (Peer pnode : peers) {
+            if (chosen.size() >= nSlots)
+                break;
+            // only request once from each peer
+            if (pnode.hasFulfilledRequest(strRequest))
+                continue;
+            pnode.fulfilledRequest(strRequest);
 
-                    // ask node for all payment votes it has (new nodes will only return votes for future payments)
-                    //connman.PushMessage(pnode, NetMsgType::MASTERNODEPAYMENTSYNC, mnpayments.GetStorageLimit());
-                    pnode.sendMessage(new GetMasternodePaymentRequestSyncMessage(context.getParams()));
-                    // ask node for missing pieces only (old nodes will not be asked)
-                    //mnpayments.RequestLowDataPaymentBlocks(pnode, connman);
+            if (pnode.getVersionMessage().clientVersion < nMinProtocolVersion)
+                continue;
 
-                    return; //this will cause each peer to get one request each six seconds for the various assets we need                }
+            assetProgress.requested();
+            chosen.add(pnode);
+        }
+        return chosen;
+    }
 
-                }
-                    // GOVOBJ : SYNC GOVERNANCE ITEMS FROM OUR PEERS
-                    if (RequestedMasternodeAssets == MASTERNODE_SYNC_GOVERNANCE) {
-
-                        log.info("gobject--CMasternodeSync::ProcessTick -- nTick " + tick +
-                                "nRequestedMasternodeAssets " + RequestedMasternodeAssets +
-                                " nTimeLastBumped " + nTimeLastBumped +
-                                " GetTime() {}" + Utils.currentTimeSeconds() +
-                                " diff" + (Utils.currentTimeSeconds() - nTimeLastBumped));
-
-                        // check for timeout first
-                        if (Utils.currentTimeSeconds() - nTimeLastBumped > MASTERNODE_SYNC_TIMEOUT_SECONDS) {
-                            log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- timeout");
-                            if (RequestedMasternodeAttempt == 0) {
-                                log.info("CMasternodeSync::ProcessTick -- WARNING: failed to sync " + getAssetName());
-                                // it's kind of ok to skip this for now, hopefully we'll catch up later?
-                            }
-                            switchToNextAsset();
-                            return;
-                        }
-
-                        // only request obj sync once from each peer, then request votes on per-obj basis
-                        if (pnode.hasFulfilledRequest("governance-sync")) {
-                            int nObjsLeftToAsk = context.governanceManager.requestGovernanceObjectVotes(pnode);
-                            // check for data
-                            if (nObjsLeftToAsk == 0) {
-
-                                if (nTimeNoObjectsLeft == 0) {
-                                    // asked all objects for votes for the first time
-                                    nTimeNoObjectsLeft = Utils.currentTimeSeconds();
-                                }
-                                // make sure the condition below is checked only once per tick
-                                if (nLastTick == tick) continue;
-                                if (Utils.currentTimeSeconds() - nTimeNoObjectsLeft > MASTERNODE_SYNC_TIMEOUT_SECONDS &&
-                                        0 /*governance.GetVoteCount()*/ - nLastVotes < max((int) (0.0001 * nLastVotes), MASTERNODE_SYNC_TICK_SECONDS)
-                                        ) {
-                                    // We already asked for all objects, waited for MASTERNODE_SYNC_TIMEOUT_SECONDS
-                                    // after that and less then 0.01% or MASTERNODE_SYNC_TICK_SECONDS
-                                    // (i.e. 1 per second) votes were recieved during the last tick.
-                                    // We can be pretty sure that we are done syncing.
-                                    log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- asked for all objects, nothing to do");
-                                    // reset nTimeNoObjectsLeft to be able to use the same condition on resync
-                                    nTimeNoObjectsLeft = 0;
-                                    switchToNextAsset();
-                                    return;
-                                }
-                                nLastTick = tick;
-                                nLastVotes = 0; //governance.GetVoteCount();
-                            }
-                            continue;
-                        }
-                        pnode.fulfilledRequest("governance-sync");
-
-                        if (pnode.getVersionMessage().clientVersion < 70208/*MIN_GOVERNANCE_PEER_PROTO_VERSION*/)
-                            continue;
-                        RequestedMasternodeAttempt++;
+    // Asks a peer for the changes to the deterministic masternode list while it is behind the chain, and another peer
+    // if there was no answer within MASTERNODE_SYNC_TIMEOUT_SECONDS.
+    private void requestDeterministicList(List<Peer> peers)
+    {
+        SimplifiedMasternodeListManager masternodeListManager = context.masternodeListManager;
+        AssetProgress assetProgress = progress.get(Asset.DMN_LIST);
+        if (!syncFlags.contains(SYNC_DMN_LIST) || masternodeListManager == null || !masternodeListManager.isBehindChainHead()) {
+            if (assetProgress.getRequests() > 0)
+                assetProgress.finish();
+            smlPeer = null;
+            return;
+        }
 
-                        sendGovernanceSyncRequest(pnode);
+        long nTimeSinceRequest = Utils.currentTimeMillis() - assetProgress.getTimeLastRequest();
+        if (smlPeer != null && peers.contains(smlPeer) && nTimeSinceRequest < MASTERNODE_SYNC_TIMEOUT_SECONDS * 1000)
+            return;
 
+        Peer pnode = peers.get(assetProgress.getRequests() % peers.size());
+        assetProgress.requested();
+        smlPeer = pnode;
+        masternodeListManager.requestMNListDiff(pnode);
+    }
 
-                        return; //this will cause each peer to get one request each six seconds for the various assets we need                  }
+    // Moves on from the governance asset once all objects were asked for their votes and hardly any new votes
+    // arrived for a while, must be called with the lock held.
+    private void checkGovernanceSynced(int nObjsLeftToAsk, long nNow)
+    {
+        if (RequestedMasternodeAssets != MASTERNODE_SYNC_GOVERNANCE)
+            return;
 
-                    }
+        // there are no objects at all and the peers said they sent all they have, so there are no votes either
+        if (nObjsLeftToAsk == -2 && hasEnoughReplies(Asset.GOVERNANCE_OBJECTS) && nNow - nTimeLastBumped > 1) {
+            log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- no objects to sync");
+            switchToNextAsset();
+            return;
+        }
 
+        // check for data
+        if (nObjsLeftToAsk != 0)
+            return;
 
-            }
-        } finally {
-            nodeLock.unlock();
+        if (nTimeNoObjectsLeft == 0) {
+            // asked all objects for votes for the first time
+            nTimeNoObjectsLeft = nNow;
         }
+        // the votes are counted over MASTERNODE_SYNC_TICK_SECONDS
+        if (nNow - nTimeLastVoteCheck < MASTERNODE_SYNC_TICK_SECONDS)
+            return;
+
+        long nVotes = progress.get(Asset.GOVERNANCE_VOTES).getItems();
+        if (nNow - nTimeNoObjectsLeft > MASTERNODE_SYNC_TIMEOUT_SECONDS &&
+                nVotes - nLastVotes < max((long) (0.0001 * nLastVotes), MASTERNODE_SYNC_TICK_SECONDS)) {
+            // We already asked for all objects, waited for MASTERNODE_SYNC_TIMEOUT_SECONDS
+            // after that and less then 0.01% or MASTERNODE_SYNC_TICK_SECONDS
+            // (i.e. 1 per second) votes were recieved during the last tick.
+            // We can be pretty sure that we are done syncing.
+            log.info("CMasternodeSync::ProcessTick -- nTick "+tick+" nRequestedMasternodeAssets "+RequestedMasternodeAssets+" -- asked for all objects, nothing to do");
+            // reset nTimeNoObjectsLeft to be able to use the same condition on resync
+            nTimeNoObjectsLeft = 0;
+            switchToNextAsset();
+            return;
+        }
+        nTimeLastVoteCheck = nNow;
+        nLastVotes = nVotes;
     }
 
     void sendGovernanceSyncRequest(Peer peer)
@@ -684,7 +989,6 @@ public class MasternodeSync {
     //}
 
 
-    static boolean fReachedBestHeader = false;
     void updateBlockTip(StoredBlock pindexNew, boolean fInitialDownload)
     {
         if(!fInitialDownload && pindexNew.getHeight() % 100 == 0)
@@ -718,7 +1022,6 @@ public class MasternodeSync {
             // probably initial timeout was not enough,
             // because there is no way we can update tip not having best header
             reset();
-            fReachedBestHeader = false;
             return;
         }
 
@@ -0,0 +1,442 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>A compact list of masternodes. The fixed width fields of a {@link MasternodeInfo} (outpoint, address, keys,
+ * times, protocol version and state) are kept in one primitive array per field, so a masternode takes a couple of
+ * hundred bytes and no objects of its own, where a {@link Masternode} with its ping, signatures, keys, maps and lock
+ * takes kilobytes. It is meant for holding and showing large masternode lists, not for processing messages.</p>
+ *
+ * <p>Masternodes are looked up by outpoint with an open addressing index over the same arrays. {@link #get(int)} and
+ * {@link #find(TransactionOutPoint)} return a light {@link Entry} that reads the arrays on demand and can be turned
+ * back into a {@link MasternodeInfo}. Removing a masternode moves the last one into its row, so rows are only stable
+ * while the table isn't changed. The table is not thread safe.</p>
+ */
+public class MasternodeTable implements Iterable<MasternodeTable.Entry> {
+    private static final int HASH_LENGTH = 32;
+    private static final int ADDRESS_LENGTH = 16;
+    // uncompressed public keys are the longest
+    private static final int KEY_LENGTH = 65;
+    private static final int EMPTY = -1;
+    private static final int NO_ADDRESS = -1;
+
+    private final NetworkParameters params;
+    private int size;
+
+    private byte[] outpointHashes;
+    private long[] outpointIndexes;
+    private byte[] addresses;
+    private int[] ports;
+    private byte[] collateralKeys;
+    private byte[] collateralKeyLengths;
+    private byte[] masternodeKeys;
+    private byte[] masternodeKeyLengths;
+    private long[] sigTimes;
+    private long[] lastPingTimes;
+    private long[] lastPaidTimes;
+    private long[] lastDsqs;
+    private int[] protocolVersions;
+    private byte[] states;
+
+    // rows by outpoint, with linear probing
+    private int[] slots;
+
+    public MasternodeTable(NetworkParameters params) {
+        this(params, 16);
+    }
+
+    public MasternodeTable(NetworkParameters params, int expectedSize) {
+        checkArgument(expectedSize >= 0);
+        this.params = params;
+        allocate(Math.max(expectedSize, 1));
+        slots = new int[slotsFor(expectedSize)];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    private void allocate(int capacity) {
+        outpointHashes = new byte[capacity * HASH_LENGTH];
+        outpointIndexes = new long[capacity];
+        addresses = new byte[capacity * ADDRESS_LENGTH];
+        ports = new int[capacity];
+        collateralKeys = new byte[capacity * KEY_LENGTH];
+        collateralKeyLengths = new byte[capacity];
+        masternodeKeys = new byte[capacity * KEY_LENGTH];
+        masternodeKeyLengths = new byte[capacity];
+        sigTimes = new long[capacity];
+        lastPingTimes = new long[capacity];
+        lastPaidTimes = new long[capacity];
+        lastDsqs = new long[capacity];
+        protocolVersions = new int[capacity];
+        states = new byte[capacity];
+    }
+
+    private void grow() {
+        int capacity = ports.length * 2;
+        outpointHashes = Arrays.copyOf(outpointHashes, capacity * HASH_LENGTH);
+        outpointIndexes = Arrays.copyOf(outpointIndexes, capacity);
+        addresses = Arrays.copyOf(addresses, capacity * ADDRESS_LENGTH);
+        ports = Arrays.copyOf(ports, capacity);
+        collateralKeys = Arrays.copyOf(collateralKeys, capacity * KEY_LENGTH);
+        collateralKeyLengths = Arrays.copyOf(collateralKeyLengths, capacity);
+        masternodeKeys = Arrays.copyOf(masternodeKeys, capacity * KEY_LENGTH);
+        masternodeKeyLengths = Arrays.copyOf(masternodeKeyLengths, capacity);
+        sigTimes = Arrays.copyOf(sigTimes, capacity);
+        lastPingTimes = Arrays.copyOf(lastPingTimes, capacity);
+        lastPaidTimes = Arrays.copyOf(lastPaidTimes, capacity);
+        lastDsqs = Arrays.copyOf(lastDsqs, capacity);
+        protocolVersions = Arrays.copyOf(protocolVersions, capacity);
+        states = Arrays.copyOf(states, capacity);
+    }
+
+    // a power of two with at least twice as many slots as rows
+    private static int slotsFor(int rows) {
+        return Integer.highestOneBit(Math.max(rows, 4) * 2 - 1) << 1;
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        Arrays.fill(slots, EMPTY);
+        for (int row = 0; row < size; row++)
+            slots[freeSlot(row)] = row;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds the masternode described by the given info, or overwrites the masternode with the same outpoint.
+     * @return the row the masternode is in
+     */
+    public int put(MasternodeInfo info) {
+        int row = findRow(info.outpoint.getHash(), info.outpoint.getIndex());
+        if (row == EMPTY) {
+            if (size == ports.length)
+                grow();
+            if (slots.length < size * 2 + 2)
+                rehash(slotsFor(size + 1));
+            row = size++;
+            System.arraycopy(info.outpoint.getHash().getBytes(), 0, outpointHashes, row * HASH_LENGTH, HASH_LENGTH);
+            outpointIndexes[row] = info.outpoint.getIndex();
+            slots[freeSlot(row)] = row;
+        }
+        setAddress(row, info.address);
+        collateralKeyLengths[row] = setKey(collateralKeys, row, info.pubKeyCollateralAddress);
+        masternodeKeyLengths[row] = setKey(masternodeKeys, row, info.pubKeyMasternode);
+        sigTimes[row] = info.sigTime;
+        lastPingTimes[row] = info.nTimeLastPing;
+        lastPaidTimes[row] = info.nTimeLastPaid;
+        lastDsqs[row] = info.nLastDsq;
+        protocolVersions[row] = info.nProtocolVersion;
+        states[row] = (byte) info.activeState.getValue();
+        return row;
+    }
+
+    /** Adds the given masternode, see {@link #put(MasternodeInfo)}. */
+    public int put(Masternode mn) {
+        return put(mn.getInfo());
+    }
+
+    private void setAddress(int row, MasternodeAddress address) {
+        if (address == null || address.getAddr() == null) {
+            ports[row] = NO_ADDRESS;
+            return;
+        }
+        byte[] ip = address.getAddr().getAddress();
+        int offset = row * ADDRESS_LENGTH;
+        Arrays.fill(addresses, offset, offset + ADDRESS_LENGTH, (byte) 0);
+        if (ip.length == 4) {
+            // store IPv4 addresses mapped to IPv6, as on the wire
+            addresses[offset + 10] = (byte) 0xFF;
+            addresses[offset + 11] = (byte) 0xFF;
+            System.arraycopy(ip, 0, addresses, offset + 12, 4);
+        } else {
+            System.arraycopy(ip, 0, addresses, offset, ADDRESS_LENGTH);
+        }
+        ports[row] = address.getPort();
+    }
+
+    private static byte setKey(byte[] keys, int row, PublicKey key) {
+        if (key == null || key.getBytes() == null)
+            return 0;
+        byte[] bytes = key.getBytes();
+        checkArgument(bytes.length <= KEY_LENGTH, "Public key is too long: %s bytes", bytes.length);
+        System.arraycopy(bytes, 0, keys, row * KEY_LENGTH, bytes.length);
+        return (byte) bytes.length;
+    }
+
+    /** Returns the masternode with the given collateral outpoint, or null if it's not in the table. */
+    public Entry find(TransactionOutPoint outpoint) {
+        int row = findRow(outpoint.getHash(), outpoint.getIndex());
+        return row == EMPTY ? null : new Entry(row);
+    }
+
+    public boolean contains(TransactionOutPoint outpoint) {
+        return findRow(outpoint.getHash(), outpoint.getIndex()) != EMPTY;
+    }
+
+    /** Returns the masternode in the given row, from 0 to {@link #size()} - 1. */
+    public Entry get(int row) {
+        checkElementIndex(row, size);
+        return new Entry(row);
+    }
+
+    /** Removes the masternode with the given collateral outpoint. Returns whether it was in the table. */
+    public boolean remove(TransactionOutPoint outpoint) {
+        int row = findRow(outpoint.getHash(), outpoint.getIndex());
+        if (row == EMPTY)
+            return false;
+        deleteSlot(slotOf(row));
+        int last = --size;
+        if (row != last) {
+            // move the last row into the hole
+            int slot = slotOf(last);
+            copyRow(last, row);
+            slots[slot] = row;
+        }
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(slots, EMPTY);
+    }
+
+    private void copyRow(int from, int to) {
+        System.arraycopy(outpointHashes, from * HASH_LENGTH, outpointHashes, to * HASH_LENGTH, HASH_LENGTH);
+        outpointIndexes[to] = outpointIndexes[from];
+        System.arraycopy(addresses, from * ADDRESS_LENGTH, addresses, to * ADDRESS_LENGTH, ADDRESS_LENGTH);
+        ports[to] = ports[from];
+        System.arraycopy(collateralKeys, from * KEY_LENGTH, collateralKeys, to * KEY_LENGTH, KEY_LENGTH);
+        collateralKeyLengths[to] = collateralKeyLengths[from];
+        System.arraycopy(masternodeKeys, from * KEY_LENGTH, masternodeKeys, to * KEY_LENGTH, KEY_LENGTH);
+        masternodeKeyLengths[to] = masternodeKeyLengths[from];
+        sigTimes[to] = sigTimes[from];
+        lastPingTimes[to] = lastPingTimes[from];
+        lastPaidTimes[to] = lastPaidTimes[from];
+        lastDsqs[to] = lastDsqs[from];
+        protocolVersions[to] = protocolVersions[from];
+        states[to] = states[from];
+    }
+
+    // The outpoint hashes are uniformly distributed already, so their first bytes make a good hash.
+    private static int hash(byte[] hashBytes, int offset, long index) {
+        int h = (hashBytes[offset] & 0xFF) << 24 | (hashBytes[offset + 1] & 0xFF) << 16 |
+                (hashBytes[offset + 2] & 0xFF) << 8 | (hashBytes[offset + 3] & 0xFF);
+        return h ^ (int) index * 0x9E3779B9;
+    }
+
+    private int homeSlot(int row) {
+        return hash(outpointHashes, row * HASH_LENGTH, outpointIndexes[row]) & (slots.length - 1);
+    }
+
+    private int freeSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = homeSlot(row);
+        while (slots[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private int slotOf(int row) {
+        int mask = slots.length - 1;
+        int slot = homeSlot(row);
+        while (slots[slot] != row)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private int findRow(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        int mask = slots.length - 1;
+        int slot = hash(hashBytes, 0, index) & mask;
+        while (true) {
+            int row = slots[slot];
+            if (row == EMPTY)
+                return EMPTY;
+            if (outpointIndexes[row] == index && equalHash(row, hashBytes))
+                return row;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean equalHash(int row, byte[] hashBytes) {
+        int offset = row * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (outpointHashes[offset + i] != hashBytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Empties the slot and shifts back the rows probed past it, so that lookups don't stop early.
+    private void deleteSlot(int hole) {
+        int mask = slots.length - 1;
+        slots[hole] = EMPTY;
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int row = slots[slot];
+            if (row == EMPTY)
+                return;
+            int home = homeSlot(row);
+            // the row can fill the hole unless its home slot lies cyclically in (hole, slot]
+            boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!stays) {
+                slots[hole] = row;
+                slots[slot] = EMPTY;
+                hole = slot;
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<Entry>() {
+            private int row = 0;
+
+            @Override
+            public boolean hasNext() {
+                return row < size;
+            }
+
+            @Override
+            public Entry next() {
+                if (row >= size)
+                    throw new NoSuchElementException();
+                return new Entry(row++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "MasternodeTable: " + size + " masternodes";
+    }
+
+    /** A masternode in the table. Its fields are read from the table when asked for. */
+    public class Entry {
+        private final int row;
+
+        private Entry(int row) {
+            this.row = row;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public TransactionOutPoint getOutpoint() {
+            return new TransactionOutPoint(params, outpointIndexes[row], getOutpointHash());
+        }
+
+        public Sha256Hash getOutpointHash() {
+            return Sha256Hash.wrap(Arrays.copyOfRange(outpointHashes, row * HASH_LENGTH, (row + 1) * HASH_LENGTH));
+        }
+
+        public MasternodeAddress getAddress() {
+            if (ports[row] == NO_ADDRESS)
+                return null;
+            byte[] ip = Arrays.copyOfRange(addresses, row * ADDRESS_LENGTH, (row + 1) * ADDRESS_LENGTH);
+            try {
+                // IPv4 mapped addresses come back as IPv4 addresses
+                return new MasternodeAddress(InetAddress.getByAddress(ip), ports[row]);
+            } catch (UnknownHostException x) {
+                throw new RuntimeException(x);  // Cannot happen, the address has a valid length.
+            }
+        }
+
+        public PublicKey getPubKeyCollateralAddress() {
+            return getKey(collateralKeys, collateralKeyLengths[row]);
+        }
+
+        public PublicKey getPubKeyMasternode() {
+            return getKey(masternodeKeys, masternodeKeyLengths[row]);
+        }
+
+        private PublicKey getKey(byte[] keys, int length) {
+            if (length == 0)
+                return null;
+            return new PublicKey(Arrays.copyOfRange(keys, row * KEY_LENGTH, row * KEY_LENGTH + length));
+        }
+
+        public long getSigTime() {
+            return sigTimes[row];
+        }
+
+        public long getLastPingTime() {
+            return lastPingTimes[row];
+        }
+
+        public long getLastPaidTime() {
+            return lastPaidTimes[row];
+        }
+
+        public long getLastDsq() {
+            return lastDsqs[row];
+        }
+
+        public int getProtocolVersion() {
+            return protocolVersions[row];
+        }
+
+        public MasternodeInfo.State getActiveState() {
+            return MasternodeInfo.State.forValue(states[row]);
+        }
+
+        public boolean isEnabled() {
+            return getActiveState() == MasternodeInfo.State.MASTERNODE_ENABLED;
+        }
+
+        public String getStateString() {
+            return Masternode.stateToString(getActiveState());
+        }
+
+        /** Returns the masternode as a {@link MasternodeInfo}, as {@link Masternode#getInfo()} does. */
+        public MasternodeInfo toInfo() {
+            MasternodeInfo info = new MasternodeInfo(params, getActiveState(), getProtocolVersion(), getSigTime(),
+                    getOutpoint(), getAddress(), getPubKeyCollateralAddress(), getPubKeyMasternode());
+            info.nTimeLastPing = getLastPingTime();
+            info.nTimeLastPaid = getLastPaidTime();
+            info.nLastDsq = getLastDsq();
+            info.fInfoValid = true;
+            return info;
+        }
+
+        @Override
+        public String toString() {
+            return "masternode " + getOutpoint().toStringShort() + " " + getStateString();
+        }
+    }
+}
@@ -2053,6 +2053,41 @@ public class Peer extends PeerSocketHandler {
         maybeRestartChainDownload();
     }
 
+    /**
+     * <p>Brings the remote filter up to date with {@code updated} by sending a {@link FilterAddMessage} for each of the
+     * given elements, instead of resending the whole filter. This is only possible if the filter currently loaded on
+     * the connection is {@code previous} and {@code updated} is {@code previous} with the elements inserted, otherwise
+     * the full filter is sent as by {@link #setBloomFilter(BloomFilter, boolean)}.</p>
+     *
+     * <p>As with setBloomFilter, you should not use this method if your app uses a {@link PeerGroup}.</p>
+     */
+    public void addToBloomFilter(BloomFilter previous, BloomFilter updated, List<byte[]> elements,
+                                 boolean andQueryMemPool) {
+        checkNotNull(updated);
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            return;
+        int elementBytes = 0;
+        boolean tooLarge = false;
+        for (byte[] element : elements) {
+            elementBytes += element.length;
+            tooLarge |= element.length > FilterAddMessage.MAX_ELEMENT_SIZE;
+        }
+        // Past the size of the filter itself, resending it is cheaper than adding elements one by one.
+        if (vBloomFilter != previous || tooLarge || elementBytes >= updated.bitcoinSerialize().length) {
+            setBloomFilter(updated, andQueryMemPool);
+            return;
+        }
+        vBloomFilter = updated;
+        log.debug("{}: Adding {} elements to Bloom filter{}", this, elements.size(),
+                andQueryMemPool ? " and querying mempool" : "");
+        for (byte[] element : elements)
+            sendMessage(new FilterAddMessage(element));
+        if (andQueryMemPool)
+            sendMessage(new MemoryPoolMessage());
+        maybeRestartChainDownload();
+    }
+
     private void maybeRestartChainDownload() {
         lock.lock();
         try {
@@ -118,6 +118,8 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
     private final CopyOnWriteArrayList<Peer> peers;
     // Currently connecting peers.
     private final CopyOnWriteArrayList<Peer> pendingPeers;
+    // Peers connected for a single errand, see connectToTransient. They are in neither of the lists above.
+    @GuardedBy("lock") private final Set<Peer> transientPeers = new HashSet<Peer>();
     private final ClientConnectionManager channels;
     @Nullable private final TorClient torClient;
 
@@ -181,7 +183,7 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            addKeysToFilter(keys);
         }
     };
 
@@ -1348,6 +1350,63 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
 
     private final Map<FilterRecalculateMode, SettableFuture<BloomFilter>> inFlightRecalculations = Maps.newHashMap();
 
+    /**
+     * Watches newly added keys by extending the current Bloom filter and sending "filteradd" messages, which avoids
+     * asking every wallet to rebuild its filter and resending up to 36kb to every peer each time a few keys are
+     * created. Falls back to {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)} whenever the extended
+     * filter would differ from a freshly calculated one or would no longer meet the target false positive rate.
+     */
+    private void addKeysToFilter(List<ECKey> keys) {
+        // Take copies now, as the wallet is still busy adding keys whilst we're called.
+        long earliestKeyTime = Long.MAX_VALUE;
+        final List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+        for (ECKey key : keys) {
+            earliestKeyTime = Math.min(earliestKeyTime, key.getCreationTimeSeconds());
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        final long earliestKeyTimeSecs = earliestKeyTime;
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to update Bloom filter", e);
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                // Keys of married chains are watched through P2SH scripts, which only the wallet can compute.
+                boolean married = false;
+                for (Wallet wallet : wallets)
+                    married |= wallet.hasMarriedKeyChains();
+                BloomFilter previous = bloomFilterMerger.getLastFilter();
+                FilterMerger.Result result = married ? null :
+                        bloomFilterMerger.tryIncrementalUpdate(elements, earliestKeyTimeSecs);
+                if (result == null) {
+                    // Recalculate right here: a job queued from the job queue could run after waitForJobQueue() returns.
+                    recalculateFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                if (!result.changed)
+                    return;
+                for (Peer peer : peers /* COW */)
+                    peer.addToBloomFilter(previous, result.filter, elements, true);
+                if (chain != null)
+                    chain.resetFalsePositiveEstimate();
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
     /**
      * Recalculates the bloom filter given to peers as well as the timestamp after which full blocks are downloaded
      * (instead of only headers). Note that calls made one after another may return the same future, if the request
@@ -1378,36 +1437,7 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
                 // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
                 if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
                     return;
-                // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
-                FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
-                boolean send;
-                switch (mode) {
-                    case SEND_IF_CHANGED:
-                        send = result.changed;
-                        break;
-                    case DONT_SEND:
-                        send = false;
-                        break;
-                    case FORCE_SEND_FOR_REFRESH:
-                        send = true;
-                        break;
-                    default:
-                        throw new UnsupportedOperationException();
-                }
-                if (send) {
-                    for (Peer peer : peers /* COW */) {
-                        // Only query the mempool if this recalculation request is not in order to lower the observed FP
-                        // rate. There's no point querying the mempool when doing this because the FP rate can only go
-                        // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
-                        peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
-                    }
-                    // Reset the false positive estimate so that we don't send a flood of filter updates
-                    // if the estimate temporarily overshoots our threshold.
-                    if (chain != null)
-                        chain.resetFalsePositiveEstimate();
-                }
-                // Do this last so that bloomFilter is already set when it gets called.
-                setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
+                FilterMerger.Result result = recalculateFilter(mode);
                 synchronized (inFlightRecalculations) {
                     inFlightRecalculations.put(mode, null);
                 }
@@ -1422,6 +1452,41 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         return future;
     }
     
+    // Runs on the job queue.
+    private FilterMerger.Result recalculateFilter(FilterRecalculateMode mode) {
+        // We only ever call bloomFilterMerger.calculate on jobQueue, so we cannot be calculating two filters at once.
+        FilterMerger.Result result = bloomFilterMerger.calculate(ImmutableList.copyOf(peerFilterProviders /* COW */));
+        boolean send;
+        switch (mode) {
+            case SEND_IF_CHANGED:
+                send = result.changed;
+                break;
+            case DONT_SEND:
+                send = false;
+                break;
+            case FORCE_SEND_FOR_REFRESH:
+                send = true;
+                break;
+            default:
+                throw new UnsupportedOperationException();
+        }
+        if (send) {
+            for (Peer peer : peers /* COW */) {
+                // Only query the mempool if this recalculation request is not in order to lower the observed FP
+                // rate. There's no point querying the mempool when doing this because the FP rate can only go
+                // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
+                peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+            }
+            // Reset the false positive estimate so that we don't send a flood of filter updates
+            // if the estimate temporarily overshoots our threshold.
+            if (chain != null)
+                chain.resetFalsePositiveEstimate();
+        }
+        // Do this last so that bloomFilter is already set when it gets called.
+        setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
+        return result;
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -1495,6 +1560,29 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
      */
     @Nullable @GuardedBy("lock")
     protected Peer connectTo(PeerAddress address, boolean incrementMaxConnections, int connectTimeoutMillis) {
+        return connectTo(address, incrementMaxConnections, false, connectTimeoutMillis);
+    }
+
+    /**
+     * Connects to a peer for a single errand, like asking a masternode for broadcasts. The peer is not one of the
+     * connected peers: it never becomes the download peer, gets no Bloom filter and wallets, isn't announced to the
+     * peer event listeners and isn't connected to again once it goes away. The caller closes it when done.
+     * @return the peer or null if it could not be connected
+     */
+    @Nullable
+    public Peer connectToTransient(PeerAddress address, int connectTimeoutMillis) {
+        lock.lock();
+        try {
+            if (!backoffMap.containsKey(address))
+                backoffMap.put(address, new ExponentialBackoff(peerBackoffParams));
+            return connectTo(address, false, true, connectTimeoutMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable @GuardedBy("lock")
+    private Peer connectTo(PeerAddress address, boolean incrementMaxConnections, boolean fTransient, int connectTimeoutMillis) {
         checkState(lock.isHeldByCurrentThread());
         VersionMessage ver = getVersionMessage().duplicate();
         ver.bestHeight = chain == null ? 0 : chain.getBestChainHeight();
@@ -1504,7 +1592,10 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         peer.addConnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.addDisconnectedEventListener(Threading.SAME_THREAD, startupListener);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
-        pendingPeers.add(peer);
+        if (fTransient)
+            transientPeers.add(peer);
+        else
+            pendingPeers.add(peer);
 
         try {
             log.info("Attempting connection to {}     ({} connected, {} pending, {} max)", address,
@@ -1618,6 +1709,11 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
         int newSize = -1;
         lock.lock();
         try {
+            if (transientPeers.contains(peer)) {
+                log.info("{}: New transient peer", peer);
+                peer.setDownloadData(false);
+                return;
+            }
             groupBackoff.trackSuccess();
             backoffMap.get(peer.getAddress()).trackSuccess();
 
@@ -1774,6 +1870,15 @@ public class PeerGroup implements TransactionBroadcaster, GovernanceVoteBroadcas
 
 
     protected void handlePeerDeath(final Peer peer, @Nullable Throwable exception) {
+        lock.lock();
+        try {
+            if (transientPeers.remove(peer)) {
+                log.info("{}: Transient peer died", peer.getAddress());
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
         // Peer deaths can occur during startup if a connect attempt after peer discovery aborts immediately.
         if (!isRunning()) return;
 
@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.core.Transaction.SigHash;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.uint32ToByteArrayLE;
+import static org.bitcoinj.core.Utils.uint32ToByteStreamLE;
+
+/**
+ * <p>Calculates the signature hashes of one transaction without copying it. The parts of the simplified transaction
+ * that don't depend on the input being signed are serialized once, and the SHA-256 state after the inputs before each
+ * index is kept, so each signature hash only streams the signed input and what follows it.</p>
+ *
+ * <p>Input scripts are blanked in every signature hash, so the engine stays valid while they change, but any other
+ * change to the transaction requires a new one. Instances are safe to use from several threads at once.</p>
+ */
+final class SigHashEngine {
+    // What Bitcoin Core "hashes" to for SIGHASH_SINGLE without a matching output, see hashForSignature.
+    private static final Sha256Hash SIGHASH_SINGLE_BUG =
+            Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+    // An output with a value of -1 and an empty script, used for the outputs before the signed one in SIGHASH_SINGLE.
+    private static final byte[] NULL_OUTPUT = { -1, -1, -1, -1, -1, -1, -1, -1, 0 };
+    // Outpoint, empty script and sequence.
+    private static final int BLANK_INPUT_SIZE = 36 + 1 + 4;
+
+    private final int numInputs;
+    private final int numOutputs;
+    // Every input with its script blanked, back to back.
+    private final byte[] blankInputs;
+    private final long[] sequences;
+    // The outputs with their count in front, and where each output starts.
+    private final byte[] outputs;
+    private final int[] outputOffsets;
+    // Lock time and, for special transactions, the extra payload.
+    private final byte[] trailer;
+
+    // State after the version and input count for the single input hashed with SIGHASH_ANYONECANPAY.
+    private final MessageDigest anyoneCanPayPrefix;
+    // State after the version, the input count and the blanked inputs before each index.
+    private final MessageDigest[] prefixes;
+    // The same for SIGHASH_NONE and SIGHASH_SINGLE, which also zero the sequence of the other inputs.
+    private volatile MessageDigest[] zeroSequencePrefixes;
+    private final byte[] header;
+
+    SigHashEngine(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> txOutputs = tx.getOutputs();
+        numInputs = inputs.size();
+        numOutputs = txOutputs.size();
+        try {
+            blankInputs = new byte[numInputs * BLANK_INPUT_SIZE];
+            sequences = new long[numInputs];
+            for (int i = 0; i < numInputs; i++) {
+                TransactionInput input = inputs.get(i);
+                int offset = i * BLANK_INPUT_SIZE;
+                System.arraycopy(input.getOutpoint().unsafeBitcoinSerialize(), 0, blankInputs, offset, 36);
+                blankInputs[offset + 36] = 0;
+                sequences[i] = input.getSequenceNumber();
+                uint32ToByteArrayLE(sequences[i], blankInputs, offset + 37);
+            }
+
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(numOutputs * 34 + 9);
+            bos.write(new VarInt(numOutputs).encode());
+            outputOffsets = new int[numOutputs + 1];
+            for (int i = 0; i < numOutputs; i++) {
+                outputOffsets[i] = bos.size();
+                txOutputs.get(i).bitcoinSerialize(bos);
+            }
+            outputOffsets[numOutputs] = bos.size();
+            outputs = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(4);
+            uint32ToByteStreamLE(tx.getLockTime(), bos);
+            if (tx.getVersionShort() >= 3 && tx.getType() != Transaction.Type.TRANSACTION_NORMAL) {
+                bos.write(new VarInt(tx.getExtraPayload().length).encode());
+                bos.write(tx.getExtraPayload());
+            }
+            trailer = bos.toByteArray();
+
+            header = new byte[4];
+            uint32ToByteArrayLE(tx.getVersion(), header, 0);
+            anyoneCanPayPrefix = Sha256Hash.newDigest();
+            anyoneCanPayPrefix.update(header);
+            anyoneCanPayPrefix.update(new VarInt(1).encode());
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        prefixes = computePrefixes(blankInputs);
+    }
+
+    private MessageDigest[] computePrefixes(byte[] inputs) {
+        MessageDigest[] states = new MessageDigest[numInputs];
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(header);
+        digest.update(new VarInt(numInputs).encode());
+        for (int i = 0; i < numInputs; i++) {
+            states[i] = copy(digest);
+            digest.update(inputs, i * BLANK_INPUT_SIZE, BLANK_INPUT_SIZE);
+        }
+        return states;
+    }
+
+    private MessageDigest[] getZeroSequencePrefixes() {
+        MessageDigest[] states = zeroSequencePrefixes;
+        if (states == null) {
+            // Racing threads compute the same thing, so there's no need to lock.
+            byte[] inputs = Arrays.copyOf(blankInputs, blankInputs.length);
+            for (int i = 0; i < numInputs; i++)
+                Arrays.fill(inputs, i * BLANK_INPUT_SIZE + 37, (i + 1) * BLANK_INPUT_SIZE, (byte) 0);
+            zeroSequencePrefixes = states = computePrefixes(inputs);
+        }
+        return states;
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // The JDK SHA-256 implementation can be cloned.
+        }
+    }
+
+    /**
+     * Returns the same hash as {@link Transaction#hashForSignature(int, byte[], byte)} on the transaction this engine
+     * was created for.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= numInputs)
+            throw new IndexOutOfBoundsException("Input index " + inputIndex + " out of range");
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        boolean zeroSequences = mode == SigHash.NONE.value || mode == SigHash.SINGLE.value;
+        if (mode == SigHash.SINGLE.value && inputIndex >= numOutputs) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. Bitcoin Core also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+
+            // Bitcoin Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return SIGHASH_SINGLE_BUG;
+        }
+
+        // This step has no purpose beyond being synchronized with Bitcoin Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+        // of other inputs, so only the signed input is hashed. SIGHASH_NONE and SIGHASH_SINGLE zero the sequence
+        // numbers of the other inputs, so the signature isn't broken by new versions of the transaction issued by
+        // other parties.
+        MessageDigest digest;
+        if (anyoneCanPay)
+            digest = copy(anyoneCanPayPrefix);
+        else
+            digest = copy(zeroSequences ? getZeroSequencePrefixes()[inputIndex] : prefixes[inputIndex]);
+
+        // The signed input, with the script of the output it spends in place of its own. Bitcoin Core does this but
+        // the step has no obvious purpose as the signature covers the hash of the prevout transaction which obviously
+        // includes the output script already.
+        byte[] buf = new byte[4];
+        digest.update(blankInputs, inputIndex * BLANK_INPUT_SIZE, 36);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        uint32ToByteArrayLE(sequences[inputIndex], buf, 0);
+        digest.update(buf);
+
+        if (!anyoneCanPay) {
+            int offset = (inputIndex + 1) * BLANK_INPUT_SIZE;
+            if (!zeroSequences) {
+                digest.update(blankInputs, offset, blankInputs.length - offset);
+            } else {
+                Arrays.fill(buf, (byte) 0);
+                for (int i = inputIndex + 1; i < numInputs; i++) {
+                    digest.update(blankInputs, i * BLANK_INPUT_SIZE, 37);
+                    digest.update(buf);
+                }
+            }
+        }
+
+        if (mode == SigHash.NONE.value) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update((byte) 0);
+        } else if (mode == SigHash.SINGLE.value) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). The outputs
+            // after it are deleted and the ones before it are "nulled out", which unintuitively sets their value to -1.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            int start = outputOffsets[inputIndex];
+            digest.update(outputs, start, outputOffsets[inputIndex + 1] - start);
+        } else {
+            digest.update(outputs);
+        }
+        digest.update(trailer);
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        uint32ToByteArrayLE(0x000000ff & sigHashType, buf, 0);
+        digest.update(buf);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+}
@@ -99,6 +99,7 @@ public class SporkManager {
 
             mapSporks.put(hash, spork);
             mapSporksActive.put(spork.nSporkID, spork);
+            context.masternodeSync.addedAssetItem(MasternodeSync.Asset.SPORKS);
             queueOnUpdate(spork);
             relay(spork);
 
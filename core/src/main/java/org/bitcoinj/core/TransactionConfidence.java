@@ -246,6 +246,11 @@ public class TransactionConfidence {
         return removed;
     }
 
+    /** Returns true if any event listeners are registered, in which case the object is kept alive for them. */
+    public boolean hasEventListeners() {
+        return !listeners.isEmpty();
+    }
+
     /**
      * Returns the chain height at which the transaction appeared if confidence type is BUILDING.
      * @throws IllegalStateException if the confidence type is not BUILDING.
@@ -244,7 +244,12 @@ public class TransactionInput extends ChildMessage {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        // Signature hashes don't cover input scripts, so the parent can keep using its engine, e.g. whilst signing.
+        Transaction parentTransaction = getParentTransaction();
+        SigHashEngine sigHashEngine = parentTransaction != null ? parentTransaction.getSigHashEngine() : null;
         unCache();
+        if (sigHashEngine != null)
+            parentTransaction.setSigHashEngine(sigHashEngine);
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
@@ -17,12 +17,20 @@ public class TransactionLockCandidate {
     public Transaction txLockRequest;
     public HashMap<TransactionOutPoint, TransactionOutPointLock> mapOutPointLocks;
 
+    // For InstantSend's latency histograms, in milliseconds: when the lock request arrived and when the first vote
+    // for it was counted, 0 if that didn't happen yet.
+    long timeRequestMillis;
+    long timeFirstVoteMillis;
+    boolean quorumReached;
+
     public TransactionLockCandidate(NetworkParameters params, Transaction txLockRequest)
     {
         this.params = params;
         this.confirmedHeight = -1;
         timeCreated = Utils.currentTimeSeconds();
         this.txLockRequest = txLockRequest;
+        if(txLockRequest != null)
+            timeRequestMillis = Utils.currentTimeMillis();
         mapOutPointLocks = new HashMap<TransactionOutPoint, TransactionOutPointLock>();
     }
 
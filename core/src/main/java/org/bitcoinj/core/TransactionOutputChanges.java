@@ -16,9 +16,15 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,10 +33,26 @@ import java.util.List;
  * {@link AbstractBlockChain#connectTransactions(int, Block)}. It contains the full list of transaction outputs created
  * and spent in a block. It DOES contain outputs created that were spent later in the block, as those are needed for
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
+ *
+ * <p>There are two serialized forms. {@link #serializeToStream(OutputStream)} writes every output in full, while
+ * {@link #serializeCompactToStream(OutputStream)} writes amounts as varints, heights relative to the first output,
+ * pay-to-pubkey-hash and pay-to-script-hash scripts as just their hash and the transaction hash only once for
+ * consecutive outputs of the same transaction. {@link #parse(byte[], int, int)} reads either.</p>
  */
 public class TransactionOutputChanges {
     public final List<UTXO> txOutsCreated;
     public final List<UTXO> txOutsSpent;
+
+    // Starts the compact form. The full form starts with the number of created outputs, which is never this large.
+    private static final byte[] COMPACT_MAGIC = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+    private static final int COMPACT_VERSION = 1;
+    // Flags of an output in the compact form. Bits 2 and 3 hold the script template.
+    private static final int FLAG_COINBASE = 1;
+    private static final int FLAG_SAME_HASH = 2;
+    private static final int TEMPLATE_SHIFT = 2;
+    private static final int TEMPLATE_NONE = 0;
+    private static final int TEMPLATE_P2PKH = 1;
+    private static final int TEMPLATE_P2SH = 2;
     
     public TransactionOutputChanges(List<UTXO> txOutsCreated, List<UTXO> txOutsSpent) {
         this.txOutsCreated = txOutsCreated;
@@ -74,4 +96,161 @@ public class TransactionOutputChanges {
             output.serializeToStream(bos);
         }
     }
+
+    /**
+     * Writes the compact form, which {@link #parse(byte[], int, int)} reads back. The addresses of the outputs are not
+     * written, as in {@link #serializeToStream(OutputStream)}.
+     */
+    public void serializeCompactToStream(OutputStream bos) throws IOException {
+        int baseHeight = 0;
+        if (!txOutsCreated.isEmpty())
+            baseHeight = txOutsCreated.get(0).getHeight();
+        else if (!txOutsSpent.isEmpty())
+            baseHeight = txOutsSpent.get(0).getHeight();
+        bos.write(COMPACT_MAGIC);
+        bos.write(COMPACT_VERSION);
+        bos.write(new VarInt(baseHeight & 0xFFFFFFFFL).encode());
+        Sha256Hash lastHash = null;
+        for (List<UTXO> outputs : Arrays.asList(txOutsCreated, txOutsSpent)) {
+            bos.write(new VarInt(outputs.size()).encode());
+            for (UTXO output : outputs) {
+                byte[] script = output.getScript().getProgram();
+                int template = TEMPLATE_NONE;
+                if (isPayToPubKeyHash(script))
+                    template = TEMPLATE_P2PKH;
+                else if (isPayToScriptHash(script))
+                    template = TEMPLATE_P2SH;
+                boolean sameHash = output.getHash().equals(lastHash);
+                bos.write((output.isCoinbase() ? FLAG_COINBASE : 0) | (sameHash ? FLAG_SAME_HASH : 0)
+                        | template << TEMPLATE_SHIFT);
+                if (!sameHash)
+                    bos.write(output.getHash().getBytes());
+                lastHash = output.getHash();
+                bos.write(new VarInt(output.getIndex()).encode());
+                bos.write(new VarInt(output.getValue().value).encode());
+                // Zigzag, so that outputs a little older than the first one stay short too.
+                int delta = output.getHeight() - baseHeight;
+                bos.write(new VarInt(((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL).encode());
+                if (template == TEMPLATE_P2PKH) {
+                    bos.write(script, 3, 20);
+                } else if (template == TEMPLATE_P2SH) {
+                    bos.write(script, 2, 20);
+                } else {
+                    bos.write(new VarInt(script.length).encode());
+                    bos.write(script);
+                }
+            }
+        }
+    }
+
+    /** Reads either serialized form from the given bytes. */
+    public static TransactionOutputChanges parse(byte[] bytes) throws IOException {
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /** Reads either serialized form from the given range of bytes. */
+    public static TransactionOutputChanges parse(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, offset, length);
+        if (length < COMPACT_MAGIC.length + 1 || bytes[offset] != COMPACT_MAGIC[0] || bytes[offset + 1] != COMPACT_MAGIC[1]
+                || bytes[offset + 2] != COMPACT_MAGIC[2] || bytes[offset + 3] != COMPACT_MAGIC[3])
+            return new TransactionOutputChanges(in);
+        in.skip(COMPACT_MAGIC.length);
+        int version = in.read();
+        if (version != COMPACT_VERSION)
+            throw new IOException("Unknown version of compact output changes: " + version);
+        int baseHeight = (int) readVarInt(in);
+        Sha256Hash lastHash = null;
+        List<List<UTXO>> lists = new LinkedList<List<UTXO>>();
+        for (int list = 0; list < 2; list++) {
+            long count = readVarInt(in);
+            List<UTXO> outputs = new LinkedList<UTXO>();
+            for (long i = 0; i < count; i++) {
+                int flags = in.read();
+                if (flags < 0)
+                    throw new EOFException();
+                Sha256Hash hash;
+                if ((flags & FLAG_SAME_HASH) != 0) {
+                    if (lastHash == null)
+                        throw new IOException("First output refers to a previous hash");
+                    hash = lastHash;
+                } else {
+                    hash = Sha256Hash.wrap(readBytes(in, 32));
+                }
+                lastHash = hash;
+                long index = readVarInt(in);
+                Coin value = Coin.valueOf(readVarInt(in));
+                int zigzag = (int) readVarInt(in);
+                int height = baseHeight + ((zigzag >>> 1) ^ -(zigzag & 1));
+                byte[] script;
+                int template = (flags >> TEMPLATE_SHIFT) & 3;
+                if (template == TEMPLATE_P2PKH) {
+                    script = new byte[25];
+                    script[0] = (byte) ScriptOpCodes.OP_DUP;
+                    script[1] = (byte) ScriptOpCodes.OP_HASH160;
+                    script[2] = 20;
+                    System.arraycopy(readBytes(in, 20), 0, script, 3, 20);
+                    script[23] = (byte) ScriptOpCodes.OP_EQUALVERIFY;
+                    script[24] = (byte) ScriptOpCodes.OP_CHECKSIG;
+                } else if (template == TEMPLATE_P2SH) {
+                    script = new byte[23];
+                    script[0] = (byte) ScriptOpCodes.OP_HASH160;
+                    script[1] = 20;
+                    System.arraycopy(readBytes(in, 20), 0, script, 2, 20);
+                    script[22] = (byte) ScriptOpCodes.OP_EQUAL;
+                } else {
+                    script = readBytes(in, (int) readVarInt(in));
+                }
+                outputs.add(new UTXO(hash, index, value, height, (flags & FLAG_COINBASE) != 0, new Script(script)));
+            }
+            lists.add(outputs);
+        }
+        return new TransactionOutputChanges(lists.get(0), lists.get(1));
+    }
+
+    private static boolean isPayToPubKeyHash(byte[] script) {
+        return script.length == 25 && (script[0] & 0xff) == ScriptOpCodes.OP_DUP
+                && (script[1] & 0xff) == ScriptOpCodes.OP_HASH160 && script[2] == 20
+                && (script[23] & 0xff) == ScriptOpCodes.OP_EQUALVERIFY
+                && (script[24] & 0xff) == ScriptOpCodes.OP_CHECKSIG;
+    }
+
+    private static boolean isPayToScriptHash(byte[] script) {
+        return script.length == 23 && (script[0] & 0xff) == ScriptOpCodes.OP_HASH160 && script[1] == 20
+                && (script[22] & 0xff) == ScriptOpCodes.OP_EQUAL;
+    }
+
+    // Reads the varints written by VarInt.encode().
+    private static long readVarInt(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0)
+            throw new EOFException();
+        int size;
+        if (first < 0xfd)
+            return first;
+        else if (first == 0xfd)
+            size = 2;
+        else if (first == 0xfe)
+            size = 4;
+        else
+            size = 8;
+        byte[] bytes = readBytes(in, size);
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--)
+            value = value << 8 | (bytes[i] & 0xFF);
+        return value;
+    }
+
+    private static byte[] readBytes(InputStream in, int length) throws IOException {
+        if (length < 0)
+            throw new IOException("Negative length");
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
+        }
+        return bytes;
+    }
 }
@@ -17,12 +17,15 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.utils.*;
+import org.slf4j.*;
 
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,44 +38,86 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer calls into the table for each transaction it announces, so the table is split into independently
+ * locked segments selected by transaction hash. Each segment is kept in least recently used order and bounded to its
+ * share of the total size; when full, the least recently used entry whose confidence has no event listeners is evicted.
+ * Entries with listeners are never evicted, as some wallet or app is still interested in them.</p>
  */
 public class TxConfidenceTable {
-    protected ReentrantLock lock = Threading.lock("txconfidencetable");
+    private static final Logger log = LoggerFactory.getLogger(TxConfidenceTable.class);
+
+    private static final int SEGMENTS = 16;
 
     private static class WeakConfidenceReference extends WeakReference<TransactionConfidence> {
-        public Sha256Hash hash;
-        public WeakConfidenceReference(TransactionConfidence confidence, ReferenceQueue<TransactionConfidence> queue) {
-            super(confidence, queue);
-            hash = confidence.getTransactionHash();
+        public final Sha256Hash hash;
+        public final TxConfidenceTable table;
+        public WeakConfidenceReference(TransactionConfidence confidence, TxConfidenceTable table) {
+            super(confidence, referenceQueue);
+            this.hash = confidence.getTransactionHash();
+            this.table = table;
         }
     }
-    private LinkedHashMap<Sha256Hash, WeakConfidenceReference> table;
+
+    private static class Segment {
+        final ReentrantLock lock = Threading.lock("txconfidencetable");
+        // Access ordered, so iteration starts at the least recently used entry.
+        final LinkedHashMap<Sha256Hash, WeakConfidenceReference> table =
+                new LinkedHashMap<Sha256Hash, WeakConfidenceReference>(16, 0.75f, true);
+    }
+
+    private final Segment[] segments;
+    private final int maxSegmentSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    // only thing that is tracking the confidence data anymore. A background thread shared by all tables waits on it and
+    // deletes table entries corresponding to expired transactions. In this way memory usage of the system is in line
+    // with however many transactions you actually care to track the confidence of. We can still end up with lots of
+    // hashes being stored if our peers flood us with invs but the size bound caps this.
+    private static final ReferenceQueue<TransactionConfidence> referenceQueue = new ReferenceQueue<TransactionConfidence>();
+
+    static {
+        Thread cleaner = new Thread("TxConfidenceTable cleaner") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        // Find which transaction got deleted by the GC.
+                        WeakConfidenceReference ref = (WeakConfidenceReference) referenceQueue.remove();
+                        // And remove the associated map entry so the other bits of memory can also be reclaimed.
+                        ref.table.removeReference(ref);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Throwable e) {
+                        log.error("Error cleaning confidence table", e);
+                    }
+                }
+            }
+        };
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
     /**
      * Creates a table that will track at most the given number of transactions (allowing you to bound memory
-     * usage).
-     * @param size Max number of transactions to track. The table will fill up to this size then stop growing.
+     * usage), not counting transactions with event listeners on their confidence.
+     * @param size Max number of transactions to track. Once full, the least recently used transactions are evicted.
      */
     public TxConfidenceTable(final int size) {
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
-        referenceQueue = new ReferenceQueue<TransactionConfidence>();
+        checkArgument(size > 0);
+        // Small tables don't benefit from striping, and would end up with tiny segments that evict too eagerly.
+        int numSegments = Math.max(1, Math.min(SEGMENTS, Integer.highestOneBit(size / 32)));
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = new Segment();
+        maxSegmentSize = (size + numSegments - 1) / numSegments;
     }
 
     /**
@@ -83,24 +128,49 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
-    /**
-     * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
-     * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
-     * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
-     */
-    private void cleanTable() {
-        lock.lock();
+    private Segment segmentFor(Sha256Hash hash) {
+        // Sha256Hash.hashCode() takes bytes of the hash itself, so the low bits are already well distributed.
+        return segments[hash.hashCode() & (segments.length - 1)];
+    }
+
+    private void removeReference(WeakConfidenceReference ref) {
+        Segment segment = segmentFor(ref.hash);
+        segment.lock.lock();
         try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                table.remove(txRef.hash);
-            }
+            // The entry may have been replaced by a fresh confidence object since, in which case leave it be.
+            if (segment.table.get(ref.hash) == ref)
+                segment.table.remove(ref.hash);
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    @Nullable
+    private TransactionConfidence lookup(Segment segment, Sha256Hash hash) {
+        WeakConfidenceReference ref = segment.table.get(hash);
+        if (ref == null)
+            return null;
+        TransactionConfidence confidence = ref.get();
+        if (confidence == null) {
+            // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
+            segment.table.remove(hash);
+        }
+        return confidence;
+    }
+
+    // Evicts least recently used entries without listeners until the segment is back within its bound.
+    private void evict(Segment segment) {
+        int excess = segment.table.size() - maxSegmentSize;
+        if (excess <= 0)
+            return;
+        Iterator<WeakConfidenceReference> it = segment.table.values().iterator();
+        while (excess > 0 && it.hasNext()) {
+            TransactionConfidence confidence = it.next().get();
+            if (confidence == null || !confidence.hasEventListeners()) {
+                it.remove();
+                excess--;
+                evictions.incrementAndGet();
+            }
         }
     }
 
@@ -108,25 +178,8 @@ public class TxConfidenceTable {
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
-            } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+        TransactionConfidence confidence = get(txHash);
+        return confidence == null ? 0 : confidence.numBroadcastPeers();
     }
 
     /**
@@ -136,39 +189,33 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        }
-        lock.unlock();
-        if (fresh)
+        TransactionConfidence confidence = getOrCreate(hash);
+        // The confidence object is thread safe, so there's no need to hold the segment lock whilst updating it.
+        if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
 
     /**
-     * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
-     * is unknown to the system at this time.
+     * Returns the {@link TransactionConfidence} for the given hash, creating it if it isn't in the table yet.
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
+            TransactionConfidence confidence = lookup(segment, hash);
+            if (confidence != null) {
+                hits.incrementAndGet();
+                return confidence;
             }
+            misses.incrementAndGet();
             TransactionConfidence newConfidence = new TransactionConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            segment.table.put(hash, new WeakConfidenceReference(newConfidence, this));
+            evict(segment);
             return newConfidence;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
     }
 
@@ -178,18 +225,59 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
         try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
+            TransactionConfidence confidence = lookup(segment, hash);
             if (confidence != null)
-                return confidence;
+                hits.incrementAndGet();
             else
-                return null;
+                misses.incrementAndGet();
+            return confidence;
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions currently tracked. Entries may still be pending cleanup after GC. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.table.size();
+            } finally {
+                segment.lock.unlock();
+            }
         }
+        return size;
+    }
+
+    /** Returns how many lookups found a live confidence object. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups found nothing, including those that then created a new entry. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of lookups that were hits, or zero if there were none. */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Returns how many entries were evicted to keep the table within its size bound. */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "TxConfidenceTable: %d entries, %.1f%% hit rate, %d evictions", size(),
+                getHitRate() * 100, getEvictionCount());
     }
 }
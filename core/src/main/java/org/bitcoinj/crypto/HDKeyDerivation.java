@@ -16,14 +16,21 @@
 
 package org.bitcoinj.crypto;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.Threading;
+import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.*;
 
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -180,6 +187,111 @@ public final class HDKeyDerivation {
         return new RawKeyBytes(ki.toByteArray(), chainCode);
     }
 
+    /**
+     * Derives {@code count} non-hardened children of the given parent, starting at {@code childNumber}. Children for
+     * which derivation fails are skipped, so the result is identical to calling
+     * {@link #deriveThisOrNextChildKey(DeterministicKey, int)} repeatedly with the number following the previously
+     * returned child. The returned keys are public-only but keep a pointer to the parent, as if
+     * {@link DeterministicKey#dropPrivateBytes()} had been called on them.
+     *
+     * <p>All children are derived via public derivation: the parent's encoded public key and HMAC key schedule are
+     * computed once, and the resulting points are normalized together so that the whole batch costs a single field
+     * inversion. Large batches are split across {@link Threading#THREAD_POOL}.</p>
+     */
+    public static List<DeterministicKey> deriveThisOrNextChildKeys(final DeterministicKey parent, int childNumber, int count) {
+        checkArgument(count >= 0, "Negative key count: %s", count);
+        checkArgument(!new ChildNumber(childNumber).isHardened(), "Batch derivation only supports non-hardened children.");
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        int nextChild = childNumber;
+        int nAttempts = 0;
+        while (result.size() < count) {
+            if (nAttempts++ == MAX_CHILD_DERIVATION_ATTEMPTS)
+                throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+            final int needed = count - result.size();
+            checkArgument((long) nextChild + needed - 1 <= Integer.MAX_VALUE,
+                    "Batch derivation would run into the hardened range");
+            for (DeterministicKey key : deriveChildKeysFromPublic(parent, nextChild, needed))
+                if (key != null)
+                    result.add(key);
+            nextChild += needed;
+        }
+        return result;
+    }
+
+    // Below this many keys per worker the thread hand-off costs more than it saves.
+    private static final int MIN_KEYS_PER_WORKER = 32;
+
+    private static DeterministicKey[] deriveChildKeysFromPublic(final DeterministicKey parent, final int first, final int count) {
+        final byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        final ECPoint parentPoint = parent.getPubKeyPoint().normalize();
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        final int workers = Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_KEYS_PER_WORKER);
+        if (workers <= 1) {
+            deriveChildKeysFromPublic(parent, parentPublicKey, parentPoint, first, keys, 0, count);
+            return keys;
+        }
+        final int chunk = (count + workers - 1) / workers;
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>(workers);
+        for (int offset = 0; offset < count; offset += chunk) {
+            final int from = offset;
+            final int to = Math.min(count, offset + chunk);
+            futures.add(Threading.THREAD_POOL.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    deriveChildKeysFromPublic(parent, parentPublicKey, parentPoint, first, keys, from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            Futures.allAsList(futures).get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        return keys;
+    }
+
+    // Fills keys[from..to) with the children first+from .. first+to-1, leaving null where derivation fails.
+    private static void deriveChildKeysFromPublic(DeterministicKey parent, byte[] parentPublicKey, ECPoint parentPoint,
+                                                  int first, DeterministicKey[] keys, int from, int to) {
+        final BigInteger N = ECKey.CURVE.getN();
+        final ECCurve curve = ECKey.CURVE.getCurve();
+        final HMac hmac = HDUtils.createHmacSha512Digest(parent.getChainCode());
+        final byte[] data = new byte[37];
+        System.arraycopy(parentPublicKey, 0, data, 0, 33);
+        final ECPoint[] points = new ECPoint[to - from];
+        final byte[][] chainCodes = new byte[to - from][];
+        for (int i = from; i < to; i++) {
+            Utils.uint32ToByteArrayBE(first + i, data, 33);
+            byte[] il = HDUtils.hmacSha512(hmac, data);
+            BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(il, 0, 32));
+            if (ilInt.compareTo(N) > 0)
+                continue;
+            ECPoint ki = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+            if (ki.isInfinity())
+                continue;
+            points[i - from] = ki;
+            chainCodes[i - from] = Arrays.copyOfRange(il, 32, 64);
+        }
+        // Montgomery's trick: one field inversion for the whole range instead of one per key.
+        curve.normalizeAll(points);
+        final ImmutableList<ChildNumber> parentPath = parent.getPath();
+        for (int i = from; i < to; i++) {
+            ECPoint ki = points[i - from];
+            if (ki == null)
+                continue;
+            keys[i] = new DeterministicKey(
+                    HDUtils.append(parentPath, new ChildNumber(first + i, false)),
+                    chainCodes[i - from],
+                    new LazyECPoint(curve, ki.getEncoded(true)),
+                    null,
+                    parent);
+        }
+    }
+
     public enum PublicDeriveMode {
         NORMAL,
         WITH_INVERSION
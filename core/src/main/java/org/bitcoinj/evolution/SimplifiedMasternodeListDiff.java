@@ -21,6 +21,15 @@ public class SimplifiedMasternodeListDiff extends Message {
         super(params, payload, 0);
     }
 
+    // A diff without changes or coinbase, for the unit tests.
+    SimplifiedMasternodeListDiff(NetworkParameters params, Sha256Hash prevBlockHash, Sha256Hash blockHash) {
+        super(params);
+        this.prevBlockHash = prevBlockHash;
+        this.blockHash = blockHash;
+        deletedMNs = new HashSet<Sha256Hash>();
+        mnList = new ArrayList<SimplifiedMasternodeListEntry>();
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         prevBlockHash = readHash();
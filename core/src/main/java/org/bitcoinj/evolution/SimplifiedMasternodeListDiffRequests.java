@@ -0,0 +1,385 @@
+package org.bitcoinj.evolution;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of the {@link GetSimplifiedMasternodeListDiff} requests of the {@link SimplifiedMasternodeListManager}.
+ *
+ * <p>The requests form a pipeline: each one spans from the block the one before it asked for to the chain head at
+ * the time it was sent, so there is never more than one request for a pair of base and target block and the
+ * next diff is on its way while the one before is applied. Blocks that arrive while the pipeline is full are merged
+ * into one request once there is room again. A request that isn't answered within
+ * {@link #REQUEST_TIMEOUT_SECONDS} is sent to another peer.</p>
+ *
+ * <p>A diff that arrives before the ones it builds on is held here until they were applied. When the chain reorganizes
+ * away from the blocks in flight the pipeline starts over from the tip of the list.</p>
+ */
+public class SimplifiedMasternodeListDiffRequests {
+    private static final Logger log = LoggerFactory.getLogger(SimplifiedMasternodeListDiffRequests.class);
+
+    static final int REQUEST_TIMEOUT_SECONDS = 20;
+    // how many requests are sent to other peers before a request is given up
+    static final int MAX_REQUEST_ATTEMPTS = 4;
+    // how many requests may be in flight one after the other
+    static final int MAX_REQUESTS_IN_FLIGHT = 2;
+
+    static class Request {
+        final Sha256Hash baseBlockHash;
+        final StoredBlock target;
+        final Set<Peer> peersAsked = new HashSet<Peer>();
+        Peer peer;
+        // counts the sends, so that the timeout of an earlier send does not cut short a later one
+        int nSends;
+
+        Request(Sha256Hash baseBlockHash, StoredBlock target) {
+            this.baseBlockHash = baseBlockHash;
+            this.target = target;
+        }
+
+        Sha256Hash getTargetHash() {
+            return target.getHeader().getHash();
+        }
+
+        boolean matches(SimplifiedMasternodeListDiff diff) {
+            return baseBlockHash.equals(diff.prevBlockHash) && getTargetHash().equals(diff.blockHash);
+        }
+
+        @Override
+        public String toString() {
+            return "getmnlistdiff " + baseBlockHash + " -> " + target.getHeight() + " from " + peer;
+        }
+    }
+
+    private final Context context;
+    private final ReentrantLock lock = Threading.lock("SimplifiedMasternodeListDiffRequests");
+    // the requests in flight, each one based on the target of the one before
+    private final LinkedList<Request> pipeline = new LinkedList<Request>();
+    // diffs that arrived before the diffs they build on, by their base block
+    private final HashMap<Sha256Hash, SimplifiedMasternodeListDiff> heldDiffs = new HashMap<Sha256Hash, SimplifiedMasternodeListDiff>();
+    // the newest block that could not be requested yet because the pipeline was full
+    private StoredBlock pendingTarget;
+    private AbstractBlockChain blockChain;
+    private ScheduledExecutorService timeoutExecutor;
+
+    public SimplifiedMasternodeListDiffRequests(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Asks for the diff from the end of the pipeline, or the given tip if nothing is in flight, to the given block.
+     * Does nothing if that block or one after it was requested already and waits for room in the pipeline if it is
+     * full. Drops the requests in flight if the block is not a descendant of the last one of them.
+     *
+     * @param peer the peer to ask, or null to pick one
+     */
+    public void requestTo(Sha256Hash tipBlockHash, long tipHeight, StoredBlock target, @Nullable Peer peer) {
+        lock.lock();
+        try {
+            if (!pipeline.isEmpty()) {
+                StoredBlock last = pipeline.getLast().target;
+                if (isAncestor(target, last))
+                    return;
+                if (!isAncestor(last, target)) {
+                    // the chain reorganized, the requests in flight lead to blocks that aren't in it anymore
+                    log.info("getmnlistdiff: {} is not on top of {}, dropping {} requests", target.getHeight(),
+                            last.getHeight(), pipeline.size());
+                    pipeline.clear();
+                    heldDiffs.clear();
+                    pendingTarget = null;
+                }
+            }
+            if (pipeline.isEmpty() && !tipBlockHash.equals(Sha256Hash.ZERO_HASH)) {
+                if (tipBlockHash.equals(target.getHeader().getHash()))
+                    return;
+                // a block behind our tip, unless a reorganization took the tip out of the chain
+                if (target.getHeight() <= tipHeight) {
+                    StoredBlock tip = getBlock(tipBlockHash);
+                    if (tip == null || isAncestor(target, tip))
+                        return;
+                }
+            }
+            if (pipeline.size() >= MAX_REQUESTS_IN_FLIGHT) {
+                if (pendingTarget == null || !isAncestor(target, pendingTarget))
+                    pendingTarget = target;
+                return;
+            }
+            if (pendingTarget != null && isAncestor(pendingTarget, target))
+                pendingTarget = null;
+            Sha256Hash base = pipeline.isEmpty() ? tipBlockHash : pipeline.getLast().getTargetHash();
+            Request request = new Request(base, target);
+            pipeline.add(request);
+            send(request, peer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if no requests are in flight. */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return pipeline.isEmpty() && pendingTarget == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps a diff that doesn't connect to our tip if it answers a request further down the pipeline, so that it can
+     * be applied after the diffs before it. Returns false if nobody is waiting for the diff.
+     */
+    public boolean hold(SimplifiedMasternodeListDiff diff) {
+        lock.lock();
+        try {
+            for (int i = 1; i < pipeline.size(); i++) {
+                if (pipeline.get(i).matches(diff)) {
+                    heldDiffs.put(diff.prevBlockHash, diff);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the request that was answered as done, after its diff was applied and the list moved on to the given tip.
+     * Returns the held diff that builds on the new tip, if there is one, which should be applied next.
+     */
+    @Nullable
+    public SimplifiedMasternodeListDiff applied(Sha256Hash tipBlockHash) {
+        lock.lock();
+        try {
+            // drop the requests that were based on blocks before the new tip, their diffs would not connect anymore
+            boolean fConnected = false;
+            for (Request request : pipeline) {
+                if (request.getTargetHash().equals(tipBlockHash)) {
+                    fConnected = true;
+                    break;
+                }
+            }
+            if (fConnected) {
+                while (!pipeline.getFirst().getTargetHash().equals(tipBlockHash))
+                    pipeline.removeFirst();
+                pipeline.removeFirst();
+            } else if (!pipeline.isEmpty() && !pipeline.getFirst().baseBlockHash.equals(tipBlockHash)) {
+                // the diff came from somewhere else and the pipeline doesn't build on it
+                log.info("getmnlistdiff: the list moved to {}, dropping {} requests", tipBlockHash, pipeline.size());
+                // a pending block arrived after the ones in flight
+                if (pendingTarget == null)
+                    pendingTarget = pipeline.getLast().target;
+                pipeline.clear();
+                heldDiffs.clear();
+            }
+            return heldDiffs.remove(tipBlockHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sends the request for the blocks that arrived while the pipeline was full, if there is room now. */
+    public void requestPending(Sha256Hash tipBlockHash, long tipHeight) {
+        StoredBlock target;
+        lock.lock();
+        try {
+            if (pendingTarget == null || pipeline.size() >= MAX_REQUESTS_IN_FLIGHT)
+                return;
+            target = pendingTarget;
+            pendingTarget = null;
+        } finally {
+            lock.unlock();
+        }
+        requestTo(tipBlockHash, tipHeight, target, null);
+    }
+
+    // Sends the request to the given peer, or to one that wasn't asked yet, and checks back after the timeout.
+    private void send(final Request request, @Nullable Peer peer) {
+        if (peer == null || request.peersAsked.contains(peer))
+            peer = choosePeer(request);
+        if (peer == null) {
+            log.info("getmnlistdiff: no peer to ask for {}", request);
+            giveUp(request);
+            return;
+        }
+        request.peer = peer;
+        request.peersAsked.add(peer);
+        final int nSend = ++request.nSends;
+        log.info("getmnlistdiff: requesting {}", request);
+        peer.sendMessage(new GetSimplifiedMasternodeListDiff(request.baseBlockHash, request.getTargetHash()));
+
+        getTimeoutExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry(request, nSend, "timeout");
+            }
+        }, REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Sends the request to another peer if the given send of it is still unanswered.
+    void retry(Request request, int nSend, String strReason) {
+        lock.lock();
+        try {
+            if (!pipeline.contains(request) || request.nSends != nSend)
+                return;
+            log.info("getmnlistdiff: {} for {}", strReason, request);
+            if (request.peersAsked.size() >= MAX_REQUEST_ATTEMPTS) {
+                giveUp(request);
+                return;
+            }
+            send(request, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the request and the ones based on it, the next request starts over from our tip.
+    private void giveUp(Request request) {
+        log.info("getmnlistdiff: giving up on {}", request);
+        int index = pipeline.indexOf(request);
+        if (index < 0)
+            return;
+        StoredBlock last = pipeline.getLast().target;
+        while (pipeline.size() > index)
+            heldDiffs.remove(pipeline.removeLast().baseBlockHash);
+        if (pendingTarget == null)
+            pendingTarget = last;
+    }
+
+    @Nullable
+    Peer choosePeer(Request request) {
+        PeerGroup peerGroup = context.peerGroup;
+        if (peerGroup == null)
+            return null;
+        Peer downloadPeer = peerGroup.getDownloadPeer();
+        if (downloadPeer != null && !request.peersAsked.contains(downloadPeer))
+            return downloadPeer;
+        List<Peer> peers = new ArrayList<Peer>(peerGroup.getConnectedPeers());
+        for (Peer peer : peers) {
+            if (!request.peersAsked.contains(peer))
+                return peer;
+        }
+        return null;
+    }
+
+    @Nullable
+    private StoredBlock getBlock(Sha256Hash hash) {
+        if (blockChain == null)
+            return null;
+        try {
+            return blockChain.getBlockStore().get(hash);
+        } catch (BlockStoreException x) {
+            log.info("getmnlistdiff: can't look up block {}: {}", hash, x.getMessage());
+            return null;
+        }
+    }
+
+    // Returns true if the first block is the second one or one of its ancestors, false if the block store can't tell.
+    private boolean isAncestor(StoredBlock ancestor, StoredBlock block) {
+        BlockStore store = blockChain != null ? blockChain.getBlockStore() : null;
+        try {
+            while (block != null && block.getHeight() > ancestor.getHeight()) {
+                if (store == null)
+                    return false;
+                block = block.getPrev(store);
+            }
+        } catch (BlockStoreException x) {
+            log.info("getmnlistdiff: can't look up the ancestors of {}: {}", block.getHeight(), x.getMessage());
+            return false;
+        }
+        return block != null && block.getHeader().getHash().equals(ancestor.getHeader().getHash());
+    }
+
+    /**
+     * Uses the given chain to tell which blocks follow the requests in flight, and asks another peer right away for
+     * what was requested from a peer of the given group that disconnected.
+     */
+    public void setBlockChain(AbstractBlockChain blockChain, PeerGroup peerGroup) {
+        lock.lock();
+        try {
+            this.blockChain = blockChain;
+        } finally {
+            lock.unlock();
+        }
+        peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(final Peer peer, int peerCount) {
+                getTimeoutExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lock.lock();
+                        try {
+                            for (Request request : new ArrayList<Request>(pipeline)) {
+                                if (peer.equals(request.peer))
+                                    retry(request, request.nSends, "peer disconnected");
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private ScheduledExecutorService getTimeoutExecutor() {
+        lock.lock();
+        try {
+            if (timeoutExecutor == null)
+                timeoutExecutor = new ScheduledThreadPoolExecutor(1, new ContextPropagatingThreadFactory("Masternode list diff requests"));
+            return timeoutExecutor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the requests in flight, the first one is based on our tip.
+    List<Request> getRequests() {
+        lock.lock();
+        try {
+            return new ArrayList<Request>(pipeline);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    StoredBlock getPendingTarget() {
+        lock.lock();
+        try {
+            return pendingTarget;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "SimplifiedMasternodeListDiffRequests: " + pipeline.size() + " in flight, " + heldDiffs.size() + " held" +
+                    (pendingTarget != null ? ", pending " + pendingTarget.getHeight() : "");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -3,14 +3,14 @@ package org.bitcoinj.evolution;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SimplifiedMasternodeListManager extends AbstractManager {
     private static final Logger log = LoggerFactory.getLogger(MasternodeManager.class);
@@ -21,15 +21,24 @@ public class SimplifiedMasternodeListManager extends AbstractManager {
 
     HashMap<Sha256Hash, SimplifiedMasternodeList> mnListsCache;
     SimplifiedMasternodeList mnList;
-    long tipHeight;
-    Sha256Hash tipBlockHash;
+    volatile long tipHeight;
+    volatile Sha256Hash tipBlockHash;
 
     AbstractBlockChain blockChain;
 
+    // saving is left out while diffs are in flight, but not for longer than this
+    static final int SAVE_INTERVAL_SECONDS = 60;
+
+    // guards the list and its tip, the diffs arrive on the peer threads
+    private final ReentrantLock lock = Threading.lock("SimplifiedMasternodeListManager");
+    private final SimplifiedMasternodeListDiffRequests diffRequests;
+    private long nTimeLastSaved;
+
     public SimplifiedMasternodeListManager(Context context) {
         super(context);
         tipBlockHash = Sha256Hash.ZERO_HASH;
         mnList = new SimplifiedMasternodeList(context.getParams());
+        diffRequests = new SimplifiedMasternodeListDiffRequests(context);
     }
 
     @Override
@@ -72,6 +81,44 @@ public class SimplifiedMasternodeListManager extends AbstractManager {
     }
 
     public void processMasternodeListDiff(SimplifiedMasternodeListDiff mnlistdiff) {
+        Sha256Hash tip;
+        long height;
+        lock.lock();
+        try {
+            // A diff for another base can't be applied, check before the list is copied. One that answers a request
+            // further down the pipeline waits for the diffs before it.
+            if(!mnlistdiff.prevBlockHash.equals(tipBlockHash)) {
+                if(diffRequests.hold(mnlistdiff))
+                    log.info("holding mnlistdiff for " + mnlistdiff.blockHash + " until its base arrives");
+                else
+                    log.info("dropping mnlistdiff for " + mnlistdiff.blockHash + ", its base is not our tip " + tipBlockHash);
+                return;
+            }
+            SimplifiedMasternodeListDiff diff = mnlistdiff;
+            while(diff != null && applyDiff(diff))
+                diff = diffRequests.applied(tipBlockHash);
+            tip = tipBlockHash;
+            height = tipHeight;
+
+            // save once caught up, not after every diff
+            if(diffRequests.isIdle() || Utils.currentTimeSeconds() - nTimeLastSaved >= SAVE_INTERVAL_SECONDS) {
+                try {
+                    save();
+                    nTimeLastSaved = Utils.currentTimeSeconds();
+                } catch(NullPointerException x) {
+                    //file name is not set, do not save
+                    log.info(x.getMessage());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        diffRequests.requestPending(tip, height);
+    }
+
+    // Applies a diff that connects to our tip, must be called with the lock held.
+    private boolean applyDiff(SimplifiedMasternodeListDiff mnlistdiff) {
         long newHeight = ((CoinbaseTx) mnlistdiff.coinBaseTx.getExtraPayloadObject()).getHeight();
         log.info("processing mnlistdiff between : " + tipHeight + " & " + newHeight + "; " + mnlistdiff);
         try {
@@ -81,14 +128,13 @@ public class SimplifiedMasternodeListManager extends AbstractManager {
             tipHeight = newHeight;
             tipBlockHash = mnlistdiff.blockHash;
             log.info(this.toString());
+            context.masternodeSync.addedAssetItem(MasternodeSync.Asset.DMN_LIST);
             unCache();
-            save();
+            return true;
         } catch(IllegalArgumentException x) {
             //we already have this mnlistdiff or doesn't match our current tipBlockHash
             log.info(x.getMessage());
-        } catch(NullPointerException x) {
-            //file name is not set, do not save
-            log.info(x.getMessage());
+            return false;
         }
     }
 
@@ -108,7 +154,7 @@ public class SimplifiedMasternodeListManager extends AbstractManager {
             if(isDeterministicMNsSporkActive()) {
                 if (tipBlockHash.equals(Sha256Hash.ZERO_HASH) || tipHeight < blockChain.getBestChainHeight()) {
                     if(Utils.currentTimeSeconds() - blockChain.getChainHead().getHeader().getTimeSeconds() < 60 * 60)
-                        peer.sendMessage(new GetSimplifiedMasternodeListDiff(tipBlockHash, blockChain.getChainHead().getHeader().getHash()));
+                        diffRequests.requestTo(tipBlockHash, tipHeight, blockChain.getChainHead(), peer);
                 }
             }
         }
@@ -118,22 +164,33 @@ public class SimplifiedMasternodeListManager extends AbstractManager {
         this.blockChain = blockChain;
         blockChain.addNewBestBlockListener(newBestBlockListener);
         peerGroup.addConnectedEventListener(peerConnectedEventListener);
+        diffRequests.setBlockChain(blockChain, peerGroup);
     }
 
+    /**
+     * Requests the changes to the list up to the given block, unless they were requested already. While catching up
+     * this asks for everything since the last request in one go.
+     */
     public void requestMNListDiff(StoredBlock block) {
         log.info("getmnlistdiff:  current block:  " + tipHeight + " requested block " + block.getHeight());
-        context.peerGroup.getDownloadPeer().sendMessage(new GetSimplifiedMasternodeListDiff(tipBlockHash, block.getHeader().getHash()));
+        diffRequests.requestTo(tipBlockHash, tipHeight, block, null);
+    }
+
+    /** Asks the given peer for the changes to the list between our tip and the chain head, unless they were requested already. */
+    public void requestMNListDiff(Peer peer) {
+        log.info("getmnlistdiff:  current block:  " + tipHeight + " requested block " + blockChain.getBestChainHeight() + " from " + peer);
+        diffRequests.requestTo(tipBlockHash, tipHeight, blockChain.getChainHead(), peer);
+    }
+
+    /** Returns true if deterministic masternodes are active and the list is behind the chain head. */
+    public boolean isBehindChainHead() {
+        if(blockChain == null || !isDeterministicMNsSporkActive(blockChain.getBestChainHeight()))
+            return false;
+        return tipBlockHash.equals(Sha256Hash.ZERO_HASH) || tipHeight < blockChain.getBestChainHeight();
     }
 
     public void updateMNList() {
-        log.info("getmnlistdiff:  current block:  " + tipHeight + " requested block " + context.blockChain.getChainHead().getHeight());
-        Peer peer = context.peerGroup.getDownloadPeer();
-        if(peer == null) {
-            List<Peer> peers = context.peerGroup.getConnectedPeers();
-            peer = peers.get(new Random().nextInt(peers.size()));
-        }
-        if(peer != null)
-            peer.sendMessage(new GetSimplifiedMasternodeListDiff(tipBlockHash, context.blockChain.getChainHead().getHeader().getHash()));
+        requestMNListDiff(context.blockChain.getChainHead());
     }
 
     @Override
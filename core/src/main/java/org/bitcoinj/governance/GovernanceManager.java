@@ -80,6 +80,34 @@ public class GovernanceManager extends AbstractManager {
 
     private boolean fRateChecksEnabled;
 
+    // Maintenance works on these instead of scanning all objects, they are built by the first pass after the
+    // objects were created or loaded, when fIndexed is still false.
+    private boolean fIndexed;
+    // objects whose cached state is recalculated on the next maintenance pass
+    private LinkedHashSet<Sha256Hash> setDirtyObjects;
+    // deleted or expired objects by the time they may be erased at
+    private PriorityQueue<ExpiryEntry> queueObjectDeletions;
+    // entries of mapErasedGovernanceObjects by the time they expire at
+    private PriorityQueue<ExpiryEntry> queueErasedExpirations;
+
+    // how many objects maintenance handles before letting go of the lock for a moment
+    static final int MAX_OBJECTS_PER_LOCK = 200;
+
+    private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+        final long nTime;
+        final Sha256Hash nHash;
+
+        ExpiryEntry(long nTime, Sha256Hash nHash) {
+            this.nTime = nTime;
+            this.nHash = nHash;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            return nTime < other.nTime ? -1 : (nTime == other.nTime ? 0 : 1);
+        }
+    }
+
     public GovernanceManager(Context context) {
         super(context);
         this.nTimeLastDiff = 0;
@@ -174,6 +202,8 @@ public class GovernanceManager extends AbstractManager {
             mapLastMasternodeObject.put(outPoint, record);
         }
 
+        fIndexed = false;
+
         if(!version.equals(SERIALIZATION_VERSION_STRING))
             clear();
 
@@ -239,6 +269,7 @@ public class GovernanceManager extends AbstractManager {
             mapInvalidVotes.clear();
             mapOrphanVotes.clear();
             mapLastMasternodeObject.clear();
+            fIndexed = false;
 
         } finally {
             lock.unlock();
@@ -357,6 +388,7 @@ public class GovernanceManager extends AbstractManager {
         if (processVote(peer, vote, exception)) {
             log.info("gobject--MNGOVERNANCEOBJECTVOTE -- {} new", strHash);
             context.masternodeSync.BumpAssetLastTime("MNGOVERNANCEOBJECTVOTE");
+            context.masternodeSync.addedAssetItem(MasternodeSync.Asset.GOVERNANCE_VOTES);
             vote.relay();
         } else {
             log.info("gobject--MNGOVERNANCEOBJECTVOTE -- Rejected vote, error = {}", exception.getMessage());
@@ -404,6 +436,11 @@ public class GovernanceManager extends AbstractManager {
             boolean fOk = govobj.processVote(pfrom, vote, exception);
             if (fOk) {
                 mapVoteToObject.insert(nHashVote, govobj);
+                markDirty(nHashGovobj);
+
+                if (govobj.getObjectType() == GOVERNANCE_OBJECT_TRIGGER) {
+                    context.triggerManager.invalidateTrigger(nHashGovobj);
+                }
 
                 if (govobj.getObjectType() == GOVERNANCE_OBJECT_WATCHDOG) {
                     context.masternodeManager.updateLastSentinelPingTime(vote.getMasternodeOutpoint());
@@ -701,6 +738,7 @@ public class GovernanceManager extends AbstractManager {
 
             // INSERT INTO OUR GOVERNANCE OBJECT MEMORY
             mapObjects.put(nHash, govobj);
+            markDirty(nHash);
             queueOnGovernanceObjectAdded(nHash, govobj);
             unCache();
 
@@ -731,6 +769,7 @@ public class GovernanceManager extends AbstractManager {
             masternodeRateUpdate(govobj);
 
             context.masternodeSync.BumpAssetLastTime("CGovernanceManager::AddGovernanceObject");
+            context.masternodeSync.addedAssetItem(MasternodeSync.Asset.GOVERNANCE_OBJECTS);
 
             // WE MIGHT HAVE PENDING/ORPHAN VOTES FOR THIS OBJECT
 
@@ -743,6 +782,30 @@ public class GovernanceManager extends AbstractManager {
         }
     }
 
+    // Returns true if the object was erased and its hash is still remembered, so it won't be accepted again.
+    boolean haveErasedObject(Sha256Hash nHash) {
+        lock.lock();
+        try {
+            return mapErasedGovernanceObjects.containsKey(nHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds the object without validating it, as addGovernanceObject does after the object was accepted.
+    void addGovernanceObjectForUnitTesting(GovernanceObject govobj) {
+        lock.lock();
+        try {
+            Sha256Hash nHash = govobj.getHash();
+            mapObjects.put(nHash, govobj);
+            markDirty(nHash);
+            if (govobj.getObjectType() == GOVERNANCE_OBJECT_TRIGGER)
+                context.triggerManager.addNewTrigger(nHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public boolean updateCurrentWatchdog(GovernanceObject watchdogNew) {
         boolean fAccept = false;
 
@@ -764,6 +827,7 @@ public class GovernanceManager extends AbstractManager {
                     if (it.getDeletionTime() == 0) {
                         it.setDeletionTime(nNow);
                     }
+                    markDirty(nHashWatchdogCurrent);
                 }
                 nHashWatchdogCurrent = watchdogNew.getHash();
                 nTimeWatchdogCurrent = watchdogNew.getCreationTime();
@@ -862,13 +926,41 @@ public class GovernanceManager extends AbstractManager {
         updateCachesAndClean();
     }
 
+    /**
+     * Has the next maintenance pass look at the object's state, for example because it got a vote or expired.
+     * Must be called with the lock held.
+     */
+    void markDirty(Sha256Hash nHash) {
+        if (fIndexed)
+            setDirtyObjects.add(nHash);
+    }
+
+    // Builds the maintenance queues from scratch, so that all objects are checked once.
+    private void buildMaintenanceIndex() {
+        setDirtyObjects = new LinkedHashSet<Sha256Hash>(mapObjects.keySet());
+        queueObjectDeletions = new PriorityQueue<ExpiryEntry>();
+        queueErasedExpirations = new PriorityQueue<ExpiryEntry>();
+        for (Map.Entry<Sha256Hash, Long> entry : mapErasedGovernanceObjects.entrySet()) {
+            if (entry.getValue() != Long.MAX_VALUE)
+                queueErasedExpirations.add(new ExpiryEntry(entry.getValue(), entry.getKey()));
+        }
+        fIndexed = true;
+    }
+
+    /**
+     * Updates the cached state of the objects that were marked dirty and erases the objects whose deletion delay
+     * passed. The lock is released after every MAX_OBJECTS_PER_LOCK objects, so maintenance doesn't
+     * hold up vote processing for long.
+     */
     public void updateCachesAndClean() {
         log.info("gobject--CGovernanceManager::UpdateCachesAndClean");
 
         ArrayList<Sha256Hash> vecDirtyHashes = context.masternodeManager.getAndClearDirtyGovernanceObjectHashes();
-        
+
         lock.lock();
         try {
+            if (!fIndexed)
+                buildMaintenanceIndex();
 
             // Flag expired watchdogs for removal
             long nNow = Utils.currentTimeSeconds();
@@ -877,7 +969,6 @@ public class GovernanceManager extends AbstractManager {
                 Iterator<Map.Entry<Sha256Hash, Long>> it = mapWatchdogObjects.entrySet().iterator();
                 while (it.hasNext()) {
                     Map.Entry<Sha256Hash, Long> entry = it.next();
-                    log.info("gobject--CGovernanceManager::UpdateCachesAndClean -- Checking watchdog: {}, expiration time = {}", entry.getKey(), entry.getValue());
                     if (entry.getValue() < nNow) {
                         log.info("gobject--CGovernanceManager::UpdateCachesAndClean -- Attempting to expire watchdog: {}, expiration time = {}", entry.getKey(), entry.getValue());
                         GovernanceObject governanceObject = mapObjects.get(entry.getKey());
@@ -887,6 +978,7 @@ public class GovernanceManager extends AbstractManager {
                             if (governanceObject.getDeletionTime() == 0) {
                                 governanceObject.setDeletionTime(nNow);
                             }
+                            markDirty(entry.getKey());
                         }
                         if (entry.getKey().equals(nHashWatchdogCurrent)) {
                             nHashWatchdogCurrent = Sha256Hash.ZERO_HASH;
@@ -903,31 +995,40 @@ public class GovernanceManager extends AbstractManager {
                 }
                 it.clearMasternodeVotes();
                 it.setDirtyCache(true);
+                markDirty(vecDirtyHashes.get(i));
             }
 
+            // Clean up any expired or invalid triggers
+            context.triggerManager.cleanAndRemove();
+        } finally {
+            lock.unlock();
+        }
+
+        int nUpdated = 0, nErased = 0;
+        boolean fMore = true;
+        while (fMore) {
             //ScopedLockBool guard = new ScopedLockBool(cs, fRateChecksEnabled, false);
             lock.lock();
             boolean _fRateChecksEnabled = fRateChecksEnabled;
             fRateChecksEnabled = false;
             try {
-
-                // UPDATE CACHE FOR EACH OBJECT THAT IS FLAGGED DIRTYCACHE=TRUE
-
-                Iterator<Map.Entry<Sha256Hash, GovernanceObject>> it = mapObjects.entrySet().iterator();
-
-                // Clean up any expired or invalid triggers
-                context.triggerManager.cleanAndRemove();
-
-                while (it.hasNext()) {
-                    Map.Entry<Sha256Hash, GovernanceObject> entry = it.next();
-                    GovernanceObject pObj = entry.getValue();
-
+                if (!fIndexed)
+                    buildMaintenanceIndex();
+                long nNow = Utils.currentTimeSeconds();
+                int nBudget = MAX_OBJECTS_PER_LOCK;
+
+                // UPDATE CACHE FOR EACH OBJECT THAT WAS MARKED DIRTY
+
+                Iterator<Sha256Hash> dirtyIt = setDirtyObjects.iterator();
+                while (nBudget > 0 && dirtyIt.hasNext()) {
+                    Sha256Hash nHash = dirtyIt.next();
+                    dirtyIt.remove();
+                    GovernanceObject pObj = mapObjects.get(nHash);
                     if (pObj == null) {
                         continue;
                     }
-
-                    Sha256Hash nHash = entry.getKey();
-                    String strHash = nHash.toString();
+                    nBudget--;
+                    nUpdated++;
 
                     // IF CACHE IS NOT DIRTY, WHY DO THIS?
                     if (pObj.isSetDirtyCache()) {
@@ -938,61 +1039,83 @@ public class GovernanceManager extends AbstractManager {
                         pObj.updateSentinelVariables();
                     }
 
-                    if (pObj.isSetCachedDelete() && (nHash == nHashWatchdogCurrent)) {
+                    if (pObj.isSetCachedDelete() && nHash.equals(nHashWatchdogCurrent)) {
                         nHashWatchdogCurrent = Sha256Hash.ZERO_HASH;
                     }
 
-                    // IF DELETE=TRUE, THEN CLEAN THE MESS UP!
-
-                    long nTimeSinceDeletion = Utils.currentTimeSeconds() - pObj.getDeletionTime();
+                    if (pObj.isSetCachedDelete() || pObj.isSetExpired()) {
+                        queueObjectDeletions.add(new ExpiryEntry(pObj.getDeletionTime() + GOVERNANCE_DELETION_DELAY, nHash));
+                    }
+                }
 
-                    log.info("gobject--CGovernanceManager::UpdateCachesAndClean -- Checking object for deletion: {}, deletion time = {}, time since deletion = {}, delete flag = {}, expired flag = {}",
-                            strHash, pObj.getDeletionTime(), nTimeSinceDeletion, pObj.isSetCachedDelete(), pObj.isSetExpired());
+                // IF DELETE=TRUE, THEN CLEAN THE MESS UP!
 
-                    if ((pObj.isSetCachedDelete() || pObj.isSetExpired()) && (nTimeSinceDeletion >= GOVERNANCE_DELETION_DELAY)) {
-                        log.info("CGovernanceManager::UpdateCachesAndClean -- erase obj {}", entry.getValue());
-                        context.masternodeManager.removeGovernanceObject(pObj.getHash());
+                Set<GovernanceObject> setErased = Collections.newSetFromMap(new IdentityHashMap<GovernanceObject, Boolean>());
+                while (nBudget > 0 && !queueObjectDeletions.isEmpty() && queueObjectDeletions.peek().nTime <= nNow) {
+                    Sha256Hash nHash = queueObjectDeletions.poll().nHash;
+                    GovernanceObject pObj = mapObjects.get(nHash);
+                    if (pObj == null || !(pObj.isSetCachedDelete() || pObj.isSetExpired())) {
+                        continue;
+                    }
+                    long nTimeSinceDeletion = nNow - pObj.getDeletionTime();
+                    if (nTimeSinceDeletion < GOVERNANCE_DELETION_DELAY) {
+                        // the deletion time changed after the object was queued
+                        queueObjectDeletions.add(new ExpiryEntry(pObj.getDeletionTime() + GOVERNANCE_DELETION_DELAY, nHash));
+                        continue;
+                    }
+                    nBudget--;
+                    nErased++;
 
-                        // Remove vote references
-                        final LinkedList<CacheItem<Sha256Hash, GovernanceObject>> listItems = mapVoteToObject.getItemList();
-                        Iterator<CacheItem<Sha256Hash, GovernanceObject>> lit = listItems.iterator();
-                        while (lit.hasNext()) {
-                            CacheItem<Sha256Hash, GovernanceObject> item = lit.next();
-                            if (item.value == pObj) {
-                                Sha256Hash nKey = item.key;
-                                //mapVoteToObject.erase(nKey);//TODO: crash here?
-                                lit.remove();
-                            }
-                        }
+                    log.info("CGovernanceManager::UpdateCachesAndClean -- erase obj {}", pObj);
+                    context.masternodeManager.removeGovernanceObject(pObj.getHash());
+                    setErased.add(pObj);
 
-                        long nSuperblockCycleSeconds = params.getSuperblockCycle() * params.TARGET_SPACING;
-                        long nTimeExpired = pObj.getCreationTime() + 2 * nSuperblockCycleSeconds + GOVERNANCE_DELETION_DELAY;
+                    long nSuperblockCycleSeconds = params.getSuperblockCycle() * params.TARGET_SPACING;
+                    long nTimeExpired = pObj.getCreationTime() + 2 * nSuperblockCycleSeconds + GOVERNANCE_DELETION_DELAY;
 
-                        if (pObj.getObjectType() == GOVERNANCE_OBJECT_WATCHDOG) {
-                            mapWatchdogObjects.remove(nHash);
-                        } else if (pObj.getObjectType() != GOVERNANCE_OBJECT_TRIGGER) {
-                            // keep hashes of deleted proposals forever
-                            nTimeExpired = Long.MAX_VALUE;
-                        }
+                    if (pObj.getObjectType() == GOVERNANCE_OBJECT_WATCHDOG) {
+                        mapWatchdogObjects.remove(nHash);
+                    } else if (pObj.getObjectType() != GOVERNANCE_OBJECT_TRIGGER) {
+                        // keep hashes of deleted proposals forever
+                        nTimeExpired = Long.MAX_VALUE;
+                    }
 
-                        mapErasedGovernanceObjects.put(nHash, nTimeExpired);
-                        it.remove();
+                    mapErasedGovernanceObjects.put(nHash, nTimeExpired);
+                    if (nTimeExpired != Long.MAX_VALUE) {
+                        queueErasedExpirations.add(new ExpiryEntry(nTimeExpired, nHash));
                     }
+                    mapObjects.remove(nHash);
+                    if (pObj.getObjectType() == GOVERNANCE_OBJECT_TRIGGER) {
+                        context.triggerManager.invalidateTrigger(nHash);
+                    }
+                }
+
+                // Remove vote references, in one sweep for all objects erased this time round
+                if (!setErased.isEmpty()) {
+                    mapVoteToObject.eraseValues(setErased);
                 }
 
                 // forget about expired deleted objects
-                Iterator<Map.Entry<Sha256Hash, Long>> sIt = mapErasedGovernanceObjects.entrySet().iterator();
-                while (sIt.hasNext()) {
-                    if (sIt.next().getValue() < nNow) {
-                        sIt.remove();
+                while (nBudget > 0 && !queueErasedExpirations.isEmpty() && queueErasedExpirations.peek().nTime < nNow) {
+                    ExpiryEntry entry = queueErasedExpirations.poll();
+                    Long nTimeExpired = mapErasedGovernanceObjects.get(entry.nHash);
+                    if (nTimeExpired != null && nTimeExpired == entry.nTime) {
+                        mapErasedGovernanceObjects.remove(entry.nHash);
+                        nBudget--;
                     }
                 }
+
+                // ran out of budget, so there may be more to do after letting others have the lock
+                fMore = nBudget == 0;
             } finally {
                 fRateChecksEnabled = _fRateChecksEnabled;
                 lock.unlock();
             }
+        }
 
-            log.info("CGovernanceManager::UpdateCachesAndClean -- {}", toString());
+        lock.lock();
+        try {
+            log.info("CGovernanceManager::UpdateCachesAndClean -- updated {}, erased {}, {}", nUpdated, nErased, toString());
             unCache();
         } finally {
             lock.unlock();
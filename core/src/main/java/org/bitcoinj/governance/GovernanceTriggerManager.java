@@ -7,6 +7,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.bitcoinj.governance.GovernanceObject.*;
 
@@ -17,6 +18,22 @@ public class GovernanceTriggerManager {
     Context context;
 
     private HashMap<Sha256Hash, Superblock> mapTrigger;
+    // Triggers by the height of the block they pay in, guarded by the governance lock like mapTrigger.
+    private HashMap<Integer, HashSet<Sha256Hash>> mapTriggersByHeight;
+    // The result of evaluating the triggers of a height, read without the governance lock. Entries are
+    // removed whenever a trigger at their height is added, removed or voted on.
+    private ConcurrentHashMap<Integer, HeightState> mapHeightStates;
+
+    /** Whether a superblock is triggered at a height and which trigger has the most funding votes. */
+    static class HeightState {
+        final boolean fTriggered;
+        final Superblock bestSuperblock;
+
+        HeightState(boolean fTriggered, Superblock bestSuperblock) {
+            this.fTriggered = fTriggered;
+            this.bestSuperblock = bestSuperblock;
+        }
+    }
 
     /**
      *   Add Governance Object
@@ -35,9 +52,9 @@ public class GovernanceTriggerManager {
                 return false;
             }
 
-            Superblock pSuperblock = new Superblock(context.getParams());
+            Superblock pSuperblock;
             try {
-                Superblock pSuperblockTmp = new Superblock(context.getParams(), nHash);
+                pSuperblock = new Superblock(context.getParams(), nHash);
             } catch (SuperblockException e) {
                 log.info("CGovernanceTriggerManager::AddNewTrigger -- Error creating Superblock: {}", e.getMessage());
                 return false;
@@ -50,6 +67,14 @@ public class GovernanceTriggerManager {
 
             log.info("CGovernanceTriggerManager::AddNewTrigger: Inserting trigger");
             mapTrigger.put(nHash, pSuperblock);
+            int nBlockStart = pSuperblock.getBlockStart();
+            HashSet<Sha256Hash> setHashes = mapTriggersByHeight.get(nBlockStart);
+            if (setHashes == null) {
+                setHashes = new HashSet<Sha256Hash>();
+                mapTriggersByHeight.put(nBlockStart, setHashes);
+            }
+            setHashes.add(nHash);
+            mapHeightStates.remove(nBlockStart);
 
             log.info("CGovernanceTriggerManager::AddNewTrigger: End");
 
@@ -61,6 +86,8 @@ public class GovernanceTriggerManager {
 
     public GovernanceTriggerManager(Context context) {
         this.mapTrigger = new HashMap<Sha256Hash, Superblock>();
+        this.mapTriggersByHeight = new HashMap<Integer, HashSet<Sha256Hash>>();
+        this.mapHeightStates = new ConcurrentHashMap<Integer, HeightState>();
         this.context = context;
     }
 
@@ -124,6 +151,7 @@ public class GovernanceTriggerManager {
                                     log.info("gobject--CGovernanceTriggerManager::CleanAndRemove -- Expiring outdated object: {}", pgovobj.getHash().toString());
                                     pgovobj.setExpired(true);
                                     pgovobj.setDeletionTime(Utils.currentTimeSeconds());
+                                    context.governanceManager.markDirty(pgovobj.getHash());
                                 }
                             }
                         }
@@ -142,8 +170,12 @@ public class GovernanceTriggerManager {
                     log.info("CGovernanceTriggerManager::CleanAndRemove: Removing object: " + strdata);
                     log.info("gobject--CGovernanceTriggerManager::CleanAndRemove -- Removing trigger object");
                     it.remove();
+                    removeFromHeightIndex(entry.getKey(), pSuperblock);
                 }
             }
+            // The funding state also depends on the number of enabled masternodes, which may have changed since the
+            // states were cached, so evaluate all heights again when they are next needed.
+            mapHeightStates.clear();
         } finally {
             context.governanceManager.lock.unlock();
         }
@@ -151,6 +183,88 @@ public class GovernanceTriggerManager {
         log.info("CGovernanceTriggerManager::CleanAndRemove: End");
     }
 
+    private void removeFromHeightIndex(Sha256Hash nHash, Superblock pSuperblock) {
+        if (pSuperblock == null)
+            return;
+        int nBlockStart = pSuperblock.getBlockStart();
+        HashSet<Sha256Hash> setHashes = mapTriggersByHeight.get(nBlockStart);
+        if (setHashes != null) {
+            setHashes.remove(nHash);
+            if (setHashes.isEmpty())
+                mapTriggersByHeight.remove(nBlockStart);
+        }
+        mapHeightStates.remove(nBlockStart);
+    }
+
+    /**
+     * Forgets the cached state of the height the given trigger pays in, if it is a trigger. Called with the
+     * governance lock held when a vote for the object arrives or the object is erased.
+     */
+    public void invalidateTrigger(Sha256Hash nHash) {
+        Superblock pSuperblock = mapTrigger.get(nHash);
+        if (pSuperblock != null)
+            mapHeightStates.remove(pSuperblock.getBlockStart());
+    }
+
+    /** Returns the hashes of the triggers that pay in the given block. */
+    Set<Sha256Hash> getTriggerHashes(int nBlockHeight) {
+        context.governanceManager.lock.lock();
+        try {
+            HashSet<Sha256Hash> setHashes = mapTriggersByHeight.get(nBlockHeight);
+            return setHashes != null ? new HashSet<Sha256Hash>(setHashes) : Collections.<Sha256Hash>emptySet();
+        } finally {
+            context.governanceManager.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether a superblock is triggered at the given height and the best trigger for it. This is a map
+     * lookup once the height was evaluated, and only evaluates the triggers at the height, with the governance lock
+     * held, if it wasn't.
+     */
+    HeightState getHeightState(int nBlockHeight) {
+        HeightState state = mapHeightStates.get(nBlockHeight);
+        if (state != null)
+            return state;
+        context.governanceManager.lock.lock();
+        try {
+            state = mapHeightStates.get(nBlockHeight);
+            if (state != null)
+                return state;
+            boolean fTriggered = false;
+            Superblock bestSuperblock = null;
+            int nYesCount = 0;
+            HashSet<Sha256Hash> setHashes = mapTriggersByHeight.get(nBlockHeight);
+            if (setHashes != null) {
+                for (Sha256Hash nHash : setHashes) {
+                    Superblock pSuperblock = mapTrigger.get(nHash);
+                    GovernanceObject pObj = context.governanceManager.findGovernanceObject(nHash);
+                    if (pSuperblock == null || pObj == null)
+                        continue;
+
+                    // MAKE SURE THIS TRIGGER IS ACTIVE VIA FUNDING CACHE FLAG
+                    pObj.updateSentinelVariables();
+                    if (pObj.isSetCachedFunding())
+                        fTriggered = true;
+
+                    // DO WE HAVE A NEW WINNER?
+                    int nTempYesCount = pObj.getAbsoluteYesCount(GovernanceVote.VoteSignal.VOTE_SIGNAL_FUNDING);
+                    if (nTempYesCount > nYesCount) {
+                        nYesCount = nTempYesCount;
+                        bestSuperblock = pSuperblock;
+                    }
+                }
+            }
+            state = new HeightState(fTriggered, bestSuperblock);
+            log.info("gobject--CGovernanceTriggerManager::GetHeightState -- nBlockHeight = {}, triggers = {}, fTriggered = {}, nYesCount = {}",
+                    nBlockHeight, setHashes != null ? setHashes.size() : 0, fTriggered, nYesCount);
+            mapHeightStates.put(nBlockHeight, state);
+            return state;
+        } finally {
+            context.governanceManager.lock.unlock();
+        }
+    }
+
     /**
      *   Get Active Triggers
      *
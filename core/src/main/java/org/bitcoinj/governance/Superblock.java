@@ -19,6 +19,7 @@ public class Superblock extends GovernanceObject {
 
     Superblock(NetworkParameters params) {
         super(params);
+        context = Context.get();
         nGovObjHash = Sha256Hash.ZERO_HASH;
         nEpochStart = 0;
         nStatus = SEEN_OBJECT_UNKNOWN;
@@ -27,6 +28,7 @@ public class Superblock extends GovernanceObject {
 
     Superblock(NetworkParameters params, Sha256Hash nHash) throws SuperblockException {
         super(params);
+        context = Context.get();
         nGovObjHash = nHash;
         nEpochStart = 0;
         nStatus = SEEN_OBJECT_UNKNOWN;
@@ -6,117 +6,31 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 
-import static org.bitcoinj.governance.GovernanceVote.VoteSignal.VOTE_SIGNAL_FUNDING;
-
 /**
  * Created by Hash Engineering on 6/6/2018.
  */
 public class SuperblockManager {
     private static final Logger log = LoggerFactory.getLogger(SuperblockManager.class);
 
+    /**
+     * Returns whether a trigger for the given height has enough funding votes. Once the height was evaluated this is
+     * a lookup in {@link GovernanceTriggerManager}'s index that doesn't take the governance lock.
+     */
     public static boolean isSuperblockTriggered(int nBlockHeight) {
-        log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- Start nBlockHeight = {}", nBlockHeight);
-        if (!Superblock.isValidBlockHeight(Context.get().getParams(), nBlockHeight)) {
-            return false;
-        }
-        
-        Context.get().governanceManager.lock.lock();
-        try {
-            // GET ALL ACTIVE TRIGGERS
-            ArrayList<Superblock> vecTriggers = Context.get().triggerManager.getActiveTriggers();
-
-            log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- vecTriggers.size() = {}", vecTriggers.size());
-
-            for (Superblock pSuperblock : vecTriggers) {
-                if (pSuperblock == null) {
-                    log.info("CSuperblockManager::IsSuperblockTriggered -- Non-superblock found, continuing");
-                    log.info( "IsSuperblockTriggered Not a superblock, continuing ");
-                    continue;
-                }
-
-                GovernanceObject pObj = pSuperblock.getGovernanceObject();
-
-                if (pObj == null) {
-                    log.info("CSuperblockManager::IsSuperblockTriggered -- pObj == NULL, continuing");
-                    log.info( "IsSuperblockTriggered pObj is NULL, continuing");
-                    continue;
-                }
-
-                log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- data = {}", pObj.getDataAsPlainString());
-
-                // note : 12.1 - is epoch calculation correct?
-
-                if (nBlockHeight != pSuperblock.getBlockStart()) {
-                    log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- block height doesn't match nBlockHeight = {}, blockStart = {}, continuing", nBlockHeight, pSuperblock.getBlockStart());
-                    continue;
-                }
-
-                // MAKE SURE THIS TRIGGER IS ACTIVE VIA FUNDING CACHE FLAG
-
-                pObj.updateSentinelVariables();
-
-                if (pObj.isSetCachedFunding()) {
-                    log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- fCacheFunding = true, returning true");
-                    log.info( "IsSuperblockTriggered returning true");
-                    return true;
-                } else {
-                    log.info("gobject--CSuperblockManager::IsSuperblockTriggered -- fCacheFunding = false, continuing");
-                    log.info( "IsSuperblockTriggered No fCachedFunding, continuing");
-                }
-            }
-
+        Context context = Context.get();
+        if (!Superblock.isValidBlockHeight(context.getParams(), nBlockHeight)) {
             return false;
-        } finally {
-            Context.get().governanceManager.lock.unlock();
         }
+        return context.triggerManager.getHeightState(nBlockHeight).fTriggered;
     }
 
+    /** Returns the trigger for the given height with the most funding votes, or null if there is none. */
     public static Superblock getBestSuperblock(int nBlockHeight) {
         Context context = Context.get();
         if (!Superblock.isValidBlockHeight(context.getParams(), nBlockHeight)) {
             return null;
         }
-
-
-        context.governanceManager.lock.lock();
-        try {
-            Superblock superblockResult = null;
-            ArrayList<Superblock> vecTriggers = context.triggerManager.getActiveTriggers();
-            int nYesCount = 0;
-
-            for (Superblock pSuperblock : vecTriggers) {
-                if (pSuperblock == null) {
-                    log.info("GetBestSuperblock Not a superblock, continuing");
-                    continue;
-                }
-
-                GovernanceObject pObj = pSuperblock.getGovernanceObject();
-
-                if (pObj == null) {
-                    log.info("GetBestSuperblock pObj is NULL, continuing");
-                    continue;
-                }
-
-                if (nBlockHeight != pSuperblock.getBlockStart()) {
-                    log.info("GetBestSuperblock Not the target block, continuing");
-                    continue;
-                }
-
-                // DO WE HAVE A NEW WINNER?
-
-                int nTempYesCount = pObj.getAbsoluteYesCount(VOTE_SIGNAL_FUNDING);
-                log.info("GetBestSuperblock nTempYesCount = " + nTempYesCount);
-                if (nTempYesCount > nYesCount) {
-                    nYesCount = nTempYesCount;
-                    superblockResult = pSuperblock;
-                    log.info("GetBestSuperblock Valid superblock found, pSuperblock set");
-                }
-            }
-
-            return nYesCount > 0 ? superblockResult : null;
-        } finally {
-            context.governanceManager.lock.unlock();
-        }
+        return context.triggerManager.getHeightState(nBlockHeight).bestSuperblock;
     }
 
     public static Transaction createSuperblock(int nBlockHeight, ArrayList<TransactionOutput> voutSuperblockRet) {
@@ -19,7 +19,9 @@ import org.bitcoinj.core.BloomFilter;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -42,6 +44,16 @@ public class FilterMerger {
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // State of the last filter, used to decide whether it can be extended in place rather than recalculated.
+    private int lastElementCount;
+    private double lastFPRate;
+    private long lastEarliestKeyTimeSecs;
+
+    /**
+     * An incremental update may push the estimated false positive rate of the extended filter up to this multiple of
+     * the target rate before a full recalculation is forced.
+     */
+    public static final double MAX_INCREMENTAL_FP_RATE_INCREASE = 2.0;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -89,11 +101,14 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastElementCount = elements;
+                lastFPRate = fpRate;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
             // (to within a small amount of tolerance).
             result.earliestKeyTimeSecs -= 86400 * 7;
+            lastEarliestKeyTimeSecs = result.earliestKeyTimeSecs;
             return result;
         } finally {
             for (PeerFilterProvider provider : begunProviders) {
@@ -102,6 +117,50 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * Tries to extend the last calculated filter with the given elements, which is much cheaper than asking every
+     * provider to rebuild its part of the filter. As long as the total element count stays within the stair-stepped
+     * size of the last filter, the result has exactly the same bits as a full recalculation would produce.
+     *
+     * @param elements the new elements, typically the public keys and hashes of freshly created keys.
+     * @param earliestKeyTimeSecs creation time of the oldest of the new keys.
+     * @return the extended filter, which is a copy so the previous one can still be safely used by peers, or null if
+     * the caller must run {@link #calculate(ImmutableList)} instead. If the last filter holds all the elements
+     * already, for example because the keys were created while it was calculated, it is returned unchanged.
+     */
+    @Nullable
+    public Result tryIncrementalUpdate(List<byte[]> elements, long earliestKeyTimeSecs) {
+        if (lastFilter == null || lastFPRate != vBloomFilterFPRate)
+            return null;
+        boolean contained = true;
+        for (byte[] element : elements)
+            contained &= lastFilter.contains(element);
+        if (contained) {
+            Result result = new Result();
+            result.filter = lastFilter;
+            result.earliestKeyTimeSecs = lastEarliestKeyTimeSecs;
+            result.changed = false;
+            return result;
+        }
+        // Keys older than the fast catchup time mean we'd have to re-download blocks, so let the full path decide.
+        if (earliestKeyTimeSecs - 86400 * 7 < lastEarliestKeyTimeSecs)
+            return null;
+        int elementCount = lastElementCount + elements.size();
+        if (elementCount > lastBloomFilterElementCount)
+            return null;
+        BloomFilter filter = lastFilter.copy();
+        for (byte[] element : elements)
+            filter.insert(element);
+        if (filter.getEstimatedFalsePositiveRate() > lastFPRate * MAX_INCREMENTAL_FP_RATE_INCREASE)
+            return null;
+        Result result = new Result();
+        result.filter = lastFilter = filter;
+        result.earliestKeyTimeSecs = lastEarliestKeyTimeSecs;
+        result.changed = true;
+        lastElementCount = elementCount;
+        return result;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -85,6 +85,24 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    // The encodings of -1 to 16, indexed by value + 1. Stack elements are never modified in place, so every push of a
+    // small number can share them instead of allocating.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(i), false));
+    }
+    private static final byte[] FALSE = SMALL_NUMBERS[1];
+    private static final byte[] TRUE = SMALL_NUMBERS[2];
+
+    // Stacks reused by correctlySpends, so that verifying an input doesn't allocate them every time.
+    private static final ThreadLocal<ExecutionContext> executionContext = new ThreadLocal<ExecutionContext>() {
+        @Override
+        protected ExecutionContext initialValue() {
+            return new ExecutionContext();
+        }
+    };
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -810,7 +828,7 @@ public class Script {
     private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
         if (chunk.length > 4)
             throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        return decodeNumber(chunk);
     }
 
     /**
@@ -825,9 +843,32 @@ public class Script {
         if (chunk.length > maxLength)
             throw new ScriptException("Script attempted to use an integer larger than "
                 + maxLength + " bytes");
+        return decodeNumber(chunk);
+    }
+
+    private static BigInteger decodeNumber(byte[] chunk) {
+        // Nearly all numbers in scripts fit in one byte: the low seven bits are the magnitude and the top one the sign.
+        if (chunk.length == 0)
+            return BigInteger.ZERO;
+        if (chunk.length == 1) {
+            int magnitude = chunk[0] & 0x7f;
+            return BigInteger.valueOf((chunk[0] & 0x80) != 0 ? -magnitude : magnitude);
+        }
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
 
+    private static byte[] encodeNumber(long value) {
+        if (value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        return Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false));
+    }
+
+    private static byte[] encodeNumber(BigInteger value) {
+        if (value.bitLength() < 64)
+            return encodeNumber(value.longValue());
+        return Utils.reverseBytes(Utils.encodeMPI(value, false));
+    }
+
     public boolean isOpReturn() {
         return chunks.size() > 0 && chunks.get(0).equalsOpCode(OP_RETURN);
     }
@@ -865,12 +906,20 @@ public class Script {
      */
     public static void executeScript(@Nullable Transaction txContainingThis, long index,
                                      Script script, LinkedList<byte[]> stack, Set<VerifyFlag> verifyFlags) throws ScriptException {
+        executeScript(txContainingThis, index, script, stack, new ArrayDeque<byte[]>(), new ArrayDeque<Boolean>(),
+                verifyFlags);
+    }
+
+    // The altstack and ifStack only live for one script, they are passed in so that callers can reuse them.
+    private static void executeScript(@Nullable Transaction txContainingThis, long index, Script script,
+                                      Deque<byte[]> stack, Deque<byte[]> altstack, Deque<Boolean> ifStack,
+                                      Set<VerifyFlag> verifyFlags) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
-        
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
-        
+
+        altstack.clear();
+        ifStack.clear();
+
         for (ScriptChunk chunk : script.chunks) {
             boolean shouldExecute = !ifStack.contains(false);
 
@@ -878,7 +927,7 @@ public class Script {
                 if (!shouldExecute)
                     continue;
 
-                stack.add(new byte[] {});
+                stack.add(FALSE);
             } else if (!chunk.isOpCode()) {
                 if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
                     throw new ScriptException("Attempted to push a data string larger than 520 bytes");
@@ -941,7 +990,7 @@ public class Script {
                 switch(opcode) {
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.add(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -959,7 +1008,7 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.add(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
@@ -1050,7 +1099,7 @@ public class Script {
                         stack.add(stack.getLast());
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.add(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
@@ -1120,7 +1169,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.add(encodeNumber(stack.getLast().length));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -1130,7 +1179,7 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUAL on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {});
+                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? TRUE : FALSE);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
@@ -1178,7 +1227,7 @@ public class Script {
                         throw new AssertionError("Unreachable");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.add(encodeNumber(numericOPnum));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -1272,7 +1321,7 @@ public class Script {
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.add(encodeNumber(numericOPresult));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -1296,9 +1345,9 @@ public class Script {
                     BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
                     BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
                     if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
+                        stack.add(TRUE);
                     else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                        stack.add(FALSE);
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
@@ -1387,7 +1436,7 @@ public class Script {
     }
 
     // This is more or less a direct translation of the code in Bitcoin Core
-    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckLockTimeVerify(Transaction txContainingThis, int index, Script script, Deque<byte[]> stack,
                                         int lastCodeSepLocation, int opcode,
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
         if (stack.size() < 1)
@@ -1426,18 +1475,30 @@ public class Script {
             throw new ScriptException("Transaction contains a final transaction input for a CHECKLOCKTIMEVERIFY script.");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, Deque<byte[]> stack,
                                         int lastCodeSepLocation, int opcode, 
                                         Set<VerifyFlag> verifyFlags) throws ScriptException {
-        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
-            || verifyFlags.contains(VerifyFlag.DERSIG)
-            || verifyFlags.contains(VerifyFlag.LOW_S);
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
         byte[] pubKey = stack.pollLast();
         byte[] sigBytes = stack.pollLast();
 
-        byte[] prog = script.getProgram();
+        boolean sigValid = checkSignature(txContainingThis, index, script, sigBytes, pubKey, lastCodeSepLocation,
+                verifyFlags);
+
+        if (opcode == OP_CHECKSIG)
+            stack.add(sigValid ? TRUE : FALSE);
+        else if (opcode == OP_CHECKSIGVERIFY)
+            if (!sigValid)
+                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    }
+
+    private static boolean checkSignature(Transaction txContainingThis, int index, Script script, byte[] sigBytes,
+                                          byte[] pubKey, int lastCodeSepLocation, Set<VerifyFlag> verifyFlags) {
+        final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
+            || verifyFlags.contains(VerifyFlag.DERSIG)
+            || verifyFlags.contains(VerifyFlag.LOW_S);
+        byte[] prog = script.getQuickProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
         UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
@@ -1456,7 +1517,7 @@ public class Script {
 
             // TODO: Should check hash type is known
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            sigValid = verifySignature(hash, pubKey, sigBytes, sig);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1466,15 +1527,15 @@ public class Script {
             if (!e1.getMessage().contains("Reached past end of ASN.1 stream"))
                 log.warn("Signature checking failed!", e1);
         }
+        return sigValid;
+    }
 
-        if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {});
-        else if (opcode == OP_CHECKSIGVERIFY)
-            if (!sigValid)
-                throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
+    private static boolean verifySignature(Sha256Hash hash, byte[] pubKey, byte[] sigBytes, TransactionSignature sig) {
+        SignatureCache cache = SignatureCache.getDefault();
+        return cache != null ? cache.verify(hash, pubKey, sigBytes, sig) : ECKey.verify(hash.getBytes(), sig, pubKey);
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, Deque<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode, 
                                        Set<VerifyFlag> verifyFlags) throws ScriptException {
         final boolean requireCanonical = verifyFlags.contains(VerifyFlag.STRICTENC)
@@ -1509,7 +1570,7 @@ public class Script {
             sigs.add(sig);
         }
 
-        byte[] prog = script.getProgram();
+        byte[] prog = script.getQuickProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
         for (byte[] sig : sigs) {
@@ -1530,7 +1591,7 @@ public class Script {
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), requireCanonical);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, pubKey, sigs.getFirst(), sig))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1549,7 +1610,7 @@ public class Script {
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with non-null nulldummy: " + Arrays.toString(nullDummy));
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {});
+            stack.add(valid ? TRUE : FALSE);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
@@ -1592,51 +1653,116 @@ public class Script {
         } catch (ProtocolException e) {
             throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
         }
-        if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
+        if (getQuickProgram().length > 10000 || scriptPubKey.getQuickProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
-        
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
-        
-        executeScript(txContainingThis, scriptSigIndex, this, stack, verifyFlags);
-        if (verifyFlags.contains(VerifyFlag.P2SH))
-            p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, verifyFlags);
-        
-        if (stack.size() == 0)
-            throw new ScriptException("Stack empty at end of script execution.");
-        
-        if (!castToBool(stack.pollLast()))
-            throw new ScriptException("Script resulted in a non-true stack: " + stack);
 
-        // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
-        // program but it has "useless" form that if evaluated as a normal program always returns true.
-        // Instead, miners recognize it as special based on its template - it provides a hash of the real scriptPubKey
-        // and that must be provided by the input. The goal of this bizarre arrangement is twofold:
-        //
-        // (1) You can sum up a large, complex script (like a CHECKMULTISIG script) with an address that's the same
-        //     size as a regular address. This means it doesn't overload scannable QR codes/NFC tags or become
-        //     un-wieldy to copy/paste.
-        // (2) It allows the working set to be smaller: nodes perform best when they can store as many unspent outputs
-        //     in RAM as possible, so if the outputs are made smaller and the inputs get bigger, then it's better for
-        //     overall scalability and performance.
-
-        // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
-        if (verifyFlags.contains(VerifyFlag.P2SH) && scriptPubKey.isPayToScriptHash()) {
-            for (ScriptChunk chunk : chunks)
-                if (chunk.isOpCode() && chunk.opcode > OP_16)
-                    throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
-            
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
-            Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
-            
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, verifyFlags);
-            
-            if (p2shStack.size() == 0)
-                throw new ScriptException("P2SH stack empty at end of script execution.");
-            
-            if (!castToBool(p2shStack.pollLast()))
-                throw new ScriptException("P2SH script execution resulted in a non-true stack");
+        // The standard output forms are recognized by their exact bytes and checked directly, with the same results
+        // the interpreter would give. Everything else goes through the general interpreter.
+        if (isPayToPubKeyHash(scriptPubKey.getQuickProgram()) && correctlySpendsPayToPubKeyHash(txContainingThis,
+                (int) scriptSigIndex, scriptPubKey, verifyFlags))
+            return;
+
+        ExecutionContext context = executionContext.get();
+        try {
+            Deque<byte[]> stack = context.stack;
+            executeScript(txContainingThis, scriptSigIndex, this, stack, context.altstack, context.ifStack, verifyFlags);
+
+            // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
+            // program but it has "useless" form that if evaluated as a normal program always returns true.
+            // Instead, miners recognize it as special based on its template - it provides a hash of the real
+            // scriptPubKey and that must be provided by the input. The goal of this bizarre arrangement is twofold:
+            //
+            // (1) You can sum up a large, complex script (like a CHECKMULTISIG script) with an address that's the
+            //     same size as a regular address. This means it doesn't overload scannable QR codes/NFC tags or become
+            //     un-wieldy to copy/paste.
+            // (2) It allows the working set to be smaller: nodes perform best when they can store as many unspent
+            //     outputs in RAM as possible, so if the outputs are made smaller and the inputs get bigger, then it's
+            //     better for overall scalability and performance.
+
+            // TODO: Check if we can take out enforceP2SH if there's a checkpoint at the enforcement block.
+            if (verifyFlags.contains(VerifyFlag.P2SH) && scriptPubKey.isPayToScriptHash()) {
+                // HASH160 <hash> EQUAL only looks at the top of the stack and leaves the rest as it was, so instead of
+                // copying the stack to run the redeem script on, the template is checked in place.
+                if (stack.size() < 1)
+                    throw new ScriptException("Attempted OP_HASH160 on an empty stack");
+                if (stack.size() + 1 > 1000)
+                    throw new ScriptException("Stack size exceeded range");
+                if (!equalsRange(scriptPubKey.getQuickProgram(), 2, Utils.sha256hash160(stack.getLast())))
+                    throw new ScriptException("Script resulted in a non-true stack: " + stack);
+
+                for (ScriptChunk chunk : chunks)
+                    if (chunk.isOpCode() && chunk.opcode > OP_16)
+                        throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
+
+                byte[] scriptPubKeyBytes = stack.pollLast();
+                Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
+
+                executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, stack, context.altstack,
+                        context.ifStack, verifyFlags);
+
+                if (stack.size() == 0)
+                    throw new ScriptException("P2SH stack empty at end of script execution.");
+
+                if (!castToBool(stack.pollLast()))
+                    throw new ScriptException("P2SH script execution resulted in a non-true stack");
+                return;
+            }
+
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, context.altstack, context.ifStack,
+                    verifyFlags);
+
+            if (stack.size() == 0)
+                throw new ScriptException("Stack empty at end of script execution.");
+
+            if (!castToBool(stack.pollLast()))
+                throw new ScriptException("Script resulted in a non-true stack: " + stack);
+        } finally {
+            context.clear();
+        }
+    }
+
+    // DUP HASH160 <20 bytes> EQUALVERIFY CHECKSIG, byte for byte.
+    private static boolean isPayToPubKeyHash(byte[] program) {
+        return program.length == 25 &&
+               (program[0] & 0xff) == OP_DUP &&
+               (program[1] & 0xff) == OP_HASH160 &&
+               (program[2] & 0xff) == 0x14 &&
+               (program[23] & 0xff) == OP_EQUALVERIFY &&
+               (program[24] & 0xff) == OP_CHECKSIG;
+    }
+
+    /**
+     * Checks a spend of a pay-to-pubkey-hash output without running the interpreter. Returns false if this script
+     * isn't the plain signature and public key push the template expects, in which case nothing has been checked.
+     */
+    private boolean correctlySpendsPayToPubKeyHash(Transaction txContainingThis, int index, Script scriptPubKey,
+                                                   Set<VerifyFlag> verifyFlags) throws ScriptException {
+        if (chunks.size() != 2)
+            return false;
+        ScriptChunk sigChunk = chunks.get(0);
+        ScriptChunk pubKeyChunk = chunks.get(1);
+        if (sigChunk.isOpCode() || sigChunk.data.length > MAX_SCRIPT_ELEMENT_SIZE ||
+                pubKeyChunk.isOpCode() || pubKeyChunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+            return false;
+
+        if (!equalsRange(scriptPubKey.getQuickProgram(), 3, Utils.sha256hash160(pubKeyChunk.data)))
+            throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+        if (!checkSignature(txContainingThis, index, scriptPubKey, sigChunk.data, pubKeyChunk.data, 0, verifyFlags))
+            throw new ScriptException("Script resulted in a non-true stack: []");
+        return true;
+    }
+
+    /** The stacks of one script execution, kept per thread so they can be reused. */
+    private static class ExecutionContext {
+        final ArrayDeque<byte[]> stack = new ArrayDeque<byte[]>();
+        final ArrayDeque<byte[]> altstack = new ArrayDeque<byte[]>();
+        final ArrayDeque<Boolean> ifStack = new ArrayDeque<Boolean>();
+
+        void clear() {
+            // Don't hold on to the elements of the last script until the next one runs.
+            stack.clear();
+            altstack.clear();
+            ifStack.clear();
         }
     }
 
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers signatures that have already been found valid, so that checking the same signature again, for example
+ * when a transaction is re-connected during a re-org or was verified before its block arrived, doesn't need another
+ * ECDSA verification. Entries are keyed by the signature hash, the public key and the encoded signature, and only
+ * valid signatures are stored.</p>
+ *
+ * <p>The cache is bounded and safe to use from many threads at once. {@link Script} consults the default instance
+ * when executing OP_CHECKSIG and OP_CHECKMULTISIG.</p>
+ */
+public class SignatureCache {
+    /** The max number of signatures held by the default cache. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    @Nullable private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache holding at most the given number of valid signatures.
+     */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0);
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /** Returns the cache used by script execution, or null if signature caching is turned off. */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by script execution. Pass null to always run the full signature check. */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Returns whether the signature is valid for the given signature hash and public key, either because it was
+     * verified before or by verifying it now.
+     *
+     * @param sigHash the hash that was signed
+     * @param pubKey the encoded public key
+     * @param sigBytes the signature as found in the script, used to identify it
+     * @param signature the decoded form of sigBytes
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes, ECKey.ECDSASignature signature) {
+        Sha256Hash key = key(sigHash, pubKey, sigBytes);
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        if (!ECKey.verify(sigHash.getBytes(), signature, pubKey))
+            return false;
+        validSignatures.put(key, Boolean.TRUE);
+        return true;
+    }
+
+    private static Sha256Hash key(Sha256Hash sigHash, byte[] pubKey, byte[] sigBytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(sigHash.getBytes());
+        // Script elements are at most 520 bytes, so two bytes of length keep the key unambiguous.
+        digest.update((byte) (pubKey.length >> 8));
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(sigBytes);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns the number of valid signatures currently held. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all signatures. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    /** Returns how many checks were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns how many checks needed a full signature verification. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return String.format(Locale.US, "SignatureCache: %d signatures, %.1f%% hit rate", size(),
+                total == 0 ? 0.0 : hits * 100.0 / total);
+    }
+}
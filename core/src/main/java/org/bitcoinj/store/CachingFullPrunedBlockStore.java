@@ -0,0 +1,414 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A write-back cache of unspent transaction outputs in front of any other {@link FullPrunedBlockStore}.</p>
+ *
+ * <p>Outputs read from the underlying store are cached, and outputs added or removed by the block chain are only
+ * recorded in memory. Changes reach the underlying store in one large batch once the pending changes exceed half the
+ * memory budget or the chain moved a given number of blocks, when {@link #flush()} is called or when the store is
+ * closed. Outputs that are created and spent in between, which is the case for a large share of all outputs, never
+ * touch the underlying store at all.</p>
+ *
+ * <p>The verified chain head is held back along with the outputs, so after a crash the underlying store is still
+ * consistent, just at an older verified head: the blocks in between are simply verified again. As the underlying store
+ * only prunes its undo data when it gets the verified head, every head is passed on in order when flushing. Blocks
+ * themselves are written through immediately.</p>
+ *
+ * <p>This store is thread safe, but batch writes are not isolated per thread: it's meant to be used by a single
+ * {@link FullPrunedBlockChain}.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget for cached outputs. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64 * 1024 * 1024;
+    /** The default number of blocks the verified chain head may move before the changes are flushed. */
+    public static final int DEFAULT_MAX_UNFLUSHED_BLOCKS = 100;
+
+    // Rough heap usage of a cached output besides its script: the map entry, key, UTXO, hashes and Coin.
+    private static final int ENTRY_OVERHEAD = 300;
+
+    private static class Entry {
+        final UTXO utxo;
+        // Whether the underlying store has this output as of the last flush.
+        final boolean inStore;
+        final boolean spent;
+
+        Entry(UTXO utxo, boolean inStore, boolean spent) {
+            this.utxo = utxo;
+            this.inStore = inStore;
+            this.spent = spent;
+        }
+
+        boolean isDirty() {
+            return spent == inStore;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final int maxUnflushedBlocks;
+
+    // Access ordered, so that clean entries can be evicted least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, Entry> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, Entry>(1024, 0.75f, true);
+    private long cacheBytes;
+    private long dirtyBytes;
+
+    // Entries as they were before the current batch write, null for absent ones, so the batch can be aborted.
+    private final Map<StoredTransactionOutPoint, Entry> batchUndo = new HashMap<StoredTransactionOutPoint, Entry>();
+    private boolean inBatch;
+
+    private StoredBlock verifiedChainHead;
+    private StoredBlock committedVerifiedChainHead;
+    // The verified chain heads committed since the last flush, oldest first.
+    private final List<StoredBlock> unflushedHeads = new ArrayList<StoredBlock>();
+
+    /** Wraps the given store with a cache of {@link #DEFAULT_MAX_CACHE_BYTES}. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * Wraps the given store, flushing at least every {@link #DEFAULT_MAX_UNFLUSHED_BLOCKS} blocks.
+     * @param maxCacheBytes approximate heap budget for cached outputs, half of which may be taken by pending changes.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes) throws BlockStoreException {
+        this(store, maxCacheBytes, DEFAULT_MAX_UNFLUSHED_BLOCKS);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param maxCacheBytes approximate heap budget for cached outputs, half of which may be taken by pending changes.
+     * @param maxUnflushedBlocks how many times the verified chain head may move before the changes are flushed, which
+     *                           bounds the undo data the underlying store keeps beyond its own depth.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes, int maxUnflushedBlocks)
+            throws BlockStoreException {
+        checkArgument(maxCacheBytes > 0);
+        checkArgument(maxUnflushedBlocks > 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxUnflushedBlocks = maxUnflushedBlocks;
+        this.verifiedChainHead = this.committedVerifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    private static int sizeOf(Entry entry) {
+        return ENTRY_OVERHEAD + entry.utxo.getScript().getProgram().length;
+    }
+
+    // All cache modifications go through here, to keep the byte counts and the batch undo log straight.
+    private void setEntry(StoredTransactionOutPoint key, @Nullable Entry entry) {
+        Entry old = entry == null ? cache.remove(key) : cache.put(key, entry);
+        if (inBatch && !batchUndo.containsKey(key))
+            batchUndo.put(key, old);
+        if (old != null) {
+            cacheBytes -= sizeOf(old);
+            if (old.isDirty())
+                dirtyBytes -= sizeOf(old);
+        }
+        if (entry != null) {
+            cacheBytes += sizeOf(entry);
+            if (entry.isDirty())
+                dirtyBytes += sizeOf(entry);
+        }
+    }
+
+    // Evicts least recently used clean entries until the cache is within its budget.
+    private void trim() {
+        if (cacheBytes <= maxCacheBytes)
+            return;
+        Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            Map.Entry<StoredTransactionOutPoint, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (entry.isDirty())
+                continue;
+            if (inBatch && !batchUndo.containsKey(e.getKey()))
+                batchUndo.put(e.getKey(), entry);
+            it.remove();
+            cacheBytes -= sizeOf(entry);
+        }
+    }
+
+    /**
+     * Writes all pending output changes and the verified chain head to the underlying store, in a single batch write.
+     * Must not be called in the middle of a batch write.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (inBatch)
+            throw new BlockStoreException("Cannot flush during a batch write");
+        if (dirtyBytes == 0 && unflushedHeads.isEmpty())
+            return;
+        long start = System.currentTimeMillis();
+        int removed = 0, added = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (Entry entry : cache.values()) {
+                if (entry.spent && entry.inStore) {
+                    store.removeUnspentTransactionOutput(entry.utxo);
+                    removed++;
+                }
+            }
+            for (Entry entry : cache.values()) {
+                if (!entry.spent && !entry.inStore) {
+                    store.addUnspentTransactionOutput(entry.utxo);
+                    added++;
+                }
+            }
+            for (StoredBlock head : unflushedHeads)
+                store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        // Now everything is in the underlying store, spent entries can go and the others become clean.
+        Iterator<Map.Entry<StoredTransactionOutPoint, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<StoredTransactionOutPoint, Entry> e = it.next();
+            Entry entry = e.getValue();
+            if (entry.spent) {
+                it.remove();
+                cacheBytes -= sizeOf(entry);
+            } else if (!entry.inStore) {
+                e.setValue(new Entry(entry.utxo, true, false));
+            }
+        }
+        dirtyBytes = 0;
+        unflushedHeads.clear();
+        trim();
+        log.info("Flushed {} spent and {} new outputs in {}ms", removed, added, System.currentTimeMillis() - start);
+    }
+
+    /** Returns the approximate heap usage of cached outputs, in bytes. */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /** Returns the approximate heap usage of outputs not yet written to the underlying store, in bytes. */
+    public synchronized long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    @Override
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Entry entry = cache.get(key);
+        if (entry != null)
+            return entry.spent ? null : entry.utxo;
+        UTXO utxo = store.getTransactionOutput(hash, index);
+        if (utxo != null) {
+            setEntry(key, new Entry(utxo, true, false));
+            trim();
+        }
+        return utxo;
+    }
+
+    @Override
+    public synchronized void prefetchOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<TransactionOutPoint> missing = new ArrayList<TransactionOutPoint>();
+        for (TransactionOutPoint outPoint : outPoints)
+            if (!cache.containsKey(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex())))
+                missing.add(outPoint);
+        if (!missing.isEmpty())
+            store.prefetchOutputs(missing);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out.getHash(), out.getIndex());
+        Entry entry = cache.get(key);
+        if (entry != null && !entry.spent)
+            throw new BlockStoreException("Tried to add a UTXO that is already unspent: " + key);
+        // An output that was spent and is now being added back by a reorg may still be in the underlying store.
+        setEntry(key, new Entry(out, entry != null && entry.inStore, false));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out.getHash(), out.getIndex());
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            // Normally the chain has just looked the output up, so this only happens if it was evicted since.
+            if (store.getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+            setEntry(key, new Entry(out, true, true));
+        } else if (entry.spent) {
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        } else if (entry.inStore) {
+            setEntry(key, new Entry(entry.utxo, true, true));
+        } else {
+            // Created and spent since the last flush, so the underlying store never needs to know.
+            setEntry(key, null);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        List<Integer> uncached = null;
+        for (int i = 0; i < numOutputs; i++) {
+            Entry entry = cache.get(new StoredTransactionOutPoint(hash, i));
+            if (entry == null) {
+                if (uncached == null)
+                    uncached = new ArrayList<Integer>();
+                uncached.add(i);
+            } else if (!entry.spent) {
+                return true;
+            }
+        }
+        if (uncached == null || !store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        // The underlying store may only have outputs we already know are spent, so check the others one by one.
+        for (int i : uncached)
+            if (store.getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = true;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (verifiedChainHead != committedVerifiedChainHead) {
+            committedVerifiedChainHead = verifiedChainHead;
+            unflushedHeads.add(verifiedChainHead);
+        }
+        batchUndo.clear();
+        inBatch = false;
+        if (dirtyBytes > maxCacheBytes / 2 || unflushedHeads.size() >= maxUnflushedBlocks)
+            flush();
+        else
+            trim();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        inBatch = false;
+        for (Map.Entry<StoredTransactionOutPoint, Entry> e : batchUndo.entrySet())
+            setEntry(e.getKey(), e.getValue());
+        batchUndo.clear();
+        verifiedChainHead = committedVerifiedChainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        verifiedChainHead = chainHead;
+        if (!inBatch) {
+            committedVerifiedChainHead = chainHead;
+            unflushedHeads.add(chainHead);
+            if (unflushedHeads.size() >= maxUnflushedBlocks)
+                flush();
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        // The underlying store only moves its chain head forward when it receives the verified head.
+        StoredBlock chainHead = store.getChainHead();
+        if (verifiedChainHead != null && verifiedChainHead.getHeight() > chainHead.getHeight())
+            return verifiedChainHead;
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        Set<String> wanted = new HashSet<String>();
+        for (Address address : addresses)
+            wanted.add(address.toString());
+        List<UTXO> result = new ArrayList<UTXO>();
+        for (UTXO utxo : store.getOpenTransactionOutputs(addresses)) {
+            Entry entry = cache.get(new StoredTransactionOutPoint(utxo.getHash(), utxo.getIndex()));
+            if (entry == null || !entry.spent)
+                result.add(utxo);
+        }
+        for (Entry entry : cache.values())
+            if (!entry.spent && !entry.inStore && wanted.contains(entry.utxo.getAddress()))
+                result.add(entry.utxo);
+        return result;
+    }
+
+    @Override
+    public synchronized int getChainHeadHeight() throws UTXOProviderException {
+        return verifiedChainHead.getHeight();
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    /** Flushes pending changes, then closes the underlying store. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (inBatch)
+            abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+}
@@ -21,16 +21,21 @@ package org.bitcoinj.store;
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -89,6 +94,12 @@ import java.util.*;
 public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
+    /** The number of transactions whose outputs are selected by one prefetch query. */
+    protected static final int PREFETCH_BATCH_SIZE = 200;
+
+    /** The number of queued UTXO writes sent to the database in one JDBC batch. */
+    protected static final int WRITE_BATCH_SIZE = 1000;
+
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
@@ -115,6 +126,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
 
@@ -141,6 +153,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected StoredBlock verifiedChainHeadBlock;
     protected NetworkParameters params;
     protected ThreadLocal<Connection> conn;
+    // Outputs loaded by prefetchOutputs for the current batch write, per thread like the connections.
+    protected ThreadLocal<Map<StoredTransactionOutPoint, UTXO>> prefetchedOutputs;
+    private ThreadLocal<ConnectionState> connectionState;
     protected List<Connection> allConnections;
     protected String connectionURL;
     protected int fullStoreDepth;
@@ -148,6 +163,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // Undo data below the verified chain head is deleted on a thread of its own, so connecting a block doesn't wait
+    // for it. The executor is created when first needed and dropped when the store is closed.
+    @Nullable private ExecutorService pruneExecutor;
+    private final AtomicInteger pruneHeight = new AtomicInteger(-1);
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -169,6 +190,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.username = username;
         this.password = password;
         this.conn = new ThreadLocal<Connection>();
+        this.prefetchedOutputs = new ThreadLocal<Map<StoredTransactionOutPoint, UTXO>>();
+        this.connectionState = new ThreadLocal<ConnectionState>();
         this.allConnections = new LinkedList<Connection>();
 
         try {
@@ -360,6 +383,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of several transactions, without the placeholder list which is
+     * appended by the caller.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsByHashesSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL;
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -449,8 +481,182 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * State that lives as long as one connection: the statements prepared on it and, during a batch write, the UTXO
+     * writes that have not been sent to the database yet.
+     */
+    private static class ConnectionState {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        boolean inBatchWrite;
+        // The height to prune undo data up to once the batch write is committed, or -1.
+        int pendingPruneHeight = -1;
+        // Queued writes, keyed by outpoint so a later write to the same output replaces an earlier one. Deletes are
+        // always sent before inserts, so an output that is spent and then re-created ends up in the table.
+        final Map<StoredTransactionOutPoint, UTXO> pendingInserts = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        final Set<StoredTransactionOutPoint> pendingDeletes = new LinkedHashSet<StoredTransactionOutPoint>();
+
+        ConnectionState(Connection connection) {
+            this.connection = connection;
+        }
+
+        boolean hasPendingWrites() {
+            return !pendingInserts.isEmpty() || !pendingDeletes.isEmpty();
+        }
+    }
+
+    private ConnectionState getConnectionState() {
+        ConnectionState state = connectionState.get();
+        if (state == null || state.connection != conn.get()) {
+            state = new ConnectionState(conn.get());
+            connectionState.set(state);
+        }
+        return state;
+    }
+
+    /**
+     * <p>Returns a statement for the given SQL on this thread's connection, preparing it only the first time it is
+     * used. Callers must not close the returned statement, only the result sets they get from it.</p>
+     * @throws SQLException if the statement could not be prepared.
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = getConnectionState().statements;
+        PreparedStatement s = statements.get(sql);
+        if (s == null || s.isClosed()) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closePreparedStatements() {
+        ConnectionState state = connectionState.get();
+        if (state == null)
+            return;
+        for (PreparedStatement s : state.statements.values()) {
+            try {
+                s.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close PreparedStatement", e);
+            }
+        }
+        state.statements.clear();
+    }
+
+    private static void closeResults(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
+            }
+        }
+    }
+
+    /**
+     * Sends the UTXO writes queued by the current batch write to the database, deletes first, using JDBC batches of
+     * {@link #WRITE_BATCH_SIZE} statements.
+     */
+    private void flushPendingWrites() throws BlockStoreException {
+        ConnectionState state = getConnectionState();
+        if (!state.hasPendingWrites())
+            return;
+        try {
+            if (!state.pendingDeletes.isEmpty()) {
+                PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+                int queued = 0;
+                for (StoredTransactionOutPoint outPoint : state.pendingDeletes) {
+                    s.setBytes(1, outPoint.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) outPoint.getIndex());
+                    s.addBatch();
+                    if (++queued % WRITE_BATCH_SIZE == 0)
+                        s.executeBatch();
+                }
+                if (queued % WRITE_BATCH_SIZE != 0)
+                    s.executeBatch();
+                state.pendingDeletes.clear();
+            }
+            if (!state.pendingInserts.isEmpty()) {
+                PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+                List<UTXO> chunk = new ArrayList<UTXO>(Math.min(WRITE_BATCH_SIZE, state.pendingInserts.size()));
+                for (UTXO out : state.pendingInserts.values()) {
+                    chunk.add(out);
+                    if (chunk.size() == WRITE_BATCH_SIZE) {
+                        insertUnspentBatch(s, chunk);
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty())
+                    insertUnspentBatch(s, chunk);
+                state.pendingInserts.clear();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void insertUnspentBatch(PreparedStatement s, List<UTXO> outs) throws SQLException {
+        try {
+            for (UTXO out : outs) {
+                setInsertOpenoutputsParameters(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+        } catch (BatchUpdateException e) {
+            // Some drivers only report the cause of a failed batch in the chained exception.
+            SQLException cause = e.getSQLState() == null && e.getNextException() != null ? e.getNextException() : e;
+            if (!getDuplicateKeyErrorCode().equals(cause.getSQLState()))
+                throw e;
+            // Drivers differ in how far they get through a batch after a failure, so go through it again one row at
+            // a time, ignoring the outputs that are already there like addUnspentTransactionOutput does.
+            s.clearBatch();
+            for (UTXO out : outs) {
+                try {
+                    setInsertOpenoutputsParameters(s, out);
+                    s.executeUpdate();
+                } catch (SQLException e2) {
+                    if (!getDuplicateKeyErrorCode().equals(e2.getSQLState()))
+                        throw e2;
+                }
+            }
+        }
+    }
+
+    private void setInsertOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
     @Override
-    public synchronized void close() {
+    public void close() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = pruneExecutor;
+            pruneExecutor = null;
+        }
+        // Outside the lock, as the pruning thread needs it to connect.
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeConnections();
+    }
+
+    private synchronized void closeConnections() {
+        closePreparedStatements();
+        connectionState.remove();
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
@@ -612,8 +818,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getInsertHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -623,7 +828,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
@@ -664,7 +868,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -683,8 +887,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -695,7 +898,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -731,15 +933,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getSelectHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -764,13 +965,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
 
@@ -818,8 +1013,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 }
                 block = new StoredUndoableBlock(hash, transactionList);
             } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = TransactionOutputChanges.parse(txOutChanges);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             return block;
@@ -860,12 +1054,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -883,29 +1075,68 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        int pruneHeight = chainHead.getHeight() - fullStoreDepth;
+        ConnectionState state = getConnectionState();
+        if (state.inBatchWrite)
+            state.pendingPruneHeight = Math.max(state.pendingPruneHeight, pruneHeight);
+        else
+            schedulePruning(pruneHeight);
+    }
+
+    /**
+     * Deletes the undo data at or below the given height on the pruning thread. Requests made while a deletion is
+     * queued are merged into it.
+     */
+    private void schedulePruning(int height) {
+        if (height < 0)
+            return;
+        int current;
+        do {
+            current = pruneHeight.get();
+        } while (height > current && !pruneHeight.compareAndSet(current, height));
+        ExecutorService executor;
+        synchronized (this) {
+            if (pruneExecutor == null)
+                pruneExecutor = Executors.newSingleThreadExecutor(
+                        new ContextPropagatingThreadFactory("DatabaseFullPrunedBlockStore pruning"));
+            executor = pruneExecutor;
+        }
+        if (!pruneScheduled.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pruneScheduled.set(false);
+                int height = pruneHeight.get();
+                if (height < 0)
+                    return;
+                try {
+                    maybeConnect();
+                    removeUndoableBlocksWhereHeightIsLessThan(height);
+                } catch (BlockStoreException e) {
+                    // Left for the next request, which will include this height.
+                    log.info("Could not prune undo data, will retry", e);
+                }
+            }
+        });
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteUndoableBlocksSQL());
             s.setInt(1, height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -914,14 +1145,28 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        ConnectionState state = getConnectionState();
+        if (state.hasPendingWrites()) {
+            UTXO txout = state.pendingInserts.get(outPoint);
+            if (txout != null)
+                return txout;
+            if (state.pendingDeletes.contains(outPoint))
+                return null;
+        }
+        Map<StoredTransactionOutPoint, UTXO> prefetched = prefetchedOutputs.get();
+        if (prefetched != null) {
+            UTXO txout = prefetched.get(outPoint);
+            if (txout != null)
+                return txout;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -942,44 +1187,84 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+            closeResults(results);
+        }
+    }
+
+    /**
+     * Loads the given outputs with one query per {@link #PREFETCH_BATCH_SIZE} transactions and keeps them until the
+     * current batch write is committed or aborted, so the lookups that follow don't need a round trip each.
+     */
+    @Override
+    public void prefetchOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Map<Sha256Hash, Set<Long>> wanted = new LinkedHashMap<Sha256Hash, Set<Long>>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            Set<Long> indexes = wanted.get(outPoint.getHash());
+            if (indexes == null)
+                wanted.put(outPoint.getHash(), indexes = new HashSet<Long>());
+            indexes.add(outPoint.getIndex());
+        }
+        Map<StoredTransactionOutPoint, UTXO> prefetched = new HashMap<StoredTransactionOutPoint, UTXO>(outPoints.size() * 2);
+        maybeConnect();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(wanted.keySet());
+        for (int from = 0; from < hashes.size(); from += PREFETCH_BATCH_SIZE) {
+            List<Sha256Hash> batch = hashes.subList(from, Math.min(from + PREFETCH_BATCH_SIZE, hashes.size()));
+            StringBuilder sql = new StringBuilder(getSelectOpenoutputsByHashesSQL()).append('(');
+            for (int i = 0; i < batch.size(); i++)
+                sql.append(i == 0 ? "?" : ", ?");
+            sql.append(')');
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(sql.toString());
+                for (int i = 0; i < batch.size(); i++)
+                    s.setBytes(i + 1, batch.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    Set<Long> indexes = wanted.get(hash);
+                    if (indexes == null || !indexes.contains(index))
+                        continue;
+                    UTXO txout = new UTXO(hash,
+                            index,
+                            Coin.valueOf(results.getLong(4)),
+                            results.getInt(3),
+                            results.getBoolean(6),
+                            new Script(results.getBytes(5)),
+                            results.getString(7));
+                    prefetched.put(new StoredTransactionOutPoint(hash, index), txout);
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
                 }
             }
         }
+        prefetchedOutputs.set(prefetched);
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ConnectionState state = getConnectionState();
+        if (state.inBatchWrite) {
+            state.pendingInserts.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            setInsertOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
         }
     }
 
@@ -989,14 +1274,24 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Map<StoredTransactionOutPoint, UTXO> prefetched = prefetchedOutputs.get();
+        if (prefetched != null)
+            prefetched.remove(outPoint);
+        ConnectionState state = getConnectionState();
+        if (state.inBatchWrite) {
+            // The output may have been added earlier in this batch and also be in the table already (a duplicate
+            // insert is ignored), so the delete is queued either way.
+            state.pendingInserts.remove(outPoint);
+            state.pendingDeletes.add(outPoint);
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1009,6 +1304,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             log.debug("Starting database batch write with connection: " + conn.get().toString());
         try {
             conn.get().setAutoCommit(false);
+            getConnectionState().inBatchWrite = true;
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1019,12 +1315,18 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        prefetchedOutputs.remove();
+        ConnectionState state = getConnectionState();
         try {
+            flushPendingWrites();
             conn.get().commit();
             conn.get().setAutoCommit(true);
+            state.inBatchWrite = false;
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        schedulePruning(state.pendingPruneHeight);
+        state.pendingPruneHeight = -1;
     }
 
     @Override
@@ -1032,6 +1334,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        prefetchedOutputs.remove();
+        ConnectionState state = getConnectionState();
+        state.pendingInserts.clear();
+        state.pendingDeletes.clear();
+        state.inBatchWrite = false;
+        state.pendingPruneHeight = -1;
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1047,11 +1355,24 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ConnectionState state = getConnectionState();
+        if (state.hasPendingWrites()) {
+            boolean pendingDelete = false;
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+                if (state.pendingInserts.containsKey(outPoint))
+                    return true;
+                pendingDelete |= state.pendingDeletes.contains(outPoint);
+            }
+            // The count below would still include the outputs spent in this batch.
+            if (pendingDelete)
+                flushPendingWrites();
+        }
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
@@ -1060,13 +1381,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
 
@@ -1090,6 +1405,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void resetStore() throws BlockStoreException {
         maybeConnect();
+        pruneHeight.set(-1);
         try {
             deleteStore();
             createTables();
@@ -1105,6 +1421,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        closePreparedStatements();
         try {
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
@@ -1132,6 +1449,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
+        flushPendingWrites();
         PreparedStatement s = null;
         try {
             s = conn.get().prepareStatement(getBalanceSelectSQL());
@@ -1161,6 +1479,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         List<UTXO> outputs = new ArrayList<UTXO>();
         try {
             maybeConnect();
+            flushPendingWrites();
             s = conn.get().prepareStatement(getTrasactionOutputSelectSQL());
             for (Address address : addresses) {
                 s.setString(1, address.toString());
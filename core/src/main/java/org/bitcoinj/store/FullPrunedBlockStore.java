@@ -18,6 +18,8 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.Collection;
+
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -76,6 +78,13 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
     
+    /**
+     * Hints that the given outputs, typically all those spent by a block, are about to be looked up with
+     * {@link #getTransactionOutput(Sha256Hash, long)}, so that the store can load them in bulk instead of one at a
+     * time. Outputs that don't exist are ignored. Stores that have no faster way to load many outputs may do nothing.
+     */
+    void prefetchOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException;
+
     /**
      * Adds a {@link org.bitcoinj.core.UTXO} to the list of unspent TransactionOutputs
      */
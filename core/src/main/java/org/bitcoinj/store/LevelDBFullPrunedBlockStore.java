@@ -16,18 +16,30 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.AddressFormatException;
 import org.bitcoinj.core.NetworkParameters;
@@ -36,19 +48,30 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.Utils;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -79,8 +102,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected boolean instrument = false;
     // instrumentation stats
     Stopwatch totalStopwatch;
-    protected long hit;
-    protected long miss;
     Map<String, Stopwatch> methodStartTime;
     Map<String, Long> methodCalls;
     Map<String, Long> methodTotalTime;
@@ -88,8 +109,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                    // block!
     // ONLY used for performance benchmarking.
 
-    // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
+    // LRU Cache for getTransactionOutput, and the off-heap tier behind it if there is one.
+    protected Cache<ByteBuffer, UTXO> utxoCache;
+    @Nullable protected OffHeapUTXOCache offHeapCache;
     // Additional cache to cope with case when transactions are rolled back
     // e.g. when block fails to verify.
     protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
@@ -101,6 +123,17 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // Do we auto commit transactions.
     protected boolean autoCommit = true;
 
+    // Undo data below the verified chain head is deleted on a thread of its own, so connecting a block doesn't wait
+    // for it. pruneLock keeps that thread off the database while it is closed or reset.
+    private final ExecutorService pruneExecutor = Executors.newSingleThreadExecutor(
+            new ContextPropagatingThreadFactory("LevelDBFullPrunedBlockStore pruning"));
+    private final Object pruneLock = new Object();
+    private final AtomicInteger pruneHeight = new AtomicInteger(-1);
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+    // The height to prune up to once the batch write is committed, or -1.
+    private int pendingPruneHeight = -1;
+    private boolean closed;
+
     // Datastructures to allow us to search for uncommited inserts/deletes.
     // leveldb does not support dirty reads so we have to
     // do it ourselves.
@@ -111,140 +144,256 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected long leveldbReadCache;
     protected int leveldbWriteCache;
 
-    // Size of cache for getTransactionOutput
-    protected int openOutCache;
+    // Sizes of the caches in front of leveldb.
+    protected CacheConfig cacheConfig;
     // Bloomfilter for caching calls to hasUnspentOutputs
-    protected BloomFilter bloom;
+    protected TxHashFilter bloom;
+    // Counters for the cache metrics, next to the ones kept by utxoCache.
+    private final AtomicLong offHeapHits = new AtomicLong();
+    private final AtomicLong offHeapMisses = new AtomicLong();
+    private final AtomicLong dbReads = new AtomicLong();
+    private final AtomicLong dbNotFound = new AtomicLong();
+    private final AtomicLong filterQueries = new AtomicLong();
+    private final AtomicLong filterNegatives = new AtomicLong();
+    private final AtomicLong filterMisses = new AtomicLong();
 
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    static final long FILTER_EXPECTED_ENTRIES_DEFAULT = 100000000;
+    static final double FILTER_FALSE_POSITIVE_RATE_DEFAULT = 0.02;
+
+    /**
+     * Sizes of the caches in front of leveldb. Outputs are looked up in a heap LRU cache first, then optionally in an
+     * off-heap tier holding the outputs evicted from the heap, and only then in leveldb. Calls to
+     * {@link LevelDBFullPrunedBlockStore#hasUnspentOutputs(Sha256Hash, int)} for transactions that were never seen are
+     * answered by a bloom filter over transaction hashes. Use {@link LevelDBFullPrunedBlockStore#getCacheMetrics()} to
+     * see how well the sizes fit the workload.
+     */
+    public static class CacheConfig {
+        /** The number of unspent outputs kept on the heap. */
+        public int utxoCacheEntries = OPENOUT_CACHE_DEFAULT;
+        /** Bytes of direct memory for outputs evicted from the heap cache, or 0 for none. */
+        public int offHeapCacheBytes = 0;
+        /** The number of transaction hashes the bloom filter is sized for. */
+        public long filterExpectedEntries = FILTER_EXPECTED_ENTRIES_DEFAULT;
+        /** The false positive rate the bloom filter should have once it holds the expected number of entries. */
+        public double filterFalsePositiveRate = FILTER_FALSE_POSITIVE_RATE_DEFAULT;
+    }
 
-    // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
-        private static final long serialVersionUID = 1L;
-        private int capacity;
-
-        public LRUCache(int capacity, float loadFactor) {
-            super(capacity, loadFactor, true);
-            this.capacity = capacity;
+    /** A snapshot of the counters of the caches, see {@link LevelDBFullPrunedBlockStore#getCacheMetrics()}. */
+    public static class CacheMetrics {
+        public final long heapHits;
+        public final long heapMisses;
+        public final long heapEvictions;
+        public final long heapEntries;
+        public final long offHeapHits;
+        public final long offHeapMisses;
+        public final long offHeapEntries;
+        /** Bytes of the off-heap tier holding live outputs. */
+        public final long offHeapBytes;
+        /** Outputs that had to be read from leveldb, and how many of them weren't there. */
+        public final long dbReads;
+        public final long dbNotFound;
+        public final long filterQueries;
+        /** Queries the filter answered without going to leveldb. */
+        public final long filterNegatives;
+        /**
+         * Queries the filter let through for transactions leveldb has no unspent outputs for. Besides false positives
+         * of the filter these are transactions whose outputs were all spent, as the filter never forgets a hash.
+         */
+        public final long filterMisses;
+        public final long filterBytes;
+        /** The false positive rate expected from the current fill of the filter. */
+        public final double filterEstimatedFalsePositiveRate;
+
+        CacheMetrics(CacheStats heapStats, long heapEntries, long offHeapHits, long offHeapMisses, long offHeapEntries,
+                     long offHeapBytes, long dbReads, long dbNotFound, long filterQueries, long filterNegatives,
+                     long filterMisses, long filterBytes, double filterEstimatedFalsePositiveRate) {
+            this.heapHits = heapStats.hitCount();
+            this.heapMisses = heapStats.missCount();
+            this.heapEvictions = heapStats.evictionCount();
+            this.heapEntries = heapEntries;
+            this.offHeapHits = offHeapHits;
+            this.offHeapMisses = offHeapMisses;
+            this.offHeapEntries = offHeapEntries;
+            this.offHeapBytes = offHeapBytes;
+            this.dbReads = dbReads;
+            this.dbNotFound = dbNotFound;
+            this.filterQueries = filterQueries;
+            this.filterNegatives = filterNegatives;
+            this.filterMisses = filterMisses;
+            this.filterBytes = filterBytes;
+            this.filterEstimatedFalsePositiveRate = filterEstimatedFalsePositiveRate;
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
-            return size() > this.capacity;
+        public String toString() {
+            return String.format(Locale.US, "heap: %d hits, %d misses, %d evictions, %d entries; "
+                    + "off-heap: %d hits, %d misses, %d entries, %d bytes; db: %d reads, %d not found; "
+                    + "filter: %d queries, %d negatives, %d misses, %d bytes, %.4f estimated fp rate",
+                    heapHits, heapMisses, heapEvictions, heapEntries, offHeapHits, offHeapMisses, offHeapEntries,
+                    offHeapBytes, dbReads, dbNotFound, filterQueries, filterNegatives, filterMisses,
+                    filterBytes, filterEstimatedFalsePositiveRate);
         }
     }
 
-    // Simple bloomfilter. We take advantage of fact that a Transaction Hash
-    // can be split into 3 30bit numbers that are all random and uncorrelated
-    // so ideal to use as the input to a 3 function bloomfilter. No has function
-    // needed.
-    private class BloomFilter {
-        private byte[] cache;
-        public long returnedTrue;
-        public long returnedFalse;
-        public long added;
-
-        public BloomFilter() {
-            // 2^27 so since 8 bits in a byte this is
-            // 1,073,741,824 bits
-            cache = new byte[134217728];
-            // This size chosen as with 3 functions we should only get 4% errors
-            // with 150m entries.
+    // Bloom filter over transaction hashes, sized for a number of entries and a false positive rate. Transaction
+    // hashes are already random, so two 64 bit numbers taken from the hash stand in for the hash functions, combined
+    // as h1 + i * h2 for the i-th probe.
+    private static class TxHashFilter {
+        private final long[] bits;
+        private final long numBits;
+        private final int numProbes;
+        private long bitsSet;
+
+        TxHashFilter(long expectedEntries, double falsePositiveRate) {
+            checkArgument(expectedEntries > 0 && falsePositiveRate > 0 && falsePositiveRate < 1);
+            long wanted = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (wanted + 63) / 64))];
+            numBits = bits.length * 64L;
+            numProbes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * Math.log(2)));
         }
 
-        // Called to prime cache.
-        // Might be idea to call periodically to flush out removed keys.
-        // Would need to benchmark 1st though.
-        public void reloadCache(DB db) {
+        // Called to prime the filter.
+        void reload(DB db) {
             // LevelDB is great at scanning consecutive keys.
             // This take seconds even with 20m keys to add.
-            log.info("Loading Bloom Filter");
+            log.info("Loading bloom filter: {} bytes, {} probes", bits.length * 8L, numProbes);
             DBIterator iterator = db.iterator();
             byte[] key = getKey(KeyType.OPENOUT_ALL);
-            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                byte firstByte = bbKey.get(); // remove the KeyType.OPENOUT_ALL
-                                              // byte.
-                if (key[0] != firstByte) {
-                    printStat();
-                    return;
+            byte[] hash = new byte[32];
+            try {
+                for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                    byte[] entry = iterator.peekNext().getKey();
+                    if (entry[0] != key[0])
+                        break;
+                    System.arraycopy(entry, 1, hash, 0, 32);
+                    add(hash);
                 }
+            } finally {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    log.error("Error closing iterator", e);
+                }
+            }
+        }
 
-                byte[] hash = new byte[32];
-                bbKey.get(hash);
-                add(hash);
+        void add(byte[] hash) {
+            long h1 = Utils.readInt64(hash, 0);
+            long h2 = Utils.readInt64(hash, 8) | 1;
+            for (int i = 0; i < numProbes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                if ((bits[word] & mask) == 0) {
+                    bits[word] |= mask;
+                    bitsSet++;
+                }
             }
-            try {
-                iterator.close();
-            } catch (IOException e) {
-                log.error("Error closing iterator", e);
+        }
+
+        // If this returns false the hash was never added. If it returns true it may have been.
+        boolean mightContain(byte[] hash) {
+            long h1 = Utils.readInt64(hash, 0);
+            long h2 = Utils.readInt64(hash, 8) | 1;
+            for (int i = 0; i < numProbes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
             }
-            printStat();
+            return true;
         }
 
-        public void printStat() {
-            log.info("Bloom Added: " + added + " T: " + returnedTrue + " F: " + returnedFalse);
+        long sizeInBytes() {
+            return bits.length * 8L;
         }
 
-        // Add a txhash to the filter.
-        public void add(byte[] hash) {
-            byte[] firstHash = new byte[4];
-            added++;
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash, i * 4, firstHash, 0, 4);
-                setBit(firstHash);
-            }
+        double estimatedFalsePositiveRate() {
+            return Math.pow((double) bitsSet / numBits, numProbes);
         }
+    }
 
-        public void add(Sha256Hash hash) {
-            add(hash.getBytes());
+    // Second tier for outputs evicted from the heap cache: serialized outputs written round a direct buffer, each
+    // entry overwriting the oldest ones. The index is kept in write order, so entries that were overwritten are always
+    // at its head.
+    private static class OffHeapUTXOCache {
+        private final ByteBuffer buffer;
+        private final LinkedHashMap<ByteBuffer, Long> index = new LinkedHashMap<ByteBuffer, Long>();
+        // Positions are counted from the first write and never wrap, the offset in the buffer is position % capacity.
+        private long writePosition;
+        private long liveBytes;
+
+        OffHeapUTXOCache(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
         }
 
-        // check if hash was added.
-        // if returns false then 100% sure never added
-        // if returns true need to check what state is in DB as can
-        // not be 100% sure.
-        public boolean wasAdded(Sha256Hash hash) {
-
-            byte[] firstHash = new byte[4];
-            for (int i = 0; i < 3; i++) {
-                System.arraycopy(hash.getBytes(), i * 4, firstHash, 0, 4);
-                boolean result = getBit(firstHash);
-                if (!result) {
-                    returnedFalse++;
-                    return false;
-                }
+        synchronized void put(ByteBuffer key, UTXO out) {
+            byte[] bytes;
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                out.serializeToStream(bos);
+                bytes = bos.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
             }
-            returnedTrue++;
-            return true;
+            int capacity = buffer.capacity();
+            int size = 4 + bytes.length;
+            if (size > capacity)
+                return;
+            remove(key);
+            int offset = (int) (writePosition % capacity);
+            if (offset + size > capacity) {
+                // Doesn't fit before the end, skip to the start.
+                writePosition += capacity - offset;
+                offset = 0;
+            }
+            // Forget the entries this one will overwrite, while their lengths can still be read.
+            long end = writePosition + size;
+            Iterator<Map.Entry<ByteBuffer, Long>> it = index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ByteBuffer, Long> eldest = it.next();
+                if (eldest.getValue() >= end - capacity)
+                    break;
+                liveBytes -= 4 + buffer.getInt((int) (eldest.getValue() % capacity));
+                it.remove();
+            }
+            buffer.putInt(offset, bytes.length);
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset + 4);
+            target.put(bytes);
+            index.put(key, writePosition);
+            liveBytes += size;
+            writePosition = end;
         }
 
-        private void setBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte newEntry = (byte) ((int) cache[arrayIndex] | orBit);
-            cache[arrayIndex] = newEntry;
+        @Nullable
+        synchronized UTXO get(ByteBuffer key) throws IOException {
+            Long position = index.get(key);
+            if (position == null)
+                return null;
+            int offset = (int) (position % buffer.capacity());
+            byte[] bytes = new byte[buffer.getInt(offset)];
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset + 4);
+            source.get(bytes);
+            return new UTXO(new ByteArrayInputStream(bytes));
         }
 
-        private boolean getBit(byte[] entry) {
-            int arrayIndex = (entry[0] & 0x3F) << 21 | (entry[1] & 0xFF) << 13 | (entry[2] & 0xFF) << 5
-                    | (entry[3] & 0xFF) >> 3;
-            int bit = (entry[3] & 0x07);
-            int orBit = (0x1 << bit);
-            byte arrayEntry = cache[arrayIndex];
+        synchronized void remove(ByteBuffer key) {
+            Long position = index.remove(key);
+            if (position != null)
+                liveBytes -= 4 + buffer.getInt((int) (position % buffer.capacity()));
+        }
 
-            int result = arrayEntry & orBit;
-            if (result == 0) {
-                return false;
+        synchronized int size() {
+            return index.size();
+        }
 
-            } else {
-                return true;
-            }
+        synchronized long liveBytes() {
+            return liveBytes;
         }
     }
 
@@ -255,6 +404,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache, cacheConfig(openOutCache), instrument,
+                exitBlock);
+    }
+
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, CacheConfig cacheConfig, boolean instrument, int exitBlock) {
         this.params = params;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
@@ -266,16 +421,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.filename = filename;
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
-        this.openOutCache = openOutCache;
-        bloom = new BloomFilter();
+        this.cacheConfig = cacheConfig;
         totalStopwatch = Stopwatch.createStarted();
         openDB();
-        bloom.reloadCache(db);
 
         // Reset after bloom filter loaded
         totalStopwatch = Stopwatch.createStarted();
     }
 
+    private static CacheConfig cacheConfig(int openOutCache) {
+        CacheConfig config = new CacheConfig();
+        config.utxoCacheEntries = openOutCache;
+        return config;
+    }
+
     private void openDB() {
         Options options = new Options();
         options.createIfMissing(true);
@@ -290,7 +449,21 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new RuntimeException("Can not open DB", e);
         }
 
-        utxoCache = new LRUCache(openOutCache, 0.75f);
+        offHeapCache = cacheConfig.offHeapCacheBytes > 0 ? new OffHeapUTXOCache(cacheConfig.offHeapCacheBytes) : null;
+        utxoCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheConfig.utxoCacheEntries)
+                .recordStats()
+                .removalListener(new RemovalListener<ByteBuffer, UTXO>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<ByteBuffer, UTXO> notification) {
+                        // Outputs pushed out of the heap move down to the off-heap tier.
+                        if (notification.getCause() == RemovalCause.SIZE && offHeapCache != null)
+                            offHeapCache.put(notification.getKey(), notification.getValue());
+                    }
+                })
+                .build();
+        bloom = new TxHashFilter(cacheConfig.filterExpectedEntries, cacheConfig.filterFalsePositiveRate);
+        bloom.reload(db);
         try {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
@@ -371,11 +544,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.info(name + " c:" + calls + " r:" + time + " a:" + average + " p:" + String.format("%.2f", proportion));
         }
         double dbproportion = (dbtime + 0.0) / (wallTimeNanos + 0.0);
-        double hitrate = (hit + 0.0) / (hit + miss + 0.0);
-        log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
-                + String.format("%.2f", hitrate));
-        bloom.printStat();
-        log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
+        log.info("Caches: " + getCacheMetrics());
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
         String stats = db.getProperty("leveldb.stats");
         System.out.println(stats);
@@ -406,10 +575,14 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
-        try {
-            db.close();
-        } catch (IOException e) {
-            throw new BlockStoreException("Could not close db", e);
+        pruneExecutor.shutdown();
+        synchronized (pruneLock) {
+            try {
+                closed = true;
+                db.close();
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not close db", e);
+            }
         }
     }
 
@@ -509,7 +682,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -563,7 +736,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     // These helpers just get the key for an input
-    private byte[] getKey(KeyType keytype) {
+    private static byte[] getKey(KeyType keytype) {
         byte[] key = new byte[1];
         key[0] = (byte) keytype.ordinal();
         return key;
@@ -684,8 +857,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             } else {
                 byte[] txOutChanges = new byte[txOutSize];
                 bb.get(txOutChanges);
-                TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
-                        new ByteArrayInputStream(txOutChanges));
+                TransactionOutputChanges outChangesObject = TransactionOutputChanges.parse(txOutChanges);
                 block = new StoredUndoableBlock(hash, outChangesObject);
             }
             if (instrument)
@@ -709,41 +881,39 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             UTXO result = null;
             byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
             // Use cache
-            if (autoCommit) {
-                // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
-            } else {
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            if (!autoCommit) {
                 // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
+                if (utxoUncommittedDeletedCache.contains(bbKey)) {
                     // has been deleted so return null;
-                    hit++;
                     if (instrument)
                         endMethod("getTransactionOutput");
                     return result;
                 }
                 // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
-                if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
-                // And lastly above check if we have a committed cached entry
-
+                result = utxoUncommittedCache.get(bbKey);
             }
+            // And lastly check if we have a committed cached entry
+            if (result == null)
+                result = getCachedOutput(bbKey);
             if (result != null) {
-                hit++;
                 if (instrument)
                     endMethod("getTransactionOutput");
                 return result;
             }
-            miss++;
             // If we get here have to hit the database.
+            dbReads.incrementAndGet();
             byte[] inbytes = batchGet(key);
             if (inbytes == null) {
+                dbNotFound.incrementAndGet();
                 if (instrument)
                     endMethod("getTransactionOutput");
                 return null;
             }
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
             UTXO txout = new UTXO(bis);
+            // Uncommitted changes to this output were found above, so this is the committed one.
+            utxoCache.put(bbKey, txout);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -760,6 +930,84 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    // Looks the output up in the heap cache and then in the off-heap tier, moving it back to the heap if found there.
+    @Nullable
+    private UTXO getCachedOutput(ByteBuffer key) throws IOException {
+        UTXO result = utxoCache.getIfPresent(key);
+        if (result != null || offHeapCache == null)
+            return result;
+        result = offHeapCache.get(key);
+        if (result == null) {
+            offHeapMisses.incrementAndGet();
+            return null;
+        }
+        offHeapHits.incrementAndGet();
+        offHeapCache.remove(key);
+        utxoCache.put(key, result);
+        return result;
+    }
+
+    // Drops a spent output from both tiers.
+    private void invalidateCachedOutput(ByteBuffer key) {
+        utxoCache.invalidate(key);
+        if (offHeapCache != null)
+            offHeapCache.remove(key);
+    }
+
+    /**
+     * Returns the counters of the output caches and the bloom filter, to size them with {@link CacheConfig}.
+     */
+    public CacheMetrics getCacheMetrics() {
+        return new CacheMetrics(utxoCache.stats(), utxoCache.size(),
+                offHeapHits.get(), offHeapMisses.get(),
+                offHeapCache != null ? offHeapCache.size() : 0, offHeapCache != null ? offHeapCache.liveBytes() : 0,
+                dbReads.get(), dbNotFound.get(), filterQueries.get(), filterNegatives.get(),
+                filterMisses.get(), bloom.sizeInBytes(), bloom.estimatedFalsePositiveRate());
+    }
+
+    /**
+     * Reads the given outputs into the output cache. The keys are visited in sorted order with a single iterator, so
+     * leveldb can reuse the blocks it has just read instead of descending from the top of the tree for each lookup.
+     */
+    @Override
+    public void prefetchOutputs(Collection<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (instrument)
+            beginMethod("prefetchOutputs");
+        List<byte[]> keys = new ArrayList<byte[]>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            if (utxoCache.getIfPresent(bbKey) != null || (!autoCommit && utxoUncommittedCache.containsKey(bbKey)))
+                continue;
+            keys.add(key);
+        }
+        Collections.sort(keys, UnsignedBytes.lexicographicalComparator());
+        DBIterator iterator = db.iterator();
+        try {
+            for (byte[] key : keys) {
+                iterator.seek(key);
+                if (!iterator.hasNext())
+                    break;
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (!Arrays.equals(entry.getKey(), key))
+                    continue;
+                utxoCache.put(ByteBuffer.wrap(key), new UTXO(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException("problem deserialising utxo", e);
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+            if (instrument)
+                endMethod("prefetchOutputs");
+        }
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
@@ -767,7 +1015,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("addUnspentTransactionOutput");
 
         // Add to bloom filter - is very fast to add.
-        bloom.add(out.getHash());
+        bloom.add(out.getHash().getBytes());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
             out.serializeToStream(bos);
@@ -780,6 +1028,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
         if (autoCommit) {
             utxoCache.put(ByteBuffer.wrap(key), out);
+            if (offHeapCache != null)
+                offHeapCache.remove(ByteBuffer.wrap(key));
         } else {
             utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
             // leveldb just stores the last key/value added.
@@ -870,7 +1120,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
 
         if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
+            invalidateCachedOutput(ByteBuffer.wrap(key));
         } else {
             utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
             utxoUncommittedCache.remove(ByteBuffer.wrap(key));
@@ -914,22 +1164,16 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             endMethod("removeUnspentTransactionOutput");
     }
 
-    // Instrumentation of bloom filter to check theory
-    // matches reality. Without this initial chain sync takes
-    // 50-75% longer.
-    long hasCall;
-    long hasTrue;
-    long hasFalse;
-
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         if (instrument)
             beginMethod("hasUnspentOutputs");
-        hasCall++;
-        if (!bloom.wasAdded(hash)) {
+        // Without the bloom filter initial chain sync takes 50-75% longer.
+        filterQueries.incrementAndGet();
+        if (!bloom.mightContain(hash.getBytes())) {
             if (instrument)
                 endMethod("hasUnspentOutputs");
-            hasFalse++;
+            filterNegatives.incrementAndGet();
             return false;
         }
         // no index is fine as will find any entry with any index...
@@ -941,7 +1185,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             byte[] result = iterator.peekNext().getKey();
             System.arraycopy(result, 0, subResult, 0, subResult.length);
             if (Arrays.equals(key, subResult)) {
-                hasTrue++;
                 try {
                     iterator.close();
                 } catch (IOException e) {
@@ -951,7 +1194,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                     endMethod("hasUnspentOutputs");
                 return true;
             } else {
-                hasFalse++;
+                filterMisses.incrementAndGet();
                 try {
                     iterator.close();
                 } catch (IOException e) {
@@ -967,7 +1210,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             log.error("Error closing iterator", e);
         }
-        hasFalse++;
+        filterMisses.incrementAndGet();
         if (instrument)
             endMethod("hasUnspentOutputs");
         return false;
@@ -988,41 +1231,79 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        int height = chainHead.getHeight() - fullStoreDepth;
+        if (autoCommit)
+            schedulePruning(height);
+        else
+            pendingPruneHeight = Math.max(pendingPruneHeight, height);
         if (instrument)
             endMethod("setVerifiedChainHead");
     }
 
+    /**
+     * Deletes the undo data at or below the given height on the pruning thread. Requests made while a deletion is
+     * queued are merged into it.
+     */
+    private void schedulePruning(int height) {
+        if (height < 0)
+            return;
+        int current;
+        do {
+            current = pruneHeight.get();
+        } while (height > current && !pruneHeight.compareAndSet(current, height));
+        if (!pruneScheduled.compareAndSet(false, true))
+            return;
+        pruneExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pruneScheduled.set(false);
+                synchronized (pruneLock) {
+                    if (!closed)
+                        removeUndoableBlocksWhereHeightIsLessThan(pruneHeight.get());
+                }
+            }
+        });
+    }
+
+    // Runs on the pruning thread, so it writes to the database directly instead of through the open batch.
     void removeUndoableBlocksWhereHeightIsLessThan(int height) {
         if (height < 0)
             return;
         DBIterator iterator = db.iterator();
+        WriteBatch deletes = db.createWriteBatch();
         ByteBuffer keyBuf = ByteBuffer.allocate(5);
         keyBuf.put((byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal());
-        keyBuf.putInt(height);
+        keyBuf.putInt(0);
 
-        for (iterator.seek(keyBuf.array()); iterator.hasNext(); iterator.next()) {
+        try {
+            for (iterator.seek(keyBuf.array()); iterator.hasNext(); iterator.next()) {
 
-            byte[] bytekey = iterator.peekNext().getKey();
-            ByteBuffer buff = ByteBuffer.wrap(bytekey);
-            buff.get(); // Just remove byte from buffer.
-            int keyHeight = buff.getInt();
+                byte[] bytekey = iterator.peekNext().getKey();
+                ByteBuffer buff = ByteBuffer.wrap(bytekey);
+                if (buff.get() != (byte) KeyType.HEIGHT_UNDOABLEBLOCKS.ordinal())
+                    break;
+                int keyHeight = buff.getInt();
 
-            byte[] hashbytes = new byte[32];
-            buff.get(hashbytes, 4, 28);
+                byte[] hashbytes = new byte[32];
+                buff.get(hashbytes, 4, 28);
 
-            if (keyHeight > height)
-                break;
+                if (keyHeight > height)
+                    break;
 
-            batchDelete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
-            batchDelete(bytekey);
-        }
-        try {
-            iterator.close();
-        } catch (IOException e) {
-            log.error("Error closing iterator", e);
+                deletes.delete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
+                deletes.delete(bytekey);
+            }
+            db.write(deletes);
+        } catch (DBException e) {
+            log.error("Error pruning undo data", e);
+        } finally {
+            try {
+                deletes.close();
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
         }
-
     }
 
     WriteBatch batch;
@@ -1062,10 +1343,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
 
             utxoCache.put(entry.getKey(), entry.getValue());
+            if (offHeapCache != null)
+                offHeapCache.remove(entry.getKey());
         }
         utxoUncommittedCache = null;
         for (ByteBuffer entry : utxoUncommittedDeletedCache) {
-            utxoCache.remove(entry);
+            invalidateCachedOutput(entry);
         }
         utxoUncommittedDeletedCache = null;
 
@@ -1082,6 +1365,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
+        schedulePruning(pendingPruneHeight);
+        pendingPruneHeight = -1;
+
         if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
             log.info("Height: " + verifiedChainHeadBlock.getHeight());
             dumpStats();
@@ -1100,6 +1386,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             utxoUncommittedCache = null;
             utxoUncommittedDeletedCache = null;
             autoCommit = true;
+            pendingPruneHeight = -1;
             if (batch != null) {
                 batch.close();
                 batch = null;
@@ -1112,22 +1399,24 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() {
         // only used in unit tests.
         // bit dangerous and deletes files!
-        try {
-            db.close();
-            uncommited = null;
-            uncommitedDeletes = null;
-            autoCommit = true;
-            bloom = new BloomFilter();
-            utxoCache = new LRUCache(openOutCache, 0.75f);
-        } catch (IOException e) {
-            log.error("Exception in resetStore.", e);
-        }
+        synchronized (pruneLock) {
+            pruneHeight.set(-1);
+            pendingPruneHeight = -1;
+            try {
+                db.close();
+                uncommited = null;
+                uncommitedDeletes = null;
+                autoCommit = true;
+            } catch (IOException e) {
+                log.error("Exception in resetStore.", e);
+            }
 
-        File f = new File(filename);
-        if (f.isDirectory()) {
-            for (File c : f.listFiles())
-                c.delete();
+            File f = new File(filename);
+            if (f.isDirectory()) {
+                for (File c : f.listFiles())
+                    c.delete();
+            }
+            openDB();
         }
-        openDB();
     }
 }
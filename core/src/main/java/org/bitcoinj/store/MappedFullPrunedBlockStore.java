@@ -0,0 +1,1466 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} kept in memory mapped files, written in pure Java. It needs no native code and no
+ * database server, and unlike {@link MemoryFullPrunedBlockStore} the unspent outputs don't have to fit on the heap:
+ * the operating system pages them in and out as needed.</p>
+ *
+ * <p>The store is a directory holding:</p>
+ * <ul>
+ *     <li>An append-only log split into fixed size segments. Each batch write appends a record for every added and
+ *     removed output and every stored header, followed by a commit record with the chain heads. A batch that has no
+ *     commit record when the store is opened is discarded.</li>
+ *     <li>An open-addressing index from outpoints to their records in the log, in its own mapped file. It is rebuilt
+ *     from the log each time the store is opened.</li>
+ *     <li>A ring holding the undo data of the last blocks, which grows if the blocks kept don't fit.</li>
+ * </ul>
+ *
+ * <p>Once less than half of the log is live, a background thread copies the live records of the oldest segment to the
+ * end of the log and deletes it. Writes are not forced to disk on every commit, so the store survives the process
+ * dying at any point, but it may need to be rebuilt after the operating system crashes.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are only seen by
+ * the thread that began the batch.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    /** The default size of each log segment. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** The size the undo ring starts at. */
+    public static final int DEFAULT_UNDO_RING_SIZE = 16 * 1024 * 1024;
+
+    // The oldest segment is compacted once less than this fraction of the log is live.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final int SEGMENT_MAGIC = 0x4158554c;  // "AXUL"
+    private static final int UNDO_RING_MAGIC = 0x41585552;  // "AXUR"
+    private static final String LOCK_FILE = "lock";
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String UNDO_RING_FILE = "undo.ring";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    // Segment format:
+    //   4 bytes magic, 4 bytes segment number
+    //   Records, each of them 1 byte type, 4 bytes body length and the body. A zero type marks the end.
+    //
+    // Record bodies:
+    //   ADD     32 bytes tx hash, 4 bytes index, 8 bytes value, 4 bytes height, 1 byte coinbase flag, script bytes
+    //   REMOVE  32 bytes tx hash, 4 bytes index
+    //   HEADER  32 bytes block hash, compact StoredBlock, 1 byte was undoable flag
+    //   COMMIT  32 bytes chain head hash, 32 bytes verified chain head hash
+    private static final int SEGMENT_PROLOGUE = 8;
+    private static final int RECORD_PROLOGUE = 5;
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_HEADER = 3;
+    private static final byte RECORD_COMMIT = 4;
+    private static final int OUTPOINT_SIZE = 32 + 4;
+    private static final int ADD_FIXED_SIZE = OUTPOINT_SIZE + 8 + 4 + 1;
+    private static final int HEADER_BODY_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+
+    protected NetworkParameters params;
+    protected final File directory;
+    protected final int fullStoreDepth;
+    protected final int segmentSize;
+    protected final int initialUndoRingSize;
+
+    protected final ReentrantLock lock = Threading.lock("MappedFullPrunedBlockStore");
+    private final ExecutorService compactionExecutor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // Used to stop other processes from opening the store.
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    // The log segments by number. Records are appended to the last one.
+    private TreeMap<Integer, Segment> segments;
+    private Segment activeSegment;
+    private int indexGeneration;
+    private OutPointIndex outputs;
+    // Where the latest header record of every block is.
+    private HashMap<Sha256Hash, Long> headers;
+    private UndoRing undoRing;
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // The batch write that is open, and the thread it belongs to.
+    @Nullable private Batch batch;
+    @Nullable private Thread batchThread;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store files
+     * @param fullStoreDepth The depth of blocks to keep undo data for
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE, DEFAULT_UNDO_RING_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the store files
+     * @param fullStoreDepth The depth of blocks to keep undo data for
+     * @param segmentSize The size of each log segment, which bounds the size of a single output
+     * @param undoRingSize The size the undo ring starts at
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize,
+                                      int undoRingSize) throws BlockStoreException {
+        checkArgument(segmentSize >= 64 * 1024, "Segments must be at least 64kb");
+        checkArgument(undoRingSize >= 64 * 1024, "The undo ring must be at least 64kb");
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        this.initialUndoRingSize = undoRingSize;
+        this.compactionExecutor = Executors.newSingleThreadExecutor(
+                new ContextPropagatingThreadFactory("MappedFullPrunedBlockStore compaction", Thread.MIN_PRIORITY));
+        lock.lock();
+        try {
+            open();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() throws BlockStoreException {
+        try {
+            if (!directory.exists() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create " + directory);
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store is already locked by another process");
+
+            // Indexes are rebuilt on every open, so any left over from the last run are of no use.
+            for (File file : listFiles(INDEX_SUFFIX))
+                deleteFile(file);
+            segments = new TreeMap<Integer, Segment>();
+            headers = new HashMap<Sha256Hash, Long>();
+            outputs = new OutPointIndex(1024);
+            undoRing = new UndoRing();
+            chainHead = null;
+            verifiedChainHead = null;
+            batch = null;
+            batchThread = null;
+
+            replayLog();
+            undoRing.load();
+            if (chainHead == null) {
+                createNewStore();
+            } else {
+                undoRing.prune(verifiedChainHead.getHeight() - fullStoreDepth);
+                undoRing.writeHeader();
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } catch (RuntimeException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            Batch genesisBatch = new Batch();
+            putLocked(genesisBatch, storedGenesisHeader, storedGenesis);
+            genesisBatch.chainHead = storedGenesisHeader;
+            genesisBatch.verifiedChainHead = storedGenesisHeader;
+            commitLocked(genesisBatch);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Deletes everything in the store and starts again from the genesis block. Used by unit tests. */
+    public void resetStore() throws BlockStoreException {
+        lock.lock();
+        try {
+            closeFiles();
+            for (File file : listFiles(""))
+                deleteFile(file);
+            open();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Block headers and undo data
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.headers.put(block.getHeader().getHash(),
+                    new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(block, false));
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            putLocked(b, storedBlock, undoableBlock);
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void putLocked(Batch b, StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        b.undoBlocks.put(hash, new PendingUndoBlock(storedBlock.getHeight(), serializeUndoBlock(undoableBlock)));
+        b.headers.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = readBatch();
+            if (b != null) {
+                MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag pending = b.headers.get(hash);
+                if (pending != null)
+                    return !wasUndoableOnly || pending.wasUndoable ? pending.block : null;
+            }
+            Long location = headers.get(hash);
+            if (location == null)
+                return null;
+            ByteBuffer record = readRecord(location);
+            int pos = record.position();
+            if (wasUndoableOnly && record.get(pos + 32 + StoredBlock.COMPACT_SERIALIZED_SIZE) != 1)
+                return null;
+            record.position(pos + 32);
+            return StoredBlock.deserializeCompact(params, record);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = readBatch();
+            byte[] bytes = null;
+            if (b != null && b.undoBlocks.containsKey(hash))
+                bytes = b.undoBlocks.get(hash).bytes;
+            if (bytes == null)
+                bytes = undoRing.get(hash);
+            return bytes == null ? null : deserializeUndoBlock(hash, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = readBatch();
+            return b != null && b.chainHead != null ? b.chainHead : chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.chainHead = chainHead;
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = readBatch();
+            return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            StoredBlock currentHead = b.chainHead != null ? b.chainHead : this.chainHead;
+            b.verifiedChainHead = chainHead;
+            if (currentHead == null || currentHead.getHeight() < chainHead.getHeight())
+                b.chainHead = chainHead;
+            // Undo data below the new head is dropped from the ring when the batch is committed.
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Unspent outputs
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = readBatch();
+            if (b != null) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+                UTXO pending = b.addedOutputs.get(key);
+                if (pending != null)
+                    return pending;
+                if (b.removedOutputs.contains(key))
+                    return null;
+            }
+            long location = outputs.get(hash, index);
+            return location == 0 ? null : readOutput(location);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void prefetchOutputs(Collection<TransactionOutPoint> outPoints) {
+        // Outputs are read straight from the mapped log, the operating system already does the caching.
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            b.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            Batch b = writeBatch();
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            boolean committed = outputs.get(out.getHash(), out.getIndex()) != 0;
+            if (b.addedOutputs.remove(key) != null) {
+                if (committed)
+                    b.removedOutputs.add(key);
+            } else if (committed && b.removedOutputs.add(key)) {
+                // Removed when the batch is committed.
+            } else {
+                throw new BlockStoreException(
+                        "Tried to remove a UTXO from MappedFullPrunedBlockStore that it didn't have!");
+            }
+            commitIfAutomatic(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        // Like the memory store this walks all outputs, there's no index by address.
+        Set<Address> wanted = new HashSet<Address>(addresses);
+        List<UTXO> foundOutputs = new ArrayList<UTXO>();
+        lock.lock();
+        try {
+            checkOpen();
+            for (int slot = 0; slot < outputs.capacity; slot++) {
+                long location = outputs.locationAt(slot);
+                if (location == 0)
+                    continue;
+                UTXO output = readOutput(location);
+                Address address;
+                try {
+                    address = output.getScript().getToAddress(params, true);
+                } catch (ScriptException e) {
+                    continue;
+                }
+                if (wanted.contains(address))
+                    foundOutputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(),
+                            output.getHeight(), output.isCoinbase(), output.getScript(), address.toString()));
+            }
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        } finally {
+            lock.unlock();
+        }
+        return foundOutputs;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Batch writes
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batchThread == Thread.currentThread())
+                return;  // Nested calls are treated as one.
+            checkState(batch == null, "Another thread has a batch write open");
+            batch = new Batch();
+            batchThread = Thread.currentThread();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (batchThread != Thread.currentThread())
+                return;
+            Batch b = batch;
+            batch = null;
+            batchThread = null;
+            commitLocked(b);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (batchThread == Thread.currentThread()) {
+                batch = null;
+                batchThread = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The batch the calling thread's reads should see, if it has one open.
+    @Nullable
+    private Batch readBatch() {
+        return batchThread == Thread.currentThread() ? batch : null;
+    }
+
+    // The batch to record a write in. Outside of a batch write, every write is a batch of its own.
+    private Batch writeBatch() {
+        Batch b = readBatch();
+        return b != null ? b : new Batch();
+    }
+
+    private void commitIfAutomatic(Batch b) throws BlockStoreException {
+        if (b != readBatch())
+            commitLocked(b);
+    }
+
+    private void commitLocked(Batch b) throws BlockStoreException {
+        checkState(lock.isHeldByCurrentThread());
+        // Undo data goes first. If the process dies before the commit record is written, the ring holds undo data of
+        // blocks the store doesn't know about, which is harmless.
+        for (Map.Entry<Sha256Hash, PendingUndoBlock> entry : b.undoBlocks.entrySet())
+            undoRing.add(entry.getKey(), entry.getValue().height, entry.getValue().bytes);
+        if (b.verifiedChainHead != null)
+            undoRing.prune(b.verifiedChainHead.getHeight() - fullStoreDepth);
+        if (!b.undoBlocks.isEmpty() || b.verifiedChainHead != null)
+            undoRing.writeHeader();
+
+        for (StoredTransactionOutPoint key : b.removedOutputs) {
+            ByteBuffer body = ByteBuffer.allocate(OUTPOINT_SIZE);
+            body.put(key.getHash().getBytes());
+            body.putInt((int) key.getIndex());
+            append(RECORD_REMOVE, body.array());
+            long previous = outputs.remove(key.getHash(), key.getIndex());
+            if (previous != 0)
+                releaseRecord(previous);
+        }
+        for (UTXO out : b.addedOutputs.values()) {
+            long location = append(RECORD_ADD, serializeOutput(out));
+            long previous = outputs.put(out.getHash(), out.getIndex(), location);
+            if (previous != 0)
+                releaseRecord(previous);
+        }
+        for (Map.Entry<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag> entry :
+                b.headers.entrySet()) {
+            ByteBuffer body = ByteBuffer.allocate(HEADER_BODY_SIZE);
+            body.put(entry.getKey().getBytes());
+            entry.getValue().block.serializeCompact(body);
+            body.put((byte) (entry.getValue().wasUndoable ? 1 : 0));
+            long location = append(RECORD_HEADER, body.array());
+            Long previous = headers.put(entry.getKey(), location);
+            if (previous != null)
+                releaseRecord(previous);
+        }
+        if (b.chainHead != null)
+            chainHead = b.chainHead;
+        if (b.verifiedChainHead != null)
+            verifiedChainHead = b.verifiedChainHead;
+        appendCommit();
+        maybeScheduleCompaction();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The log
+
+    // A location packs the segment number into the high and the record offset into the low 32 bits. Segment numbers
+    // start at 1, so no location is 0.
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private Segment segmentOf(long location) throws BlockStoreException {
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null)
+            throw new BlockStoreException("Corrupt store: no segment for location " + Long.toHexString(location));
+        return segment;
+    }
+
+    // Returns a buffer positioned at the body of the record at the given location, limited to its end.
+    private ByteBuffer readRecord(long location) throws BlockStoreException {
+        ByteBuffer buffer = segmentOf(location).buffer.duplicate();
+        int offset = (int) location;
+        int length = buffer.getInt(offset + 1);
+        buffer.limit(offset + RECORD_PROLOGUE + length);
+        buffer.position(offset + RECORD_PROLOGUE);
+        return buffer;
+    }
+
+    private long append(byte type, byte[] body) throws BlockStoreException {
+        int size = RECORD_PROLOGUE + body.length;
+        if (size > segmentSize - SEGMENT_PROLOGUE)
+            throw new BlockStoreException("Record of " + size + " bytes doesn't fit in a segment");
+        if (activeSegment == null || activeSegment.used + size > segmentSize)
+            startSegment(activeSegment == null ? 1 : activeSegment.number + 1);
+        ByteBuffer buffer = activeSegment.buffer;
+        int offset = activeSegment.used;
+        // The type goes in last, so a record is never seen half written.
+        buffer.putInt(offset + 1, body.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + RECORD_PROLOGUE);
+        target.put(body);
+        buffer.put(offset, type);
+        activeSegment.used += size;
+        if (type == RECORD_ADD || type == RECORD_HEADER)
+            activeSegment.live += size;
+        return location(activeSegment.number, offset);
+    }
+
+    private void appendCommit() throws BlockStoreException {
+        byte[] body = new byte[64];
+        System.arraycopy(chainHead.getHeader().getHash().getBytes(), 0, body, 0, 32);
+        System.arraycopy(verifiedChainHead.getHeader().getHash().getBytes(), 0, body, 32, 32);
+        append(RECORD_COMMIT, body);
+    }
+
+    // Called when the record at the given location has been superseded or removed.
+    private void releaseRecord(long location) throws BlockStoreException {
+        Segment segment = segmentOf(location);
+        segment.live -= RECORD_PROLOGUE + segment.buffer.getInt((int) location + 1);
+    }
+
+    private void startSegment(int number) throws BlockStoreException {
+        File file = segmentFile(number);
+        try {
+            MappedByteBuffer buffer = map(file, segmentSize);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            buffer.putInt(4, number);
+            Segment segment = new Segment(number, file, buffer);
+            segment.used = SEGMENT_PROLOGUE;
+            segments.put(number, segment);
+            activeSegment = segment;
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not create " + file, e);
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(Locale.US, "%08d%s", number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Rebuilds the index, the headers and the chain heads from the log. The records of a batch are only applied once
+     * its commit record is read, anything after the last commit record is wiped.
+     */
+    private void replayLog() throws IOException, BlockStoreException {
+        int firstSegment = readManifest();
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (File file : listFiles(SEGMENT_SUFFIX)) {
+            String name = file.getName();
+            int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            if (number < firstSegment)
+                deleteFile(file);  // Left behind by a compaction that was interrupted.
+            else
+                numbers.add(number);
+        }
+        Collections.sort(numbers);
+
+        Sha256Hash chainHeadHash = null, verifiedChainHeadHash = null;
+        List<long[]> uncommitted = new ArrayList<long[]>();  // Pairs of record type and location.
+        Segment lastCommitSegment = null;
+        int lastCommitEnd = 0;
+        for (int number : numbers) {
+            File file = segmentFile(number);
+            if (file.length() != segmentSize)
+                throw new BlockStoreException(file + " is " + file.length() + " bytes, expected " + segmentSize);
+            MappedByteBuffer buffer = map(file, segmentSize);
+            if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != number)
+                throw new BlockStoreException(file + " is not a segment of this store");
+            Segment segment = new Segment(number, file, buffer);
+            segments.put(number, segment);
+            int offset = SEGMENT_PROLOGUE;
+            while (offset + RECORD_PROLOGUE <= segmentSize) {
+                byte type = buffer.get(offset);
+                if (type == RECORD_END)
+                    break;
+                int length = buffer.getInt(offset + 1);
+                if (length < 0 || offset + RECORD_PROLOGUE + length > segmentSize)
+                    break;  // Torn write.
+                long location = location(number, offset);
+                offset += RECORD_PROLOGUE + length;
+                segment.used = offset;
+                if (type != RECORD_COMMIT) {
+                    uncommitted.add(new long[] { type, location });
+                    continue;
+                }
+                for (long[] record : uncommitted)
+                    applyRecord((byte) record[0], record[1]);
+                uncommitted.clear();
+                ByteBuffer body = readRecord(location);
+                byte[] hash = new byte[32];
+                body.get(hash);
+                chainHeadHash = Sha256Hash.wrap(hash);
+                hash = new byte[32];
+                body.get(hash);
+                verifiedChainHeadHash = Sha256Hash.wrap(hash);
+                lastCommitSegment = segment;
+                lastCommitEnd = offset;
+            }
+        }
+        if (lastCommitSegment == null) {
+            // Nothing was ever committed, start from scratch.
+            for (Segment segment : segments.values())
+                deleteFile(segment.file);
+            segments.clear();
+            deleteFile(new File(directory, MANIFEST_FILE));
+            return;
+        }
+
+        // Throw away what was written after the last commit, so it can't be mistaken for records later.
+        for (Segment segment : new ArrayList<Segment>(segments.tailMap(lastCommitSegment.number, false).values())) {
+            segments.remove(segment.number);
+            deleteFile(segment.file);
+        }
+        // A record that was partly written can reach past the last record read, so wipe to the end of the segment.
+        activeSegment = lastCommitSegment;
+        for (int i = lastCommitEnd; i < segmentSize; i++) {
+            if (activeSegment.buffer.get(i) != 0)
+                activeSegment.buffer.put(i, (byte) 0);
+        }
+        activeSegment.used = lastCommitEnd;
+
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedChainHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupt store: chain head not found");
+    }
+
+    private void applyRecord(byte type, long location) throws BlockStoreException {
+        Segment segment = segmentOf(location);
+        int size = RECORD_PROLOGUE + segment.buffer.getInt((int) location + 1);
+        ByteBuffer body = readRecord(location);
+        byte[] hash = new byte[32];
+        body.get(hash);
+        switch (type) {
+            case RECORD_ADD: {
+                long previous = outputs.put(Sha256Hash.wrap(hash), body.getInt() & 0xFFFFFFFFL, location);
+                if (previous != 0)
+                    releaseRecord(previous);
+                segment.live += size;
+                break;
+            }
+            case RECORD_REMOVE: {
+                long previous = outputs.remove(Sha256Hash.wrap(hash), body.getInt() & 0xFFFFFFFFL);
+                if (previous != 0)
+                    releaseRecord(previous);
+                break;
+            }
+            case RECORD_HEADER: {
+                Long previous = headers.put(Sha256Hash.wrap(hash), location);
+                if (previous != null)
+                    releaseRecord(previous);
+                segment.live += size;
+                break;
+            }
+            default:
+                throw new BlockStoreException("Corrupt store: unknown record type " + type);
+        }
+    }
+
+    private int readManifest() throws IOException {
+        File file = new File(directory, MANIFEST_FILE);
+        if (!file.exists())
+            return 1;
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    // Records the first segment that is still part of the log. The file is replaced in one step.
+    private void writeManifest(int firstSegment) throws IOException {
+        File temp = new File(directory, MANIFEST_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(firstSegment);
+        } finally {
+            out.close();
+        }
+        File file = new File(directory, MANIFEST_FILE);
+        if (!temp.renameTo(file)) {
+            // Windows can't rename over an existing file.
+            deleteFile(file);
+            if (!temp.renameTo(file))
+                throw new IOException("Could not write " + file);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Compaction
+
+    private boolean needsCompaction() {
+        // The active segment is never compacted, so there must be at least one other.
+        if (segments.size() < 2)
+            return false;
+        long used = 0, live = 0;
+        for (Segment segment : segments.values()) {
+            used += segment.used;
+            live += segment.live;
+        }
+        return live < used * COMPACTION_THRESHOLD;
+    }
+
+    private void maybeScheduleCompaction() {
+        if (!needsCompaction() || !compactionScheduled.compareAndSet(false, true))
+            return;
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (compactOldestSegment()) {
+                        // Segment by segment, so writers get the lock in between.
+                    }
+                } catch (BlockStoreException e) {
+                    log.error("Compaction failed", e);
+                } finally {
+                    compactionScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compacts the log on the calling thread until less than half of it is garbage. This normally happens in the
+     * background after commits, calling it is only useful before copying the store somewhere.
+     */
+    public void compact() throws BlockStoreException {
+        while (compactOldestSegment()) {
+            // Keep going.
+        }
+    }
+
+    /**
+     * Copies the live records of the oldest segment to the end of the log and deletes it. Segments are compacted in
+     * order, so a removal record can only ever refer to an output in the same or an older segment, and dropping the
+     * removals along with the segment never brings an output back. Returns false if there was nothing to do.
+     */
+    private boolean compactOldestSegment() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed || !needsCompaction())
+                return false;
+            Segment oldest = segments.firstEntry().getValue();
+            ByteBuffer buffer = oldest.buffer;
+            int offset = SEGMENT_PROLOGUE;
+            int moved = 0;
+            while (offset < oldest.used) {
+                byte type = buffer.get(offset);
+                int length = buffer.getInt(offset + 1);
+                long location = location(oldest.number, offset);
+                offset += RECORD_PROLOGUE + length;
+                if (type != RECORD_ADD && type != RECORD_HEADER)
+                    continue;
+                ByteBuffer record = readRecord(location);
+                byte[] body = new byte[length];
+                record.get(body);
+                Sha256Hash hash = Sha256Hash.wrap(Arrays.copyOf(body, 32));
+                if (type == RECORD_ADD) {
+                    long index = ByteBuffer.wrap(body, 32, 4).getInt() & 0xFFFFFFFFL;
+                    if (outputs.get(hash, index) != location)
+                        continue;
+                    outputs.put(hash, index, append(type, body));
+                } else {
+                    Long current = headers.get(hash);
+                    if (current == null || current != location)
+                        continue;
+                    headers.put(hash, append(type, body));
+                }
+                moved++;
+            }
+            appendCommit();
+            // The copies must be on disk before the segment holding the originals goes.
+            activeSegment.buffer.force();
+            try {
+                writeManifest(oldest.number + 1);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+            segments.remove(oldest.number);
+            deleteFile(oldest.file);
+            log.info("Compacted segment {}, moved {} live records", oldest.number, moved);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Serialization
+
+    private static byte[] serializeOutput(UTXO out) {
+        byte[] script = out.getScript().getProgram();
+        ByteBuffer body = ByteBuffer.allocate(ADD_FIXED_SIZE + script.length);
+        body.put(out.getHash().getBytes());
+        body.putInt((int) out.getIndex());
+        body.putLong(out.getValue().value);
+        body.putInt(out.getHeight());
+        body.put((byte) (out.isCoinbase() ? 1 : 0));
+        body.put(script);
+        return body.array();
+    }
+
+    private UTXO readOutput(long location) throws BlockStoreException {
+        ByteBuffer body = readRecord(location);
+        byte[] hash = new byte[32];
+        body.get(hash);
+        long index = body.getInt() & 0xFFFFFFFFL;
+        Coin value = Coin.valueOf(body.getLong());
+        int height = body.getInt();
+        boolean coinbase = body.get() == 1;
+        byte[] script = new byte[body.remaining()];
+        body.get(script);
+        return new UTXO(Sha256Hash.wrap(hash), index, value, height, coinbase, new Script(script));
+    }
+
+    // The same formats as the other stores: either the output changes or the transactions of the block.
+    private static byte[] serializeUndoBlock(StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
+            } else {
+                bos.write(1);
+                List<Transaction> transactions = undoableBlock.getTransactions();
+                Utils.uint32ToByteStreamLE(transactions.size(), bos);
+                for (Transaction tx : transactions)
+                    tx.bitcoinSerialize(bos);
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private StoredUndoableBlock deserializeUndoBlock(Sha256Hash hash, byte[] bytes) throws BlockStoreException {
+        try {
+            if (bytes[0] == 0) {
+                return new StoredUndoableBlock(hash,
+                        TransactionOutputChanges.parse(bytes, 1, bytes.length - 1));
+            }
+            int numTransactions = (int) Utils.readUint32(bytes, 1);
+            int offset = 5;
+            List<Transaction> transactions = new LinkedList<Transaction>();
+            for (int i = 0; i < numTransactions; i++) {
+                Transaction tx = params.getDefaultSerializer().makeTransaction(bytes, offset);
+                transactions.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactions);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Files
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size)
+                raf.setLength(size);
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<File> listFiles(final String suffix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix) && !name.equals(LOCK_FILE);
+            }
+        });
+        return files == null ? Collections.<File>emptyList() : Arrays.asList(files);
+    }
+
+    private static void deleteFile(File file) {
+        // Fails on Windows while the file is still mapped. Segments are covered by the manifest, and indexes are
+        // deleted again on the next open.
+        if (file.exists() && !file.delete())
+            log.warn("Could not delete {}", file);
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (closed || segments == null)
+            throw new BlockStoreException("MappedFullPrunedBlockStore is closed");
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            closeFiles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFiles() {
+        if (segments != null) {
+            for (Segment segment : segments.values())
+                segment.buffer.force();
+            segments = null;
+        }
+        if (undoRing != null && undoRing.buffer != null)
+            undoRing.buffer.force();
+        undoRing = null;
+        if (outputs != null)
+            deleteFile(outputs.file);
+        outputs = null;
+        headers = null;
+        activeSegment = null;
+        try {
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.error("Error releasing the store lock", e);
+        }
+        fileLock = null;
+        lockFile = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Helper classes
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        // Bytes of records written, and of those still referenced by the index or the headers.
+        int used;
+        long live;
+
+        Segment(int number, File file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class PendingUndoBlock {
+        final int height;
+        final byte[] bytes;
+
+        PendingUndoBlock(int height, byte[] bytes) {
+            this.height = height;
+            this.bytes = bytes;
+        }
+    }
+
+    // Writes waiting for a commit.
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, UTXO> addedOutputs = new LinkedHashMap<StoredTransactionOutPoint, UTXO>();
+        // Committed outputs to remove.
+        final Set<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag> headers =
+                new LinkedHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag>();
+        final Map<Sha256Hash, PendingUndoBlock> undoBlocks = new LinkedHashMap<Sha256Hash, PendingUndoBlock>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    /**
+     * Maps outpoints to the locations of their records, with linear probing in a mapped file. Each slot holds the
+     * location and a fingerprint of the outpoint, so that only slots with a matching fingerprint have their key read
+     * from the log.
+     */
+    private class OutPointIndex {
+        private static final int SLOT_SIZE = 8 + 4;
+
+        final File file;
+        final MappedByteBuffer slots;
+        final int capacity;
+        private final int mask;
+        private int size;
+
+        OutPointIndex(int capacity) throws BlockStoreException {
+            checkArgument(Integer.bitCount(capacity) == 1);
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.file = new File(directory, String.format(Locale.US, "outpoints-%d%s", ++indexGeneration,
+                    INDEX_SUFFIX));
+            try {
+                slots = map(file, capacity * SLOT_SIZE);
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not create " + file, e);
+            }
+        }
+
+        long locationAt(int slot) {
+            return slots.getLong(slot * SLOT_SIZE);
+        }
+
+        private int fingerprintAt(int slot) {
+            return slots.getInt(slot * SLOT_SIZE + 8);
+        }
+
+        private void set(int slot, long location, int fingerprint) {
+            slots.putLong(slot * SLOT_SIZE, location);
+            slots.putInt(slot * SLOT_SIZE + 8, fingerprint);
+        }
+
+        private int home(int fingerprint) {
+            return (fingerprint ^ (fingerprint >>> 16)) & mask;
+        }
+
+        // Returns the slot holding the outpoint, or the empty slot where it would go.
+        private int find(Sha256Hash hash, long index, int fingerprint) throws BlockStoreException {
+            int slot = home(fingerprint);
+            while (true) {
+                long location = locationAt(slot);
+                if (location == 0 || (fingerprintAt(slot) == fingerprint && keyMatches(location, hash, index)))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        long get(Sha256Hash hash, long index) throws BlockStoreException {
+            return locationAt(find(hash, index, fingerprint(hash, index)));
+        }
+
+        long put(Sha256Hash hash, long index, long location) throws BlockStoreException {
+            if ((size + 1) * 2 > capacity) {
+                grow();
+                return outputs.put(hash, index, location);
+            }
+            int fingerprint = fingerprint(hash, index);
+            int slot = find(hash, index, fingerprint);
+            long previous = locationAt(slot);
+            if (previous == 0)
+                size++;
+            set(slot, location, fingerprint);
+            return previous;
+        }
+
+        long remove(Sha256Hash hash, long index) throws BlockStoreException {
+            int slot = find(hash, index, fingerprint(hash, index));
+            long previous = locationAt(slot);
+            if (previous == 0)
+                return 0;
+            size--;
+            // Shift the entries after it back, so that no lookup stops early at the slot that was emptied.
+            int hole = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long location = locationAt(next);
+                if (location == 0)
+                    break;
+                int home = home(fingerprintAt(next));
+                boolean staysPut = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                if (staysPut)
+                    continue;
+                set(hole, location, fingerprintAt(next));
+                hole = next;
+            }
+            set(hole, 0, 0);
+            return previous;
+        }
+
+        // Moves all entries to an index of twice the size, which replaces this one.
+        private void grow() throws BlockStoreException {
+            OutPointIndex bigger = new OutPointIndex(capacity * 2);
+            for (int slot = 0; slot < capacity; slot++) {
+                long location = locationAt(slot);
+                if (location == 0)
+                    continue;
+                int fingerprint = fingerprintAt(slot);
+                int target = bigger.home(fingerprint);
+                while (bigger.locationAt(target) != 0)
+                    target = (target + 1) & bigger.mask;
+                bigger.set(target, location, fingerprint);
+            }
+            bigger.size = size;
+            outputs = bigger;
+            deleteFile(file);
+        }
+
+        private boolean keyMatches(long location, Sha256Hash hash, long index) throws BlockStoreException {
+            ByteBuffer buffer = segmentOf(location).buffer;
+            int offset = (int) location + RECORD_PROLOGUE;
+            byte[] bytes = hash.getBytes();
+            for (int i = 0; i < 32; i++)
+                if (buffer.get(offset + i) != bytes[i])
+                    return false;
+            return (buffer.getInt(offset + 32) & 0xFFFFFFFFL) == index;
+        }
+    }
+
+    private static int fingerprint(Sha256Hash hash, long index) {
+        // Transaction hashes are random already, a few of their bytes are as good as any hash of them.
+        byte[] bytes = hash.getBytes();
+        int h = (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+        return h ^ (int) index * 0x9E3779B9;
+    }
+
+    /**
+     * Holds the undo data of the recent blocks in a mapped file used as a ring: entries are written at the head and
+     * dropped from the tail once they are too deep. If a new entry doesn't fit, the live entries are copied to a file
+     * twice the size.
+     *
+     * Format: 4 bytes magic, 4 bytes tail offset, 4 bytes head offset, 4 bytes entry count, then entries of 4 bytes
+     * length, 4 bytes height, 32 bytes block hash and the undo data. A length of -1 means the next entry is at the
+     * start of the ring.
+     */
+    private class UndoRing {
+        private static final int PROLOGUE = 16;
+        private static final int ENTRY_PROLOGUE = 4 + 4 + 32;
+        private static final int WRAP = -1;
+
+        MappedByteBuffer buffer;
+        private int size;
+        private int head;
+        // Entries from tail to head. Dropped entries stay until they reach the tail.
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        private final HashMap<Sha256Hash, Entry> byHash = new HashMap<Sha256Hash, Entry>();
+
+        void load() throws IOException, BlockStoreException {
+            File file = new File(directory, UNDO_RING_FILE);
+            if (!file.exists() || file.length() < PROLOGUE) {
+                size = initialUndoRingSize;
+                buffer = map(file, size);
+                buffer.putInt(0, UNDO_RING_MAGIC);
+                head = PROLOGUE;
+                writeHeader();
+                return;
+            }
+            size = (int) file.length();
+            buffer = map(file, size);
+            if (buffer.getInt(0) != UNDO_RING_MAGIC)
+                throw new BlockStoreException(file + " is not an undo ring");
+            int offset = buffer.getInt(4);
+            head = buffer.getInt(8);
+            int count = buffer.getInt(12);
+            for (int i = 0; i < count; i++) {
+                if (offset + ENTRY_PROLOGUE > size || buffer.getInt(offset) == WRAP)
+                    offset = PROLOGUE;
+                int length = buffer.getInt(offset);
+                byte[] hash = new byte[32];
+                ByteBuffer entryBuffer = buffer.duplicate();
+                entryBuffer.position(offset + 8);
+                entryBuffer.get(hash);
+                Entry entry = new Entry(Sha256Hash.wrap(hash), buffer.getInt(offset + 4), offset, length);
+                entries.addLast(entry);
+                Entry previous = byHash.put(entry.hash, entry);
+                if (previous != null)
+                    previous.dropped = true;
+                offset += length;
+            }
+        }
+
+        void writeHeader() {
+            buffer.putInt(4, entries.isEmpty() ? head : entries.peekFirst().offset);
+            buffer.putInt(8, head);
+            buffer.putInt(12, entries.size());
+        }
+
+        @Nullable
+        byte[] get(Sha256Hash hash) {
+            Entry entry = byHash.get(hash);
+            if (entry == null)
+                return null;
+            byte[] bytes = new byte[entry.length - ENTRY_PROLOGUE];
+            ByteBuffer entryBuffer = buffer.duplicate();
+            entryBuffer.position(entry.offset + ENTRY_PROLOGUE);
+            entryBuffer.get(bytes);
+            return bytes;
+        }
+
+        void add(Sha256Hash hash, int height, byte[] bytes) throws BlockStoreException {
+            int length = ENTRY_PROLOGUE + bytes.length;
+            int offset = findSpace(length);
+            if (offset < 0) {
+                grow(length);
+                offset = findSpace(length);
+                checkState(offset >= 0);
+            }
+            if (offset < head && head + 4 <= size)
+                buffer.putInt(head, WRAP);
+            buffer.putInt(offset, length);
+            buffer.putInt(offset + 4, height);
+            ByteBuffer entryBuffer = buffer.duplicate();
+            entryBuffer.position(offset + 8);
+            entryBuffer.put(hash.getBytes());
+            entryBuffer.put(bytes);
+            head = offset + length;
+            Entry entry = new Entry(hash, height, offset, length);
+            entries.addLast(entry);
+            Entry previous = byHash.put(hash, entry);
+            if (previous != null)
+                previous.dropped = true;
+        }
+
+        // Returns where an entry of the given length can be written, or -1 if the ring is full.
+        private int findSpace(int length) {
+            if (entries.isEmpty())
+                return PROLOGUE + length <= size ? PROLOGUE : -1;
+            int tail = entries.peekFirst().offset;
+            if (head > tail) {
+                if (head + length <= size)
+                    return head;
+                return PROLOGUE + length <= tail ? PROLOGUE : -1;
+            }
+            // The head has wrapped around and is behind the tail, or has caught up with it.
+            return head < tail && head + length <= tail ? head : -1;
+        }
+
+        void prune(int belowOrAtHeight) {
+            for (Entry entry : entries) {
+                if (!entry.dropped && entry.height <= belowOrAtHeight) {
+                    entry.dropped = true;
+                    byHash.remove(entry.hash);
+                }
+            }
+            while (!entries.isEmpty() && entries.peekFirst().dropped)
+                entries.removeFirst();
+            if (entries.isEmpty())
+                head = PROLOGUE;
+        }
+
+        // Copies the live entries to the start of a bigger file, which replaces the current one.
+        private void grow(int needed) throws BlockStoreException {
+            int newSize = size;
+            int liveBytes = 0;
+            for (Entry entry : entries)
+                if (!entry.dropped)
+                    liveBytes += entry.length;
+            while (newSize < PROLOGUE + liveBytes + needed)
+                newSize *= 2;
+            newSize *= 2;
+            File file = new File(directory, UNDO_RING_FILE);
+            File temp = new File(directory, UNDO_RING_FILE + ".tmp");
+            try {
+                MappedByteBuffer bigger = map(temp, newSize);
+                bigger.putInt(0, UNDO_RING_MAGIC);
+                int offset = PROLOGUE;
+                ArrayDeque<Entry> moved = new ArrayDeque<Entry>();
+                for (Entry entry : entries) {
+                    if (entry.dropped)
+                        continue;
+                    ByteBuffer source = buffer.duplicate();
+                    source.position(entry.offset);
+                    source.limit(entry.offset + entry.length);
+                    ByteBuffer target = bigger.duplicate();
+                    target.position(offset);
+                    target.put(source);
+                    Entry copy = new Entry(entry.hash, entry.height, offset, entry.length);
+                    moved.addLast(copy);
+                    byHash.put(copy.hash, copy);
+                    offset += entry.length;
+                }
+                bigger.putInt(4, PROLOGUE);
+                bigger.putInt(8, offset);
+                bigger.putInt(12, moved.size());
+                bigger.force();
+                buffer.force();
+                if (!temp.renameTo(file)) {
+                    deleteFile(file);
+                    if (!temp.renameTo(file))
+                        throw new IOException("Could not replace " + file);
+                }
+                buffer = bigger;
+                size = newSize;
+                head = offset;
+                entries.clear();
+                entries.addAll(moved);
+                log.info("Undo ring grown to {} bytes", newSize);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        private class Entry {
+            final Sha256Hash hash;
+            final int height;
+            final int offset;
+            final int length;
+            boolean dropped;
+
+            Entry(Sha256Hash hash, int height, int offset, int length) {
+                this.hash = hash;
+                this.height = height;
+                this.offset = offset;
+                this.length = length;
+            }
+        }
+    }
+}
@@ -361,6 +361,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
     }
 
+    @Override
+    public void prefetchOutputs(Collection<TransactionOutPoint> outPoints) {
+        // Everything is in memory already.
+    }
+
     @Override
     public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
@@ -78,6 +78,7 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
@@ -108,6 +109,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsByHashesSQL() {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL;
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
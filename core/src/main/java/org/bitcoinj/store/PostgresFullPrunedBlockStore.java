@@ -177,7 +177,7 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
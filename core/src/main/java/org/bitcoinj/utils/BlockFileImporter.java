@@ -0,0 +1,277 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Imports block files stored in the Bitcoin Core format into a chain, like {@link BlockFileLoader}, but as a
+ * pipeline:</p>
+ *
+ * <ol>
+ *     <li>The files are memory mapped and scanned for the network magic on a pool of worker threads, a few files
+ *     ahead of the one being imported.</li>
+ *     <li>Each block found is parsed and hashed on the same pool.</li>
+ *     <li>The calling thread connects the parsed blocks to the chain one by one, in the order they are in the files.
+ *     It is fed through a bounded queue, so parsing never runs more than a fixed number of blocks ahead.</li>
+ * </ol>
+ *
+ * <p>Blocks that can't be parsed are skipped, as by {@link BlockFileLoader}. Progress, in blocks and megabytes per
+ * second, is logged periodically and can be read with {@link #getBlocksImported()} and {@link #getBytesImported()}.</p>
+ */
+public class BlockFileImporter {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileImporter.class);
+
+    // How many files are scanned ahead of the one whose blocks are being connected.
+    private static final int FILES_AHEAD = 2;
+    private static final long REPORT_INTERVAL_MILLIS = 10 * 1000;
+    // Put on the queue after the last block.
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final int threads;
+    private final int queueSize;
+
+    private volatile long blocksImported;
+    private volatile long bytesImported;
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+
+    /** Imports the given files using a worker per processor. */
+    public BlockFileImporter(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors(), 1000);
+    }
+
+    /**
+     * @param threads The number of threads scanning and parsing blocks
+     * @param queueSize The number of blocks that can be parsed ahead of the one being connected
+     */
+    public BlockFileImporter(NetworkParameters params, List<File> files, int threads, int queueSize) {
+        checkArgument(threads > 0 && queueSize > 0);
+        this.params = params;
+        this.files = new ArrayList<File>(files);
+        this.threads = threads;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Connects all blocks in the files to the given chain, returning once the last one was added. Exceptions thrown
+     * by the chain are passed on and stop the import.
+     */
+    public void importInto(AbstractBlockChain chain) throws VerificationException, PrunedException, IOException,
+            InterruptedException {
+        final ExecutorService workers = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("BlockFileImporter worker"));
+        final BlockingQueue<Future<Block>> parsed = new ArrayBlockingQueue<Future<Block>>(queueSize);
+        final AtomicReference<Exception> producerFailure = new AtomicReference<Exception>();
+        Thread producer = new ContextPropagatingThreadFactory("BlockFileImporter reader").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    produce(workers, parsed);
+                } catch (InterruptedException e) {
+                    // The import was stopped.
+                    return;
+                } catch (Exception e) {
+                    producerFailure.set(e);
+                }
+                try {
+                    parsed.put(END);
+                } catch (InterruptedException e) {
+                    // The import was stopped.
+                }
+            }
+        });
+        blocksImported = 0;
+        bytesImported = 0;
+        stopwatch.reset().start();
+        producer.start();
+        try {
+            long lastReport = 0;
+            while (true) {
+                Future<Block> future = parsed.take();
+                if (future == END)
+                    break;
+                Block block;
+                try {
+                    block = future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());  // Cannot happen, parse failures come back as null.
+                }
+                if (block == null)
+                    continue;
+                chain.add(block);
+                blocksImported++;
+                bytesImported += block.getMessageSize() + 8;
+                long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+                if (elapsed - lastReport >= REPORT_INTERVAL_MILLIS) {
+                    log.info(progress());
+                    lastReport = elapsed;
+                }
+            }
+            Exception failure = producerFailure.get();
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+            else if (failure != null)
+                throw new RuntimeException(failure);
+            log.info(progress());
+        } finally {
+            stopwatch.stop();
+            producer.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    // Scans the files in order, handing each block found to a worker to parse.
+    private void produce(ExecutorService workers, BlockingQueue<Future<Block>> parsed) throws IOException,
+            InterruptedException {
+        ArrayDeque<Future<ScannedFile>> scans = new ArrayDeque<Future<ScannedFile>>();
+        Iterator<File> fileIt = files.iterator();
+        while (true) {
+            while (scans.size() < FILES_AHEAD && fileIt.hasNext()) {
+                final File file = fileIt.next();
+                scans.add(workers.submit(new Callable<ScannedFile>() {
+                    @Override
+                    public ScannedFile call() throws IOException {
+                        return scan(file);
+                    }
+                }));
+            }
+            if (scans.isEmpty())
+                return;
+            ScannedFile scanned;
+            try {
+                scanned = scans.poll().get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+            for (int i = 0; i < scanned.offsets.size(); i++) {
+                final ByteBuffer buffer = scanned.buffer;
+                final int offset = scanned.offsets.get(i);
+                final int size = scanned.sizes.get(i);
+                parsed.put(workers.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() {
+                        return parse(buffer, offset, size);
+                    }
+                }));
+            }
+        }
+    }
+
+    private static class ScannedFile {
+        final MappedByteBuffer buffer;
+        // Where the blocks start and how long they are.
+        final List<Integer> offsets = new ArrayList<Integer>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+
+        ScannedFile(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    // Maps the file and finds the blocks in it: each is preceded by the network magic and its length.
+    private ScannedFile scan(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to map");
+            // The mapping stays valid after the file is closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        ScannedFile scanned = new ScannedFile(buffer);
+        int magic = (int) params.getPacketMagic();
+        int limit = buffer.limit();
+        int position = 0;
+        while (position + 8 <= limit) {
+            if (buffer.getInt(position) != magic) {
+                position++;
+                continue;
+            }
+            long size = Integer.reverseBytes(buffer.getInt(position + 4)) & 0xFFFFFFFFL;
+            position += 8;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE * 2 || size <= 0 || position + size > limit)
+                continue;
+            scanned.offsets.add(position);
+            scanned.sizes.add((int) size);
+            position += size;
+        }
+        return scanned;
+    }
+
+    // Parses a block and calculates the hashes the chain will need, so the connecting thread doesn't have to.
+    private Block parse(ByteBuffer buffer, int offset, int size) {
+        byte[] bytes = new byte[size];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.get(bytes);
+        try {
+            Block block = params.getDefaultSerializer().makeBlock(bytes);
+            block.getHash();
+            List<Transaction> transactions = block.getTransactions();
+            if (transactions != null) {
+                for (Transaction tx : transactions)
+                    tx.getHash();
+            }
+            return block;
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    /** The number of blocks connected by the current or last import. */
+    public long getBlocksImported() {
+        return blocksImported;
+    }
+
+    /** The number of bytes of block data connected by the current or last import. */
+    public long getBytesImported() {
+        return bytesImported;
+    }
+
+    /** Describes the throughput of the current or last import. */
+    public String progress() {
+        double seconds = Math.max(stopwatch.elapsed(TimeUnit.MILLISECONDS), 1) / 1000.0;
+        return String.format(Locale.US, "Imported %d blocks, %.1f MB in %.1f s: %.1f blocks/sec, %.2f MB/sec",
+                blocksImported, bytesImported / 1e6, seconds, blocksImported / seconds,
+                bytesImported / 1e6 / seconds);
+    }
+}
@@ -100,6 +100,19 @@ public class CacheMap<K, V> extends ChildMessage {
         --nCurrentSize;
     }
 
+    /** Erases the items whose value is in the given collection, with a single pass over the items. */
+    public final void eraseValues(Collection<V> values) {
+        Iterator<CacheItem<K, V>> it = listItems.iterator();
+        while (it.hasNext()) {
+            CacheItem<K, V> item = it.next();
+            if (values.contains(item.value)) {
+                it.remove();
+                mapIndex.remove(item.key);
+                --nCurrentSize;
+            }
+        }
+    }
+
     public final LinkedList<CacheItem<K, V>> getItemList() {
         return listItems;
     }
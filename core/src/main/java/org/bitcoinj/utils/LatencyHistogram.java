@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A histogram of latencies in milliseconds, with buckets whose bounds double: the first bucket holds latencies
+ * below 1 ms, bucket <i>i</i> holds those from 2<sup>i-1</sup> up to 2<sup>i</sup> ms and the last bucket everything
+ * from about 9 minutes up.</p>
+ *
+ * <p>Recording is lock free and may be done from any thread. Percentiles are approximate: they return the upper bound
+ * of the bucket the percentile falls into.</p>
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 21;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Records one latency. Negative values, which can come from clock adjustments, are counted as zero. */
+    public void record(long millis) {
+        millis = Math.max(millis, 0);
+        buckets.incrementAndGet(bucketOf(millis));
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        long max;
+        do {
+            max = maxMillis.get();
+        } while (millis > max && !maxMillis.compareAndSet(max, millis));
+    }
+
+    private static int bucketOf(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /** The number of latencies recorded. */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** The mean of the recorded latencies, or zero if there are none. */
+    public long getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMillis.get() / n;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /** Returns how many latencies fell into each bucket. */
+    public long[] getBucketCounts() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            result[i] = buckets.get(i);
+        return result;
+    }
+
+    /** The exclusive upper bound of the given bucket in milliseconds, or {@link Long#MAX_VALUE} for the last one. */
+    public static long getBucketUpperBoundMillis(int bucket) {
+        checkArgument(bucket >= 0 && bucket < BUCKETS);
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, capped at the largest latency recorded, or
+     * zero if nothing was recorded.
+     */
+    public long getPercentileMillis(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100);
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(getBucketUpperBoundMillis(i), getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+
+    /** Forgets everything recorded so far. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        totalMillis.set(0);
+        maxMillis.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: count=%d mean=%dms p50=%dms p90=%dms p99=%dms max=%dms", name,
+                getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90),
+                getPercentileMillis(99), getMaxMillis());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs periodic maintenance tasks on a small pool of threads, so that a slow task only delays itself and not the
+ * others. Each task has its own period and a random jitter that is added to every delay, which keeps tasks with the
+ * same period from always running at the same moment.</p>
+ *
+ * <p>A task never runs concurrently with itself. If a run takes longer than the period, the runs that were due in
+ * the meantime are skipped rather than run back to back, and counted in {@link Task#getSkips()}. How long each run
+ * took is recorded in {@link Task#getExecutionTime()}.</p>
+ */
+public class MaintenanceScheduler {
+    private static final Logger log = LoggerFactory.getLogger(MaintenanceScheduler.class);
+
+    private final ScheduledExecutorService executor;
+    private final List<Task> tasks = new CopyOnWriteArrayList<Task>();
+    private final Random random = new Random();
+    private volatile boolean shutdown;
+
+    /**
+     * @param name The name of the threads
+     * @param threads How many tasks can run at the same time
+     */
+    public MaintenanceScheduler(String name, int threads) {
+        checkArgument(threads > 0);
+        executor = new ScheduledThreadPoolExecutor(threads, new ContextPropagatingThreadFactory(name));
+    }
+
+    /**
+     * Runs the given task every period, the first time after the initial delay. Both delays are lengthened by a
+     * random amount up to the jitter.
+     */
+    public Task schedule(String name, long initialDelay, long period, long jitter, TimeUnit unit, Runnable runnable) {
+        checkArgument(initialDelay >= 0 && period > 0 && jitter >= 0);
+        checkState(!shutdown, "Scheduler was shut down");
+        Task task = new Task(name, unit.toMillis(period), unit.toMillis(jitter), checkNotNull(runnable));
+        tasks.add(task);
+        task.nextRunMillis = System.currentTimeMillis() + unit.toMillis(initialDelay);
+        task.scheduleNext();
+        return task;
+    }
+
+    /** Returns the tasks scheduled so far. */
+    public List<Task> getTasks() {
+        return Collections.unmodifiableList(new ArrayList<Task>(tasks));
+    }
+
+    /** Stops scheduling tasks. Runs that already started are interrupted. */
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /** A periodic task and the metrics of its runs. */
+    public class Task implements Runnable {
+        private final String name;
+        private final long periodMillis;
+        private final long jitterMillis;
+        private final Runnable runnable;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private final LatencyHistogram executionTime;
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong skips = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        // When the current or next run is due, without jitter. Only touched by the run scheduled last.
+        private long nextRunMillis;
+
+        private Task(String name, long periodMillis, long jitterMillis, Runnable runnable) {
+            this.name = name;
+            this.periodMillis = periodMillis;
+            this.jitterMillis = jitterMillis;
+            this.runnable = runnable;
+            this.executionTime = new LatencyHistogram(name);
+        }
+
+        private void scheduleNext() {
+            if (shutdown)
+                return;
+            long jitter;
+            synchronized (random) {
+                jitter = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+            }
+            long delay = Math.max(nextRunMillis - System.currentTimeMillis(), 0) + jitter;
+            try {
+                executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down in the meantime.
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!running.compareAndSet(false, true)) {
+                skips.incrementAndGet();
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                log.warn("Maintenance task " + name + " failed", e);
+            } finally {
+                long end = System.currentTimeMillis();
+                executionTime.record(end - start);
+                runs.incrementAndGet();
+                running.set(false);
+                nextRunMillis += periodMillis;
+                while (nextRunMillis < end) {
+                    // Overran the period, drop the runs that were missed.
+                    nextRunMillis += periodMillis;
+                    skips.incrementAndGet();
+                }
+                scheduleNext();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isRunning() {
+            return running.get();
+        }
+
+        /** The time each run took, in milliseconds. */
+        public LatencyHistogram getExecutionTime() {
+            return executionTime;
+        }
+
+        /** How many times the task ran. */
+        public long getRuns() {
+            return runs.get();
+        }
+
+        /** How many runs were left out because the task was still running when they were due. */
+        public long getSkips() {
+            return skips.get();
+        }
+
+        /** How many runs threw an exception. */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        @Override
+        public String toString() {
+            return executionTime + " runs=" + getRuns() + " skips=" + getSkips() + " failures=" + getFailures();
+        }
+    }
+}
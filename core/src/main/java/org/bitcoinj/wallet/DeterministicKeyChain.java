@@ -1204,16 +1204,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        // Lookahead keys are never hardened, so they can all be derived from the parent's public key in one batch.
+        List<DeterministicKey> result = HDKeyDerivation.deriveThisOrNextChildKeys(parent, numChildren, needed);
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         watch.stop();
         log.info("Took {}", watch);
         return result;
@@ -74,6 +74,15 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // Group wide index of every key in every chain, tagged with the chain it came from (0 for the basic chain, i + 1
+    // for chains.get(i)). It is built lazily, kept current by listeners as chains add keys and rebuilt whenever the
+    // set of chains changes.
+    @Nullable private KeyHashIndex keyIndex;
+    @Nullable private BasicKeyChain indexedBasic;
+    @Nullable private DeterministicKeyChain indexedActiveChain;
+    private int indexedChains;
+    private final List<KeyIndexUpdater> keyIndexUpdaters = new ArrayList<KeyIndexUpdater>();
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -142,7 +151,8 @@ public class KeyChainGroup implements KeyBag {
     public void addAndActivateHDChain(DeterministicKeyChain chain) {
         log.info("Creating and activating a new HD chain: {}", chain);
         for (ListenerRegistration<KeyChainEventListener> registration : basic.getListeners())
-            chain.addEventListener(registration.listener, registration.executor);
+            if (!(registration.listener instanceof KeyIndexUpdater))
+                chain.addEventListener(registration.listener, registration.executor);
         if (lookaheadSize >= 0)
             chain.setLookaheadSize(lookaheadSize);
         if (lookaheadThreshold >= 0)
@@ -374,14 +384,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        return getKeyIndex().findKeyFromPubHash(pubkeyHash);
     }
 
     /**
@@ -435,14 +438,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        return getKeyIndex().findKeyFromPubKey(pubkey);
     }
 
     /**
@@ -474,6 +470,7 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
+        keyIndex = null;
         return basic.removeKey(key);
     }
 
@@ -486,6 +483,14 @@ public class KeyChainGroup implements KeyBag {
         return !chains.isEmpty() && getActiveKeyChain().isMarried();
     }
 
+    /** Whether any keychain in the group, active or not, is married and so contributes scripts to the Bloom filter. */
+    public boolean hasMarriedKeyChains() {
+        for (DeterministicKeyChain chain : chains)
+            if (chain.isMarried())
+                return true;
+        return false;
+    }
+
     /**
      * Encrypt the keys in the group using the KeyCrypter and the AES key. A good default KeyCrypter to use is
      * {@link org.bitcoinj.crypto.KeyCrypterScrypt}.
@@ -593,15 +598,73 @@ public class KeyChainGroup implements KeyBag {
 
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
-        if (basic.numKeys() > 0)
-            filter.merge(basic.getFilter(size, falsePositiveRate, nTweak));
-
+        // Married chains put their P2SH scripts rather than their keys in the filter. Every other chain only has to
+        // top up its lookahead, after which its keys are inserted straight from the key index instead of being
+        // copied into a filter per chain and merged.
+        BitSet excludedTags = new BitSet();
+        int tag = 1;
         for (DeterministicKeyChain chain : chains) {
-            filter.merge(chain.getFilter(size, falsePositiveRate, nTweak));
+            if (chain.isMarried()) {
+                filter.merge(chain.getFilter(size, falsePositiveRate, nTweak));
+                excludedTags.set(tag);
+            } else {
+                chain.maybeLookAhead();
+            }
+            tag++;
         }
+        getKeyIndex().insertInto(filter, excludedTags);
         return filter;
     }
 
+    private KeyHashIndex getKeyIndex() {
+        if (keyIndex == null || indexedBasic != basic || indexedChains != chains.size()
+                || (!chains.isEmpty() && indexedActiveChain != chains.getLast()))
+            rebuildKeyIndex();
+        return keyIndex;
+    }
+
+    private void rebuildKeyIndex() {
+        for (KeyIndexUpdater updater : keyIndexUpdaters)
+            updater.chain.removeEventListener(updater);
+        keyIndexUpdaters.clear();
+        keyIndex = new KeyHashIndex(numKeys());
+        indexedBasic = basic;
+        indexedChains = chains.size();
+        indexedActiveChain = chains.isEmpty() ? null : chains.getLast();
+        indexChain(basic, basic.getKeys(), 0);
+        int tag = 1;
+        for (DeterministicKeyChain chain : chains)
+            indexChain(chain, chain.getKeys(true), tag++);
+    }
+
+    private void indexChain(KeyChain chain, List<ECKey> keys, int tag) {
+        KeyIndexUpdater updater = new KeyIndexUpdater(chain, tag);
+        chain.addEventListener(updater, Threading.SAME_THREAD);
+        keyIndexUpdaters.add(updater);
+        for (ECKey key : keys)
+            keyIndex.add(key, tag);
+    }
+
+    /** Adds keys to the group wide index as soon as a chain reports them. */
+    private class KeyIndexUpdater implements KeyChainEventListener {
+        private final KeyChain chain;
+        private final int tag;
+
+        KeyIndexUpdater(KeyChain chain, int tag) {
+            this.chain = chain;
+            this.tag = tag;
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            KeyHashIndex index = keyIndex;
+            if (index == null)
+                return;
+            for (ECKey key : keys)
+                index.add(key, tag);
+        }
+    }
+
     /** {@inheritDoc} */
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
@@ -0,0 +1,281 @@
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>A compact index of {@link ECKey}s by hash160 and by encoded public key, used in place of
+ * {@code ByteString}-keyed hash maps when a wallet watches a large number of keys.</p>
+ *
+ * <p>Hashes and public keys are packed into flat byte arrays and located through two open-addressing tables of entry
+ * numbers, so lookups never allocate. Each key costs around a hundred bytes on top of the key object itself, versus
+ * well over two hundred for a pair of hash maps with their entries, wrapper objects and array copies.</p>
+ *
+ * <p>Every entry carries an int tag chosen by the caller, which {@link KeyChainGroup} uses to remember which chain a
+ * key belongs to. Lookups return an entry handle that can be resolved with {@link #getKey(int)} and
+ * {@link #getTag(int)}; handles are only valid until the index is next modified. Iteration is in insertion order.</p>
+ *
+ * <p>Instances of this class are not thread safe.</p>
+ */
+public class KeyHashIndex implements Iterable<ECKey> {
+    private static final int HASH_LENGTH = 20;
+    private static final int COMPRESSED_PUBKEY_LENGTH = 33;
+    private static final int MIN_CAPACITY = 16;
+
+    // Entry storage. A removed entry has a null key but keeps its bytes and table slots until the next compaction.
+    private ECKey[] keys;
+    private int[] tags;
+    private byte[] hashes;
+    private byte[] pubKeys;
+    private int[] pubKeyEnds;
+    private int pubKeysLength;
+    private int entries;
+    private int size;
+
+    // Linear probing tables holding entry numbers plus one, zero meaning an empty slot. They are always at least twice
+    // as large as the entry capacity, so probing terminates quickly.
+    private int[] hashTable;
+    private int[] pubKeyTable;
+
+    public KeyHashIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    public KeyHashIndex(int expectedKeys) {
+        allocate(Math.max(expectedKeys, MIN_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        keys = new ECKey[capacity];
+        tags = new int[capacity];
+        hashes = new byte[capacity * HASH_LENGTH];
+        pubKeys = new byte[capacity * COMPRESSED_PUBKEY_LENGTH];
+        pubKeyEnds = new int[capacity];
+        pubKeysLength = 0;
+        entries = 0;
+        size = 0;
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        hashTable = new int[tableSize];
+        pubKeyTable = new int[tableSize];
+    }
+
+    /**
+     * Adds the given key with the given tag, unless a key with the same public key is already present.
+     * @return the entry handle of the new key, or -1 if it was already present.
+     */
+    public int add(ECKey key, int tag) {
+        byte[] pubKey = key.getPubKey();
+        if (findByPubKey(pubKey) >= 0)
+            return -1;
+        byte[] hash = key.getPubKeyHash();
+        if (entries == keys.length)
+            compact(Math.max(size * 2, MIN_CAPACITY));
+        if (pubKeysLength + pubKey.length > pubKeys.length)
+            pubKeys = Arrays.copyOf(pubKeys, Math.max(pubKeys.length * 2, pubKeysLength + pubKey.length));
+        int entry = entries++;
+        keys[entry] = key;
+        tags[entry] = tag;
+        System.arraycopy(hash, 0, hashes, entry * HASH_LENGTH, HASH_LENGTH);
+        System.arraycopy(pubKey, 0, pubKeys, pubKeysLength, pubKey.length);
+        pubKeysLength += pubKey.length;
+        pubKeyEnds[entry] = pubKeysLength;
+        link(entry);
+        size++;
+        return entry;
+    }
+
+    /** Removes the given key. Returns true if it was present. */
+    public boolean remove(ECKey key) {
+        int entry = findByPubKey(key.getPubKey());
+        if (entry < 0)
+            return false;
+        keys[entry] = null;
+        size--;
+        return true;
+    }
+
+    /** Returns the handle of the entry with the given hash160, or -1 if there is none. */
+    public int findByPubHash(byte[] pubKeyHash) {
+        if (pubKeyHash.length != HASH_LENGTH)
+            return -1;
+        final int mask = hashTable.length - 1;
+        for (int slot = readInt(pubKeyHash, 0) & mask; ; slot = (slot + 1) & mask) {
+            int entry = hashTable[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (keys[entry] != null && regionEquals(hashes, entry * HASH_LENGTH, pubKeyHash, HASH_LENGTH))
+                return entry;
+        }
+    }
+
+    /** Returns the handle of the entry with the given encoded public key, or -1 if there is none. */
+    public int findByPubKey(byte[] pubKey) {
+        if (pubKey.length < 5)
+            return -1;
+        final int mask = pubKeyTable.length - 1;
+        for (int slot = readInt(pubKey, 1) & mask; ; slot = (slot + 1) & mask) {
+            int entry = pubKeyTable[slot] - 1;
+            if (entry < 0)
+                return -1;
+            if (keys[entry] != null && pubKeyLength(entry) == pubKey.length
+                    && regionEquals(pubKeys, pubKeyStart(entry), pubKey, pubKey.length))
+                return entry;
+        }
+    }
+
+    @Nullable
+    public ECKey findKeyFromPubHash(byte[] pubKeyHash) {
+        int entry = findByPubHash(pubKeyHash);
+        return entry < 0 ? null : keys[entry];
+    }
+
+    @Nullable
+    public ECKey findKeyFromPubKey(byte[] pubKey) {
+        int entry = findByPubKey(pubKey);
+        return entry < 0 ? null : keys[entry];
+    }
+
+    /** Returns the key stored at the given entry handle. */
+    public ECKey getKey(int entry) {
+        checkElementIndex(entry, entries);
+        return keys[entry];
+    }
+
+    /** Returns the tag stored at the given entry handle. */
+    public int getTag(int entry) {
+        checkElementIndex(entry, entries);
+        return tags[entry];
+    }
+
+    /** Returns the number of keys in the index. */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Returns a copy of the keys in insertion order. */
+    public List<ECKey> getKeys() {
+        List<ECKey> result = new ArrayList<ECKey>(size);
+        for (int i = 0; i < entries; i++)
+            if (keys[i] != null)
+                result.add(keys[i]);
+        return result;
+    }
+
+    /**
+     * Inserts the public key and hash160 of every key into the given filter, skipping keys whose tag is set in
+     * {@code excludedTags}.
+     */
+    public void insertInto(BloomFilter filter, BitSet excludedTags) {
+        for (int i = 0; i < entries; i++)
+            if (keys[i] != null && !excludedTags.get(tags[i]))
+                filter.insert(keys[i]);
+    }
+
+    /** Iterates over the keys in insertion order. The index must not be modified during iteration. */
+    @Override
+    public Iterator<ECKey> iterator() {
+        return new Iterator<ECKey>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < entries && keys[from] == null)
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < entries;
+            }
+
+            @Override
+            public ECKey next() {
+                if (next >= entries)
+                    throw new NoSuchElementException();
+                ECKey key = keys[next];
+                next = advance(next + 1);
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Rebuilds the index with the given capacity, dropping removed entries. Entry handles change.
+    private void compact(int capacity) {
+        ECKey[] oldKeys = keys;
+        int[] oldTags = tags;
+        byte[] oldHashes = hashes;
+        byte[] oldPubKeys = pubKeys;
+        int[] oldPubKeyEnds = pubKeyEnds;
+        int oldEntries = entries;
+        allocate(capacity);
+        int oldStart = 0;
+        for (int i = 0; i < oldEntries; i++) {
+            int oldEnd = oldPubKeyEnds[i];
+            if (oldKeys[i] != null) {
+                int entry = entries++;
+                keys[entry] = oldKeys[i];
+                tags[entry] = oldTags[i];
+                System.arraycopy(oldHashes, i * HASH_LENGTH, hashes, entry * HASH_LENGTH, HASH_LENGTH);
+                int length = oldEnd - oldStart;
+                if (pubKeysLength + length > pubKeys.length)
+                    pubKeys = Arrays.copyOf(pubKeys, Math.max(pubKeys.length * 2, pubKeysLength + length));
+                System.arraycopy(oldPubKeys, oldStart, pubKeys, pubKeysLength, length);
+                pubKeysLength += length;
+                pubKeyEnds[entry] = pubKeysLength;
+                link(entry);
+                size++;
+            }
+            oldStart = oldEnd;
+        }
+    }
+
+    private void link(int entry) {
+        int mask = hashTable.length - 1;
+        int slot = readInt(hashes, entry * HASH_LENGTH) & mask;
+        while (hashTable[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashTable[slot] = entry + 1;
+        slot = readInt(pubKeys, pubKeyStart(entry) + 1) & mask;
+        while (pubKeyTable[slot] != 0)
+            slot = (slot + 1) & mask;
+        pubKeyTable[slot] = entry + 1;
+    }
+
+    private int pubKeyStart(int entry) {
+        return entry == 0 ? 0 : pubKeyEnds[entry - 1];
+    }
+
+    private int pubKeyLength(int entry) {
+        return pubKeyEnds[entry] - pubKeyStart(entry);
+    }
+
+    // Hash160s and the X coordinate of public keys are already uniformly distributed, so four raw bytes are a good
+    // enough slot hash.
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) |
+                ((bytes[offset + 1] & 0xff) << 8) |
+                ((bytes[offset + 2] & 0xff) << 16) |
+                ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+    private static boolean regionEquals(byte[] slab, int offset, byte[] value, int length) {
+        for (int i = 0; i < length; i++)
+            if (slab[offset + i] != value[i])
+                return false;
+        return true;
+    }
+}
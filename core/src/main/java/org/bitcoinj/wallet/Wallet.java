@@ -369,6 +369,19 @@ public class Wallet extends BaseTaggableObject
         return keyChainGroup.getActiveKeyChain();
     }
 
+    /**
+     * Returns true if any keychain of this wallet is married, in which case new keys are watched through P2SH scripts
+     * rather than their own public keys. See {@link KeyChainGroup#hasMarriedKeyChains()}.
+     */
+    public boolean hasMarriedKeyChains() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.hasMarriedKeyChains();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * <p>Adds given transaction signer to the list of signers. It will be added to the end of the signers list, so if
      * this wallet already has some signers added, given signer will be executed after all of them.</p>
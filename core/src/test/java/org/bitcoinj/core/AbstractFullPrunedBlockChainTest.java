@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.utils.BlockFileLoader;
@@ -349,6 +350,35 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void prefetchOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        Script script = ScriptBuilder.createOutputScript(new ECKey());
+        UTXO first = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false, script);
+        UTXO second = new UTXO(Sha256Hash.of(new byte[] { 1 }), 3, Coin.COIN, 1, false, script);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(first);
+        store.addUnspentTransactionOutput(second);
+        store.commitDatabaseBatchWrite();
+
+        store.beginDatabaseBatchWrite();
+        TransactionOutPoint missing = new TransactionOutPoint(PARAMS, 1, first.getHash());
+        store.prefetchOutputs(Arrays.asList(new TransactionOutPoint(PARAMS, 0, first.getHash()), missing,
+                new TransactionOutPoint(PARAMS, 3, second.getHash())));
+        assertEquals(first, store.getTransactionOutput(first.getHash(), 0));
+        assertEquals(Coin.COIN, store.getTransactionOutput(second.getHash(), 3).getValue());
+        assertNull(store.getTransactionOutput(missing.getHash(), missing.getIndex()));
+        // Prefetched outputs must not outlive their removal.
+        store.removeUnspentTransactionOutput(first);
+        assertNull(store.getTransactionOutput(first.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(first.getHash(), 0));
+        assertEquals(second, store.getTransactionOutput(second.getHash(), 3));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     /**
      * Test that if the block height is missing from coinbase of a version 2
      * block, it's rejected.
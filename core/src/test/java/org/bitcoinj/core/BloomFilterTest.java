@@ -18,6 +18,7 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.wallet.KeyChainGroup;
 import org.bitcoinj.wallet.Wallet;
 import org.junit.Test;
@@ -66,6 +67,82 @@ public class BloomFilterTest {
         assertTrue(Arrays.equals(HEX.decode("03ce4299050000000100008002"), filter.unsafeBitcoinSerialize()));
     }
 
+    @Test
+    public void copyAndEstimatedFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(100, 0.001, 0);
+        assertEquals(0.0, filter.getEstimatedFalsePositiveRate(), 0.0);
+        for (int i = 0; i < 100; i++)
+            filter.insert(new ECKey().getPubKey());
+        // With the designed number of elements the estimate should be close to the target rate.
+        double estimate = filter.getEstimatedFalsePositiveRate();
+        assertTrue(estimate > 0.0001 && estimate < 0.01);
+
+        BloomFilter copy = filter.copy();
+        assertEquals(filter, copy);
+        byte[] element = new ECKey().getPubKey();
+        copy.insert(element);
+        assertTrue(copy.contains(element));
+        assertFalse(filter.contains(element));
+    }
+
+    @Test
+    public void localDoubleHashing() {
+        BloomFilter filter = BloomFilter.createLocal(1000, 0.001, 12345);
+        assertTrue(filter.isLocalOnly());
+        byte[][] elements = new byte[1000][];
+        for (int i = 0; i < elements.length; i++)
+            elements[i] = new ECKey().getPubKeyHash();
+        filter.insertAll(elements);
+        for (byte[] element : elements)
+            assertTrue(filter.contains(element));
+        // Elements of every length exercise the tail handling of the combined hash.
+        for (int length = 0; length < 8; length++) {
+            byte[] element = new byte[length];
+            Arrays.fill(element, (byte) length);
+            filter.insert(element);
+            assertTrue(filter.contains(element));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (filter.contains(new ECKey().getPubKeyHash()))
+                falsePositives++;
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 50);
+        // Classic and local filters place bits differently so can't be mixed.
+        try {
+            new BloomFilter(1000, 0.001, 12345).merge(filter);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void containsAny() {
+        NetworkParameters params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        ECKey key = new ECKey();
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.COIN, key.toAddress(params));
+        for (BloomFilter filter : new BloomFilter[] { new BloomFilter(10, 0.0001, 0), BloomFilter.createLocal(10, 0.0001, 0) }) {
+            assertFalse(filter.containsAny(tx));
+            filter.insert(key.getPubKeyHash());
+            assertTrue(filter.containsAny(tx));
+        }
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(tx.getInput(0).getOutpoint().unsafeBitcoinSerialize());
+        assertTrue(filter.containsAny(tx));
+        filter = new BloomFilter(10, 0.0001, 0);
+        filter.insert(tx.getHash().getBytes());
+        assertTrue(filter.containsAny(tx));
+    }
+
+    @Test
+    public void filterAddRoundTrip() throws Exception {
+        byte[] element = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+        byte[] bytes = new FilterAddMessage(element).bitcoinSerialize();
+        FilterAddMessage parsed = new FilterAddMessage(MainNetParams.get(), bytes);
+        assertArrayEquals(element, parsed.getData());
+    }
+
     @Test
     public void walletTest() throws Exception {
         NetworkParameters params = MainNetParams.get();
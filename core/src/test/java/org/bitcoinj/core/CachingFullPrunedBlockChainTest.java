@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+
+/**
+ * Runs the FullPrunedBlockStoreTest against a CachingFullPrunedBlockStore in front of a memory store, with a cache
+ * small enough that it gets flushed regularly. The verified chain head is passed on after every block, so the memory
+ * store prunes its undo data as soon as the test expects.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 64 * 1024, 1);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+}
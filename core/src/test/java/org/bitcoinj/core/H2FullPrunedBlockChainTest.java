@@ -14,13 +14,18 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
 
+import static org.junit.Assert.*;
+
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
  */
@@ -46,6 +51,46 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
         new File(s).delete();
     }
 
+    @Test
+    public void batchWrites() throws Exception {
+        // Inside a batch write the store queues UTXO writes and sends them as JDBC batches on commit.
+        store = createStore(PARAMS, 10);
+        Script script = ScriptBuilder.createOutputScript(new ECKey());
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 2 });
+        UTXO first = new UTXO(hash, 0, Coin.COIN, 1, false, script);
+        UTXO second = new UTXO(hash, 1, Coin.CENT, 1, false, script);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(first);
+        store.addUnspentTransactionOutput(second);
+        store.commitDatabaseBatchWrite();
+
+        // Writes made inside a batch are visible to it before they are committed.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(first);
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        store.removeUnspentTransactionOutput(second);
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.addUnspentTransactionOutput(first);
+        assertEquals(first, store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        store.abortDatabaseBatchWrite();
+        assertEquals(first, store.getTransactionOutput(hash, 0));
+        assertEquals(second, store.getTransactionOutput(hash, 1));
+
+        // An output spent and re-created in the same batch survives the commit.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(first);
+        store.removeUnspentTransactionOutput(second);
+        store.addUnspentTransactionOutput(second);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertEquals(second, store.getTransactionOutput(hash, 1));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Override
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
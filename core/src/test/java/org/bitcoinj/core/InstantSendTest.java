@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InstantSendTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final long TIME = 1532690000;
+
+    private Context context;
+    private InstantSend instantSend;
+
+    @Before
+    public void setUp() {
+        context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(true, true);
+        instantSend = context.instantSend;
+        Utils.setMockClock(TIME);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private TransactionLockVote vote(Sha256Hash txHash, TransactionOutPoint outpoint, int masternode) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(txHash.getReversedBytes());
+        outpoint.bitcoinSerialize(bos);
+        new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { (byte) masternode })).bitcoinSerialize(bos);
+        if (context.masternodeListManager.isDeterministicMNsSporkActive())
+            bos.write(new byte[64]);
+        new MasternodeSignature(new byte[65]).bitcoinSerialize(bos);
+        return new TransactionLockVote(PARAMS, bos.toByteArray());
+    }
+
+    // Counts the orphan votes and the masternode orphan vote times again and compares them to the kept counters.
+    private void assertCountersMatch() {
+        HashMap<Sha256Hash, HashMap<TransactionOutPoint, Integer>> counts = new HashMap<Sha256Hash, HashMap<TransactionOutPoint, Integer>>();
+        for (TransactionLockVote vote : instantSend.mapTxLockVotesOrphan.values()) {
+            HashMap<TransactionOutPoint, Integer> outpoints = counts.get(vote.getTxHash());
+            if (outpoints == null) {
+                outpoints = new HashMap<TransactionOutPoint, Integer>();
+                counts.put(vote.getTxHash(), outpoints);
+            }
+            Integer count = outpoints.get(vote.getOutpoint());
+            outpoints.put(vote.getOutpoint(), count == null ? 1 : count + 1);
+        }
+        assertEquals(counts, instantSend.mapOrphanVoteCounts);
+
+        long total = 0;
+        for (Map.Entry<TransactionOutPoint, Long> entry : instantSend.mapMasternodeOrphanVotes.entrySet())
+            total += entry.getValue();
+        assertEquals(total, instantSend.nMasternodeOrphanVoteTimeTotal);
+        long average = instantSend.mapMasternodeOrphanVotes.isEmpty() ? 0 : total / instantSend.mapMasternodeOrphanVotes.size();
+        assertEquals(average, instantSend.getAverageMasternodeOrphanVoteTime());
+    }
+
+    @Test
+    public void orphanVoteCounters() throws Exception {
+        Sha256Hash txA = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash txB = Sha256Hash.of(new byte[] { 2 });
+        TransactionOutPoint inputA = new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 3 }));
+        TransactionOutPoint inputB = new TransactionOutPoint(PARAMS, 1, Sha256Hash.of(new byte[] { 3 }));
+
+        // Enough votes for the first input of txA, that time out first.
+        for (int i = 0; i < TransactionOutPointLock.SIGNATURES_REQUIRED; i++) {
+            TransactionLockVote vote = vote(txA, inputA, i);
+            instantSend.addOrphanVote(vote);
+            instantSend.putMasternodeOrphanVote(vote.getOutpointMasternode(), TIME + 10 + i);
+        }
+        assertTrue(instantSend.isEnoughOrphanVotesForTxAndOutPoint(txA, inputA));
+        assertFalse(instantSend.isEnoughOrphanVotesForTxAndOutPoint(txA, inputB));
+        assertCountersMatch();
+
+        // Later votes for other inputs, some from the same masternodes, whose expiry times are replaced.
+        Utils.rollMockClock(InstantSend.INSTANTSEND_TIMEOUT_SECONDS / 2);
+        for (int i = 0; i < 3; i++) {
+            TransactionLockVote vote = vote(txA, inputB, i);
+            instantSend.addOrphanVote(vote);
+            instantSend.putMasternodeOrphanVote(vote.getOutpointMasternode(), TIME + 1000 + i);
+            instantSend.addOrphanVote(vote(txB, inputA, 10 + i));
+        }
+        assertFalse(instantSend.isEnoughOrphanVotesForTxAndOutPoint(txA, inputB));
+        assertCountersMatch();
+
+        // The first votes time out, so do the masternode orphan votes that weren't replaced.
+        Utils.rollMockClock(InstantSend.INSTANTSEND_TIMEOUT_SECONDS / 2 + 10);
+        context.masternodeSync.RequestedMasternodeAssets = MasternodeSync.MASTERNODE_SYNC_FINISHED;
+        instantSend.checkAndRemove();
+        assertFalse(instantSend.isEnoughOrphanVotesForTxAndOutPoint(txA, inputA));
+        assertEquals(6, instantSend.mapTxLockVotesOrphan.size());
+        assertEquals(3, instantSend.mapMasternodeOrphanVotes.size());
+        assertCountersMatch();
+
+        // Votes taken out one by one.
+        for (TransactionLockVote vote : instantSend.mapTxLockVotesOrphan.values().toArray(new TransactionLockVote[0])) {
+            instantSend.mapTxLockVotesOrphan.remove(vote.getHash());
+            instantSend.removeOrphanVoteFromIndex(vote);
+            assertCountersMatch();
+        }
+        assertTrue(instantSend.mapOrphanVoteCounts.isEmpty());
+
+        // Everything expires.
+        Utils.rollMockClock(1000);
+        instantSend.checkAndRemove();
+        assertTrue(instantSend.mapMasternodeOrphanVotes.isEmpty());
+        assertCountersMatch();
+    }
+}
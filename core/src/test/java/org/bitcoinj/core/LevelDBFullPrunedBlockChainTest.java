@@ -16,13 +16,18 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 
+import static org.junit.Assert.*;
+
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
  */
@@ -54,4 +59,73 @@ public class LevelDBFullPrunedBlockChainTest extends
             throws BlockStoreException {
         ((LevelDBFullPrunedBlockStore) store).resetStore();
     }
+
+    @Test
+    public void cacheMetrics() throws Exception {
+        deleteFiles();
+        LevelDBFullPrunedBlockStore.CacheConfig config = new LevelDBFullPrunedBlockStore.CacheConfig();
+        config.utxoCacheEntries = 2;
+        config.offHeapCacheBytes = 64 * 1024;
+        config.filterExpectedEntries = 1000;
+        config.filterFalsePositiveRate = 0.01;
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, "test-leveldb", 10,
+                1024 * 1024, 1024 * 1024, config, false, Integer.MAX_VALUE);
+        try {
+            Sha256Hash[] hashes = new Sha256Hash[10];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = Sha256Hash.of(new byte[] { (byte) i });
+                store.addUnspentTransactionOutput(new UTXO(hashes[i], 0, Coin.valueOf(i), 1, false,
+                        ScriptBuilder.createOutputScript(new ECKey())));
+            }
+            // Outputs evicted from the heap are found off-heap, so nothing is read from leveldb.
+            for (int i = 0; i < hashes.length; i++)
+                assertEquals(Coin.valueOf(i), store.getTransactionOutput(hashes[i], 0).getValue());
+            LevelDBFullPrunedBlockStore.CacheMetrics metrics = store.getCacheMetrics();
+            assertTrue(metrics.heapEvictions > 0);
+            assertTrue(metrics.offHeapHits > 0);
+            assertEquals(0, metrics.dbReads);
+            assertEquals(metrics.offHeapEntries * offHeapEntrySize(hashes[0]), metrics.offHeapBytes);
+
+            for (int i = 0; i < 100; i++)
+                assertFalse(store.hasUnspentOutputs(Sha256Hash.of(new byte[] { (byte) i, 1 }), 1));
+            metrics = store.getCacheMetrics();
+            assertEquals(100, metrics.filterQueries);
+            assertEquals(100, metrics.filterNegatives + metrics.filterMisses);
+            assertTrue(metrics.filterNegatives >= 90);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void offHeapCacheWrapsAround() throws Exception {
+        deleteFiles();
+        LevelDBFullPrunedBlockStore.CacheConfig config = new LevelDBFullPrunedBlockStore.CacheConfig();
+        config.utxoCacheEntries = 2;
+        config.offHeapCacheBytes = 1000;
+        config.filterExpectedEntries = 1000;
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, "test-leveldb", 10,
+                1024 * 1024, 1024 * 1024, config, false, Integer.MAX_VALUE);
+        try {
+            int entrySize = offHeapEntrySize(Sha256Hash.ZERO_HASH);
+            for (int i = 0; i < 100; i++) {
+                store.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(new byte[] { (byte) i }), 0, Coin.valueOf(i),
+                        1, false, ScriptBuilder.createOutputScript(new ECKey())));
+                // The byte count must follow the entries as older ones are overwritten.
+                LevelDBFullPrunedBlockStore.CacheMetrics metrics = store.getCacheMetrics();
+                assertEquals(metrics.offHeapEntries * entrySize, metrics.offHeapBytes);
+                assertTrue(metrics.offHeapBytes <= config.offHeapCacheBytes);
+            }
+            assertTrue(store.getCacheMetrics().offHeapEntries > 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    // All the outputs of these tests serialize to the same size, plus the length prefix of the off-heap tier.
+    private static int offHeapEntrySize(Sha256Hash hash) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new UTXO(hash, 0, Coin.valueOf(0), 1, false, ScriptBuilder.createOutputScript(new ECKey())).serializeToStream(bos);
+        return 4 + bos.size();
+    }
 }
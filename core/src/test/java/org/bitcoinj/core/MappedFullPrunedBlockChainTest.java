@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MappedFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * A memory mapped implementation of the FullPrunedBlockStoreTest
+ */
+public class MappedFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private static final File DIRECTORY = new File("test-mapped");
+
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new MappedFullPrunedBlockStore(params, DIRECTORY, blockCount);
+    }
+
+    private void deleteFiles() {
+        if (DIRECTORY.exists()) {
+            for (File c : DIRECTORY.listFiles())
+                c.delete();
+        }
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((MappedFullPrunedBlockStore) store).resetStore();
+    }
+
+    @Test
+    public void reopenAfterCompaction() throws Exception {
+        deleteFiles();
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(PARAMS, DIRECTORY, 10, 64 * 1024, 64 * 1024);
+        Sha256Hash[] hashes = new Sha256Hash[2000];
+        try {
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) });
+                store.addUnspentTransactionOutput(utxo(hashes[i], i));
+            }
+            store.commitDatabaseBatchWrite();
+            // Leave every tenth output, so most of the log is garbage.
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < hashes.length; i++) {
+                if (i % 10 != 0)
+                    store.removeUnspentTransactionOutput(utxo(hashes[i], i));
+            }
+            store.commitDatabaseBatchWrite();
+            store.compact();
+            // Written after the compaction but never committed, so it must be gone after reopening.
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(utxo(Sha256Hash.ZERO_HASH, 0));
+        } finally {
+            store.close();
+        }
+
+        store = new MappedFullPrunedBlockStore(PARAMS, DIRECTORY, 10, 64 * 1024, 64 * 1024);
+        try {
+            assertEquals(PARAMS.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+            assertNotNull(store.getUndoBlock(PARAMS.getGenesisBlock().getHash()));
+            for (int i = 0; i < hashes.length; i++) {
+                UTXO out = store.getTransactionOutput(hashes[i], i);
+                if (i % 10 == 0) {
+                    assertNotNull(out);
+                    assertEquals(Coin.valueOf(i), out.getValue());
+                } else {
+                    assertNull(out);
+                }
+            }
+            assertNull(store.getTransactionOutput(Sha256Hash.ZERO_HASH, 0));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void tornRecordAfterTheLastCommit() throws Exception {
+        deleteFiles();
+        MappedFullPrunedBlockStore store = new MappedFullPrunedBlockStore(PARAMS, DIRECTORY, 10, 64 * 1024, 64 * 1024);
+        store.close();
+
+        // The process died while writing a record: its body is on disk, but not its type. Past it lie bytes that
+        // read as a commit record of a chain head that doesn't exist.
+        File segment = new File(DIRECTORY, "00000001.log");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        int end;
+        try {
+            end = 8;
+            file.seek(end);
+            while (file.readByte() != 0) {
+                end += 5 + file.readInt();
+                file.seek(end);
+            }
+            byte[] torn = new byte[69 + 5 + 64];
+            Arrays.fill(torn, 1, 69, (byte) 0x55);
+            torn[69] = 4;
+            torn[73] = 64;
+            Arrays.fill(torn, 74, torn.length, (byte) 0x11);
+            file.seek(end);
+            file.write(torn);
+        } finally {
+            file.close();
+        }
+
+        // Reopening drops the torn record, then a commit of 69 bytes is written where it started.
+        store = new MappedFullPrunedBlockStore(PARAMS, DIRECTORY, 10, 64 * 1024, 64 * 1024);
+        try {
+            store.setChainHead(store.getChainHead());
+        } finally {
+            store.close();
+        }
+        store = new MappedFullPrunedBlockStore(PARAMS, DIRECTORY, 10, 64 * 1024, 64 * 1024);
+        try {
+            assertEquals(PARAMS.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+            assertEquals(PARAMS.getGenesisBlock().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        } finally {
+            store.close();
+        }
+    }
+
+    private static UTXO utxo(Sha256Hash hash, int index) {
+        return new UTXO(hash, index, Coin.valueOf(index), 1, false,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)));
+    }
+}
@@ -8,12 +8,15 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * Created by Hash Engineering on 6/21/2016.
  */
 public class MasternodeBroadcastTest {
+    // a broadcast signed with the new signature format
+    static final String MNB_WITH_SPORK6 =
+            "0313a1b4dd8780ee7ac2acf4695bb2c9d2b8bd2870671d6b36a0cd96fb7b15bd0000000000000000000000000000ffff22db97654a3921024844d13d64dd612147474caeb3ae9eff50daffec4cea17312ce3a8191573af5141048c17c4728e67613d97508973693a20dd8387a6076fa42ca74e680b785636eaacf5ae3a18fcb8989b3ad4b9a3f5543388456013589729a657a402cedc23c25800411f57b98f37fb18c48c94835d3ca5c0f87f321b5226748e0f2f79b419850df051a95cc2466072e7d0014d4d12e4748d41574f6a5e96751dc8fc5a79b990e3e8e52642d63d5b00000000421201000313a1b4dd8780ee7ac2acf4695bb2c9d2b8bd2870671d6b36a0cd96fb7b15bd00000000811e02f95a860ccd4a777a369ded43610d02c2dcbab19a1d3b2764410000000042d63d5b00000000411b4ae1e49978d591ab05f85ba2bffa700dc160636d55bb746260df53ecdcbfb8dc35f389b9ed7ffd3074d95a1f196392548bb3caaeaa5aa39bb5457550a9152e91000100010088d50100";
 
     Context context;
 
@@ -42,7 +45,7 @@ public class MasternodeBroadcastTest {
     @Test
     public void testParseWithSpork6() {
         byte [] mnbdata = Utils.HEX.decode(
-                "0313a1b4dd8780ee7ac2acf4695bb2c9d2b8bd2870671d6b36a0cd96fb7b15bd0000000000000000000000000000ffff22db97654a3921024844d13d64dd612147474caeb3ae9eff50daffec4cea17312ce3a8191573af5141048c17c4728e67613d97508973693a20dd8387a6076fa42ca74e680b785636eaacf5ae3a18fcb8989b3ad4b9a3f5543388456013589729a657a402cedc23c25800411f57b98f37fb18c48c94835d3ca5c0f87f321b5226748e0f2f79b419850df051a95cc2466072e7d0014d4d12e4748d41574f6a5e96751dc8fc5a79b990e3e8e52642d63d5b00000000421201000313a1b4dd8780ee7ac2acf4695bb2c9d2b8bd2870671d6b36a0cd96fb7b15bd00000000811e02f95a860ccd4a777a369ded43610d02c2dcbab19a1d3b2764410000000042d63d5b00000000411b4ae1e49978d591ab05f85ba2bffa700dc160636d55bb746260df53ecdcbfb8dc35f389b9ed7ffd3074d95a1f196392548bb3caaeaa5aa39bb5457550a9152e91000100010088d50100");
+                MNB_WITH_SPORK6);
         PublicKey collateralAddress = new PublicKey(Utils.HEX.decode("024844d13d64dd612147474caeb3ae9eff50daffec4cea17312ce3a8191573af51"));
 
         MasternodeBroadcast mn = new MasternodeBroadcast(MainNetParams.get(), mnbdata, 0);
@@ -55,4 +58,26 @@ public class MasternodeBroadcastTest {
 
         assert(mn.checkSignature(new Dos()));
     }
+
+    @Test
+    public void checkSignatureIsCached() {
+        byte [] mnbdata = Utils.HEX.decode(MNB_WITH_SPORK6);
+        MasternodeBroadcast mnb = new MasternodeBroadcast(MainNetParams.get(), mnbdata, 0);
+        assertFalse(mnb.isSignatureChecked());
+        assertTrue(mnb.checkSignature(new Dos()));
+        assertTrue(mnb.isSignatureChecked());
+        // The result is reused, the signature isn't looked at again.
+        mnb.vchSig = new MasternodeSignature(new byte[65]);
+        Dos nDos = new Dos();
+        assertTrue(mnb.checkSignature(nDos));
+        assertEquals(0, nDos.get());
+
+        // A bad signature keeps its DoS score.
+        MasternodeBroadcast bad = new MasternodeBroadcast(MainNetParams.get(), mnbdata, 0);
+        bad.vchSig = new MasternodeSignature(new byte[65]);
+        assertFalse(bad.checkSignature(new Dos()));
+        nDos = new Dos();
+        assertFalse(bad.checkSignature(nDos));
+        assertEquals(100, nDos.get());
+    }
 }
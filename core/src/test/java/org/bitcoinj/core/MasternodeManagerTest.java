@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.net.Dos;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class MasternodeManagerTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private Context context;
+    private MasternodeManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(true, true);
+        context.sporkManager.processSporkForUnitTesting(SporkManager.SPORK_6_NEW_SIGS);
+        new PeerGroup(context, new BlockChain(context, new MemoryBlockStore(PARAMS)));
+        manager = context.masternodeManager;
+    }
+
+    // The signed test broadcast, or with a later sigTime, which gives another hash and a signature that doesn't match.
+    private MasternodeBroadcast mnb(int nLater) {
+        MasternodeBroadcast mnb = new MasternodeBroadcast(PARAMS, Utils.HEX.decode(MasternodeBroadcastTest.MNB_WITH_SPORK6), 0);
+        mnb.info.sigTime += nLater;
+        return mnb;
+    }
+
+    // An enabled masternode that was just checked.
+    private Masternode masternode(int n) throws Exception {
+        Masternode mn = new Masternode(context);
+        TransactionOutPoint outpoint = new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8) }));
+        MasternodeAddress address = new MasternodeAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (n >> 8), (byte) n }), 9937);
+        mn.info = new MasternodeInfo(PARAMS, MasternodeInfo.State.MASTERNODE_ENABLED, 70210, 1532681437,
+                outpoint, address, new PublicKey(new ECKey().getPubKey()), new PublicKey(new ECKey().decompress().getPubKey()));
+        mn.fUnitTest = true;
+        mn.lastTimeChecked = Utils.currentTimeSeconds();
+        return mn;
+    }
+
+    // Holds the lock on another thread until released, or for ten seconds at most.
+    private static Thread holdLock(final ReentrantLock lock, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    locked.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException x) {
+                    // let go
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        locked.await();
+        return thread;
+    }
+
+    private static List<Pair<Peer, MasternodeBroadcast>> batch(MasternodeBroadcast... mnbs) {
+        List<Pair<Peer, MasternodeBroadcast>> batch = new ArrayList<Pair<Peer, MasternodeBroadcast>>();
+        for (MasternodeBroadcast mnb : mnbs)
+            batch.add(new Pair<Peer, MasternodeBroadcast>(null, mnb));
+        return batch;
+    }
+
+    @Test
+    public void batchChecksEachNewSignatureOnce() throws Exception {
+        MasternodeBroadcast a = mnb(0);
+        MasternodeBroadcast aAgain = mnb(0);
+        MasternodeBroadcast b = mnb(1);
+        assertEquals(a.getHash(), aAgain.getHash());
+
+        // The same broadcast from two peers is checked once, ahead of the list update.
+        manager.processMasternodeBroadcasts(batch(a, aAgain, b));
+        assertTrue(a.isSignatureChecked());
+        assertFalse(aAgain.isSignatureChecked());
+        assertTrue(b.isSignatureChecked());
+        assertTrue(manager.mapSeenMasternodeBroadcast.containsKey(a.getHash()));
+        assertTrue(manager.mapSeenMasternodeBroadcast.containsKey(b.getHash()));
+
+        // The result of the check ahead is what the list update sees.
+        a.vchSig = new MasternodeSignature(new byte[65]);
+        assertTrue(a.checkSignature(new Dos()));
+        assertFalse(b.checkSignature(new Dos()));
+
+        // Broadcasts that were seen already aren't checked again.
+        MasternodeBroadcast aLater = mnb(0);
+        MasternodeBroadcast c = mnb(2);
+        MasternodeBroadcast d = mnb(3);
+        manager.processMasternodeBroadcasts(batch(aLater, c, d));
+        assertFalse(aLater.isSignatureChecked());
+        assertTrue(c.isSignatureChecked());
+        assertTrue(d.isSignatureChecked());
+    }
+
+    @Test
+    public void singleBroadcastIsNotCheckedAhead() throws Exception {
+        // One new broadcast, nothing to check in parallel.
+        MasternodeBroadcast a = mnb(0);
+        manager.processMasternodeBroadcasts(batch(a, mnb(0)));
+        assertFalse(a.isSignatureChecked());
+        assertTrue(manager.mapSeenMasternodeBroadcast.containsKey(a.getHash()));
+    }
+
+    @Test
+    public void unbatched() throws Exception {
+        context.masternodeSync.RequestedMasternodeAssets = MasternodeSync.MASTERNODE_SYNC_FINISHED;
+        manager.setMnbBatchingEnabled(false);
+        Peer peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0), null, new PeerAddress(PARAMS, InetAddress.getLocalHost()));
+        MasternodeBroadcast a = mnb(0);
+        peer.setAskFor.add(a.getHash());
+        // Processed right away on the calling thread, without checking the signature ahead.
+        manager.processMasternodeBroadcast(peer, a);
+        assertTrue(manager.mapSeenMasternodeBroadcast.containsKey(a.getHash()));
+        assertFalse(a.isSignatureChecked());
+        assertFalse(peer.setAskFor.contains(a.getHash()));
+    }
+
+    @Test
+    public void scheduledConnectionsAreGroupedByAddress() throws Exception {
+        InetAddress addr1 = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        // its hash code is negative
+        InetAddress addr2 = InetAddress.getByAddress(new byte[] { (byte) 200, 0, 0, 1 });
+        Sha256Hash hash1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash hash2 = Sha256Hash.of(new byte[] { 2 });
+        Sha256Hash hash3 = Sha256Hash.of(new byte[] { 3 });
+        Sha256Hash hash4 = Sha256Hash.of(new byte[] { 4 });
+        // equal addresses in different objects
+        manager.listScheduledMnbRequestConnections.add(new Pair<MasternodeAddress, Sha256Hash>(new MasternodeAddress(addr2, 9937), hash1));
+        manager.listScheduledMnbRequestConnections.add(new Pair<MasternodeAddress, Sha256Hash>(new MasternodeAddress(addr1, 9937), hash2));
+        manager.listScheduledMnbRequestConnections.add(new Pair<MasternodeAddress, Sha256Hash>(new MasternodeAddress(addr2, 9937), hash3));
+        manager.listScheduledMnbRequestConnections.add(new Pair<MasternodeAddress, Sha256Hash>(new MasternodeAddress(addr1, 9938), hash4));
+
+        Pair<MasternodeAddress, HashSet<Sha256Hash>> first = manager.popScheduledMnbRequestConnection();
+        assertEquals(new MasternodeAddress(addr1, 9937), first.getFirst());
+        assertEquals(ImmutableSet.of(hash2), first.getSecond());
+        Pair<MasternodeAddress, HashSet<Sha256Hash>> second = manager.popScheduledMnbRequestConnection();
+        assertEquals(new MasternodeAddress(addr1, 9938), second.getFirst());
+        assertEquals(ImmutableSet.of(hash4), second.getSecond());
+        Pair<MasternodeAddress, HashSet<Sha256Hash>> third = manager.popScheduledMnbRequestConnection();
+        assertEquals(new MasternodeAddress(addr2, 9937), third.getFirst());
+        assertEquals(ImmutableSet.of(hash1, hash3), third.getSecond());
+        assertTrue(manager.popScheduledMnbRequestConnection().getSecond().isEmpty());
+    }
+
+    @Test
+    public void lookupsDontWaitForTheManagerLock() throws Exception {
+        Masternode a = masternode(1);
+        Masternode b = masternode(2);
+        assertTrue(manager.add(a));
+        assertTrue(manager.add(b));
+
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = holdLock(manager.lock, release);
+        try {
+            assertSame(a, manager.find(a.info.outpoint));
+            assertSame(b, manager.get(b.info.outpoint));
+            assertTrue(manager.has(a.info.outpoint));
+            assertSame(b, manager.find(b.info.address));
+            assertEquals(a.info.outpoint, manager.getMasternodeInfo(a.info.outpoint).outpoint);
+            assertEquals(2, manager.size());
+            assertEquals(2, manager.countMasternodes(0));
+            assertEquals(2, manager.countEnabled(0));
+            manager.check();
+            // had the lookups waited, the other thread would have let go of the lock by now
+            assertTrue(manager.lock.isLocked());
+            assertFalse(manager.lock.isHeldByCurrentThread());
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void recentCheckDoesntWaitForTheMasternodeLock() throws Exception {
+        Masternode mn = masternode(1);
+        // too old for payments, a check that runs marks it
+        mn.info.nProtocolVersion = 70000;
+
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = holdLock(mn.lock, release);
+        try {
+            mn.check();
+            assertTrue(mn.lock.isLocked());
+            assertTrue(mn.isEnabled());
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+
+        // A forced check runs however recent the last one was.
+        mn.check(true);
+        assertTrue(mn.isUpdateRequired());
+        assertTrue(Utils.currentTimeSeconds() - mn.lastTimeChecked < Masternode.MASTERNODE_CHECK_SECONDS);
+    }
+
+    @Test
+    public void lookupsWhileMasternodesAreAdded() throws Exception {
+        final List<Masternode> masternodes = new ArrayList<Masternode>();
+        for (int i = 0; i < 500; i++)
+            masternodes.add(masternode(i));
+        final Context context = this.context;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Context.propagate(context);
+                for (Masternode mn : masternodes)
+                    manager.add(mn);
+            }
+        };
+        writer.start();
+        // iterating the map as it grows doesn't throw
+        while (writer.isAlive()) {
+            assertTrue(manager.countMasternodes(0) <= masternodes.size());
+            manager.find(masternodes.get(masternodes.size() - 1).info.address);
+        }
+        writer.join();
+        assertEquals(masternodes.size(), manager.size());
+        assertEquals(masternodes.size(), manager.countMasternodes(0));
+        for (Masternode mn : masternodes)
+            assertSame(mn, manager.find(mn.info.outpoint));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bitcoinj.core.MasternodeSync.*;
+import static org.bitcoinj.core.MasternodeSync.SYNC_FLAGS.*;
+import static org.junit.Assert.*;
+
+public class MasternodeSyncTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    // the genesis block of the unit test network is made when the test starts, the blocks made up follow it
+    private static final long TIME = PARAMS.getGenesisBlock().getTimeSeconds();
+
+    private Context context;
+    private MasternodeSync sync;
+    // the commands of the messages sent to each peer
+    private final Map<Peer, List<String>> sent = new HashMap<Peer, List<String>>();
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock(TIME);
+        context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(false, true);
+        sync = context.masternodeSync;
+        sync.syncFlags = EnumSet.of(SYNC_MASTERNODE_LIST, SYNC_GOVERNANCE);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private List<Peer> peers(int nPeers) throws Exception {
+        List<Peer> peers = new ArrayList<Peer>();
+        for (int i = 0; i < nPeers; i++) {
+            Peer peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0),
+                    new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (i + 1) }), PARAMS.getPort()), null);
+            final List<String> commands = new ArrayList<String>();
+            peer.setWriteTarget(new MessageWriteTarget() {
+                @Override
+                public void writeBytes(byte[] message) {
+                    // the command follows the magic bytes in the header
+                    commands.add(new String(message, 4, 12, Charsets.US_ASCII).trim());
+                }
+
+                @Override
+                public void closeConnection() {
+                }
+            });
+            sent.put(peer, commands);
+            peers.add(peer);
+        }
+        return peers;
+    }
+
+    private int countSent(String strCommand) {
+        int count = 0;
+        for (List<String> commands : sent.values()) {
+            for (String command : commands) {
+                if (command.equals(strCommand))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    private void startStage(int nRequestedMasternodeAssets) {
+        sync.RequestedMasternodeAssets = nRequestedMasternodeAssets;
+        sync.BumpAssetLastTime(null);
+    }
+
+    @Test
+    public void listCompletesAfterTwoReplies() throws Exception {
+        List<Peer> peers = peers(4);
+        startStage(MASTERNODE_SYNC_LIST);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        // Every peer is asked for the sporks, three of them for the list.
+        assertEquals(4, countSent("getsporks"));
+        assertEquals(ImmutableList.of("getsporks", "dseg"), sent.get(peers.get(0)));
+        assertEquals(ImmutableList.of("getsporks"), sent.get(peers.get(3)));
+        assertEquals(3, sync.getProgress(MasternodeSync.Asset.MASTERNODE_LIST).getPending());
+
+        // One of them is done, the last peer takes its place.
+        sync.processSyncStatusCount(peers.get(0), new SyncStatusCount(MASTERNODE_SYNC_LIST, 10));
+        Utils.rollMockClock(2);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertEquals(MASTERNODE_SYNC_LIST, sync.RequestedMasternodeAssets);
+        assertEquals(ImmutableList.of("getsporks", "dseg"), sent.get(peers.get(3)));
+
+        // The second reply completes the list.
+        sync.processSyncStatusCount(peers.get(1), new SyncStatusCount(MASTERNODE_SYNC_LIST, 12));
+        Utils.rollMockClock(2);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertTrue(sync.getProgress(MasternodeSync.Asset.MASTERNODE_LIST).isFinished());
+        assertEquals(MASTERNODE_SYNC_GOVERNANCE, sync.RequestedMasternodeAssets);
+        assertEquals(11, sync.masterNodeCountFromNetwork());
+        assertEquals(4, countSent("dseg"));
+        assertEquals(4, countSent("getsporks"));
+    }
+
+    @Test
+    public void parallelRequestsAreCapped() throws Exception {
+        List<Peer> peers = peers(5);
+        startStage(MASTERNODE_SYNC_LIST);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertEquals(MASTERNODE_SYNC_PARALLEL_PEERS, countSent("dseg"));
+
+        // Nobody replied, one more peer is asked once a tick passed.
+        Utils.rollMockClock(MASTERNODE_SYNC_TICK_SECONDS - 1);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertEquals(MASTERNODE_SYNC_PARALLEL_PEERS, countSent("dseg"));
+        Utils.rollMockClock(1);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertEquals(MASTERNODE_SYNC_PARALLEL_PEERS + 1, countSent("dseg"));
+        assertEquals(MASTERNODE_SYNC_PARALLEL_PEERS + 1, sync.getProgress(MasternodeSync.Asset.MASTERNODE_LIST).getPending());
+    }
+
+    @Test
+    public void noGovernanceObjects() throws Exception {
+        List<Peer> peers = peers(3);
+        startStage(MASTERNODE_SYNC_GOVERNANCE);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertEquals(3, countSent("govsync"));
+
+        // Without replies the sync waits, even though there are no objects.
+        Utils.rollMockClock(2);
+        sync.processTick();
+        assertEquals(MASTERNODE_SYNC_GOVERNANCE, sync.RequestedMasternodeAssets);
+
+        // Two peers said they have nothing, so there are no votes to ask for either.
+        sync.processSyncStatusCount(peers.get(0), new SyncStatusCount(MASTERNODE_SYNC_GOVOBJ, 0));
+        sync.processSyncStatusCount(peers.get(1), new SyncStatusCount(MASTERNODE_SYNC_GOVOBJ, 0));
+        sync.processTick();
+        assertTrue(sync.isSynced());
+    }
+
+    @Test
+    public void deterministicListPeerIsReplacedAfterTimeout() throws Exception {
+        context.sporkManager.processSporkForUnitTesting(SporkManager.SPORK_15_DETERMINISTIC_MNS_ENABLED);
+        BlockChain chain = new BlockChain(context, new MemoryBlockStore(PARAMS));
+        new PeerGroup(context, chain);
+        chain.add(PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS)));
+        assertTrue(context.masternodeListManager.isBehindChainHead());
+        sync.syncFlags = EnumSet.of(SYNC_MASTERNODE_LIST, SYNC_DMN_LIST);
+
+        List<Peer> peers = peers(3);
+        startStage(MASTERNODE_SYNC_LIST);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertSame(peers.get(0), sync.smlPeer);
+        assertTrue(sent.get(peers.get(0)).contains("getmnlistd"));
+        // The other assets are asked from the other peers.
+        assertFalse(sent.get(peers.get(0)).contains("dseg"));
+        assertTrue(sent.get(peers.get(1)).contains("dseg"));
+        assertTrue(sent.get(peers.get(2)).contains("dseg"));
+
+        // Still waiting for the answer.
+        Utils.rollMockClock(MASTERNODE_SYNC_TIMEOUT_SECONDS - 1);
+        sync.BumpAssetLastTime(null);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertSame(peers.get(0), sync.smlPeer);
+        assertEquals(1, sync.getProgress(MasternodeSync.Asset.DMN_LIST).getRequests());
+
+        // No answer in time, the next peer is asked.
+        Utils.rollMockClock(1);
+        sync.BumpAssetLastTime(null);
+        sync.requestAssets(Utils.currentTimeSeconds(), peers);
+        assertSame(peers.get(1), sync.smlPeer);
+        assertEquals(2, sync.getProgress(MasternodeSync.Asset.DMN_LIST).getRequests());
+    }
+
+    @Test
+    public void resetForgetsTheBestHeader() throws Exception {
+        BlockChain chain = new BlockChain(context, new MemoryBlockStore(PARAMS));
+        sync.blockChain = chain;
+        StoredBlock genesis = chain.getChainHead();
+        chain.add(PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS)));
+        StoredBlock head = chain.getChainHead();
+
+        // Reaching the best header moves on from the blockchain stage.
+        sync.switchToNextAsset();
+        sync.updateBlockTip(head, false);
+        assertEquals(MASTERNODE_SYNC_LIST, sync.RequestedMasternodeAssets);
+
+        // Another instance hasn't reached it, so a tip behind the best header is no step back for it.
+        MasternodeSync other = new MasternodeSync(context);
+        other.blockChain = chain;
+        other.switchToNextAsset();
+        other.updateBlockTip(genesis, false);
+        assertEquals(MASTERNODE_SYNC_WAITING, other.RequestedMasternodeAssets);
+
+        // Nor after a reset.
+        sync.reset();
+        sync.switchToNextAsset();
+        sync.updateBlockTip(genesis, false);
+        assertEquals(MASTERNODE_SYNC_WAITING, sync.RequestedMasternodeAssets);
+    }
+}
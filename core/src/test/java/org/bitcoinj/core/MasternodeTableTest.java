@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MasternodeTableTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private PublicKey collateralKey;
+    private PublicKey masternodeKey;
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = new Context(PARAMS);
+        Context.propagate(context);
+        collateralKey = new PublicKey(new ECKey().getPubKey());
+        masternodeKey = new PublicKey(new ECKey().decompress().getPubKey());
+    }
+
+    private MasternodeInfo info(int n) throws Exception {
+        TransactionOutPoint outpoint = new TransactionOutPoint(PARAMS, n % 3, Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8) }));
+        MasternodeAddress address = new MasternodeAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (n >> 8), (byte) n }), 9937);
+        MasternodeInfo info = new MasternodeInfo(PARAMS, MasternodeInfo.State.MASTERNODE_ENABLED, 70210, 1532681437 + n,
+                outpoint, address, collateralKey, masternodeKey);
+        info.nTimeLastPing = 1532690000 + n;
+        info.nTimeLastPaid = 1532600000 + n;
+        info.nLastDsq = n;
+        return info;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        MasternodeTable table = new MasternodeTable(PARAMS);
+        MasternodeInfo info = info(7);
+        table.put(info);
+
+        MasternodeTable.Entry entry = table.find(info.outpoint);
+        assertNotNull(entry);
+        assertEquals(info.outpoint, entry.getOutpoint());
+        assertEquals(info.address, entry.getAddress());
+        assertEquals(collateralKey, entry.getPubKeyCollateralAddress());
+        assertEquals(masternodeKey, entry.getPubKeyMasternode());
+        assertEquals(1532681437 + 7, entry.getSigTime());
+        assertEquals(1532690000 + 7, entry.getLastPingTime());
+        assertEquals(1532600000 + 7, entry.getLastPaidTime());
+        assertEquals(7, entry.getLastDsq());
+        assertEquals(70210, entry.getProtocolVersion());
+        assertTrue(entry.isEnabled());
+
+        MasternodeInfo copy = entry.toInfo();
+        assertEquals(info.outpoint, copy.outpoint);
+        assertEquals(info.address, copy.address);
+        assertEquals(info.activeState, copy.activeState);
+    }
+
+    @Test
+    public void putOverwrites() throws Exception {
+        MasternodeTable table = new MasternodeTable(PARAMS);
+        MasternodeInfo info = info(1);
+        table.put(info);
+        info.activeState = MasternodeInfo.State.MASTERNODE_EXPIRED;
+        info.address = null;
+        table.put(info);
+        assertEquals(1, table.size());
+        MasternodeTable.Entry entry = table.find(info.outpoint);
+        assertEquals(MasternodeInfo.State.MASTERNODE_EXPIRED, entry.getActiveState());
+        assertNull(entry.getAddress());
+    }
+
+    @Test
+    public void addAndRemoveMany() throws Exception {
+        MasternodeTable table = new MasternodeTable(PARAMS, 0);
+        List<MasternodeInfo> infos = new ArrayList<MasternodeInfo>();
+        for (int i = 0; i < 2000; i++) {
+            infos.add(info(i));
+            table.put(infos.get(i));
+        }
+        assertEquals(2000, table.size());
+        for (int i = 0; i < 2000; i += 2)
+            assertTrue(table.remove(infos.get(i).outpoint));
+        assertFalse(table.remove(infos.get(0).outpoint));
+        assertEquals(1000, table.size());
+
+        for (int i = 0; i < 2000; i++) {
+            MasternodeTable.Entry entry = table.find(infos.get(i).outpoint);
+            if (i % 2 == 0) {
+                assertNull(entry);
+            } else {
+                assertNotNull(entry);
+                assertEquals(infos.get(i).outpoint, entry.getOutpoint());
+                assertEquals(i, entry.getLastDsq());
+            }
+        }
+
+        int count = 0;
+        for (MasternodeTable.Entry entry : table) {
+            assertEquals(1, entry.getLastDsq() % 2);
+            count++;
+        }
+        assertEquals(1000, count);
+
+        table.clear();
+        assertTrue(table.isEmpty());
+        assertFalse(table.contains(infos.get(1).outpoint));
+    }
+
+    @Test
+    public void putMasternode() throws Exception {
+        Masternode mn = new Masternode(context);
+        mn.info = info(5);
+        MasternodeTable table = new MasternodeTable(PARAMS);
+        table.put(mn);
+        MasternodeTable.Entry entry = table.find(mn.info.outpoint);
+        assertEquals(1532600000 + 5, entry.getLastPaidTime());
+        assertEquals(5, entry.getLastDsq());
+        assertEquals(mn.lastPing.sigTime, entry.getLastPingTime());
+
+        // The same through the manager.
+        context.initAxe(true, true);
+        assertTrue(context.masternodeManager.add(mn));
+        table = context.masternodeManager.getMasternodeTable();
+        assertEquals(1, table.size());
+        entry = table.find(mn.info.outpoint);
+        assertEquals(mn.info.address, entry.getAddress());
+        assertEquals(1532600000 + 5, entry.getLastPaidTime());
+        assertEquals(5, entry.getLastDsq());
+    }
+}
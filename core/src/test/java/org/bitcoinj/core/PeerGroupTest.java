@@ -22,6 +22,7 @@ import com.google.common.collect.*;
 import com.google.common.net.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.core.listeners.*;
+import org.bitcoinj.net.FilterMerger;
 import org.bitcoinj.net.discovery.*;
 import org.bitcoinj.testing.*;
 import org.bitcoinj.utils.*;
@@ -656,10 +657,15 @@ public class PeerGroupTest extends TestWithPeerGroup {
             key = wallet.freshReceiveKey();
         }
         peerGroup.waitForJobQueue();
-        BloomFilter bf, f2 = null;
-        while ((bf = (BloomFilter) outbound(p1)) != null) {
-            assertEquals(MemoryPoolMessage.class, outbound(p1).getClass());
-            f2 = bf;
+        // The new keys are either added to the filter on the connection or a new filter is sent, each time followed
+        // by a mempool query.
+        BloomFilter f2 = null;
+        Message m;
+        while ((m = outbound(p1)) != null) {
+            if (m instanceof MemoryPoolMessage)
+                f2 = p1.lastReceivedFilter;
+            else if (!(m instanceof FilterAddMessage))
+                assertEquals(BloomFilter.class, m.getClass());
         }
         assertNotNull(key);
         assertNotNull(f2);
@@ -672,6 +678,47 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
 
+    @Test
+    public void incrementalFilterUpdate() throws Exception {
+        FilterMerger merger = new FilterMerger(PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+        // A wallet of its own, the peer group calculates filters for its wallets on another thread.
+        Wallet wallet2 = new Wallet(PARAMS);
+        ImmutableList<PeerFilterProvider> providers = ImmutableList.<PeerFilterProvider>of(wallet2);
+        ECKey key = new ECKey();
+        List<byte[]> elements = ImmutableList.of(key.getPubKey(), key.getPubKeyHash());
+        // Nothing to extend yet.
+        assertNull(merger.tryIncrementalUpdate(elements, key.getCreationTimeSeconds()));
+
+        BloomFilter previous = merger.calculate(providers).filter;
+        FilterMerger.Result result = merger.tryIncrementalUpdate(elements, key.getCreationTimeSeconds());
+        assertNotNull(result);
+        assertTrue(result.changed);
+        assertSame(result.filter, merger.getLastFilter());
+        assertTrue(result.filter.contains(key.getPubKey()));
+        assertTrue(result.filter.contains(key.getPubKeyHash()));
+        // The previous filter may still be loaded on connections, so it is left alone.
+        assertFalse(previous.contains(key.getPubKey()));
+        // Elements the filter holds already don't change it.
+        FilterMerger.Result again = merger.tryIncrementalUpdate(elements, key.getCreationTimeSeconds());
+        assertFalse(again.changed);
+        assertSame(result.filter, again.filter);
+        // Within the stair-stepped size the result is exactly what a full recalculation gives.
+        wallet2.importKey(key);
+        assertEquals(result.filter, merger.calculate(providers).filter);
+
+        // Keys older than the fast catchup time need the full path.
+        ECKey oldKey = new ECKey();
+        assertNull(merger.tryIncrementalUpdate(ImmutableList.of(oldKey.getPubKey()), 0));
+        // More elements than the filter was sized for.
+        List<byte[]> tooMany = new ArrayList<byte[]>();
+        for (int i = 0; i < 101; i++)
+            tooMany.add(new ECKey().getPubKey());
+        assertNull(merger.tryIncrementalUpdate(tooMany, key.getCreationTimeSeconds()));
+        // A different false positive rate.
+        merger.setBloomFilterFPRate(0.001);
+        assertNull(merger.tryIncrementalUpdate(elements, key.getCreationTimeSeconds()));
+    }
+
     @Test
     public void waitForNumPeers1() throws Exception {
         ListenableFuture<List<Peer>> future = peerGroup.waitForPeers(3);
@@ -774,6 +821,21 @@ public class PeerGroupTest extends TestWithPeerGroup {
         return (T) outbound;
     }
 
+    // Reads either a new filter or the elements added to the last one, up to the mempool query that follows, and
+    // returns the filter that is now loaded on the connection.
+    private BloomFilter assertNextFilterUpdate(InboundMessageQueuer q) throws Exception {
+        Message m = waitForOutbound(q);
+        if (m instanceof BloomFilter) {
+            m = waitForOutbound(q);
+        } else {
+            assertEquals(FilterAddMessage.class, m.getClass());
+            while (m instanceof FilterAddMessage)
+                m = waitForOutbound(q);
+        }
+        assertEquals(MemoryPoolMessage.class, m.getClass());
+        return q.lastReceivedFilter;
+    }
+
     @Test
     public void autoRescanOnKeyExhaustion() throws Exception {
         // Check that if the last key that was inserted into the bloom filter is seen in some requested blocks,
@@ -826,9 +888,8 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // Await the new filter.
         peerGroup.waitForJobQueue();
-        BloomFilter newFilter = assertNextMessageIs(p1, BloomFilter.class);
+        BloomFilter newFilter = assertNextFilterUpdate(p1);
         assertNotEquals(filter, newFilter);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
         Ping ping = assertNextMessageIs(p1, Ping.class);
         inbound(p1, new Pong(ping.getNonce()));
 
@@ -842,8 +903,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
 
         // It happened again.
         peerGroup.waitForJobQueue();
-        newFilter = assertNextMessageIs(p1, BloomFilter.class);
-        assertNextMessageIs(p1, MemoryPoolMessage.class);
+        newFilter = assertNextFilterUpdate(p1);
         inbound(p1, new Pong(assertNextMessageIs(p1, Ping.class).getNonce()));
         assertNextMessageIs(p1, GetDataMessage.class);
         newBlocks = blocks.subList(6, blocks.size());
@@ -856,6 +916,46 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void transientPeer() throws Exception {
+        peerGroup.addConnectedEventListener(connectedListener);
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        connectedPeers.take();
+
+        // A peer connected for an errand does the handshake, but gets no filter and isn't one of the group's peers.
+        Peer peer = peerGroup.connectToTransient(new PeerAddress(PARAMS, new InetSocketAddress("127.0.0.1", 2002)), 5000);
+        peer.getConnectionOpenFuture().get();
+        InboundMessageQueuer p2 = newPeerWriteTargetQueue.take();
+        p2.peer = peer;
+        p2.sendMessage(remoteVersionMessage);
+        p2.sendMessage(new VersionAck());
+        assertTrue(waitForOutbound(p2) instanceof VersionMessage);
+        assertTrue(waitForOutbound(p2) instanceof VersionAck);
+        peer.getVersionHandshakeFuture().get();
+        assertNull(outbound(p2));
+        assertEquals(ImmutableList.of(peerOf(p1)), peerGroup.getConnectedPeers());
+        assertTrue(peerGroup.getPendingPeers().isEmpty());
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+
+        // Nor is it announced or connected to again when it goes away.
+        final SettableFuture<Void> closeFuture = SettableFuture.create();
+        peer.addDisconnectedEventListener(new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                closeFuture.set(null);
+            }
+        });
+        closePeer(peer);
+        closeFuture.get();
+        Threading.waitForUserCode();
+        assertTrue(connectedPeers.isEmpty());
+        assertTrue(disconnectedPeers.isEmpty());
+        assertEquals(1, peerGroup.numConnectedPeers());
+        assertTrue(peerGroup.getPendingPeers().isEmpty());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
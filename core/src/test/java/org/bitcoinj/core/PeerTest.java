@@ -972,4 +972,53 @@ public class PeerTest extends TestWithNetworkConnections {
                     || (e instanceof SocketException && e.getMessage().equals("Socket is closed")));
         }
     }
+
+    @Test
+    public void addToBloomFilter() throws Exception {
+        connect();
+        BloomFilter previous = new BloomFilter(100, 0.00001, 0);
+        previous.insert(new ECKey().getPubKey());
+        peer.setBloomFilter(previous, false);
+        assertEquals(previous, outbound(writeTarget));
+
+        // The new element is sent on its own, followed by the mempool query.
+        byte[] element = new ECKey().getPubKey();
+        BloomFilter updated = previous.copy();
+        updated.insert(element);
+        peer.addToBloomFilter(previous, updated, Arrays.<byte[]>asList(element), true);
+        FilterAddMessage filterAdd = (FilterAddMessage) outbound(writeTarget);
+        assertArrayEquals(element, filterAdd.getData());
+        assertEquals(MemoryPoolMessage.class, outbound(writeTarget).getClass());
+        assertNull(outbound(writeTarget));
+        assertSame(updated, peer.getBloomFilter());
+
+        // The connection doesn't have the filter the update builds on, so the whole filter is sent.
+        byte[] element2 = new ECKey().getPubKey();
+        BloomFilter updated2 = previous.copy();
+        updated2.insert(element2);
+        peer.addToBloomFilter(previous, updated2, Arrays.<byte[]>asList(element2), false);
+        assertEquals(updated2, outbound(writeTarget));
+        assertNull(outbound(writeTarget));
+        assertSame(updated2, peer.getBloomFilter());
+
+        // An element too large for filteradd.
+        byte[] large = new byte[FilterAddMessage.MAX_ELEMENT_SIZE + 1];
+        BloomFilter updated3 = updated2.copy();
+        updated3.insert(large);
+        peer.addToBloomFilter(updated2, updated3, Arrays.<byte[]>asList(large), false);
+        assertEquals(updated3, outbound(writeTarget));
+        assertNull(outbound(writeTarget));
+
+        // More element bytes than the filter itself.
+        List<byte[]> elements = new ArrayList<byte[]>();
+        BloomFilter updated4 = updated3.copy();
+        for (int i = 0; i < updated3.bitcoinSerialize().length / 33 + 1; i++) {
+            byte[] pubKey = new ECKey().getPubKey();
+            elements.add(pubKey);
+            updated4.insert(pubKey);
+        }
+        peer.addToBloomFilter(updated3, updated4, elements, false);
+        assertEquals(updated4, outbound(writeTarget));
+        assertNull(outbound(writeTarget));
+    }
 }
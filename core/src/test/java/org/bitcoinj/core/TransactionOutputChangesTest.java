@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionOutputChangesTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private TransactionOutputChanges createChanges() {
+        Sha256Hash tx1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash tx2 = Sha256Hash.of(new byte[] { 2 });
+        List<UTXO> created = new ArrayList<UTXO>();
+        created.add(new UTXO(tx1, 0, Coin.FIFTY_COINS, 1000, true,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS))));
+        created.add(new UTXO(tx1, 1, Coin.valueOf(1), 1000, true,
+                ScriptBuilder.createP2SHOutputScript(new byte[20])));
+        created.add(new UTXO(tx2, 7, Coin.COIN, 1000, false, ScriptBuilder.createOutputScript(new ECKey())));
+        List<UTXO> spent = new ArrayList<UTXO>();
+        spent.add(new UTXO(tx2, 0xFFFFFFFFL, Coin.ZERO, 12, false, new Script(new byte[0])));
+        spent.add(new UTXO(tx1, 3, Coin.CENT, 1001, false,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS))));
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(bos);
+        TransactionOutputChanges parsed = TransactionOutputChanges.parse(bos.toByteArray());
+        assertOutputsEqual(changes.txOutsCreated, parsed.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, parsed.txOutsSpent);
+
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        changes.serializeToStream(full);
+        assertTrue(bos.size() < full.size());
+    }
+
+    @Test
+    public void parsesFullForm() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeToStream(bos);
+        TransactionOutputChanges parsed = TransactionOutputChanges.parse(bos.toByteArray());
+        assertOutputsEqual(changes.txOutsCreated, parsed.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, parsed.txOutsSpent);
+    }
+
+    @Test
+    public void empty() throws Exception {
+        TransactionOutputChanges changes = new TransactionOutputChanges(new ArrayList<UTXO>(), new ArrayList<UTXO>());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(bos);
+        TransactionOutputChanges parsed = TransactionOutputChanges.parse(bos.toByteArray());
+        assertTrue(parsed.txOutsCreated.isEmpty());
+        assertTrue(parsed.txOutsSpent.isEmpty());
+    }
+
+    private static void assertOutputsEqual(List<UTXO> expected, List<UTXO> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            UTXO a = expected.get(i), b = actual.get(i);
+            assertEquals(a.getHash(), b.getHash());
+            assertEquals(a.getIndex(), b.getIndex());
+            assertEquals(a.getValue(), b.getValue());
+            assertEquals(a.getHeight(), b.getHeight());
+            assertEquals(a.isCoinbase(), b.isCoinbase());
+            assertArrayEquals(a.getScript().getProgram(), b.getScript().getProgram());
+        }
+    }
+}
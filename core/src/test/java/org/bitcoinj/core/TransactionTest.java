@@ -395,6 +395,74 @@ public class TransactionTest {
         }
     }
 
+    @Test
+    public void hashForSignatureMatchesSimplifiedTransaction() {
+        Transaction tx = new Transaction(PARAMS);
+        Random random = new Random(1);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = tx.addInput(Sha256Hash.wrap(hash), i, new ScriptBuilder().data(hash).build());
+            input.setSequenceNumber(i == 2 ? TransactionInput.NO_SEQUENCE : i);
+        }
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(Coin.valueOf(i + 1, 0), new ECKey());
+        byte[] connectedScript = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        byte[] sigHashTypes = { 0, Transaction.SigHash.ALL.byteValue(), Transaction.SigHash.NONE.byteValue(),
+                Transaction.SigHash.SINGLE.byteValue() };
+        for (int index = 0; index < 5; index++) {
+            for (byte sigHashType : sigHashTypes) {
+                for (byte anyoneCanPay : new byte[] { 0, Transaction.SigHash.ANYONECANPAY.byteValue() }) {
+                    byte type = (byte) (sigHashType | anyoneCanPay);
+                    assertEquals(simplifiedTransactionHash(tx, index, connectedScript, type),
+                            tx.hashForSignature(index, connectedScript, type));
+                }
+            }
+        }
+
+        // Input scripts are not covered, so changing them keeps the hash, but other changes are picked up.
+        Sha256Hash before = tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL.byteValue());
+        tx.getInput(0).setScriptSig(new ScriptBuilder().data(new byte[] { 1, 2 }).build());
+        assertEquals(before, tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL.byteValue()));
+        tx.getInput(0).setSequenceNumber(42);
+        assertNotEquals(before, tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL.byteValue()));
+        assertEquals(simplifiedTransactionHash(tx, 1, connectedScript, Transaction.SigHash.ALL.byteValue()),
+                tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL.byteValue()));
+    }
+
+    // Hashes the simplified transaction built step by step, the way signature hashes are defined.
+    private static Sha256Hash simplifiedTransactionHash(Transaction original, int inputIndex, byte[] connectedScript,
+                                                        byte sigHashType) {
+        int mode = sigHashType & 0x1f;
+        if (mode == Transaction.SigHash.SINGLE.value && inputIndex >= original.getOutputs().size())
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction tx = PARAMS.getDefaultSerializer().makeTransaction(original.bitcoinSerialize());
+        List<TransactionInput> inputs = new ArrayList<TransactionInput>(tx.getInputs());
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(tx.getOutputs());
+        for (TransactionInput input : inputs)
+            input.clearScriptBytes();
+        inputs.get(inputIndex).setScriptBytes(connectedScript);
+        if (mode == Transaction.SigHash.NONE.value || mode == Transaction.SigHash.SINGLE.value) {
+            for (int i = 0; i < inputs.size(); i++)
+                if (i != inputIndex)
+                    inputs.get(i).setSequenceNumber(0);
+            tx.clearOutputs();
+            if (mode == Transaction.SigHash.SINGLE.value) {
+                for (int i = 0; i < inputIndex; i++)
+                    tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+                tx.addOutput(outputs.get(inputIndex));
+            }
+        }
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) != 0) {
+            tx.clearInputs();
+            tx.addInput(inputs.get(inputIndex));
+        }
+        byte[] serialized = tx.bitcoinSerialize();
+        byte[] preimage = Arrays.copyOf(serialized, serialized.length + 4);
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, preimage, serialized.length);
+        return Sha256Hash.twiceOf(preimage);
+    }
+
     @Test
     public void testVersionNumbers() {
         long type8192 = 536870912;
@@ -22,6 +22,7 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +100,27 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void evictsLeastRecentlyUsedWithoutListeners() throws Exception {
+        TxConfidenceTable table = new TxConfidenceTable(10);
+        // Keep strong references so nothing is collected during the test.
+        List<TransactionConfidence> confidences = new ArrayList<TransactionConfidence>();
+        TransactionConfidence watched = table.getOrCreate(Sha256Hash.of(new byte[] { -1 }));
+        watched.addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+            }
+        });
+        for (int i = 0; i < 100; i++)
+            confidences.add(table.seen(Sha256Hash.of(new byte[] { (byte) i }), address1));
+        assertEquals(10, table.size());
+        assertEquals(91, table.getEvictionCount());
+        // The entry with a listener survives although it's the least recently used one.
+        assertSame(watched, table.get(watched.getTransactionHash()));
+        assertSame(confidences.get(99), table.get(confidences.get(99).getTransactionHash()));
+        assertNull(table.get(confidences.get(0).getTransactionHash()));
+        assertEquals(2, table.getHitCount());
+        assertEquals(102, table.getMissCount());
+    }
 }
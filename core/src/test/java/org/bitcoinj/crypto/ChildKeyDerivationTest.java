@@ -22,6 +22,8 @@ import org.bitcoinj.params.*;
 import org.junit.*;
 import org.spongycastle.crypto.params.*;
 
+import java.util.List;
+
 import static org.bitcoinj.core.Utils.*;
 import static org.junit.Assert.*;
 
@@ -286,6 +288,28 @@ public class ChildKeyDerivationTest {
 
     }
 
+    @Test
+    public void batchDerivationMatchesSequential() {
+        DeterministicKey master = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        DeterministicKey account = HDKeyDerivation.deriveChildKey(master, ChildNumber.ZERO_HARDENED);
+        DeterministicKey watching = account.dropPrivateBytes().dropParent();
+        for (DeterministicKey parent : new DeterministicKey[] { account, watching }) {
+            // Large enough to be split across worker threads.
+            List<DeterministicKey> batch = HDKeyDerivation.deriveThisOrNextChildKeys(parent, 5, 300);
+            assertEquals(300, batch.size());
+            int nextChild = 5;
+            for (DeterministicKey key : batch) {
+                DeterministicKey expected = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild).dropPrivateBytes();
+                assertEquals(expected.getPath(), key.getPath());
+                assertArrayEquals(expected.getPubKey(), key.getPubKey());
+                assertArrayEquals(expected.getChainCode(), key.getChainCode());
+                assertSame(parent, key.getParent());
+                nextChild = key.getChildNumber().num() + 1;
+            }
+        }
+        assertTrue(HDKeyDerivation.deriveThisOrNextChildKeys(account, 0, 0).isEmpty());
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return HEX.encode(pubKey.getPubKey());
     }
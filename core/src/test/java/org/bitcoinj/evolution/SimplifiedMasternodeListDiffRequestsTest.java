@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.evolution;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.evolution.SimplifiedMasternodeListDiffRequests.Request;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SimplifiedMasternodeListDiffRequestsTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BlockChain chain;
+    private StoredBlock genesis;
+    private Sha256Hash genesisHash;
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private SimplifiedMasternodeListDiffRequests requests;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(true, true);
+        chain = new BlockChain(context, new MemoryBlockStore(PARAMS));
+        genesis = chain.getChainHead();
+        genesisHash = genesis.getHeader().getHash();
+        // asks the test peers in turn
+        requests = new SimplifiedMasternodeListDiffRequests(context) {
+            @Override
+            Peer choosePeer(Request request) {
+                for (Peer peer : peers) {
+                    if (!request.peersAsked.contains(peer))
+                        return peer;
+                }
+                return null;
+            }
+        };
+        requests.setBlockChain(chain, new PeerGroup(context, chain));
+    }
+
+    private void addPeers(int nPeers) throws Exception {
+        for (int i = 0; i < nPeers; i++) {
+            Peer peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0),
+                    new PeerAddress(PARAMS, InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (i + 1) }), PARAMS.getPort()), null);
+            peer.setWriteTarget(new MessageWriteTarget() {
+                @Override
+                public void writeBytes(byte[] message) {
+                }
+
+                @Override
+                public void closeConnection() {
+                }
+            });
+            peers.add(peer);
+        }
+    }
+
+    private StoredBlock addBlock(StoredBlock prev) throws Exception {
+        Block block = prev.getHeader().createNextBlock(new ECKey().toAddress(PARAMS));
+        chain.add(block);
+        return chain.getBlockStore().get(block.getHash());
+    }
+
+    private static Sha256Hash hash(StoredBlock block) {
+        return block.getHeader().getHash();
+    }
+
+    private static SimplifiedMasternodeListDiff diff(StoredBlock base, StoredBlock block) {
+        return new SimplifiedMasternodeListDiff(PARAMS, hash(base), hash(block));
+    }
+
+    private static void assertRequest(StoredBlock base, StoredBlock target, Request request) {
+        assertEquals(hash(base), request.baseBlockHash);
+        assertEquals(hash(target), request.getTargetHash());
+    }
+
+    @Test
+    public void heldDiffsAreAppliedInOrder() throws Exception {
+        addPeers(1);
+        StoredBlock b1 = addBlock(genesis);
+        StoredBlock b2 = addBlock(b1);
+        StoredBlock b3 = addBlock(b2);
+        requests.requestTo(genesisHash, 0, b1, null);
+        requests.requestTo(genesisHash, 0, b2, null);
+        requests.requestTo(genesisHash, 0, b3, null);
+        List<Request> pipeline = requests.getRequests();
+        assertEquals(2, pipeline.size());
+        assertRequest(genesis, b1, pipeline.get(0));
+        assertRequest(b1, b2, pipeline.get(1));
+        assertEquals(b3, requests.getPendingTarget());
+
+        // The second diff arrives first and waits for the first one, a diff nobody asked for is not kept.
+        assertTrue(requests.hold(diff(b1, b2)));
+        assertFalse(requests.hold(diff(b1, b3)));
+        assertFalse(requests.hold(diff(genesis, b1)));
+        SimplifiedMasternodeListDiff held = requests.applied(hash(b1));
+        assertEquals(hash(b2), held.blockHash);
+        assertEquals(1, requests.getRequests().size());
+        assertNull(requests.applied(hash(b2)));
+        assertTrue(requests.getRequests().isEmpty());
+        assertFalse(requests.isIdle());
+
+        // The blocks that arrived in the meantime are asked for in one go.
+        requests.requestPending(hash(b2), 2);
+        pipeline = requests.getRequests();
+        assertEquals(1, pipeline.size());
+        assertRequest(b2, b3, pipeline.get(0));
+        assertNull(requests.getPendingTarget());
+    }
+
+    @Test
+    public void giveUpDropsTheRequestsAfterIt() throws Exception {
+        addPeers(2);
+        StoredBlock b1 = addBlock(genesis);
+        StoredBlock b2 = addBlock(b1);
+        requests.requestTo(genesisHash, 0, b1, null);
+        requests.requestTo(genesisHash, 0, b2, null);
+        Request first = requests.getRequests().get(0);
+        assertSame(peers.get(0), first.peer);
+        assertTrue(requests.hold(diff(b1, b2)));
+
+        // The second peer doesn't answer either and there is nobody left to ask.
+        requests.retry(first, first.nSends, "timeout");
+        assertSame(peers.get(1), first.peer);
+        assertEquals(2, requests.getRequests().size());
+        requests.retry(first, first.nSends, "timeout");
+        assertTrue(requests.getRequests().isEmpty());
+        assertEquals(b2, requests.getPendingTarget());
+        assertNull(requests.applied(hash(b1)));
+
+        // The next request starts over from our tip.
+        requests.requestPending(genesisHash, 0);
+        List<Request> pipeline = requests.getRequests();
+        assertEquals(1, pipeline.size());
+        assertRequest(genesis, b2, pipeline.get(0));
+    }
+
+    @Test
+    public void staleTimeoutIsIgnored() throws Exception {
+        addPeers(3);
+        StoredBlock b1 = addBlock(genesis);
+        requests.requestTo(genesisHash, 0, b1, null);
+        Request request = requests.getRequests().get(0);
+        assertEquals(1, request.nSends);
+
+        // The peer disconnected and the request went to another one.
+        requests.retry(request, 1, "peer disconnected");
+        assertSame(peers.get(1), request.peer);
+        assertEquals(2, request.nSends);
+
+        // The timeout of the first send doesn't cut the second one short.
+        requests.retry(request, 1, "timeout");
+        assertSame(peers.get(1), request.peer);
+        assertEquals(2, request.nSends);
+        requests.retry(request, 2, "timeout");
+        assertSame(peers.get(2), request.peer);
+        assertEquals(3, request.nSends);
+    }
+
+    @Test
+    public void pendingTargetsAreMerged() throws Exception {
+        addPeers(1);
+        StoredBlock b1 = addBlock(genesis);
+        StoredBlock b2 = addBlock(b1);
+        StoredBlock b3 = addBlock(b2);
+        StoredBlock b4 = addBlock(b3);
+        requests.requestTo(genesisHash, 0, b1, null);
+        requests.requestTo(genesisHash, 0, b2, null);
+
+        // Later blocks replace the pending one, earlier ones are covered by it.
+        requests.requestTo(genesisHash, 0, b3, null);
+        requests.requestTo(genesisHash, 0, b4, null);
+        assertEquals(b4, requests.getPendingTarget());
+        requests.requestTo(genesisHash, 0, b3, null);
+        assertEquals(b4, requests.getPendingTarget());
+        // Blocks that were requested already are not pending.
+        requests.requestTo(genesisHash, 0, b2, null);
+        assertEquals(b4, requests.getPendingTarget());
+        assertEquals(2, requests.getRequests().size());
+
+        // Once there is room the pending blocks are one request.
+        requests.applied(hash(b1));
+        requests.requestPending(hash(b1), 1);
+        List<Request> pipeline = requests.getRequests();
+        assertEquals(2, pipeline.size());
+        assertRequest(b2, b4, pipeline.get(1));
+        assertNull(requests.getPendingTarget());
+    }
+
+    @Test
+    public void reorganizationDropsStaleRequests() throws Exception {
+        addPeers(1);
+        StoredBlock b1 = addBlock(genesis);
+        StoredBlock b2 = addBlock(b1);
+        requests.requestTo(genesisHash, 0, b1, null);
+        requests.requestTo(genesisHash, 0, b2, null);
+        assertTrue(requests.hold(diff(b1, b2)));
+
+        // A longer chain from the genesis block replaces b1 and b2.
+        StoredBlock c1 = addBlock(genesis);
+        StoredBlock c2 = addBlock(c1);
+        StoredBlock c3 = addBlock(c2);
+        assertEquals(c3, chain.getChainHead());
+        requests.requestTo(genesisHash, 0, c3, null);
+        List<Request> pipeline = requests.getRequests();
+        assertEquals(1, pipeline.size());
+        assertRequest(genesis, c3, pipeline.get(0));
+
+        // The diffs for the old requests are dropped.
+        assertFalse(requests.hold(diff(b1, b2)));
+        assertNull(requests.applied(hash(c3)));
+        assertTrue(requests.isIdle());
+    }
+
+    @Test
+    public void reorganizationAtTheHeightOfTheTip() throws Exception {
+        addPeers(1);
+        StoredBlock b1 = addBlock(genesis);
+        StoredBlock b2 = addBlock(b1);
+        StoredBlock c2 = addBlock(b1);
+
+        // Blocks behind our tip are not asked for, another block at the height of the tip is.
+        requests.requestTo(hash(b2), 2, b1, null);
+        requests.requestTo(hash(b2), 2, b2, null);
+        assertTrue(requests.isIdle());
+        requests.requestTo(hash(b2), 2, c2, null);
+        List<Request> pipeline = requests.getRequests();
+        assertEquals(1, pipeline.size());
+        assertRequest(b2, c2, pipeline.get(0));
+    }
+}
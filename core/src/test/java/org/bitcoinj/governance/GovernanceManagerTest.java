@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.governance;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.governance.GovernanceObject.*;
+import static org.bitcoinj.governance.GovernanceTriggerManagerTest.governanceObject;
+import static org.junit.Assert.*;
+
+public class GovernanceManagerTest {
+    private static final NetworkParameters PARAMS = TestNet3Params.get();
+    private static final long TIME = 1532690000;
+
+    private GovernanceManager governanceManager;
+
+    @Before
+    public void setUp() {
+        Context context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(true, true);
+        governanceManager = context.governanceManager;
+        Utils.setMockClock(TIME);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private GovernanceObject addProposal(String strName) throws Exception {
+        GovernanceObject govobj = governanceObject(GOVERNANCE_OBJECT_PROPOSAL, TIME, strName, "");
+        governanceManager.addGovernanceObjectForUnitTesting(govobj);
+        return govobj;
+    }
+
+    // Expires the object now, as the trigger manager or a watchdog timeout would, and marks it for maintenance.
+    private void expire(GovernanceObject govobj, boolean fMarkDirty) {
+        governanceManager.lock.lock();
+        try {
+            govobj.setExpired(true);
+            govobj.setDeletionTime(Utils.currentTimeSeconds());
+            if (fMarkDirty)
+                governanceManager.markDirty(govobj.getHash());
+        } finally {
+            governanceManager.lock.unlock();
+        }
+    }
+
+    @Test
+    public void onlyDirtyObjectsAreRechecked() throws Exception {
+        GovernanceObject a = addProposal("proposal-a");
+        GovernanceObject b = addProposal("proposal-b");
+        // The first pass checks all objects.
+        governanceManager.updateCachesAndClean();
+        assertNotNull(governanceManager.findGovernanceObject(a.getHash()));
+        assertNotNull(governanceManager.findGovernanceObject(b.getHash()));
+
+        // Both expire, but only b is marked dirty, so a isn't looked at again.
+        expire(a, false);
+        expire(b, true);
+        Utils.rollMockClock((int) GOVERNANCE_DELETION_DELAY);
+        governanceManager.updateCachesAndClean();
+        assertNotNull(governanceManager.findGovernanceObject(a.getHash()));
+        assertNull(governanceManager.findGovernanceObject(b.getHash()));
+        assertTrue(governanceManager.haveErasedObject(b.getHash()));
+
+        // Once a is marked dirty it is rechecked, and erased right away as its deletion delay has passed.
+        governanceManager.lock.lock();
+        try {
+            governanceManager.markDirty(a.getHash());
+        } finally {
+            governanceManager.lock.unlock();
+        }
+        governanceManager.updateCachesAndClean();
+        assertNull(governanceManager.findGovernanceObject(a.getHash()));
+        assertTrue(governanceManager.haveErasedObject(a.getHash()));
+    }
+
+    @Test
+    public void erasedAtTheirDeadline() throws Exception {
+        GovernanceObject proposal = addProposal("proposal");
+        GovernanceObject trigger = governanceObject(GOVERNANCE_OBJECT_TRIGGER, TIME, "trigger",
+                "\"event_block_height\": " + PARAMS.getSuperblockStartBlock() + ", \"payment_addresses\": \"" +
+                new ECKey().toAddress(PARAMS) + "\", \"payment_amounts\": \"5\"");
+        governanceManager.addGovernanceObjectForUnitTesting(trigger);
+        governanceManager.updateCachesAndClean();
+
+        expire(proposal, true);
+        expire(trigger, true);
+        governanceManager.updateCachesAndClean();
+        Utils.rollMockClock((int) GOVERNANCE_DELETION_DELAY - 1);
+        governanceManager.updateCachesAndClean();
+        assertNotNull(governanceManager.findGovernanceObject(proposal.getHash()));
+        assertNotNull(governanceManager.findGovernanceObject(trigger.getHash()));
+
+        // The deletion delay passed.
+        Utils.rollMockClock(1);
+        governanceManager.updateCachesAndClean();
+        assertNull(governanceManager.findGovernanceObject(proposal.getHash()));
+        assertNull(governanceManager.findGovernanceObject(trigger.getHash()));
+        assertTrue(governanceManager.haveErasedObject(proposal.getHash()));
+        assertTrue(governanceManager.haveErasedObject(trigger.getHash()));
+
+        // The hash of an erased trigger is forgotten two superblock cycles after it was created, that of a proposal
+        // is kept.
+        long nTimeExpired = TIME + 2 * PARAMS.getSuperblockCycle() * NetworkParameters.TARGET_SPACING + GOVERNANCE_DELETION_DELAY;
+        Utils.setMockClock(nTimeExpired);
+        governanceManager.updateCachesAndClean();
+        assertTrue(governanceManager.haveErasedObject(trigger.getHash()));
+        Utils.rollMockClock(1);
+        governanceManager.updateCachesAndClean();
+        assertFalse(governanceManager.haveErasedObject(trigger.getHash()));
+        assertTrue(governanceManager.haveErasedObject(proposal.getHash()));
+    }
+
+    @Test
+    public void workBeyondTheBudgetCarriesOver() throws Exception {
+        int nObjects = 2 * GovernanceManager.MAX_OBJECTS_PER_LOCK + 1;
+        List<GovernanceObject> objects = new ArrayList<GovernanceObject>();
+        for (int i = 0; i < nObjects; i++)
+            objects.add(addProposal("proposal-" + i));
+        governanceManager.updateCachesAndClean();
+
+        // More dirty objects and deletions than one round under the lock handles.
+        for (GovernanceObject govobj : objects)
+            expire(govobj, true);
+        Utils.rollMockClock((int) GOVERNANCE_DELETION_DELAY);
+        governanceManager.updateCachesAndClean();
+        for (GovernanceObject govobj : objects) {
+            assertNull(governanceManager.findGovernanceObject(govobj.getHash()));
+            assertTrue(governanceManager.haveErasedObject(govobj.getHash()));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.governance;
+
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.TestNet3Params;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.governance.GovernanceObject.*;
+import static org.junit.Assert.*;
+
+public class GovernanceTriggerManagerTest {
+    private static final NetworkParameters PARAMS = TestNet3Params.get();
+    private static final long TIME = 1532690000;
+
+    private Context context;
+    private GovernanceManager governanceManager;
+    private GovernanceTriggerManager triggerManager;
+
+    @Before
+    public void setUp() {
+        context = new Context(PARAMS);
+        Context.propagate(context);
+        context.initAxe(true, true);
+        governanceManager = context.governanceManager;
+        triggerManager = context.triggerManager;
+    }
+
+    // An unsigned governance object of the given type, the name makes the hash unique and the data long enough to print.
+    static GovernanceObject governanceObject(int nObjectType, long nTime, String strName, String strFields) throws IOException {
+        String strData = "{\"name\": \"" + strName + "\", \"url\": \"https://www.axerunners.com/governance/" + strName + "\", " +
+                "\"description\": \"an object made up for the unit tests of the governance managers\"" +
+                (strFields.isEmpty() ? "" : ", " + strFields) + "}";
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(Sha256Hash.ZERO_HASH.getReversedBytes());
+        Utils.uint32ToByteStreamLE(1, bos);
+        Utils.int64ToByteStreamLE(nTime, bos);
+        bos.write(Sha256Hash.ZERO_HASH.getReversedBytes());
+        Utils.bytesToByteStream(strData.getBytes(), bos);
+        Utils.uint32ToByteStreamLE(nObjectType, bos);
+        new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH).bitcoinSerialize(bos);
+        new MasternodeSignature(new byte[0]).bitcoinSerialize(bos);
+        return new GovernanceObject(PARAMS, bos.toByteArray());
+    }
+
+    private Sha256Hash addTrigger(String strName, int nBlockHeight) throws IOException {
+        GovernanceObject govobj = governanceObject(GOVERNANCE_OBJECT_TRIGGER, TIME, strName,
+                "\"event_block_height\": " + nBlockHeight + ", \"payment_addresses\": \"" + new ECKey().toAddress(PARAMS) +
+                "\", \"payment_amounts\": \"5\"");
+        governanceManager.addGovernanceObjectForUnitTesting(govobj);
+        return govobj.getHash();
+    }
+
+    @Test
+    public void triggersByHeight() throws Exception {
+        int nHeight1 = PARAMS.getSuperblockStartBlock();
+        int nHeight2 = nHeight1 + PARAMS.getSuperblockCycle();
+        Sha256Hash hash1 = addTrigger("trigger-1", nHeight1);
+        Sha256Hash hash2 = addTrigger("trigger-2", nHeight1);
+        Sha256Hash hash3 = addTrigger("trigger-3", nHeight2);
+        assertEquals(ImmutableSet.of(hash1, hash2), triggerManager.getTriggerHashes(nHeight1));
+        assertEquals(ImmutableSet.of(hash3), triggerManager.getTriggerHashes(nHeight2));
+        assertTrue(triggerManager.getTriggerHashes(nHeight1 + 1).isEmpty());
+
+        // The stored superblocks were parsed from their objects.
+        List<Integer> heights = new ArrayList<Integer>();
+        for (Superblock superblock : triggerManager.getActiveTriggers()) {
+            heights.add(superblock.getBlockStart());
+            assertEquals(1, superblock.countPayments());
+        }
+        assertEquals(3, heights.size());
+        assertTrue(heights.contains(nHeight1) && heights.contains(nHeight2));
+
+        // Known triggers and objects that aren't triggers are not added.
+        assertFalse(triggerManager.addNewTrigger(hash1));
+        GovernanceObject proposal = governanceObject(GOVERNANCE_OBJECT_PROPOSAL, TIME, "proposal", "");
+        governanceManager.addGovernanceObjectForUnitTesting(proposal);
+        assertFalse(triggerManager.addNewTrigger(proposal.getHash()));
+        assertEquals(2, triggerManager.getTriggerHashes(nHeight1).size());
+    }
+
+    @Test
+    public void heightStateIsCachedUntilInvalidated() throws Exception {
+        int nHeight1 = PARAMS.getSuperblockStartBlock();
+        int nHeight2 = nHeight1 + PARAMS.getSuperblockCycle();
+        Sha256Hash hash1 = addTrigger("trigger-1", nHeight1);
+        addTrigger("trigger-2", nHeight2);
+
+        GovernanceTriggerManager.HeightState state1 = triggerManager.getHeightState(nHeight1);
+        assertSame(state1, triggerManager.getHeightState(nHeight1));
+        // Without masternodes there are no funding votes.
+        assertFalse(state1.fTriggered);
+        assertNull(state1.bestSuperblock);
+        assertFalse(SuperblockManager.isSuperblockTriggered(nHeight1));
+        assertNull(SuperblockManager.getBestSuperblock(nHeight1));
+        assertFalse(SuperblockManager.isSuperblockTriggered(nHeight1 + 1));
+
+        // A vote for a trigger drops the state of its height only.
+        GovernanceTriggerManager.HeightState state2 = triggerManager.getHeightState(nHeight2);
+        triggerManager.invalidateTrigger(hash1);
+        GovernanceTriggerManager.HeightState state1b = triggerManager.getHeightState(nHeight1);
+        assertNotSame(state1, state1b);
+        assertSame(state2, triggerManager.getHeightState(nHeight2));
+
+        // So does a new trigger at the height.
+        addTrigger("trigger-3", nHeight1);
+        assertNotSame(state1b, triggerManager.getHeightState(nHeight1));
+        assertSame(state2, triggerManager.getHeightState(nHeight2));
+        // Unknown hashes are ignored.
+        triggerManager.invalidateTrigger(Sha256Hash.ZERO_HASH);
+        assertSame(state2, triggerManager.getHeightState(nHeight2));
+    }
+
+    @Test
+    public void cleanAndRemoveExpiredTriggers() throws Exception {
+        int nHeight1 = PARAMS.getSuperblockStartBlock();
+        int nHeight2 = nHeight1 + PARAMS.getSuperblockCycle();
+        Sha256Hash hash1 = addTrigger("trigger-1", nHeight1);
+        Sha256Hash hash2 = addTrigger("trigger-2", nHeight1);
+        Sha256Hash hash3 = addTrigger("trigger-3", nHeight2);
+        GovernanceTriggerManager.HeightState state2 = triggerManager.getHeightState(nHeight2);
+
+        // The chain moves past the expiration of the triggers at the first height.
+        governanceManager.updatedBlockTip(new StoredBlock(PARAMS.getGenesisBlock(), BigInteger.ONE,
+                nHeight1 + GOVERNANCE_TRIGGER_EXPIRATION_BLOCKS + 1));
+        triggerManager.cleanAndRemove();
+        assertTrue(triggerManager.getTriggerHashes(nHeight1).isEmpty());
+        assertEquals(ImmutableSet.of(hash3), triggerManager.getTriggerHashes(nHeight2));
+        assertEquals(1, triggerManager.getActiveTriggers().size());
+        assertTrue(governanceManager.findGovernanceObject(hash1).isSetExpired());
+        assertTrue(governanceManager.findGovernanceObject(hash2).isSetExpired());
+        assertFalse(governanceManager.findGovernanceObject(hash3).isSetExpired());
+        // Cleaning up evaluates every height again.
+        assertNotSame(state2, triggerManager.getHeightState(nHeight2));
+        assertFalse(SuperblockManager.isSuperblockTriggered(nHeight1));
+    }
+}
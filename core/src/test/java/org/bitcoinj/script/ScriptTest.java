@@ -413,6 +413,48 @@ public class ScriptTest {
         assertTrue("script is locktime-verify", script.isSentToCLTVPaymentChannel());
     }
 
+    @Test
+    public void standardTemplatesMatchInterpreter() throws Exception {
+        ECKey key = new ECKey();
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] {},
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Coin.COIN, new ECKey());
+
+        // Pay to pubkey hash, which is checked without the interpreter.
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, key);
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(tx, 0, scriptSig, stack, Script.ALL_VERIFY_FLAGS);
+        Script.executeScript(tx, 0, scriptPubKey, stack, Script.ALL_VERIFY_FLAGS);
+        assertArrayEquals(new byte[] {1}, stack.getLast());
+        assertFalse(spends(ScriptBuilder.createInputScript(sig, new ECKey()), tx, scriptPubKey));
+        TransactionSignature otherSig = tx.calculateSignature(0, key, scriptPubKey, SigHash.NONE, false);
+        assertFalse(spends(ScriptBuilder.createInputScript(new TransactionSignature(otherSig, SigHash.ALL, false),
+                key), tx, scriptPubKey));
+
+        // Pay to script hash, where the redeem script is run on the stack left by the input script.
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(1, ImmutableList.of(key, new ECKey()));
+        Script p2shScriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+        TransactionSignature p2shSig = tx.calculateSignature(0, key, redeemScript, SigHash.ALL, false);
+        Script p2shScriptSig = ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(p2shSig), redeemScript);
+        p2shScriptSig.correctlySpends(tx, 0, p2shScriptPubKey, Script.ALL_VERIFY_FLAGS);
+        Script otherRedeemScript = ScriptBuilder.createMultiSigOutputScript(1, ImmutableList.of(key));
+        assertFalse(spends(ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(p2shSig), otherRedeemScript),
+                tx, p2shScriptPubKey));
+    }
+
+    private static boolean spends(Script scriptSig, Transaction tx, Script scriptPubKey) {
+        try {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            return true;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
     @Test
     public void getToAddress() throws Exception {
         // pay to pubkey
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+
+    @Test
+    public void cachesValidSignaturesOnly() {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+
+        assertTrue(cache.verify(hash, key.getPubKey(), sigBytes, sig));
+        assertEquals(0, cache.getHitCount());
+        assertTrue(cache.verify(hash, key.getPubKey(), sigBytes, sig));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+
+        // The same signature over a different hash is neither valid nor answered from the cache.
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 2 });
+        assertFalse(cache.verify(otherHash, key.getPubKey(), sigBytes, sig));
+        assertFalse(cache.verify(otherHash, key.getPubKey(), sigBytes, sig));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void bounded() {
+        SignatureCache cache = new SignatureCache(5);
+        ECKey key = new ECKey();
+        for (int i = 0; i < 20; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(cache.verify(hash, key.getPubKey(), sig.encodeToDER(), sig));
+        }
+        assertTrue(cache.size() <= 5);
+    }
+}
@@ -56,6 +56,11 @@ public abstract class InboundMessageQueuer extends PeerSocketHandler {
         }
         if (m instanceof BloomFilter) {
             lastReceivedFilter = (BloomFilter) m;
+        } else if (m instanceof FilterAddMessage && lastReceivedFilter != null) {
+            // Apply the element like a remote node would, to a copy so earlier filters held by tests are unchanged.
+            BloomFilter filter = lastReceivedFilter.copy();
+            filter.insert(((FilterAddMessage) m).getData());
+            lastReceivedFilter = filter;
         }
         inboundMessages.offer(m);
     }
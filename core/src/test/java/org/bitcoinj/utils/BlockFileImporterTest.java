@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileImporterTest {
+    // no difficulty retargeting, so the blocks made up below stay valid
+    private static final NetworkParameters PARAMS = RegTestParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    @Test
+    public void importsBlocksInOrder() throws Exception {
+        List<File> files = new ArrayList<File>();
+        Block block = PARAMS.getGenesisBlock();
+        Address to = new ECKey().toAddress(PARAMS);
+        for (int i = 0; i < 3; i++) {
+            File file = File.createTempFile("blk", ".dat");
+            file.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                for (int j = 0; j < 20; j++) {
+                    block = block.createNextBlock(to);
+                    // Junk between blocks must be skipped.
+                    out.write(new byte[] { 1, 2, 3 });
+                    writeBlock(out, block);
+                }
+            } finally {
+                out.close();
+            }
+            files.add(file);
+        }
+
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        BlockFileImporter importer = new BlockFileImporter(PARAMS, files, 3, 4);
+        importer.importInto(chain);
+        assertEquals(60, importer.getBlocksImported());
+        assertEquals(60, chain.getBestChainHeight());
+        assertEquals(block.getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    private static void writeBlock(FileOutputStream out, Block block) throws IOException {
+        byte[] bytes = block.bitcoinSerialize();
+        byte[] magic = new byte[4];
+        Utils.uint32ToByteArrayBE(PARAMS.getPacketMagic(), magic, 0);
+        out.write(magic);
+        Utils.uint32ToByteStreamLE(bytes.length, out);
+        out.write(bytes);
+    }
+}
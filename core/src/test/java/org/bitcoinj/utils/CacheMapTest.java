@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CacheMapTest {
+    @Test
+    public void eraseValues() {
+        CacheMap<Integer, String> map = new CacheMap<Integer, String>(10);
+        map.insert(1, "a");
+        map.insert(2, "b");
+        map.insert(3, "a");
+        map.insert(4, "c");
+        map.eraseValues(ImmutableSet.of("a", "c"));
+        assertEquals(1, map.getSize());
+        assertFalse(map.hasKey(1));
+        assertFalse(map.hasKey(3));
+        assertFalse(map.hasKey(4));
+        assertEquals("b", map.get(2).value);
+        assertEquals(1, map.getItemList().size());
+
+        // Nothing to erase.
+        map.eraseValues(ImmutableSet.of("d"));
+        assertEquals(1, map.getSize());
+
+        // The size is still right when the map fills up again.
+        for (int i = 10; i < 20; i++)
+            map.insert(i, "x");
+        assertEquals(10, map.getSize());
+        assertFalse(map.hasKey(2));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMillis());
+        assertEquals(0, histogram.getPercentileMillis(99));
+    }
+
+    @Test
+    public void buckets() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        long[] counts = histogram.getBucketCounts();
+        assertEquals(2, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(1, counts[2]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMaxMillis());
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (int i = 0; i < 90; i++)
+            histogram.record(10);
+        for (int i = 0; i < 10; i++)
+            histogram.record(1000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(109, histogram.getMeanMillis());
+        assertEquals(16, histogram.getPercentileMillis(50));
+        assertEquals(16, histogram.getPercentileMillis(90));
+        assertEquals(1000, histogram.getPercentileMillis(99));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+    }
+}
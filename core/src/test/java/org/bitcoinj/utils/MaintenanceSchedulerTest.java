@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MaintenanceSchedulerTest {
+    private MaintenanceScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // the threads of the scheduler propagate the context
+        Context.propagate(new Context(UnitTestParams.get()));
+        scheduler = new MaintenanceScheduler("test", 2);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void runsPeriodically() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        MaintenanceScheduler.Task task = scheduler.schedule("counter", 0, 10, 5, TimeUnit.MILLISECONDS, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getTasks().size());
+        assertTrue(task.getExecutionTime().getCount() >= 2);
+    }
+
+    @Test
+    public void skipsOverrunsAndSurvivesFailures() throws Exception {
+        final CountDownLatch slowLatch = new CountDownLatch(2);
+        MaintenanceScheduler.Task slow = scheduler.schedule("slow", 0, 10, 0, TimeUnit.MILLISECONDS, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                slowLatch.countDown();
+            }
+        });
+        final CountDownLatch failingLatch = new CountDownLatch(3);
+        MaintenanceScheduler.Task failing = scheduler.schedule("failing", 0, 10, 0, TimeUnit.MILLISECONDS, new Runnable() {
+            @Override
+            public void run() {
+                failingLatch.countDown();
+                throw new RuntimeException("expected");
+            }
+        });
+        // The failing task keeps running on the second thread while the slow one is busy.
+        assertTrue(failingLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(slowLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(failing.getFailures() >= 2);
+        assertTrue(slow.getSkips() > 0);
+        assertTrue(slow.getExecutionTime().getMaxMillis() >= 50);
+    }
+}
@@ -0,0 +1,69 @@
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyHashIndexTest {
+    @Test
+    public void addFindAndRemove() {
+        KeyHashIndex index = new KeyHashIndex();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        // Enough keys to force several compactions and table resizes.
+        for (int i = 0; i < 500; i++) {
+            // Mix in some uncompressed keys, which have longer public keys.
+            ECKey key = i % 7 == 0 ? new ECKey().decompress() : new ECKey();
+            keys.add(key);
+            assertTrue(index.add(key, i % 3) >= 0);
+        }
+        assertEquals(-1, index.add(keys.get(10), 0));
+        assertEquals(500, index.size());
+        for (int i = 0; i < keys.size(); i++) {
+            ECKey key = keys.get(i);
+            assertSame(key, index.findKeyFromPubHash(key.getPubKeyHash()));
+            assertSame(key, index.findKeyFromPubKey(key.getPubKey()));
+            assertEquals(i % 3, index.getTag(index.findByPubHash(key.getPubKeyHash())));
+        }
+        assertNull(index.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+        assertNull(index.findKeyFromPubKey(new ECKey().getPubKey()));
+        assertNull(index.findKeyFromPubKey(new byte[] { 2 }));
+
+        for (int i = 0; i < 400; i++)
+            assertTrue(index.remove(keys.get(i)));
+        assertFalse(index.remove(keys.get(0)));
+        assertEquals(100, index.size());
+        assertNull(index.findKeyFromPubHash(keys.get(0).getPubKeyHash()));
+        // Re-adding a removed key works, and iteration stays in insertion order.
+        assertTrue(index.add(keys.get(0), 0) >= 0);
+        List<ECKey> expected = new ArrayList<ECKey>(keys.subList(400, 500));
+        expected.add(keys.get(0));
+        assertEquals(expected, index.getKeys());
+        List<ECKey> iterated = new ArrayList<ECKey>();
+        for (ECKey key : index)
+            iterated.add(key);
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    public void bloomFilter() {
+        KeyHashIndex index = new KeyHashIndex();
+        ECKey included = new ECKey();
+        ECKey excluded = new ECKey();
+        index.add(included, 0);
+        index.add(excluded, 1);
+        BitSet excludedTags = new BitSet();
+        excludedTags.set(1);
+        BloomFilter filter = new BloomFilter(10, 0.0000001, 0);
+        index.insertInto(filter, excludedTags);
+        assertTrue(filter.contains(included.getPubKey()));
+        assertTrue(filter.contains(included.getPubKeyHash()));
+        assertFalse(filter.contains(excluded.getPubKey()));
+        assertFalse(filter.contains(excluded.getPubKeyHash()));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.BloomFilter;
+
+import java.util.Random;
+
+/**
+ * Compares insert and lookup throughput of classic Bloom filters, as sent to peers, with local-only double hashed
+ * ones. Takes the number of elements and the false positive rate as optional arguments, e.g. 20000 0.0001.
+ */
+public class BloomFilterBenchmark {
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) {
+        int elements = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        double fpRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.0001;
+        Random random = new Random(1);
+        // A mix of hash160s and compressed public keys, like a wallet filter.
+        byte[][] inserted = randomElements(random, elements);
+        byte[][] probes = randomElements(random, elements);
+
+        // The first rounds warm up the JIT and are not reported.
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean report = round >= ROUNDS / 2;
+            run("classic", new BloomFilter(elements, fpRate, 0), inserted, probes, report);
+            run("local  ", BloomFilter.createLocal(elements, fpRate, 0), inserted, probes, report);
+        }
+    }
+
+    private static void run(String name, BloomFilter filter, byte[][] inserted, byte[][] probes, boolean report) {
+        long start = System.nanoTime();
+        filter.insertAll(inserted);
+        long inserting = System.nanoTime() - start;
+        start = System.nanoTime();
+        int hits = 0;
+        for (byte[] probe : probes)
+            if (filter.contains(probe))
+                hits++;
+        long querying = System.nanoTime() - start;
+        if (report)
+            System.out.printf("%s  insert %6.1f ns/element  contains %6.1f ns/element  false positives %d%n", name,
+                    (double) inserting / inserted.length, (double) querying / probes.length, hits);
+    }
+
+    private static byte[][] randomElements(Random random, int count) {
+        byte[][] elements = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            elements[i] = new byte[i % 2 == 0 ? 20 : 33];
+            random.nextBytes(elements[i]);
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import com.google.common.io.Files;
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.bitcoinj.store.MappedFullPrunedBlockStore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a generated range of blocks through a {@link FullPrunedBlockChain} and prints the throughput and the resident
+ * set size for each store: embedded H2, H2 with a {@link CachingFullPrunedBlockStore} in front of it, LevelDB and the
+ * {@link MappedFullPrunedBlockStore}. Script checks are turned off so the numbers are dominated by the block store.
+ * Run it on two revisions to compare them. Takes the number of blocks, the number of outputs each block creates and
+ * the store to run (all, h2, cached, leveldb or mapped) as optional arguments, e.g. 500 50 mapped. The resident set
+ * size only means something when each store is run in a JVM of its own.
+ */
+public class FullPrunedBlockChainBenchmark {
+    private static final int ROUNDS = 3;
+    private static final int FULL_STORE_DEPTH = 100;
+
+    public static void main(String[] args) throws Exception {
+        int numBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int fanOut = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String which = args.length > 2 ? args[2] : "all";
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        List<Block> blocks = generateBlocks(params, numBlocks, fanOut);
+        int numTransactions = 0;
+        for (Block block : blocks)
+            numTransactions += block.getTransactions().size();
+        System.out.printf("Replaying %d blocks with %d transactions%n", blocks.size(), numTransactions);
+
+        // The first round also warms up the JIT.
+        for (int round = 0; round < ROUNDS; round++) {
+            File dir = Files.createTempDir();
+            try {
+                if (which.equals("all") || which.equals("h2"))
+                    replay("h2        ", new H2FullPrunedBlockStore(params, new File(dir, "plain").getPath(),
+                            FULL_STORE_DEPTH), blocks, numTransactions);
+                if (which.equals("all") || which.equals("cached"))
+                    replay("h2 + cache", new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params,
+                            new File(dir, "cached").getPath(), FULL_STORE_DEPTH)), blocks, numTransactions);
+                if (which.equals("all") || which.equals("leveldb"))
+                    replay("leveldb   ", new LevelDBFullPrunedBlockStore(params, new File(dir, "leveldb").getPath(),
+                            FULL_STORE_DEPTH), blocks, numTransactions);
+                if (which.equals("all") || which.equals("mapped"))
+                    replay("mapped    ", new MappedFullPrunedBlockStore(params, new File(dir, "mapped"),
+                            FULL_STORE_DEPTH), blocks, numTransactions);
+            } finally {
+                delete(dir);
+            }
+        }
+    }
+
+    private static void replay(String name, FullPrunedBlockStore store, List<Block> blocks, int numTransactions)
+            throws Exception {
+        try {
+            FullPrunedBlockChain chain = new FullPrunedBlockChain(store.getParams(), store);
+            chain.setRunScripts(false);
+            long start = System.nanoTime();
+            for (Block block : blocks) {
+                if (!chain.add(block))
+                    throw new IllegalStateException("Block did not connect: " + block.getHashAsString());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s  %8.1f blocks/sec  %9.1f tx/sec  %7.1f MB resident%n", name,
+                    blocks.size() / seconds, numTransactions / seconds, residentBytes() / 1e6);
+        } finally {
+            store.close();
+        }
+    }
+
+    // VmRSS on Linux, which includes the pages of mapped files and native allocations. Elsewhere the used heap.
+    private static long residentBytes() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Not Linux.
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Builds a chain on the genesis block in which, once coinbases mature, every block splits an old coinbase into
+     * {@code fanOut} outputs and spends each output created that way by the block before it. The UTXO set therefore
+     * sees both freshly created outputs being spent and a steadily growing number of outputs that stay open.
+     */
+    private static List<Block> generateBlocks(NetworkParameters params, int numBlocks, int fanOut) {
+        byte[] pubKey = new ECKey().getPubKey();
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>(numBlocks);
+        Block previous = params.getGenesisBlock();
+        Transaction previousSplit = null;
+        for (int height = 1; height <= numBlocks; height++) {
+            Block block = previous.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, pubKey, Coin.FIFTY_COINS,
+                    height);
+            int matureHeight = height - params.getSpendableCoinbaseDepth();
+            if (matureHeight > 0) {
+                TransactionOutput coinbaseOutput = blocks.get(matureHeight - 1).getTransactions().get(0).getOutput(0);
+                Transaction split = new Transaction(params);
+                Coin value = coinbaseOutput.getValue().divide(fanOut);
+                for (int i = 0; i < fanOut; i++)
+                    split.addOutput(value, ScriptBuilder.createOutputScript(outKey));
+                // Scripts aren't run, so the inputs don't need to be signed.
+                split.addInput(coinbaseOutput).clearScriptBytes();
+                block.addTransaction(split);
+                if (previousSplit != null) {
+                    for (TransactionOutput output : previousSplit.getOutputs()) {
+                        Transaction spend = new Transaction(params);
+                        spend.addOutput(output.getValue(), ScriptBuilder.createOutputScript(outKey));
+                        spend.addInput(output).clearScriptBytes();
+                        block.addTransaction(spend);
+                    }
+                }
+                previousSplit = split;
+                block.solve();
+            }
+            blocks.add(block);
+            previous = block;
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures how long lookups in the {@link MasternodeManager} take while another thread keeps adding masternodes with
+ * the manager lock held, as the processing of mnb messages does. Prints the lookup throughput and latency
+ * percentiles of the reader threads. Run it on two revisions to compare them. Takes the number of masternodes, the
+ * number of reader threads and how long the writer holds the lock for each masternode in microseconds as optional
+ * arguments, e.g. 5000 4 200.
+ */
+public class MasternodeManagerBenchmark {
+    private static final int ROUNDS = 6;
+    private static final long ROUND_MILLIS = 2000;
+    // Every n-th lookup is timed, timing all of them would mostly measure System.nanoTime.
+    private static final int SAMPLE_EVERY = 16;
+
+    // A serialized masternode, the first 36 bytes are its collateral outpoint.
+    private static final byte[] MASTERNODE = Utils.HEX.decode(
+            "09efcb66ff207c412e0c9817edc6ae73f4ee6ab69b78872f19c1e7f6da81ab530000000000000000000000000000ffff36bb35f04a3e21024844d13d64dd612147474caeb3ae9eff50daffec4cea17312ce3a8191573af5141042045b0853a5d097b39747b975a2e8cf952a7ac082367ba9b987158ec00a12e92848950444ddd416c7258268c91bffafdc0b14dd4877d488ce7abbe45bdc8469a411f1d574ccc8b7fe9ceba57d9d52e41665e0ac92e6db7fb01d733ff8bb7e59392973c27b199fa7532f1f3ad6a95ebc80685f8c48aa3cf7079650acc62f20f6647ebdddc5a5b0000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000421201000000000000000000000000");
+
+    public static void main(String[] args) throws Exception {
+        int masternodes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long holdMicros = args.length > 2 ? Long.parseLong(args[2]) : 200;
+        NetworkParameters params = MainNetParams.get();
+        Context context = new Context(params);
+        Context.propagate(context);
+        context.initAxe(true, true);
+
+        // The first rounds warm up the JIT and are not reported.
+        for (int round = 0; round < ROUNDS; round++) {
+            MasternodeManager manager = new MasternodeManager(context);
+            List<TransactionOutPoint> outpoints = new ArrayList<TransactionOutPoint>(masternodes);
+            for (int i = 0; i < masternodes; i++)
+                outpoints.add(add(context, manager, i));
+            run(context, manager, outpoints, readers, holdMicros, round >= ROUNDS / 2);
+        }
+    }
+
+    private static void run(final Context context, final MasternodeManager manager,
+                            final List<TransactionOutPoint> outpoints, int readers, final long holdMicros,
+                            boolean report) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(readers + 1);
+        final long[] lookups = new long[readers];
+        final long[][] samples = new long[readers][];
+        final long[] writes = new long[1];
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Context.propagate(context);
+                int next = outpoints.size();
+                while (!stop.get()) {
+                    manager.lock.lock();
+                    try {
+                        add(context, manager, next++);
+                        long until = System.nanoTime() + holdMicros * 1000;
+                        while (System.nanoTime() < until) {
+                            // Stands in for checking the signatures and the collateral of the broadcast.
+                        }
+                    } finally {
+                        manager.lock.unlock();
+                    }
+                    writes[0]++;
+                }
+                done.countDown();
+            }
+        }, "writer");
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            final int reader = r;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Context.propagate(context);
+                    Random random = new Random(reader);
+                    long[] sampled = new long[1 << 16];
+                    int nSampled = 0;
+                    long count = 0;
+                    while (!stop.get()) {
+                        TransactionOutPoint outpoint = outpoints.get(random.nextInt(outpoints.size()));
+                        boolean timed = count % SAMPLE_EVERY == 0;
+                        long start = timed ? System.nanoTime() : 0;
+                        switch ((int) (count % 3)) {
+                            case 0: manager.has(outpoint); break;
+                            case 1: manager.find(outpoint); break;
+                            default: manager.getMasternodeInfo(outpoint); break;
+                        }
+                        if (timed && nSampled < sampled.length)
+                            sampled[nSampled++] = System.nanoTime() - start;
+                        count++;
+                    }
+                    lookups[reader] = count;
+                    samples[reader] = Arrays.copyOf(sampled, nSampled);
+                    done.countDown();
+                }
+            }, "reader " + r));
+        }
+
+        writer.start();
+        for (Thread thread : threads)
+            thread.start();
+        Thread.sleep(ROUND_MILLIS);
+        stop.set(true);
+        done.await();
+        if (!report)
+            return;
+
+        long total = 0;
+        int nSamples = 0;
+        for (int r = 0; r < readers; r++) {
+            total += lookups[r];
+            nSamples += samples[r].length;
+        }
+        long[] all = new long[nSamples];
+        int pos = 0;
+        for (long[] s : samples) {
+            System.arraycopy(s, 0, all, pos, s.length);
+            pos += s.length;
+        }
+        Arrays.sort(all);
+        double seconds = ROUND_MILLIS / 1000.0;
+        System.out.printf("%d readers  %,12.0f lookups/sec  p50 %,8d ns  p99 %,10d ns  max %,12d ns  writer %,8.0f adds/sec%n",
+                readers, total / seconds, percentile(all, 50), percentile(all, 99), all.length > 0 ? all[all.length - 1] : 0,
+                writes[0] / seconds);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    // Adds a copy of the sample masternode whose collateral outpoint is made from the given number.
+    private static TransactionOutPoint add(Context context, MasternodeManager manager, int n) {
+        byte[] bytes = Arrays.copyOf(MASTERNODE, MASTERNODE.length);
+        Utils.uint32ToByteArrayLE(n, bytes, 0);
+        Masternode mn = new Masternode(context, bytes, 0);
+        manager.add(mn);
+        return new TransactionOutPoint(context.getParams(), 0, Sha256Hash.wrapReversed(Arrays.copyOf(bytes, 32)));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.examples;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.json.JSONArray;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.core.Utils.HEX;
+
+/**
+ * Times {@link Script#correctlySpends(Transaction, long, Script, Set)} over the script test vectors of the core
+ * module and over a signed pay-to-pubkey-hash spend. Run it on two revisions to compare them. Takes the path of
+ * script_valid.json as an optional argument, by default it is looked up relative to the project root.
+ */
+public class ScriptBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 200;
+    private static final int SIGNED_ITERATIONS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        File vectors = new File(args.length > 0 ? args[0] : "core/src/test/resources/org/bitcoinj/script/script_valid.json");
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+
+        JSONArray json = new JSONArray(Files.toString(vectors, Charsets.UTF_8));
+        List<Script[]> scripts = new ArrayList<Script[]>();
+        List<Set<Script.VerifyFlag>> flags = new ArrayList<Set<Script.VerifyFlag>>();
+        for (int i = 0; i < json.length(); i++) {
+            JSONArray test = json.getJSONArray(i);
+            if (test.length() < 3)
+                continue;  // A comment.
+            scripts.add(new Script[] { parseScriptString(test.getString(0)), parseScriptString(test.getString(1)) });
+            flags.add(parseVerifyFlags(test.getString(2)));
+        }
+        Transaction emptyTx = new Transaction(params);
+
+        ECKey key = new ECKey();
+        Transaction signedTx = new Transaction(params);
+        signedTx.addInput(new TransactionInput(params, signedTx, new byte[] {},
+                new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        signedTx.addOutput(Coin.COIN, new ECKey());
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        TransactionSignature sig = signedTx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, key);
+
+        // The first rounds also warm up the JIT.
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (int j = 0; j < scripts.size(); j++)
+                    scripts.get(j)[0].correctlySpends(emptyTx, 0, scripts.get(j)[1], flags.get(j));
+            }
+            long vectorNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < SIGNED_ITERATIONS; i++)
+                scriptSig.correctlySpends(signedTx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+            long signedNanos = System.nanoTime() - start;
+
+            System.out.printf("%d script vectors  %8.0f ns/script    p2pkh spend  %8.0f ns/spend%n", scripts.size(),
+                    (double) vectorNanos / (ITERATIONS * scripts.size()), (double) signedNanos / SIGNED_ITERATIONS);
+        }
+    }
+
+    // The same format as ScriptTest in the core module reads.
+    private static Script parseScriptString(String string) throws Exception {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        for (String w : string.split("[ \\t\\n]")) {
+            if (w.equals(""))
+                continue;
+            if (w.matches("^-?[0-9]*$")) {
+                long val = Long.parseLong(w);
+                if (val == 0)
+                    out.write(ScriptOpCodes.OP_0);
+                else if (val == -1)
+                    out.write(ScriptOpCodes.OP_1NEGATE);
+                else if (val >= 1 && val <= 16)
+                    out.write(ScriptOpCodes.OP_1 + (int) val - 1);
+                else
+                    Script.writeBytes(out, Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(val), false)));
+            } else if (w.matches("^0x[0-9a-fA-F]*$")) {
+                out.write(HEX.decode(w.substring(2).toLowerCase()));
+            } else if (w.length() >= 2 && w.startsWith("'") && w.endsWith("'")) {
+                Script.writeBytes(out, w.substring(1, w.length() - 1).getBytes(Charsets.UTF_8));
+            } else if (ScriptOpCodes.getOpCode(w) != ScriptOpCodes.OP_INVALIDOPCODE) {
+                out.write(ScriptOpCodes.getOpCode(w));
+            } else if (w.startsWith("OP_") && ScriptOpCodes.getOpCode(w.substring(3)) != ScriptOpCodes.OP_INVALIDOPCODE) {
+                out.write(ScriptOpCodes.getOpCode(w.substring(3)));
+            } else {
+                throw new ScriptException("Invalid data: " + w);
+            }
+        }
+        return new Script(out.toByteArray());
+    }
+
+    private static Set<Script.VerifyFlag> parseVerifyFlags(String str) {
+        Set<Script.VerifyFlag> flags = EnumSet.noneOf(Script.VerifyFlag.class);
+        if (!"NONE".equals(str)) {
+            for (String flag : str.split(",")) {
+                try {
+                    flags.add(Script.VerifyFlag.valueOf(flag));
+                } catch (IllegalArgumentException x) {
+                    // Flags that bitcoinj doesn't know about are ignored, as in ScriptTest.
+                }
+            }
+        }
+        return flags;
+    }
+}
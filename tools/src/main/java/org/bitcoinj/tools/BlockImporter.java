@@ -18,18 +18,31 @@ import org.bitcoinj.core.*;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.store.*;
+import org.bitcoinj.utils.BlockFileImporter;
 import org.bitcoinj.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
-/** Very thin wrapper around {@link org.bitcoinj.utils.BlockFileLoader} */
+/**
+ * Very thin wrapper around {@link org.bitcoinj.utils.BlockFileLoader}, or {@link org.bitcoinj.utils.BlockFileImporter}
+ * with --pipelined
+ */
 public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: BlockImporter [--pipelined] (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
+        System.out.println("       --pipelined maps the block files and parses blocks on all cores");
+        boolean pipelined = args.length > 0 && args[0].equals("--pipelined");
+        if (pipelined)
+            args = Arrays.copyOfRange(args, 1, args.length);
         Preconditions.checkArgument(args.length == 2 || args.length == 3);
         
         NetworkParameters params;
@@ -62,9 +75,24 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        List<File> files = BlockFileLoader.getReferenceClientBlockFileList();
+        if (pipelined) {
+            BlockFileImporter importer = new BlockFileImporter(params, files);
+            importer.importInto(chain);
+            System.out.println(importer.progress());
+        } else {
+            BlockFileLoader loader = new BlockFileLoader(params, files);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            long blocks = 0, bytes = 0;
+            for (Block block : loader) {
+                chain.add(block);
+                blocks++;
+                bytes += block.getMessageSize() + 8;
+            }
+            double seconds = Math.max(stopwatch.elapsed(TimeUnit.MILLISECONDS), 1) / 1000.0;
+            System.out.println(String.format(Locale.US,
+                    "Imported %d blocks, %.1f MB in %.1f s: %.1f blocks/sec, %.2f MB/sec", blocks, bytes / 1e6,
+                    seconds, blocks / seconds, bytes / 1e6 / seconds));
+        }
     }
 }